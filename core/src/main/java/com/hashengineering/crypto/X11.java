@@ -3,6 +3,9 @@ package com.hashengineering.crypto;
 import org.bitcoinj.core.Sha256Hash;
 
 import fr.cryptohash.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,18 +38,49 @@ public class X11 {
 
     public static byte[] x11Digest(byte[] input, int offset, int length)
     {
-        byte [] buf = new byte[length];
-        for(int i = 0; i < length; ++i)
-        {
-            buf[i] = input[offset + i];
+        if (native_library_loaded)
+            return x11Digest(Arrays.copyOfRange(input, offset, offset + length));
+        try {
+            return X11Engine.get().digest(input, offset, length);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Hashes a slice of {@code input} and writes the 32 byte digest into {@code output} at {@code outOffset}.
+     * When the native library is not available this does not allocate.
+     */
+    public static void x11Digest(byte[] input, int offset, int length, byte[] output, int outOffset)
+    {
+        if (native_library_loaded) {
+            byte [] result = x11_native(Arrays.copyOfRange(input, offset, offset + length));
+            System.arraycopy(result, 0, output, outOffset, X11Engine.DIGEST_LENGTH);
+        } else {
+            X11Engine.get().digest(input, offset, length, output, outOffset);
+        }
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code input} and writes the 32 byte digest into {@code output} at
+     * {@code outOffset}. The position of the buffer is advanced to its limit.
+     */
+    public static void x11Digest(ByteBuffer input, byte[] output, int outOffset)
+    {
+        if (native_library_loaded) {
+            byte [] buf = new byte[input.remaining()];
+            input.get(buf);
+            byte [] result = x11_native(buf);
+            System.arraycopy(result, 0, output, outOffset, X11Engine.DIGEST_LENGTH);
+        } else {
+            X11Engine.get().digest(input, output, outOffset);
         }
-        return x11Digest(buf);
     }
 
     public static byte[] x11Digest(byte[] input) {
         //long start = System.currentTimeMillis();
         try {
-            return native_library_loaded ? x11_native(input) : x11(input);
+            return native_library_loaded ? x11_native(input) : X11Engine.get().digest(input, 0, input.length);
             /*long start = System.currentTimeMillis();
             byte [] result = x11_native(input);
             long end1 = System.currentTimeMillis();
@@ -66,6 +100,10 @@ public class X11 {
     static native byte [] x11_native(byte [] input);
 
 
+    /**
+     * The original allocating implementation, one new digest object per step. Kept as a reference for
+     * {@link X11Engine} in tests and benchmarks.
+     */
     static byte [] x11(byte header[])
     {
         //Initialize
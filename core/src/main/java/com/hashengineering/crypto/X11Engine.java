@@ -0,0 +1,111 @@
+package com.hashengineering.crypto;
+
+import fr.cryptohash.*;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A reusable, pure Java X11 hasher. It holds one instance of each of the eleven digests in the chain together
+ * with two 64 byte scratch buffers, so hashing does not allocate. Input can be taken straight from a slice of a
+ * byte array or from a {@link ByteBuffer} and the 32 byte result is written into a caller supplied array.
+ *
+ * <p>Instances are not thread safe. Use {@link #get()} to obtain the engine belonging to the current thread.</p>
+ */
+public final class X11Engine {
+    /** Length in bytes of the final X11 digest. */
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final int CHAIN_LENGTH = 64;
+
+    private static final ThreadLocal<X11Engine> THREAD_ENGINE = new ThreadLocal<X11Engine>() {
+        @Override
+        protected X11Engine initialValue() {
+            return new X11Engine();
+        }
+    };
+
+    private final BLAKE512 blake = new BLAKE512();
+    private final BMW512 bmw = new BMW512();
+    private final Groestl512 groestl = new Groestl512();
+    private final Skein512 skein = new Skein512();
+    private final JH512 jh = new JH512();
+    private final Keccak512 keccak = new Keccak512();
+    private final Luffa512 luffa = new Luffa512();
+    private final CubeHash512 cubehash = new CubeHash512();
+    private final SHAvite512 shavite = new SHAvite512();
+    private final SIMD512 simd = new SIMD512();
+    private final ECHO512 echo = new ECHO512();
+
+    private final byte[] a = new byte[CHAIN_LENGTH];
+    private final byte[] b = new byte[CHAIN_LENGTH];
+
+    public X11Engine() {
+    }
+
+    /** Returns the engine owned by the calling thread, creating it on first use. */
+    public static X11Engine get() {
+        return THREAD_ENGINE.get();
+    }
+
+    /**
+     * Hashes {@code length} bytes of {@code input} starting at {@code offset} and writes the 32 byte result into
+     * {@code output} at {@code outOffset}.
+     */
+    public void digest(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        checkArgument(offset >= 0 && length >= 0 && offset + length <= input.length, "Input slice out of range");
+        checkArgument(outOffset >= 0 && outOffset + DIGEST_LENGTH <= output.length, "Output too small");
+        blake.update(input, offset, length);
+        finishChain(output, outOffset);
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code input} and writes the 32 byte result into {@code output} at
+     * {@code outOffset}. The position of the buffer is advanced to its limit.
+     */
+    public void digest(ByteBuffer input, byte[] output, int outOffset) {
+        checkArgument(outOffset >= 0 && outOffset + DIGEST_LENGTH <= output.length, "Output too small");
+        int length = input.remaining();
+        if (input.hasArray()) {
+            blake.update(input.array(), input.arrayOffset() + input.position(), length);
+            input.position(input.limit());
+        } else {
+            // Direct buffers are fed through the scratch buffer a chunk at a time.
+            while (input.hasRemaining()) {
+                int chunk = Math.min(input.remaining(), a.length);
+                input.get(a, 0, chunk);
+                blake.update(a, 0, chunk);
+            }
+        }
+        finishChain(output, outOffset);
+    }
+
+    /** Convenience method that hashes a slice of {@code input} into a newly allocated 32 byte array. */
+    public byte[] digest(byte[] input, int offset, int length) {
+        byte[] result = new byte[DIGEST_LENGTH];
+        digest(input, offset, length, result, 0);
+        return result;
+    }
+
+    private void finishChain(byte[] output, int outOffset) {
+        // Each DigestEngine resets itself after producing its output, so the chain is ready for the next call.
+        blake.digest(a, 0, CHAIN_LENGTH);
+        step(bmw, a, b);
+        step(groestl, b, a);
+        step(skein, a, b);
+        step(jh, b, a);
+        step(keccak, a, b);
+        step(luffa, b, a);
+        step(cubehash, a, b);
+        step(shavite, b, a);
+        step(simd, a, b);
+        step(echo, b, a);
+        System.arraycopy(a, 0, output, outOffset, DIGEST_LENGTH);
+    }
+
+    private static void step(Digest digest, byte[] in, byte[] out) {
+        digest.update(in, 0, CHAIN_LENGTH);
+        digest.digest(out, 0, CHAIN_LENGTH);
+    }
+}
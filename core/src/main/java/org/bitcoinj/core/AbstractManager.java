@@ -1,6 +1,8 @@
 package org.bitcoinj.core;
 
 
+import org.bitcoinj.store.FlatDBJournal;
+
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -45,12 +47,38 @@ public abstract class AbstractManager extends Message {
                             "Refer to Message.parseLite() for detail of required Length field contract.",
                     getClass().getSimpleName(), /*parseLazy ? "lite" :*/ "full");
 
+        parse();
         //if (parseRetain || !parsed)
         //    return;
         this.payload = null;
-        parse();
     }
 
     public abstract AbstractManager createEmpty();
 
+    // where changes are recorded between snapshots, if the manager was loaded by a FlatDB that keeps a journal
+    FlatDBJournal journal;
+
+    /**
+     * Sets the journal that changes are recorded to from now on, see {@link org.bitcoinj.store.FlatDB#useJournal(long)}.
+     * Only managers that implement {@link FlatDBJournal.RecordHandler}, and so can replay the changes, are given one.
+     */
+    public void setJournal(FlatDBJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    protected void record(int type, byte[] payload)
+    {
+        FlatDBJournal journal = this.journal;
+        if (journal != null)
+            journal.append(type, payload);
+    }
+
+    protected void record(int type, Message message)
+    {
+        // don't serialize anything unless it is going to be written
+        if (journal != null)
+            record(type, message.bitcoinSerialize());
+    }
+
 }
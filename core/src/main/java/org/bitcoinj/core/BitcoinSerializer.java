@@ -17,16 +17,21 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.base.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -36,8 +41,8 @@ import static org.bitcoinj.core.Utils.*;
  * <p>To be able to serialize and deserialize new Message subclasses the following criteria needs to be met.</p>
  *
  * <ul>
- * <li>The proper Class instance needs to be mapped to its message name in the names variable below</li>
- * <li>There needs to be a constructor matching: NetworkParameters context, byte[] payload</li>
+ * <li>The class and a {@link MessageFactory} need to be registered for its message name with
+ * {@link #registerMessage(String, Class, MessageFactory, boolean)}</li>
  * <li>Message.bitcoinSerializeToStream() needs to be properly subclassed</li>
  * </ul>
  */
@@ -48,44 +53,300 @@ public class BitcoinSerializer extends MessageSerializer {
     private final NetworkParameters params;
     private final boolean parseRetain;
 
-    private static final Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
+    private static final Map<Class<? extends Message>, String> names = new ConcurrentHashMap<Class<? extends Message>, String>();
+
+    // Commands we can deserialize, in an open addressed table keyed by the command bytes so a packet header can be
+    // matched without building a string. It is replaced as a whole when a command is registered.
+    private static volatile Command[] commands = new Command[0];
+    private static final Map<String, Command> commandsByName = new HashMap<String, Command>();
+
+    // Payload buffers for the message types that don't hold on to them, shared by all serializers.
+    private static final PayloadBufferPool payloadPool = new PayloadBufferPool();
 
     static {
-        names.put(VersionMessage.class, "version");
-        names.put(InventoryMessage.class, "inv");
-        names.put(Block.class, "block");
-        names.put(GetDataMessage.class, "getdata");
-        names.put(Transaction.class, "tx");
-        names.put(AddressMessage.class, "addr");
-        names.put(Ping.class, "ping");
-        names.put(Pong.class, "pong");
-        names.put(VersionAck.class, "verack");
-        names.put(GetBlocksMessage.class, "getblocks");
-        names.put(GetHeadersMessage.class, "getheaders");
+        registerMessage("version", VersionMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new VersionMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("inv", InventoryMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeInventoryMessage(payload, length);
+            }
+        }, true);
+        registerMessage("block", Block.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeBlock(payload, length);
+            }
+        });
+        registerMessage("merkleblock", FilteredBlock.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeFilteredBlock(payload);
+            }
+        });
+        registerMessage("getdata", GetDataMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new GetDataMessage(serializer.getParameters(), payload, serializer, length);
+            }
+        }, true);
+        registerMessage("getblocks", GetBlocksMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new GetBlocksMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("getheaders", GetHeadersMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new GetHeadersMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("tx", Transaction.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeTransaction(payload, 0, length, hash);
+            }
+        }, true);
+        registerMessage("addr", AddressMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeAddressMessage(payload, length);
+            }
+        });
+        registerMessage("ping", Ping.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new Ping(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("pong", Pong.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new Pong(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("verack", VersionAck.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new VersionAck(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("headers", HeadersMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new HeadersMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("alert", null, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeAlertMessage(payload);
+            }
+        });
+        registerMessage("filterload", BloomFilter.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return serializer.makeBloomFilter(payload);
+            }
+        });
+        registerMessage("notfound", NotFoundMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new NotFoundMessage(serializer.getParameters(), payload);
+            }
+        }, true);
+        registerMessage("mempool", MemoryPoolMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new MemoryPoolMessage();
+            }
+        });
+        registerMessage("reject", RejectMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new RejectMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("utxos", UTXOsMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new UTXOsMessage(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("getutxos", GetUTXOsMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new GetUTXOsMessage(serializer.getParameters(), payload);
+            }
+        });
         names.put(GetAddrMessage.class, "getaddr");
-        names.put(HeadersMessage.class, "headers");
-        names.put(BloomFilter.class, "filterload");
-        names.put(FilteredBlock.class, "merkleblock");
-        names.put(NotFoundMessage.class, "notfound");
-        names.put(MemoryPoolMessage.class, "mempool");
-        names.put(RejectMessage.class, "reject");
-        names.put(GetUTXOsMessage.class, "getutxos");
-        names.put(UTXOsMessage.class, "utxos");
 
         //Dash specific messages
-        names.put(DarkSendElectionEntryPingMessage.class, "dseep");
+        registerMessage("dseep", DarkSendElectionEntryPingMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new DarkSendElectionEntryPingMessage(serializer.getParameters(), payload);
+            }
+        });
 
-        names.put(TransactionLockRequest.class, "ix");
-        names.put(TransactionLockVote.class, "txlvote");
+        registerMessage("ix", TransactionLockRequest.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new TransactionLockRequest(serializer.getParameters(), payload);
+            }
+        }, true);
+        registerMessage("txlvote", TransactionLockVote.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new TransactionLockVote(serializer.getParameters(), payload);
+            }
+        }, true);
+        registerMessage("dsq", null, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new DarkSendQueue(serializer.getParameters());
+            }
+        });
 
-        names.put(MasternodeBroadcast.class, "mnb");
-        names.put(MasternodePing.class, "mnp");
-        names.put(SporkMessage.class, "spork");
-        names.put(GetSporksMessage.class, "getsporks");
+        registerMessage("mnb", MasternodeBroadcast.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new MasternodeBroadcast(serializer.getParameters(), payload);
+            }
+        }, true);
+        registerMessage("mnp", MasternodePing.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new MasternodePing(serializer.getParameters(), payload);
+            }
+        }, true);
+        registerMessage("spork", SporkMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new SporkMessage(serializer.getParameters(), payload, 0);
+            }
+        });
+        registerMessage("getsporks", GetSporksMessage.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new GetSporksMessage(serializer.getParameters());
+            }
+        });
         names.put(DarkSendEntryGetMessage.class, "dseg");
-        names.put(SyncStatusCount.class, "ssc");
+        registerMessage("ssc", SyncStatusCount.class, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new SyncStatusCount(serializer.getParameters(), payload);
+            }
+        });
+        registerMessage("sendheaders", null, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new SendHeadersMessage(serializer.getParameters());
+            }
+        });
+        registerMessage("sendcmpct", null, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new SendCompactBlocksMessage(serializer.getParameters());
+            }
+        });
+        registerMessage("govsync", null, new MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) {
+                return new GovernanceSyncMessage(serializer.getParameters());
+            }
+        });
+    }
 
+    /**
+     * Creates a message from a received payload. Implementations are registered for a command with
+     * {@link #registerMessage(String, Class, MessageFactory, boolean)}.
+     */
+    public interface MessageFactory {
+        /**
+         * Returns the message for the given payload, of which only the first length bytes belong to it.
+         *
+         * @param serializer the serializer that read the message, which subclasses may use to change how it is made
+         * @param hash the double SHA-256 hash of the payload
+         */
+        Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException;
+    }
 
+    /**
+     * Registers how to deserialize the given command, replacing any earlier registration, so new message types can be
+     * added without changing this class. If a message class is given it is also serialized with this command.
+     *
+     * @param pooled whether the payload may be given to the factory in a pooled buffer, which may be longer than the
+     *               payload and is reused once the message is made. Only messages that read no further than the
+     *               payload and don't keep the buffer when the serializer doesn't retain it may use this.
+     */
+    public static synchronized void registerMessage(String command, @Nullable Class<? extends Message> type,
+                                                    MessageFactory factory, boolean pooled) {
+        byte[] bytes = command.getBytes(Charsets.US_ASCII);
+        checkArgument(bytes.length > 0 && bytes.length <= COMMAND_LEN, "Bad command: %s", command);
+        byte[] padded = Arrays.copyOf(bytes, COMMAND_LEN);
+        commandsByName.put(command, new Command(command, Utils.readInt64(padded, 0), (int) readUint32(padded, 8),
+                factory, pooled));
+        // Keep the table at most a quarter full so lookups rarely probe more than once.
+        int size = Integer.highestOneBit(commandsByName.size() * 4 - 1) << 1;
+        Command[] table = new Command[size];
+        for (Command entry : commandsByName.values()) {
+            int i = entry.slot(size - 1);
+            while (table[i] != null)
+                i = (i + 1) & (size - 1);
+            table[i] = entry;
+        }
+        commands = table;
+        if (type != null)
+            names.put(type, command);
+    }
+
+    /** Registers how to deserialize the given command, with its payload in a buffer of its own. */
+    public static void registerMessage(String command, @Nullable Class<? extends Message> type, MessageFactory factory) {
+        registerMessage(command, type, factory, false);
+    }
+
+    @Nullable
+    private static Command findCommand(long key0, int key1) {
+        Command[] table = commands;
+        int mask = table.length - 1;
+        for (int i = Command.slot(key0, key1, mask); ; i = (i + 1) & mask) {
+            Command entry = table[i];
+            if (entry == null || (entry.key0 == key0 && entry.key1 == key1))
+                return entry;
+        }
+    }
+
+    private static class Command {
+        final String name;
+        // The twelve command bytes, zero padded.
+        final long key0;
+        final int key1;
+        final MessageFactory factory;
+        final boolean pooled;
+
+        Command(String name, long key0, int key1, MessageFactory factory, boolean pooled) {
+            this.name = name;
+            this.key0 = key0;
+            this.key1 = key1;
+            this.factory = factory;
+            this.pooled = pooled;
+        }
+
+        int slot(int mask) {
+            return slot(key0, key1, mask);
+        }
+
+        static int slot(long key0, int key1, int mask) {
+            int h = (int) (key0 ^ (key0 >>> 32)) * 31 + key1;
+            return (h * 0x9E3779B9 >>> 16) & mask;
+        }
     }
 
     /**
@@ -104,19 +365,7 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = makeHeader(name, message);
         out.write(header);
         out.write(message);
 
@@ -129,11 +378,48 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(nameOf(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the header and the payload of the message as two buffers. The payload buffer wraps the array returned
+     * by {@link Message#unsafeBitcoinSerialize()}, which is the message's own cached bytes if it has them, so a message
+     * relayed to many peers isn't copied for each of them. The buffers are only ever read by the write target, so the
+     * cached array is never modified.
+     */
+    @Override
+    public ByteBuffer[] serializeToBuffers(Message message) {
+        String name = nameOf(message);
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] header = makeHeader(name, payload);
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(payload));
+        return new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(payload)};
+    }
+
+    private static String nameOf(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    private byte[] makeHeader(String name, byte[] message) {
+        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = Sha256Hash.hashTwice(message);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
     }
 
     /**
@@ -176,105 +462,48 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
-
-        // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
-        if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
-                header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
-            throw new ProtocolException("Checksum failed to verify, actual " +
-                    HEX.encode(hash) +
-                    " vs " + HEX.encode(header.checksum));
-        }
-
-        if (log.isDebugEnabled()) {
-            log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
-        }
-
+        Command command = header.registered;
+        // A pooled buffer can only be used if neither this serializer nor the default one, which some messages
+        // parse their parts with, keeps the payload.
+        boolean pooled = command != null && command.pooled && !parseRetain &&
+                !params.getDefaultSerializer().isParseRetainMode();
+        byte[] payloadBytes = pooled ? payloadPool.take(header.size) : new byte[header.size];
+        Message message = null;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
-        } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
-        }
-    }
+            in.get(payloadBytes, 0, header.size);
+
+            // Verify the checksum.
+            byte[] hash = Sha256Hash.hashTwice(payloadBytes, 0, header.size);
+            int checksum = (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+            if (checksum != header.checksumValue) {
+                throw new ProtocolException("Checksum failed to verify, actual " +
+                        HEX.encode(hash) +
+                        " vs " + HEX.encode(header.checksum));
+            }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        Message message;
-        if (command.equals("version")) {
-            return new VersionMessage(params, payloadBytes);
-        } else if (command.equals("inv")) { 
-            message = makeInventoryMessage(payloadBytes, length);
-        } else if (command.equals("block")) {
-            message = makeBlock(payloadBytes, length);
-        } else if (command.equals("merkleblock")) {
-            message = makeFilteredBlock(payloadBytes);
-        } else if (command.equals("getdata")) {
-            message = new GetDataMessage(params, payloadBytes, this, length);
-        } else if (command.equals("getblocks")) {
-            message = new GetBlocksMessage(params, payloadBytes);
-        } else if (command.equals("getheaders")) {
-            message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            message = makeTransaction(payloadBytes, 0, length, hash);
-        } else if (command.equals("addr")) {
-            message = makeAddressMessage(payloadBytes, length);
-        } else if (command.equals("ping")) {
-            message = new Ping(params, payloadBytes);
-        } else if (command.equals("pong")) {
-            message = new Pong(params, payloadBytes);
-        } else if (command.equals("verack")) {
-            return new VersionAck(params, payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
-        } else if (command.equals("alert")) {
-            return makeAlertMessage(payloadBytes);
-        } else if (command.equals("filterload")) {
-            return makeBloomFilter(payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(params, payloadBytes);
-        } else if (command.equals("mempool")) {
-            return new MemoryPoolMessage();
-        } else if (command.equals("reject")) {
-            return new RejectMessage(params, payloadBytes);
-        } else if (command.equals("utxos")) {
-            return new UTXOsMessage(params, payloadBytes);
-        } else if (command.equals("getutxos")) {
-            return new GetUTXOsMessage(params, payloadBytes);
-        } else if (command.equals("dseep")) {
-            return new DarkSendElectionEntryPingMessage(params, payloadBytes);
-        } else if (command.equals("ix")) {
-            return new TransactionLockRequest(params, payloadBytes);
-        } else if (command.equals("txlvote")) {
-            return new TransactionLockVote(params, payloadBytes);
-        } else if (command.equals("dsq")) {
-            return new DarkSendQueue(params);
-        } else if (command.equals("mnb")) {
-            return new MasternodeBroadcast(params, payloadBytes);
-        } else if( command.equals("mnp")) {
-            return new MasternodePing(params, payloadBytes);
-        } else if (command.equals("spork")) {
-            return new SporkMessage(params, payloadBytes, 0);
-        } else if(command.equals("ssc")) {
-            return new SyncStatusCount(params, payloadBytes);
-        } else if(command.equals("sendheaders")) {
-            return new SendHeadersMessage(params);
-        } else if(command.equals("sendcmpct")) {
-            return new SendCompactBlocksMessage(params);
-        } else if(command.equals("getsporks")) {
-            return new GetSporksMessage(params);
-        }
-        else if(command.equals("govsync")) {
-            return new GovernanceSyncMessage(params);
-        }
-        else{
-            log.warn("No support for deserializing message with name {}", command);
-            return new UnknownMessage(params, command, payloadBytes);
+            if (log.isDebugEnabled()) {
+                log.debug("Received {} byte '{}' message: {}", header.size, header.command,
+                        HEX.encode(payloadBytes, 0, header.size));
+            }
+
+            if (command == null) {
+                log.warn("No support for deserializing message with name {}", header.command);
+                return new UnknownMessage(params, header.command, payloadBytes);
+            }
+            try {
+                message = command.factory.make(this, payloadBytes, header.size, hash);
+                // The pooled buffer may hold more than the payload, which a valid message never reads.
+                if (pooled && message.length > header.size)
+                    throw new ProtocolException("Message is longer than its payload of " + header.size + " bytes");
+                return message;
+            } catch (Exception e) {
+                throw new ProtocolException("Error deserializing message " +
+                        HEX.encode(payloadBytes, 0, header.size) + "\n", e);
+            }
+        } finally {
+            if (pooled && (message == null || !message.isCached()))
+                payloadPool.release(payloadBytes);
         }
-        return message;
     }
 
     /**
@@ -390,32 +619,55 @@ public class BitcoinSerializer extends MessageSerializer {
         public final String command;
         public final int size;
         public final byte[] checksum;
+        // The checksum as a big endian number, which is what it is compared as.
+        final int checksumValue;
+        // How to deserialize the command, or null if it isn't one we know.
+        @Nullable final Command registered;
 
         public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+            if (in.remaining() < HEADER_LENGTH)
+                throw new BufferUnderflowException();
+
             header = new byte[HEADER_LENGTH];
+            int start = in.position();
             in.get(header, 0, header.length);
-
-            int cursor = 0;
+            in.position(start);
 
             // The command is a NULL terminated string, unless the command fills all twelve bytes
-            // in which case the termination is implicit.
-            for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            command = Utils.toString(commandBytes, "US-ASCII");
-            cursor = COMMAND_LEN;
-
-            size = (int) readUint32(header, cursor);
-            cursor += 4;
+            // in which case the termination is implicit. It is read into two numbers to look it up.
+            long key0 = 0;
+            int key1 = 0;
+            int length = COMMAND_LEN;
+            for (int i = 0; i < COMMAND_LEN; i++) {
+                int b = in.get() & 0xFF;
+                if (b == 0 && length == COMMAND_LEN)
+                    length = i;
+                if (i >= length)
+                    continue;
+                if (i < 8)
+                    key0 |= (long) b << (8 * i);
+                else
+                    key1 |= b << (8 * (i - 8));
+            }
+            registered = findCommand(key0, key1);
+            if (registered != null) {
+                command = registered.name;
+            } else {
+                byte[] commandBytes = new byte[length];
+                for (int i = 0; i < length; i++)
+                    commandBytes[i] = (byte) (i < 8 ? key0 >>> (8 * i) : key1 >>> (8 * (i - 8)));
+                command = Utils.toString(commandBytes, "US-ASCII");
+            }
 
+            size = (in.get() & 0xFF) | (in.get() & 0xFF) << 8 | (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 24;
             if (size > Message.MAX_SIZE || size < 0)
                 throw new ProtocolException("Message size too large: " + size);
 
             // Old clients don't send the checksum.
             checksum = new byte[4];
-            // Note that the size read above includes the checksum bytes.
-            System.arraycopy(header, cursor, checksum, 0, 4);
-            cursor += 4;
+            in.get(checksum, 0, 4);
+            checksumValue = (checksum[0] & 0xFF) << 24 | (checksum[1] & 0xFF) << 16 | (checksum[2] & 0xFF) << 8 |
+                    (checksum[3] & 0xFF);
         }
     }
 }
@@ -320,7 +320,8 @@ public class Block extends Message {
         time = readUint32();
         difficultyTarget = readUint32();
         nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(X11.x11Digest(payload, offset, cursor - offset));
+        // The hash is calculated lazily by getHash(), so that it can be done off the network thread, see
+        // ParallelHeaderVerifier.
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
@@ -462,6 +463,8 @@ public class Block extends Message {
      * resulting bytes.
      */
     private Sha256Hash calculateHash() {
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE)
+            return Sha256Hash.wrapReversed(X11.x11Digest(payload, offset, HEADER_SIZE));
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
@@ -229,6 +229,7 @@ public class Context {
         darkSendPool.close();
         darkSendPool = null;
         instantSend = null;
+        masternodeManager.close();
         masternodeManager = null;
         initializedDash = false;
     }
@@ -240,6 +241,7 @@ public class Context {
         //MasternodeManager masternodeManagerLoaded = masternodeDB.read(this, false);
 
         FlatDB<MasternodeManager> mndb = new FlatDB<MasternodeManager>(directory, "mncache.dat", "magicMasternodeCache");
+        mndb.useJournal(MasternodeManager.MASTERNODES_JOURNAL_COMPACTION_BYTES);
 
         boolean success = mndb.load(masternodeManager);
 
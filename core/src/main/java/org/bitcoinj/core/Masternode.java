@@ -6,7 +6,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
@@ -410,75 +409,11 @@ public class Masternode extends Message{
 
     static Sha256Hash calculateScore(TransactionInput vin, Sha256Hash hash)
     {
-        //uint256 hash = 0;
-        BigInteger bi_aux = vin.getOutpoint().getHash().toBigInteger().add(BigInteger.valueOf(vin.getOutpoint().getIndex()));
-        byte [] temp = new byte[32];
-        byte [] bi_bytes = bi_aux.toByteArray();
-        int length = bi_bytes[0] == 0 ?
-                java.lang.Math.min(bi_bytes.length -1, 32) :
-                java.lang.Math.min(bi_bytes.length, 32);
-        System.arraycopy(bi_bytes, bi_bytes[0] == 0 ? 1 : 0, temp, 0, length);
-        Sha256Hash aux = Sha256Hash.wrap(temp);
-
         //uint256 aux = vin.prevout.hash + vin.prevout.n;
-
-        /*if(!GetBlockHash(hash, nBlockHeight)) {
-            log.info("CalculateScore ERROR - nHeight {} - Returned 0", nBlockHeight);
-            return 0;
-        }*/
-
-/*        if(hash.equals(Sha256Hash.ZERO_HASH))
-        {
-            log.info("CalculateScore ERROR - Returned 0");
-            return Sha256Hash.ZERO_HASH;
-        }*/
-
-
-
-        //CHashWriter ss(SER_GETHASH, PROTOCOL_VERSION);
-        //ss << hash;
-        //uint256 hash2 = ss.GetHash();
-
-        Sha256Hash hash2 = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(hash.getReversedBytes()));
-
-        /*CHashWriter ss2(SER_GETHASH, PROTOCOL_VERSION);
-        ss2 << hash;
-        ss2 << aux;
-        uint256 hash3 = ss2.GetHash();*/
-        try {
-            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
-            bos.write(hash.getReversedBytes());
-            bos.write(aux.getReversedBytes());
-            Sha256Hash hash3 = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
-
-            BigInteger bhash2 = hash2.toBigInteger();
-            BigInteger bhash3 = hash3.toBigInteger();
-
-            //uint256 r = (hash3 > hash2 ? hash3 - hash2 : hash2 - hash3);
-            if (bhash3.compareTo(bhash2) > 0)
-            {
-                byte [] subtraction = bhash3.subtract(bhash2).toByteArray();
-                length = subtraction[0] == 0 ?
-                        java.lang.Math.min(subtraction.length -1, 32) :
-                        java.lang.Math.min(subtraction.length, 32);
-                System.arraycopy(subtraction, subtraction[0] == 0 ? 1 : 0, temp, 0, length);
-                return Sha256Hash.wrap(temp);
-            }
-            else
-            {
-                byte [] subtraction = bhash2.subtract(bhash3).toByteArray();
-                length = subtraction[0] == 0 ?
-                        java.lang.Math.min(subtraction.length -1, 32) :
-                        java.lang.Math.min(subtraction.length, 32);
-                System.arraycopy(subtraction, subtraction[0] == 0 ? 1 : 0, temp, 0, length);
-                return Sha256Hash.wrap(temp);
-            }
-        }
-        catch (IOException x)
-        {
-            return Sha256Hash.ZERO_HASH;
-        }
-
+        //uint256 hash2 = Hash(hash);
+        //uint256 hash3 = Hash(hash, aux);
+        //return (hash3 > hash2 ? hash3 - hash2 : hash2 - hash3);
+        return new MasternodeScore(hash).calculate(vin.getOutpoint());
     }
 
 
@@ -521,18 +456,18 @@ public class Masternode extends Message{
                 || protocolVersion < context.masternodePayments.getMinMasternodePaymentsProto()
                 // or it's our own node and we just updated it to the new protocol but we are still waiting for activation -
                 || (pubKeyMasternode.equals(context.activeMasternode.pubKeyMasternode) && protocolVersion < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT))){
-            activeState = State.MASTERNODE_REMOVE;
+            setActiveState(State.MASTERNODE_REMOVE);
             return;
         }
 
         if(!isPingedWithin(MASTERNODE_EXPIRATION_SECONDS)){
-            activeState = State.MASTERNODE_EXPIRED;
+            setActiveState(State.MASTERNODE_EXPIRED);
             return;
         }
 
 
         if(lastPing.sigTime - sigTime < MASTERNODE_MIN_MNP_SECONDS){
-            activeState = State.MASTERNODE_PRE_ENABLED;
+            setActiveState(State.MASTERNODE_PRE_ENABLED);
             return;
         }
 
@@ -557,7 +492,16 @@ public class Masternode extends Message{
             */
         }
 
-        activeState = State.MASTERNODE_ENABLED; // OK
+        setActiveState(State.MASTERNODE_ENABLED); // OK
+    }
+
+    private void setActiveState(State state)
+    {
+        State oldState = activeState;
+        activeState = state;
+        // keep the enabled count of the masternode list up to date
+        if (oldState != state && context != null && context.masternodeManager != null)
+            context.masternodeManager.masternodeStateChanged(this, oldState);
     }
 
         public boolean UpdatedWithin(int seconds)
@@ -617,19 +561,33 @@ public class Masternode extends Message{
 // When a new masternode broadcast is sent, update our information
 //
     boolean updateFromNewBroadcast(MasternodeBroadcast mnb)
+    {
+        if(applyBroadcast(mnb)) {
+            int nDoS = 0;
+            if(mnb.lastPing == new MasternodePing(context) || (!mnb.lastPing.equals(new MasternodePing(context)) && mnb.lastPing.checkAndUpdate(false))) {
+                lastPing = mnb.lastPing;
+                context.masternodeManager.updateMasternodePing(lastPing);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Takes over a newer broadcast without its ping, which is how the journal replays it, as the pings it is given
+    // are recorded on their own.
+    boolean applyBroadcast(MasternodeBroadcast mnb)
     {
         if(mnb.sigTime > sigTime) {
+            PublicKey oldPubKeyMasternode = pubKeyMasternode;
+            MasternodeAddress oldAddress = address;
+            int oldProtocolVersion = protocolVersion;
             pubKeyMasternode = mnb.pubKeyMasternode;
             sigTime = mnb.sigTime;
             sig = mnb.sig;
             protocolVersion = mnb.protocolVersion;
             address = mnb.address.duplicate();
             lastTimeChecked = 0;
-            int nDoS = 0;
-            if(mnb.lastPing == new MasternodePing(context) || (!mnb.lastPing.equals(new MasternodePing(context)) && mnb.lastPing.checkAndUpdate(false))) {
-                lastPing = mnb.lastPing;
-                context.masternodeManager.updateMasternodePing(lastPing);
-            }
+            context.masternodeManager.masternodeUpdated(this, oldPubKeyMasternode, oldAddress, oldProtocolVersion);
             return true;
         }
         return false;
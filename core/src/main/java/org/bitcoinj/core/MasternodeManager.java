@@ -4,9 +4,12 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FlatDBJournal;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Pair;
 import org.bitcoinj.utils.Threading;
+import org.bitcoinj.utils.TimingWheel;
 import org.darkcoinj.DarkSendSigner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,21 +17,37 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.core.MasterNodeSystem.MASTERNODE_REMOVAL_SECONDS;
 
 /**
  * Created by Hash Engineering on 2/20/2016.
  */
-public class MasternodeManager extends AbstractManager {
+public class MasternodeManager extends AbstractManager implements FlatDBJournal.RecordHandler {
     private static final Logger log = LoggerFactory.getLogger(MasternodeManager.class);
 
     public static final int MASTERNODES_DUMP_SECONDS =              (15*60);
     public static final int MASTERNODES_DSEG_SECONDS    =           (3*60*60);
+
+    // rewrite mncache.dat once this many bytes of changes have been journaled since it was written
+    public static final int MASTERNODES_JOURNAL_COMPACTION_BYTES = 2*1024*1024;
+
+    // the changes recorded in the journal between snapshots, see applyJournalRecord
+    static final int JOURNAL_BROADCAST = 1;
+    static final int JOURNAL_PING = 2;
+    static final int JOURNAL_REMOVE = 3;
     // critical section to protect the inner data structures
     //mutable CCriticalSection cs;
     ReentrantLock lock = Threading.lock("MasternodeManager");
@@ -37,8 +56,8 @@ public class MasternodeManager extends AbstractManager {
     //mutable CCriticalSection cs_process_message;
     ReentrantLock lock_messages = Threading.lock("MasternodeManager-Messages");
 
-    // map to hold all MNs
-    ArrayList<Masternode> vMasternodes;// = new ArrayList<Masternode>();
+    // map to hold all MNs, indexed by collateral outpoint, masternode key and address
+    MasternodeRegistry masternodes;
     // who's asked for the Masternode list and the last time
     HashMap<NetAddress, Long> mAskedUsForMasternodeList;// = new HashMap<NetAddress, Long>();
     // who we asked for the Masternode list and the last time
@@ -51,9 +70,33 @@ public class MasternodeManager extends AbstractManager {
     // Keep track of all pings I've seen
     public HashMap<Sha256Hash, MasternodePing> mapSeenMasternodePing;// = new HashMap<Sha256Hash, MasternodePing>();
 
+    // when the entries of the maps above expire, so that checkAndRemove only has to look at the expired ones
+    TimingWheel<NetAddress> askedUsExpiry;
+    TimingWheel<NetAddress> weAskedExpiry;
+    TimingWheel<TransactionOutPoint> weAskedEntryExpiry;
+    TimingWheel<Sha256Hash> seenBroadcastExpiry;
+    TimingWheel<Sha256Hash> seenPingExpiry;
+
     // keep track of dsq count to prevent masternodes from gaming darksend queue
     long nDsqCount;
 
+    // last time every masternode was checked, see check()
+    long lastTimeCheckedAll;
+    // rank tables by block, cleared whenever the list changes
+    MasternodeRankCache rankCache;
+
+    // Threads checking the signatures of incoming broadcasts and pings, and the one thread that then applies them in
+    // the order they arrived, see verifyThenApply. With zero threads they are checked and applied on the network
+    // thread.
+    private int signatureVerificationThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService signatureVerifier;
+    private ExecutorService verifiedMessageApplier;
+    // How many messages may wait for each of them. Once that many are queued the network thread checks signatures
+    // itself, or waits for the applier, which slows down a peer that sends faster than they keep up with instead of
+    // letting the queues grow without limit.
+    static final int MAX_QUEUED_MESSAGES = 1000;
+    private boolean closed;
+
     //internal parameters
     AbstractBlockChain blockChain;
     void setBlockChain(AbstractBlockChain blockChain) { this.blockChain = blockChain; }
@@ -66,7 +109,8 @@ public class MasternodeManager extends AbstractManager {
         nDsqCount = 0;
 
         // map to hold all MNs
-        vMasternodes = new ArrayList<Masternode>();
+        masternodes = new MasternodeRegistry();
+        rankCache = new MasternodeRankCache();
         // who's asked for the Masternode list and the last time
         mAskedUsForMasternodeList = new HashMap<NetAddress, Long>();
         // who we asked for the Masternode list and the last time
@@ -79,6 +123,7 @@ public class MasternodeManager extends AbstractManager {
         // Keep track of all pings I've seen
         mapSeenMasternodePing = new HashMap<Sha256Hash, MasternodePing>();
 
+        createExpiryWheels();
 
         //context = Context.get();
 
@@ -106,9 +151,9 @@ public class MasternodeManager extends AbstractManager {
 
         lock.lock();
         try {
-            size += VarInt.sizeOf(vMasternodes.size());
+            size += VarInt.sizeOf(masternodes.size());
 
-            for (Masternode mn : vMasternodes) {
+            for (Masternode mn : masternodes.values()) {
                 size += mn.calculateMessageSizeInBytes();
             }
             size += VarInt.sizeOf(mAskedUsForMasternodeList.size());
@@ -122,18 +167,45 @@ public class MasternodeManager extends AbstractManager {
             lock.unlock();
         }
     }
+    // Sets up the expiry of every entry in the maps, which parse() may have filled.
+    private void createExpiryWheels() {
+        long now = Utils.currentTimeSeconds();
+        askedUsExpiry = new TimingWheel<NetAddress>(now);
+        weAskedExpiry = new TimingWheel<NetAddress>(now);
+        weAskedEntryExpiry = new TimingWheel<TransactionOutPoint>(now);
+        seenBroadcastExpiry = new TimingWheel<Sha256Hash>(now);
+        seenPingExpiry = new TimingWheel<Sha256Hash>(now);
+
+        for (Map.Entry<NetAddress, Long> entry : mAskedUsForMasternodeList.entrySet())
+            askedUsExpiry.schedule(entry.getKey(), entry.getValue() + 1);
+        for (Map.Entry<NetAddress, Long> entry : mWeAskedForMasternodeList.entrySet())
+            weAskedExpiry.schedule(entry.getKey(), entry.getValue() + 1);
+        for (Map.Entry<TransactionOutPoint, Long> entry : mWeAskedForMasternodeListEntry.entrySet())
+            weAskedEntryExpiry.schedule(entry.getKey(), entry.getValue() + 1);
+        for (Map.Entry<Sha256Hash, MasternodeBroadcast> entry : mapSeenMasternodeBroadcast.entrySet())
+            seenBroadcastExpiry.schedule(entry.getKey(), seenExpiry(entry.getValue().lastPing.sigTime));
+        for (Map.Entry<Sha256Hash, MasternodePing> entry : mapSeenMasternodePing.entrySet())
+            seenPingExpiry.schedule(entry.getKey(), seenExpiry(entry.getValue().sigTime));
+    }
+
+    // The first time at which a seen broadcast or ping signed at sigTime is old enough to be removed.
+    static long seenExpiry(long sigTime) {
+        return sigTime + MASTERNODE_REMOVAL_SECONDS * 2 + 1;
+    }
+
     @Override
     protected void parse() throws ProtocolException {
 
 
         int size = (int)readVarInt();
 
-        vMasternodes = new ArrayList<Masternode>(size);
+        masternodes = new MasternodeRegistry(size);
+        rankCache = new MasternodeRankCache();
         for (int i = 0; i < size; ++i)
         {
             Masternode mn = new Masternode(params, payload, cursor);
             cursor += mn.getMessageSize();
-            vMasternodes.add(mn);
+            masternodes.add(mn);
 
             //mn.calculateScore(0, Sha256Hash.twiceOf(mn.pubkey.getBytes()));
         }
@@ -193,6 +265,8 @@ public class MasternodeManager extends AbstractManager {
             mapSeenMasternodePing.put(hash, mb);
         }
 
+        createExpiryWheels();
+
         length = cursor - offset;
     }
     @Override
@@ -200,8 +274,8 @@ public class MasternodeManager extends AbstractManager {
 
         lock.lock();
         try {
-            stream.write(new VarInt(vMasternodes.size()).encode());
-            for (Masternode mn : vMasternodes) {
+            stream.write(new VarInt(masternodes.size()).encode());
+            for (Masternode mn : masternodes.values()) {
                 mn.bitcoinSerialize(stream);
             }
             stream.write(new VarInt(mAskedUsForMasternodeList.size()).encode());
@@ -256,12 +330,18 @@ public class MasternodeManager extends AbstractManager {
     {
         lock.lock();
         try {
-            vMasternodes.clear();
+            masternodes.clear();
+            rankCache.invalidate();
             mAskedUsForMasternodeList.clear();
             mWeAskedForMasternodeList.clear();
             mWeAskedForMasternodeListEntry.clear();
             mapSeenMasternodeBroadcast.clear();
             mapSeenMasternodePing.clear();
+            askedUsExpiry.clear();
+            weAskedExpiry.clear();
+            weAskedEntryExpiry.clear();
+            seenBroadcastExpiry.clear();
+            seenPingExpiry.clear();
             nDsqCount = 0;
         } finally {
             lock.unlock();
@@ -271,18 +351,29 @@ public class MasternodeManager extends AbstractManager {
     boolean checkMnbAndUpdateMasternodeList(MasternodeBroadcast mnb) {
         log.info("masternode-CMasternodeMan::CheckMnbAndUpdateMasternodeList - Masternode broadcast, vin: {}\n", mnb.vin.toString());
 
+        if (!addSeenBroadcast(mnb))
+            return true;
+        return updateMasternodeList(mnb);
+    }
+
+    // Returns false if the broadcast has been seen before.
+    private boolean addSeenBroadcast(MasternodeBroadcast mnb) {
         lock.lock();
         try {
             if (mapSeenMasternodeBroadcast.containsKey(mnb.getHash())) { //seen
                 context.masternodeSync.addedMasternodeList(mnb.getHash());
-                return true;
+                return false;
             }
 
             mapSeenMasternodeBroadcast.put(mnb.getHash(), mnb);
+            seenBroadcastExpiry.schedule(mnb.getHash(), seenExpiry(mnb.lastPing.sigTime));
+            return true;
         } finally {
             lock.unlock();
         }
+    }
 
+    private boolean updateMasternodeList(MasternodeBroadcast mnb) {
         log.info("masternode-CMasternodeMan::CheckMnbAndUpdateMasternodeList - Masternode broadcast, vin: {} new\n", mnb.vin.toString());
 
         if(!mnb.checkAndUpdate()){
@@ -294,6 +385,7 @@ public class MasternodeManager extends AbstractManager {
         //  - this is checked later by .check() in many places and by ThreadCheckDarkSendPool()
         if(mnb.checkInputsAndAdd()) {
             context.masternodeSync.addedMasternodeList(mnb.getHash());
+            record(JOURNAL_BROADCAST, mnb);
         } else {
             log.info("CMasternodeMan::CheckMnbAndUpdateMasternodeList - Rejected Masternode entry {}", mnb.address.toString());
             return false;
@@ -302,19 +394,145 @@ public class MasternodeManager extends AbstractManager {
         return true;
     }
 
-    void processMasternodeBroadcast(MasternodeBroadcast mnb)
+    void processMasternodeBroadcast(final MasternodeBroadcast mnb)
     {
         //log.info("processMasternodeBroadcast:  hash={}", mnb.getHash());
 
-        if(checkMnbAndUpdateMasternodeList(mnb))
-        {
+        // Mark it as seen straight away, so that the copies other peers relay are dropped before being checked.
+        if (!addSeenBroadcast(mnb))
+            return;
 
-        } else {
+        verifyThenApply(new Runnable() {
+            @Override
+            public void run() {
+                mnb.verifySignature();
+                if (mnb.lastPing.equals(MasternodePing.EMPTY))
+                    return;
+                // The ping is checked against the key of the masternode we know, or else the one it's announced with.
+                Masternode pmn = find(mnb.vin);
+                mnb.lastPing.verifySignature(pmn != null ? pmn.pubKeyMasternode : mnb.pubKeyMasternode);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if(updateMasternodeList(mnb))
+                {
 
-            //if (nDoS > 0)
-//                Misbehaving(pfrom->GetId(), nDoS);
+                } else {
+
+                    //if (nDoS > 0)
+//                      Misbehaving(pfrom->GetId(), nDoS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets how many threads check the signatures of incoming masternode broadcasts and pings. The messages are still
+     * applied one at a time in the order they arrived, once their signatures have been checked, but that is no longer
+     * done on the network thread. Zero checks and applies every message on the network thread as it arrives. Defaults
+     * to the number of processors and must be called before the first message arrives.
+     */
+    public void setSignatureVerificationThreads(int threads)
+    {
+        checkArgument(threads >= 0, "threads must not be negative");
+        lock.lock();
+        try {
+            checkState(signatureVerifier == null, "Signature verification has already started");
+            signatureVerificationThreads = threads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks the signatures of a message on the verification threads, then runs apply on the applier thread, in the
+     * order the messages arrived. Checking only fills the signature cache of {@link DarkSendSigner}, so apply does all
+     * the checks it would have done anyway, but finds the signatures already verified. Messages from different peers
+     * get their signatures checked in parallel, and a peer's network thread can read the next message meanwhile.
+     */
+    void verifyThenApply(Runnable verify, final Runnable apply)
+    {
+        ExecutorService verifier, applier;
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            if (signatureVerifier == null && signatureVerificationThreads > 0) {
+                signatureVerifier = new ThreadPoolExecutor(signatureVerificationThreads, signatureVerificationThreads,
+                        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_MESSAGES),
+                        new ContextPropagatingThreadFactory("masternode signature verification"),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+                // Messages must be applied one at a time and in order, so the applier is waited for rather than
+                // running a message on the network thread ahead of those queued.
+                verifiedMessageApplier = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(MAX_QUEUED_MESSAGES),
+                        new ContextPropagatingThreadFactory("masternode message applier"), new WaitForQueuePolicy());
+            }
+            verifier = signatureVerifier;
+            applier = verifiedMessageApplier;
+        } finally {
+            lock.unlock();
+        }
+        if (verifier == null) {
+            apply.run();
+            return;
+        }
+        final Future<?> verified = verifier.submit(verify);
+        applier.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    verified.get();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException x) {
+                    // Applying checks the signatures again and deals with whatever went wrong.
+                    log.warn("Failed to check masternode message signatures ahead of time", x.getCause());
+                }
+                try {
+                    apply.run();
+                } catch (RuntimeException x) {
+                    log.error("Failed to process masternode message", x);
+                }
+            }
+        });
+    }
+
+    // Makes the thread that submits a task wait until there is room in the queue. Tasks are dropped once shut down.
+    private static class WaitForQueuePolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown())
+                return;
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting to apply a masternode message, dropping it");
+            }
+        }
+    }
+
+    /**
+     * Stops the threads that check and apply incoming broadcasts and pings once they have finished the messages
+     * already queued. Messages that arrive afterwards are ignored.
+     */
+    public void close()
+    {
+        lock.lock();
+        try {
+            closed = true;
+            if (signatureVerifier != null) {
+                signatureVerifier.shutdown();
+                verifiedMessageApplier.shutdown();
+            }
+        } finally {
+            lock.unlock();
         }
     }
+
     void processMasternodeBroadcast_old(MasternodeBroadcast mnb)
     {
         //log.info("processMasternodeBroadcast:  hash={}", mnb.getHash());
@@ -326,6 +544,7 @@ public class MasternodeManager extends AbstractManager {
             }
 
             mapSeenMasternodeBroadcast.put(mnb.getHash(), mnb);
+            seenBroadcastExpiry.schedule(mnb.getHash(), seenExpiry(mnb.lastPing.sigTime));
         } finally {
             lock.unlock();
         }
@@ -362,7 +581,7 @@ public class MasternodeManager extends AbstractManager {
 //                Misbehaving(pfrom->GetId(), nDoS);
         }
     }
-    void processMasternodePing(Peer peer, MasternodePing mnp)
+    void processMasternodePing(final Peer peer, final MasternodePing mnp)
     {
         //log.info("masternode - mnp - Masternode ping(hash={}, vin: {}", mnp.getHash(), mnp.vin.toString());
 
@@ -371,11 +590,29 @@ public class MasternodeManager extends AbstractManager {
         lock.lock();
         try {
             mapSeenMasternodePing.put(mnp.getHash(), mnp);
+            seenPingExpiry.schedule(mnp.getHash(), seenExpiry(mnp.sigTime));
         } finally {
             lock.unlock();
         }
         log.info("masternode-mnp - Masternode ping, vin: {} new\n", mnp.vin.toString());
 
+        verifyThenApply(new Runnable() {
+            @Override
+            public void run() {
+                Masternode pmn = find(mnp.vin);
+                if (pmn != null)
+                    mnp.verifySignature(pmn.pubKeyMasternode);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                updateMasternodePing(peer, mnp);
+            }
+        });
+    }
+
+    private void updateMasternodePing(Peer peer, MasternodePing mnp)
+    {
         int nDoS = 0;
         if(mnp.checkAndUpdate()) return;
 
@@ -393,11 +630,82 @@ public class MasternodeManager extends AbstractManager {
         // we might have to ask for a masternode entry once
         askForMN(peer, mnp.vin);
     }
+
+    // Called once a ping has been accepted as the last ping of its masternode.
+    void recordPing(MasternodePing mnp)
+    {
+        record(JOURNAL_PING, mnp);
+    }
+
+    private void recordRemoval(Masternode mn)
+    {
+        if (journal == null)
+            return;
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(TransactionOutPoint.MESSAGE_LENGTH + 8);
+            mn.vin.getOutpoint().bitcoinSerialize(bos);
+            Utils.int64ToByteStreamLE(mn.sigTime, bos);
+            record(JOURNAL_REMOVE, bos.toByteArray());
+        } catch (IOException x) {
+            throw new RuntimeException(x); // cannot happen
+        }
+    }
+
+    /**
+     * Replays a broadcast, ping or removal from the journal. Each of them only takes effect if it is newer than what
+     * the masternode has already, so replaying one that the snapshot already contains changes nothing.
+     */
+    @Override
+    public void applyJournalRecord(int type, byte[] payload) throws ProtocolException
+    {
+        lock.lock();
+        try {
+            switch (type) {
+                case JOURNAL_BROADCAST: {
+                    MasternodeBroadcast mnb = new MasternodeBroadcast(params, payload, 0);
+                    Masternode mn = find(mnb.vin);
+                    if (mn == null)
+                        add(new Masternode(mnb));
+                    else
+                        mn.applyBroadcast(mnb);
+                    mapSeenMasternodeBroadcast.put(mnb.getHash(), mnb);
+                    seenBroadcastExpiry.schedule(mnb.getHash(), seenExpiry(mnb.lastPing.sigTime));
+                    break;
+                }
+                case JOURNAL_PING: {
+                    MasternodePing mnp = new MasternodePing(params, payload, 0);
+                    Masternode mn = find(mnp.vin);
+                    if (mn != null && mnp.sigTime > mn.lastPing.sigTime)
+                        mn.lastPing = mnp;
+                    mapSeenMasternodePing.put(mnp.getHash(), mnp);
+                    seenPingExpiry.schedule(mnp.getHash(), seenExpiry(mnp.sigTime));
+                    break;
+                }
+                case JOURNAL_REMOVE: {
+                    TransactionOutPoint outpoint = new TransactionOutPoint(params, payload, 0);
+                    long sigTime = Utils.readInt64(payload, outpoint.getMessageSize());
+                    // a newer broadcast may have brought it back
+                    Masternode mn = masternodes.get(outpoint);
+                    if (mn != null && mn.sigTime <= sigTime) {
+                        masternodes.remove(outpoint);
+                        rankCache.invalidate();
+                    }
+                    break;
+                }
+                default:
+                    log.warn("Ignoring unknown journal record type {}", type);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void updateMasternodePing(MasternodePing lastPing)
     {
         lock.lock();
         try {
             mapSeenMasternodePing.put(lastPing.getHash(), lastPing);
+            seenPingExpiry.schedule(lastPing.getHash(), seenExpiry(lastPing.sigTime));
         } finally {
             lock.unlock();
         }
@@ -411,10 +719,9 @@ public class MasternodeManager extends AbstractManager {
             if (!mn.isEnabled() && !mn.isPreEnabled())
                 return false;
 
-            Masternode pmn = find(mn.vin);
-            if (pmn == null) {
-                log.info("masternode - MasternodeMan: Adding new Masternode "+mn.address.toString()+" - "+(size() + 1)+" now");
-                vMasternodes.add(mn);
+            if (masternodes.add(mn)) {
+                rankCache.invalidate();
+                log.info("masternode - MasternodeMan: Adding new Masternode "+mn.address.toString()+" - "+size()+" now");
                 queueOnSyncStatusChanged();
                 return true;
             }
@@ -433,7 +740,7 @@ public class MasternodeManager extends AbstractManager {
             Script payee2;
 
             //BOOST_FOREACH(CMasternode& mn, vMasternodes)
-            for (Masternode mn : vMasternodes) {
+            for (Masternode mn : masternodes.values()) {
                 //payee2 = GetScriptForDestination(mn.pubkey.GetID());
                 payee2 = ScriptBuilder.createOutputScript(mn.pubKeyCollateralAddress.getECKey());
 
@@ -447,65 +754,52 @@ public class MasternodeManager extends AbstractManager {
     }
 
     public Masternode find(TransactionInput vin)
+    {
+        return find(vin.getOutpoint());
+    }
+
+
+    Masternode find(PublicKey pubKeyMasternode)
     {
         lock.lock();
         try {
-
-            //BOOST_FOREACH(CMasternode & mn, vMasternodes)
-            for (Masternode mn : vMasternodes)
-            {
-                if (mn.vin.getOutpoint().equals(vin.getOutpoint()))
-                    return mn;
-            }
-            return null;
+            return masternodes.get(pubKeyMasternode);
         } finally {
             lock.unlock();
         }
     }
 
-
-    Masternode find(PublicKey pubKeyMasternode)
+    /**
+     * Returns a masternode running at the given IP address, or null if there is none. If several masternodes share
+     * the address, any of them may be returned.
+     */
+    public Masternode find(NetAddress address)
     {
         lock.lock();
         try {
-            //BOOST_FOREACH(CMasternode & mn, vMasternodes)
-            for (Masternode mn : vMasternodes)
-            {
-                if (mn.pubKeyMasternode.equals(pubKeyMasternode))
-                    return mn;
-            }
-            return null;
+            return masternodes.get(address);
         } finally {
             lock.unlock();
         }
     }
+
     public boolean has(TransactionOutPoint outpoint)
     {
-        TransactionInput txin = new TransactionInput(params, null, null, outpoint);
-        Masternode mn = find(txin);
-
-        return mn != null;
+        return find(outpoint) != null;
     }
 
     public int countEnabled() { return countEnabled(-1); }
     public int countEnabled(int protocolVersion)
     {
-        int i = 0;
         protocolVersion = protocolVersion == -1 ? context.masternodePayments.getMinMasternodePaymentsProto() : protocolVersion;
 
         lock.lock();
         try {
-            //BOOST_FOREACH(CMasternode& mn, vMasternodes)
-            for (Masternode mn : vMasternodes) {
-                mn.check();
-                if (mn.protocolVersion < protocolVersion || !mn.isEnabled()) continue;
-                i++;
-            }
+            check();
+            return masternodes.countEnabled(protocolVersion);
         } finally {
             lock.unlock();
         }
-
-        return i;
     }
 
     public void remove(TransactionInput vin)
@@ -514,31 +808,25 @@ public class MasternodeManager extends AbstractManager {
             lock.lock();
 
 
-            //vector<CMasternode>::iterator it = vMasternodes.begin();
-            Iterator<Masternode> it = vMasternodes.iterator();
-            while (it.hasNext()) {
-                Masternode mn = it.next();
-                if (mn.vin.equals(vin)){
-                    log.info("masternode - CMasternodeMan: Removing Masternode %s "+mn.address.toString()+"- "+(size()-1)+" now");
-
-                    //vMasternodes.remove(mn);
-                    it.remove();
-                    queueOnSyncStatusChanged();
-                    break;
-                }
-
+            Masternode mn = masternodes.get(vin.getOutpoint());
+            if (mn != null && mn.vin.equals(vin)) {
+                log.info("masternode - CMasternodeMan: Removing Masternode "+mn.address.toString()+"- "+(size()-1)+" now");
+                masternodes.remove(vin.getOutpoint());
+                recordRemoval(mn);
+                rankCache.invalidate();
+                queueOnSyncStatusChanged();
             }
         } finally {
             lock.unlock();
         }
     }
-    int size() { return vMasternodes.size(); }
+    int size() { return masternodes.size(); }
 
     public String toString()
     {
         String result;
 
-        result = "Masternodes: " + (int)vMasternodes.size() +
+        result = "Masternodes: " + (int)masternodes.size() +
                 ", peers who asked us for Masternode list: " + (int)mAskedUsForMasternodeList.size() +
                 ", peers we asked for Masternode list: " + (int)mWeAskedForMasternodeList.size() +
                 ", entries in Masternode list we asked for: " + (int)mWeAskedForMasternodeListEntry.size() +
@@ -571,33 +859,12 @@ public class MasternodeManager extends AbstractManager {
         pnode.sendMessage(new DarkSendEntryGetMessage(vin));
         long askAgain = Utils.currentTimeSeconds() + MasternodePing.MASTERNODE_MIN_MNP_SECONDS;
         mWeAskedForMasternodeListEntry.put(vin.getOutpoint(), askAgain);
+        weAskedEntryExpiry.schedule(vin.getOutpoint(), askAgain + 1);
     }
 
     Sha256Hash _getBlockHash(long height)
     {
-        try {
-            StoredBlock head = blockChain.getChainHead();
-
-            BlockStore blockStore = blockChain.getBlockStore();
-
-            //long heightToFind = (height - 100) - ((height-100)%100);
-
-            //If header is not stored, then return the tip
-            //TODO:  remove this or the whole function;
-            if((head.getHeight() - 2050) > height)
-                return null;
-
-            StoredBlock cursor = head;
-            while (cursor != null && cursor.getHeight() != (height-1)) {
-                cursor = cursor.getPrev(blockStore);
-            }
-
-            return cursor != null ? cursor.getHeader().getHash() : null;
-
-        } catch(BlockStoreException x)
-        {
-            return null;
-        }
+        return context.hashStore.getBlockHash((int) height);
     }
 
     public int getMasternodeRank(TransactionInput vin, int nBlockHeight, int minProtocol)
@@ -635,9 +902,6 @@ public class MasternodeManager extends AbstractManager {
 
     public int getMasternodeRank(TransactionInput vin, int nBlockHeight, int minProtocol, boolean fOnlyActive)
     {
-        //std::vector<pair<int64_t, CTxIn> > vecMasternodeScores;
-        ArrayList<Pair<Long, TransactionInput>> vecMasternodeScores = new ArrayList<Pair<Long, TransactionInput>>(size());
-
         //make sure we know about this block
         //uint256 hash = 0;
         //if(!GetBlockHash(hash, nBlockHeight)) return -1;
@@ -656,44 +920,63 @@ public class MasternodeManager extends AbstractManager {
         if(hash == null) {
             return -2; //we don't have the block in our store
         }
-         // scan for winner
-        else
-        {
-            lock.lock();
-            try {
-                for(Masternode mn : vMasternodes) {
-                    if(mn.protocolVersion < minProtocol) continue;
-                    if(fOnlyActive) {
-                        mn.check();
-                        if(!mn.isEnabled()) continue;
-                    }
-                    Sha256Hash n = mn.calculateScore(1, hash);
-                    //int64_t n2 = n.GetCompact(false);
-                    long n2 = Utils.encodeCompactBits(n.toBigInteger(), false);
 
-                    vecMasternodeScores.add(new Pair<Long, TransactionInput>(n2, mn.vin));
-                }
-            } finally {
-                lock.unlock();
+        lock.lock();
+        try {
+            // bring the states up to date first, any change will invalidate the cached tables
+            if(fOnlyActive)
+                check();
+            Map<TransactionOutPoint, Integer> ranks = rankCache.get(hash, minProtocol, fOnlyActive);
+            if(ranks == null) {
+                ranks = calculateRanks(hash, minProtocol, fOnlyActive);
+                rankCache.put(nBlockHeight, hash, minProtocol, fOnlyActive, ranks);
             }
+            Integer rank = ranks.get(vin.getOutpoint());
+            return rank != null ? rank : -1;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    // Scores every masternode against the block hash and returns the rank of each collateral outpoint, starting at 1.
+    private Map<TransactionOutPoint, Integer> calculateRanks(Sha256Hash hash, int minProtocol, boolean fOnlyActive)
+    {
+        checkState(lock.isHeldByCurrentThread());
+        //std::vector<pair<int64_t, CTxIn> > vecMasternodeScores;
+        ArrayList<Pair<Long, TransactionInput>> vecMasternodeScores = new ArrayList<Pair<Long, TransactionInput>>(size());
+        MasternodeScore score = new MasternodeScore(hash);
 
+        // scan for winner
+        for(Masternode mn : masternodes.values()) {
+            if(mn.protocolVersion < minProtocol) continue;
+            if(fOnlyActive) {
+                mn.check();
+                if(!mn.isEnabled()) continue;
+            }
+            //int64_t n2 = mn.CalculateScore(1, hash).GetCompact(false);
+            long n2 = score.calculateCompact(mn.vin.getOutpoint());
+
+            vecMasternodeScores.add(new Pair<Long, TransactionInput>(n2, mn.vin));
+        }
 
         //sort(vecMasternodeScores.rbegin(), vecMasternodeScores.rend(), CompareScoreTxIn());
-        //vecMasternodeScores.sort(new CompareScoreTxIn());
         Collections.sort(vecMasternodeScores, Collections.reverseOrder(new CompareScoreTxIn()));
 
-
-
+        HashMap<TransactionOutPoint, Integer> ranks = new HashMap<TransactionOutPoint, Integer>(vecMasternodeScores.size() * 4 / 3 + 1);
         int rank = 0;
         for (Pair<Long, TransactionInput> s : vecMasternodeScores) {
             rank++;
-            if(s.getSecond().getOutpoint().equals(vin.getOutpoint())) {
-                return rank;
-            }
+            // the first (highest) rank wins should an outpoint ever appear twice
+            if(!ranks.containsKey(s.getSecond().getOutpoint()))
+                ranks.put(s.getSecond().getOutpoint(), rank);
         }
+        return ranks;
+    }
 
-        return -1;
+    /** Returns the cache of rank tables used by {@link #getMasternodeRank}, e.g. to inspect its hit rate. */
+    public MasternodeRankCache getRankCache()
+    {
+        return rankCache;
     }
 
     /*public int getMasternodeRank(TransactionInput vin, Sha256Hash hash, int minProtocol, boolean fOnlyActive)
@@ -732,13 +1015,20 @@ public class MasternodeManager extends AbstractManager {
     void check()
     {
         lock.lock();
-
-
-        for(Masternode mn : vMasternodes){
-            mn.check();
+        try {
+            // Each masternode skips its own check for MASTERNODE_CHECK_SECONDS, so there is no point walking the list
+            // more often than that unless something was reset in between.
+            long now = Utils.currentTimeSeconds();
+            if (now - lastTimeCheckedAll < Masternode.MASTERNODE_CHECK_SECONDS)
+                return;
+            lastTimeCheckedAll = now;
+            for (Masternode mn : masternodes.values()) {
+                mn.check();
+            }
+            masternodes.recountEnabled();
+        } finally {
+            lock.unlock();
         }
-        lock.unlock();
-
     }
 
     //std::vector<pair<int, CMasternode> >
@@ -758,7 +1048,7 @@ public class MasternodeManager extends AbstractManager {
         lock.lock();
         try {
             // scan for winner
-            for (Masternode mn : vMasternodes) {
+            for (Masternode mn : masternodes.values()) {
 
                 mn.check();
 
@@ -769,7 +1059,7 @@ public class MasternodeManager extends AbstractManager {
 
                 Sha256Hash n = mn.calculateScore(1, nBlockHeight);
                 //long n2 = UintToArith256(n).GetCompact(false);
-                long n2 = Utils.encodeCompactBits(n.toBigInteger(), false);
+                long n2 = MasternodeScore.encodeCompact(n.getBytes());
 
                 vecMasternodeScores.add(new Pair(n2, mn));
             }
@@ -800,7 +1090,7 @@ public class MasternodeManager extends AbstractManager {
 
             //remove inactive and outdated
             //vector<CMasternode>::iterator it = vMasternodes.begin();
-            Iterator<Masternode> it = vMasternodes.iterator();
+            Iterator<Masternode> it = masternodes.values().iterator();
 
             while (it.hasNext()) {
                 Masternode mn = it.next();
@@ -820,93 +1110,64 @@ public class MasternodeManager extends AbstractManager {
                             context.masternodeSync.mapSeenSyncMNB.remove(mb.getKey());
                             //mapSeenMasternodeBroadcast.remove(mb.getKey(), mb.getValue());
                             it3.remove();
+                            seenBroadcastExpiry.cancel(mb.getKey());
                         }
                     }
 
                     // allow us to ask for this masternode again if we see another ping
-                    //map<COutPoint, int64_t>::iterator it2 = mWeAskedForMasternodeListEntry.begin();
-                    Iterator<Map.Entry<TransactionOutPoint, Long>> it2 = mWeAskedForMasternodeListEntry.entrySet().iterator();
-                    while (it2.hasNext()) {
-                        Map.Entry<TransactionOutPoint, Long> e = it2.next();
-                        if (e.getKey().equals(mn.vin.getOutpoint())) {
-                            //mWeAskedForMasternodeListEntry.remove(e.getKey(), e.getValue());
-                            it2.remove();
-                        }
-                    }
+                    mWeAskedForMasternodeListEntry.remove(mn.vin.getOutpoint());
+                    weAskedEntryExpiry.cancel(mn.vin.getOutpoint());
 
                     //it = vMasternodes.erase(it);
                     it.remove();
+                    recordRemoval(mn);
+                    rankCache.invalidate();
                     queueOnSyncStatusChanged();
                 } else {
                     //++it;
                 }
             }
 
+            // Only the entries whose deadline has passed come off the wheels. They are checked against the map again,
+            // the entry may be gone already or, for a broadcast, have been given a newer ping since it was scheduled.
+            long now = Utils.currentTimeSeconds();
+
             // check who's asked for the Masternode list
-            //map<CNetAddr, int64_t>::iterator it1 = mAskedUsForMasternodeList.begin();
-            Iterator<Map.Entry<NetAddress, Long>> it1 = mAskedUsForMasternodeList.entrySet().iterator();
-            while (it1.hasNext()) {
-                Map.Entry<NetAddress, Long> e = it1.next();
-                if (e.getValue() < Utils.currentTimeSeconds()) {
-                    //mAskedUsForMasternodeList.erase(it1++);
-                    it1.remove();
-                } else {
-                    //++it1;
-                }
-            }
+            for (NetAddress address : askedUsExpiry.advance(now))
+                removeIfAskedBefore(mAskedUsForMasternodeList, askedUsExpiry, address, now);
 
             // check who we asked for the Masternode list
-            //it1 = mWeAskedForMasternodeList.begin();
-            it1 = mWeAskedForMasternodeList.entrySet().iterator();
-            while (it1.hasNext()) {
-                Map.Entry<NetAddress, Long> e = it1.next();
-                if (e.getValue() < Utils.currentTimeSeconds()) {
-                    //mWeAskedForMasternodeList.erase(it1++);
-                    it1.remove();
-                } else {
-                    //++it1;
-                }
-            }
+            for (NetAddress address : weAskedExpiry.advance(now))
+                removeIfAskedBefore(mWeAskedForMasternodeList, weAskedExpiry, address, now);
 
             // check which Masternodes we've asked for
-            //map<COutPoint, int64_t>::iterator it2 = mWeAskedForMasternodeListEntry.begin();
-            Iterator<Map.Entry<TransactionOutPoint, Long>> it2 = mWeAskedForMasternodeListEntry.entrySet().iterator();
-            while (it2.hasNext()) {
-                Map.Entry<TransactionOutPoint, Long> e = it2.next();
-                if (e.getValue() < Utils.currentTimeSeconds()) {
-                    //mWeAskedForMasternodeListEntry.erase(it2++);
-                    it2.remove();
-                } else {
-                    //++it2;
-                }
-            }
+            for (TransactionOutPoint outpoint : weAskedEntryExpiry.advance(now))
+                removeIfAskedBefore(mWeAskedForMasternodeListEntry, weAskedEntryExpiry, outpoint, now);
 
             // remove expired mapSeenMasternodeBroadcast
-            Iterator<Map.Entry<Sha256Hash, MasternodeBroadcast>> it3 = mapSeenMasternodeBroadcast.entrySet().iterator();
-
-            while (it3.hasNext()) {
-                Map.Entry<Sha256Hash, MasternodeBroadcast> mb = it3.next();
-                if (mb.getValue().lastPing.sigTime < Utils.currentTimeSeconds() - (MASTERNODE_REMOVAL_SECONDS * 2)) {
-                    //mapSeenMasternodeBroadcast.erase(it3++);
-                    log.info("masternode-CMasternodeMan::CheckAndRemove - Removing expired Masternode broadcast {}", mb.getValue().getHash().toString());
-                    context.masternodeSync.mapSeenSyncMNB.remove(mb.getValue().getHash());
-
-                    it3.remove();
+            for (Sha256Hash hash : seenBroadcastExpiry.advance(now)) {
+                MasternodeBroadcast mnb = mapSeenMasternodeBroadcast.get(hash);
+                if (mnb == null)
+                    continue;
+                if (mnb.lastPing.sigTime < now - (MASTERNODE_REMOVAL_SECONDS * 2)) {
+                    log.info("masternode-CMasternodeMan::CheckAndRemove - Removing expired Masternode broadcast {}", mnb.getHash().toString());
+                    context.masternodeSync.mapSeenSyncMNB.remove(mnb.getHash());
+                    mapSeenMasternodeBroadcast.remove(hash);
                 } else {
-                    //++it3;
+                    seenBroadcastExpiry.schedule(hash, seenExpiry(mnb.lastPing.sigTime));
                 }
             }
 
             // remove expired mapSeenMasternodePing
-            Iterator<Map.Entry<Sha256Hash, MasternodePing>> it4 = mapSeenMasternodePing.entrySet().iterator();
-            while (it4.hasNext()) {
-                Map.Entry<Sha256Hash, MasternodePing> mp = it4.next();
-                if (mp.getValue().sigTime < Utils.currentTimeSeconds() - (MASTERNODE_REMOVAL_SECONDS * 2)) {
-                    //mapSeenMasternodePing.erase(it4++);
-                    log.info("masternode-CMasternodeMan::CheckAndRemove - Removing expired Masternode ping {}", mp.getValue().getHash().toString());
-                    it4.remove();
+            for (Sha256Hash hash : seenPingExpiry.advance(now)) {
+                MasternodePing mnp = mapSeenMasternodePing.get(hash);
+                if (mnp == null)
+                    continue;
+                if (mnp.sigTime < now - (MASTERNODE_REMOVAL_SECONDS * 2)) {
+                    log.info("masternode-CMasternodeMan::CheckAndRemove - Removing expired Masternode ping {}", mnp.getHash().toString());
+                    mapSeenMasternodePing.remove(hash);
                 } else {
-                    //++it4;
+                    seenPingExpiry.schedule(hash, seenExpiry(mnp.sigTime));
                 }
             }
         }
@@ -916,6 +1177,17 @@ public class MasternodeManager extends AbstractManager {
 
     }
 
+    // Drops an entry of one of the maps of when we may ask or be asked again once that time has passed.
+    private static <K> void removeIfAskedBefore(Map<K, Long> map, TimingWheel<K> expiry, K key, long now) {
+        Long askAgain = map.get(key);
+        if (askAgain == null)
+            return;
+        if (askAgain < now)
+            map.remove(key);
+        else
+            expiry.schedule(key, askAgain + 1);
+    }
+
     void dsegUpdate(Peer pnode)
     {
         lock.lock();
@@ -939,7 +1211,9 @@ public class MasternodeManager extends AbstractManager {
             pnode.sendMessage(new DarkSendEntryGetMessage(new TransactionInput(params,null, new byte[0])));
             //pnode -> PushMessage("dseg", CTxIn());
             long askAgain = Utils.currentTimeSeconds() + MasternodeManager.MASTERNODES_DSEG_SECONDS;
-            mWeAskedForMasternodeList.put(new NetAddress(pnode.getAddress().getAddr()),askAgain);
+            NetAddress address = new NetAddress(pnode.getAddress().getAddr());
+            mWeAskedForMasternodeList.put(address, askAgain);
+            weAskedExpiry.schedule(address, askAgain + 1);
         } finally {
             lock.unlock();
         }
@@ -1009,12 +1283,12 @@ public class MasternodeManager extends AbstractManager {
         //checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<MasternodeManagerListener> registration : eventListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
-                registration.listener.onMasternodeCountChanged(vMasternodes.size());
+                registration.listener.onMasternodeCountChanged(masternodes.size());
             } else {
                 registration.executor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        registration.listener.onMasternodeCountChanged(vMasternodes.size());
+                        registration.listener.onMasternodeCountChanged(masternodes.size());
                     }
                 });
             }
@@ -1108,6 +1382,43 @@ public class MasternodeManager extends AbstractManager {
 
     Masternode find(TransactionOutPoint outPoint)
     {
-        return null;
+        lock.lock();
+        try {
+            return masternodes.get(outPoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a masternode in this list after a newer broadcast replaced its key, address or protocol version.
+     */
+    void masternodeUpdated(Masternode mn, PublicKey oldPubKey, NetAddress oldAddress, int oldProtocolVersion)
+    {
+        lock.lock();
+        try {
+            if (masternodes.contains(mn)) {
+                masternodes.reindex(mn, oldPubKey, oldAddress, oldProtocolVersion);
+                rankCache.invalidate();
+                // The masternode resets its own check time, make sure the next check() doesn't skip it.
+                lastTimeCheckedAll = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a masternode when check() moves it out of {@code oldState}. */
+    void masternodeStateChanged(Masternode mn, Masternode.State oldState)
+    {
+        lock.lock();
+        try {
+            if (masternodes.contains(mn)) {
+                masternodes.stateChanged(mn, oldState);
+                rankCache.invalidate();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -223,6 +223,7 @@ public class MasternodePing extends Message implements Serializable {
 
 */
                 pmn.lastPing = this;
+                context.masternodeManager.recordPing(this);
 
                 //mnodeman.mapSeenMasternodeBroadcast.lastPing is probably outdated, so we'll update it
                 MasternodeBroadcast mnb = new MasternodeBroadcast(pmn);
@@ -0,0 +1,119 @@
+package org.bitcoinj.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the masternode rank tables computed by {@link MasternodeManager#getMasternodeRank}, so that the scores of
+ * every masternode are calculated and sorted once per block rather than once per InstantSend vote.
+ *
+ * A table is keyed by the block hash used for scoring together with the minimum protocol version and whether only
+ * enabled masternodes were ranked. Tables for heights more than {@link #MAX_DEPTH} below the highest one cached are
+ * evicted, as is the least recently used table once there are more than {@link #MAX_TABLES}. Any change to the
+ * masternode list makes every table stale, so the manager calls {@link #invalidate()} when that happens.
+ *
+ * Instances are not thread safe; the owning MasternodeManager guards them with its lock.
+ */
+public class MasternodeRankCache {
+    /** The maximum number of rank tables kept. */
+    public static final int MAX_TABLES = 32;
+    /** How far below the highest cached height a table may be before it is evicted. */
+    public static final int MAX_DEPTH = 24;
+
+    private final LinkedHashMap<Key, Table> tables = new LinkedHashMap<Key, Table>(MAX_TABLES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Table> eldest) {
+            return size() > MAX_TABLES;
+        }
+    };
+    private int highestHeight = -1;
+
+    private volatile long hits;
+    private volatile long misses;
+
+    private static class Key {
+        final Sha256Hash blockHash;
+        final int minProtocol;
+        final boolean onlyActive;
+
+        Key(Sha256Hash blockHash, int minProtocol, boolean onlyActive) {
+            this.blockHash = blockHash;
+            this.minProtocol = minProtocol;
+            this.onlyActive = onlyActive;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return minProtocol == other.minProtocol && onlyActive == other.onlyActive &&
+                    blockHash.equals(other.blockHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (blockHash.hashCode() * 31 + minProtocol) * 31 + (onlyActive ? 1 : 0);
+        }
+    }
+
+    private static class Table {
+        final int height;
+        final Map<TransactionOutPoint, Integer> ranks;
+
+        Table(int height, Map<TransactionOutPoint, Integer> ranks) {
+            this.height = height;
+            this.ranks = ranks;
+        }
+    }
+
+    /** Returns the rank table for the given key, or null if it has to be computed. */
+    Map<TransactionOutPoint, Integer> get(Sha256Hash blockHash, int minProtocol, boolean onlyActive) {
+        Table table = tables.get(new Key(blockHash, minProtocol, onlyActive));
+        if (table == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return table.ranks;
+    }
+
+    /** Stores the rank table computed at the given height and evicts the tables that are too deep. */
+    void put(int height, Sha256Hash blockHash, int minProtocol, boolean onlyActive,
+             Map<TransactionOutPoint, Integer> ranks) {
+        tables.put(new Key(blockHash, minProtocol, onlyActive), new Table(height, ranks));
+        if (height > highestHeight) {
+            highestHeight = height;
+            for (Iterator<Table> it = tables.values().iterator(); it.hasNext(); ) {
+                if (it.next().height < highestHeight - MAX_DEPTH)
+                    it.remove();
+            }
+        }
+    }
+
+    /** Drops every table, after the masternode list or the state of one of its masternodes changed. */
+    void invalidate() {
+        tables.clear();
+        highestHeight = -1;
+    }
+
+    int size() {
+        return tables.size();
+    }
+
+    /** Returns how many rank lookups were answered from a cached table. */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /** Returns how many rank lookups had to compute a new table. */
+    public long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return "Masternode rank cache: " + tables.size() + " tables, " + hits + " hits, " + misses + " misses";
+    }
+}
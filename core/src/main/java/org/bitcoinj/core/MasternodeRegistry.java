@@ -0,0 +1,200 @@
+package org.bitcoinj.core;
+
+import java.util.*;
+
+/**
+ * The list of masternodes known to a {@link MasternodeManager}, indexed by collateral outpoint, by masternode public
+ * key and by IP address so that lookups don't have to scan the whole list. It also keeps a running count of the
+ * enabled masternodes per protocol version.
+ *
+ * Iteration order is insertion order, the same as the vector it replaces, so serialization and ranking are unchanged.
+ *
+ * Instances are not thread safe; the owning MasternodeManager guards them with its lock.
+ */
+class MasternodeRegistry {
+    private final LinkedHashMap<TransactionOutPoint, Masternode> byOutpoint;
+    private final HashMap<PublicKey, Masternode> byPubKey;
+    // Several masternodes can share an IP, for example on testnet, so each address maps to all of them.
+    private final HashMap<NetAddress, Set<Masternode>> byAddress;
+    // protocol version -> number of enabled masternodes running it
+    private final TreeMap<Integer, Integer> enabledByProtocol;
+
+    MasternodeRegistry() {
+        this(16);
+    }
+
+    MasternodeRegistry(int expectedSize) {
+        byOutpoint = new LinkedHashMap<TransactionOutPoint, Masternode>(expectedSize * 4 / 3 + 1);
+        byPubKey = new HashMap<PublicKey, Masternode>(expectedSize * 4 / 3 + 1);
+        byAddress = new HashMap<NetAddress, Set<Masternode>>(expectedSize * 4 / 3 + 1);
+        enabledByProtocol = new TreeMap<Integer, Integer>();
+    }
+
+    int size() {
+        return byOutpoint.size();
+    }
+
+    /** Returns a live view of the masternodes in insertion order. It supports removal through its iterator. */
+    Collection<Masternode> values() {
+        return new AbstractCollection<Masternode>() {
+            @Override
+            public Iterator<Masternode> iterator() {
+                final Iterator<Masternode> it = byOutpoint.values().iterator();
+                return new Iterator<Masternode>() {
+                    Masternode last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Masternode next() {
+                        return last = it.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        it.remove();
+                        unindex(last);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return byOutpoint.size();
+            }
+        };
+    }
+
+    /** Adds the masternode unless one with the same collateral outpoint is already present. */
+    boolean add(Masternode mn) {
+        TransactionOutPoint outpoint = mn.vin.getOutpoint();
+        if (byOutpoint.containsKey(outpoint))
+            return false;
+        byOutpoint.put(outpoint, mn);
+        index(mn);
+        return true;
+    }
+
+    Masternode remove(TransactionOutPoint outpoint) {
+        Masternode mn = byOutpoint.remove(outpoint);
+        if (mn != null)
+            unindex(mn);
+        return mn;
+    }
+
+    Masternode get(TransactionOutPoint outpoint) {
+        return byOutpoint.get(outpoint);
+    }
+
+    Masternode get(PublicKey pubKeyMasternode) {
+        return byPubKey.get(pubKeyMasternode);
+    }
+
+    /** Returns a masternode running at the IP of the given address, or null if there is none. */
+    Masternode get(NetAddress address) {
+        Set<Masternode> found = byAddress.get(addressKey(address));
+        return found == null ? null : found.iterator().next();
+    }
+
+    boolean contains(Masternode mn) {
+        return mn.vin != null && byOutpoint.get(mn.vin.getOutpoint()) == mn;
+    }
+
+    void clear() {
+        byOutpoint.clear();
+        byPubKey.clear();
+        byAddress.clear();
+        enabledByProtocol.clear();
+    }
+
+    /**
+     * Updates the indexes of a registered masternode after its public key, address or protocol version were replaced,
+     * for example by a newer broadcast.
+     */
+    void reindex(Masternode mn, PublicKey oldPubKey, NetAddress oldAddress, int oldProtocolVersion) {
+        unindexKeys(oldPubKey, oldAddress, mn);
+        indexKeys(mn);
+        if (mn.isEnabled() && oldProtocolVersion != mn.protocolVersion) {
+            adjustEnabled(oldProtocolVersion, -1);
+            adjustEnabled(mn.protocolVersion, 1);
+        }
+    }
+
+    /** Called when the state of a registered masternode has changed from {@code oldState}. */
+    void stateChanged(Masternode mn, Masternode.State oldState) {
+        boolean wasEnabled = oldState == Masternode.State.MASTERNODE_ENABLED;
+        if (wasEnabled != mn.isEnabled())
+            adjustEnabled(mn.protocolVersion, mn.isEnabled() ? 1 : -1);
+    }
+
+    /** Recomputes the enabled counts from scratch, for when states may have been changed behind our back. */
+    void recountEnabled() {
+        enabledByProtocol.clear();
+        for (Masternode mn : byOutpoint.values())
+            if (mn.isEnabled())
+                adjustEnabled(mn.protocolVersion, 1);
+    }
+
+    /** Returns the number of enabled masternodes running at least the given protocol version. */
+    int countEnabled(int minProtocolVersion) {
+        int count = 0;
+        for (int n : enabledByProtocol.tailMap(minProtocolVersion).values())
+            count += n;
+        return count;
+    }
+
+    private void index(Masternode mn) {
+        indexKeys(mn);
+        if (mn.isEnabled())
+            adjustEnabled(mn.protocolVersion, 1);
+    }
+
+    private void unindex(Masternode mn) {
+        unindexKeys(mn.pubKeyMasternode, mn.address, mn);
+        if (mn.isEnabled())
+            adjustEnabled(mn.protocolVersion, -1);
+    }
+
+    private void indexKeys(Masternode mn) {
+        if (mn.pubKeyMasternode != null)
+            byPubKey.put(mn.pubKeyMasternode, mn);
+        if (mn.address != null) {
+            NetAddress key = addressKey(mn.address);
+            Set<Masternode> atAddress = byAddress.get(key);
+            if (atAddress == null) {
+                atAddress = new LinkedHashSet<Masternode>();
+                byAddress.put(key, atAddress);
+            }
+            atAddress.add(mn);
+        }
+    }
+
+    // Only drops entries that still point at this masternode, another one may have taken over the key since.
+    private void unindexKeys(PublicKey pubKey, NetAddress address, Masternode mn) {
+        if (pubKey != null && byPubKey.get(pubKey) == mn)
+            byPubKey.remove(pubKey);
+        if (address != null) {
+            NetAddress key = addressKey(address);
+            Set<Masternode> atAddress = byAddress.get(key);
+            if (atAddress != null && atAddress.remove(mn) && atAddress.isEmpty())
+                byAddress.remove(key);
+        }
+    }
+
+    private void adjustEnabled(int protocolVersion, int delta) {
+        Integer current = enabledByProtocol.get(protocolVersion);
+        int updated = (current == null ? 0 : current) + delta;
+        if (updated <= 0)
+            enabledByProtocol.remove(protocolVersion);
+        else
+            enabledByProtocol.put(protocolVersion, updated);
+    }
+
+    // MasternodeAddress also compares the port, so normalize to a plain NetAddress which is keyed by IP only.
+    private static NetAddress addressKey(NetAddress address) {
+        return address.getClass() == NetAddress.class ? address : new NetAddress(address.getAddr());
+    }
+}
@@ -0,0 +1,149 @@
+package org.bitcoinj.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Calculates masternode scores against one block hash with fixed width 256 bit arithmetic on byte arrays, instead of
+ * going through BigInteger for every masternode. The hash of the block hash only depends on the block, so it is
+ * computed once in the constructor and shared by all the masternodes being ranked.
+ *
+ * The result is bit for bit what {@link Masternode#calculateScore(TransactionInput, Sha256Hash)} always returned,
+ * including its quirks: values shorter than 32 bytes are copied to the start of the result rather than the end, a
+ * carry out of the outpoint hash + index sum drops the lowest byte, and the bytes of the result past a short
+ * difference are left over from the outpoint sum because the original reused the same array for both.
+ *
+ * Instances are not thread safe.
+ */
+class MasternodeScore {
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    // the serialized block hash followed by the serialized outpoint hash + index
+    private final byte[] input = new byte[64];
+    // big endian double SHA256 of the serialized block hash ("hash2")
+    private final byte[] blockHash2 = new byte[32];
+    // scratch space: the outpoint sum with room for a carry, the first round of SHA256, hash3 and the difference
+    private final byte[] sum = new byte[33];
+    private final byte[] round = new byte[32];
+    private final byte[] hash3 = new byte[32];
+    private final byte[] difference = new byte[32];
+    private final byte[] score = new byte[32];
+
+    MasternodeScore(Sha256Hash blockHash) {
+        System.arraycopy(blockHash.getReversedBytes(), 0, input, 0, 32);
+        hashTwiceReversed(32, blockHash2);
+    }
+
+    /** Returns the score of the masternode with the given collateral outpoint. */
+    Sha256Hash calculate(TransactionOutPoint outpoint) {
+        byte[] result = new byte[32];
+        calculate(outpoint.getHash(), outpoint.getIndex(), result);
+        return Sha256Hash.wrap(result);
+    }
+
+    /**
+     * Returns the score of the masternode with the given collateral outpoint in compact form, the value the ranking
+     * sorts on. This does not allocate.
+     */
+    long calculateCompact(TransactionOutPoint outpoint) {
+        calculate(outpoint.getHash(), outpoint.getIndex(), score);
+        return encodeCompact(score);
+    }
+
+    private void calculate(Sha256Hash hash, long index, byte[] result) {
+        // aux = outpoint hash + index
+        byte[] hashBytes = hash.getBytes();
+        long carry = index;
+        for (int i = 31; i >= 0; i--) {
+            carry += hashBytes[i] & 0xff;
+            sum[i + 1] = (byte) carry;
+            carry >>>= 8;
+        }
+        sum[0] = (byte) carry;
+        Arrays.fill(result, (byte) 0);
+        copyMagnitude(sum, result);
+
+        // hash3 = hash(block hash, aux), both serialized little endian
+        for (int i = 0; i < 32; i++)
+            input[32 + i] = result[31 - i];
+        hashTwiceReversed(64, hash3);
+
+        // |hash3 - hash2|
+        byte[] larger = hash3, smaller = blockHash2;
+        if (compare(hash3, blockHash2) <= 0) {
+            larger = blockHash2;
+            smaller = hash3;
+        }
+        int borrow = 0;
+        for (int i = 31; i >= 0; i--) {
+            int d = (larger[i] & 0xff) - (smaller[i] & 0xff) - borrow;
+            difference[i] = (byte) d;
+            borrow = d < 0 ? 1 : 0;
+        }
+        copyMagnitude(difference, result);
+    }
+
+    // Copies the big endian value without its leading zero bytes to the start of dst, keeping at most 32 bytes. This is
+    // what copying BigInteger.toByteArray() minus its sign byte did. Bytes of dst past the copied value are untouched.
+    private static void copyMagnitude(byte[] src, byte[] dst) {
+        int first = 0;
+        while (first < src.length && src[first] == 0)
+            first++;
+        System.arraycopy(src, first, dst, 0, Math.min(src.length - first, 32));
+    }
+
+    // Double SHA256 of the first length bytes of input, written byte reversed into out as Sha256Hash.wrapReversed does.
+    private void hashTwiceReversed(int length, byte[] out) {
+        try {
+            digest.update(input, 0, length);
+            digest.digest(round, 0, 32);
+            digest.update(round, 0, 32);
+            digest.digest(round, 0, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the buffer is large enough.
+        }
+        for (int i = 0; i < 32; i++)
+            out[i] = round[31 - i];
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    /**
+     * Encodes the unsigned big endian value in compact form. Gives the same result as
+     * {@code Utils.encodeCompactBits(new BigInteger(1, value), false)}.
+     */
+    static long encodeCompact(byte[] value) {
+        int first = 0;
+        while (first < value.length && value[first] == 0)
+            first++;
+        int size;
+        if (first == value.length) {
+            size = 1;
+        } else {
+            int bitLength = (value.length - first - 1) * 8 + 32 - Integer.numberOfLeadingZeros(value[first] & 0xff);
+            // BigInteger.toByteArray() length, which includes the sign bit
+            size = bitLength / 8 + 1;
+        }
+        int shift = size - 3;
+        long result = 0;
+        for (int i = first; i < value.length - Math.max(shift, 0); i++)
+            result = (result << 8) | (value[i] & 0xff);
+        if (shift < 0)
+            result <<= 8 * -shift;
+        // The 0x00800000 bit denotes the sign.
+        // Thus, if it is already set, divide the mantissa by 256 and increase the exponent.
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        result |= size << 24;
+        return result;
+    }
+}
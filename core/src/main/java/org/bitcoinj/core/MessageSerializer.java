@@ -18,6 +18,7 @@
 
 package org.bitcoinj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -163,5 +164,18 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Returns the message as buffers which, written one after the other, hold the same bytes as
+     * {@link #serialize(Message, OutputStream)} writes, so they can be handed to the network without copying them
+     * into one array first.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization.
+     */
+    public ByteBuffer[] serializeToBuffers(Message message) throws IOException, UnsupportedOperationException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(message, out);
+        return new ByteBuffer[] {ByteBuffer.wrap(out.toByteArray())};
+    }
 }
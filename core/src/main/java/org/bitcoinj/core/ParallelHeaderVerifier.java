@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Throwables;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes the X11 hash of a batch of block headers and checks their proof of work on a pool of threads, before
+ * they are linked into the chain one at a time. X11 is expensive enough that doing this serially on the network
+ * thread makes initial header sync CPU bound on a single core.</p>
+ *
+ * <p>The batch is split into contiguous chunks. Each chunk stops as soon as it reaches a header that comes after an
+ * invalid one found elsewhere, so the result always reports the <i>first</i> invalid header of the batch, exactly as
+ * serial verification would.</p>
+ *
+ * <p>Headers handed to {@link #verify(List, int)} must not be touched by other threads until it returns.</p>
+ */
+public class ParallelHeaderVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ParallelHeaderVerifier.class);
+
+    /** Batches smaller than this are verified on the calling thread. */
+    public static final int MIN_PARALLEL_BATCH = 64;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /** Creates a verifier with one thread per available processor. */
+    public ParallelHeaderVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelHeaderVerifier(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Header verification"));
+    }
+
+    /** The outcome of verifying one batch of headers. */
+    public static class Result {
+        /** Number of headers that were checked. */
+        public final int count;
+        /** Index of the first header that failed verification, or -1 if they were all valid. */
+        public final int firstInvalid;
+        /** Why the header at {@link #firstInvalid} failed, or null. */
+        @Nullable public final VerificationException error;
+        /** Wall clock time taken by the batch. */
+        public final long elapsedNanos;
+        /** Sum of the time the worker threads spent verifying. */
+        public final long busyNanos;
+
+        Result(int count, int firstInvalid, @Nullable VerificationException error, long elapsedNanos, long busyNanos) {
+            this.count = count;
+            this.firstInvalid = firstInvalid;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+            this.busyNanos = busyNanos;
+        }
+
+        public boolean isValid() {
+            return firstInvalid < 0;
+        }
+
+        /** Returns how much faster the batch went than it would have done on one thread. */
+        public double getSpeedup() {
+            return elapsedNanos == 0 ? 1.0 : (double) busyNanos / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d headers in %.1f ms, speedup %.2fx%s", count, elapsedNanos / 1e6, getSpeedup(),
+                    isValid() ? "" : ", first invalid at " + firstInvalid);
+        }
+    }
+
+    /**
+     * Hashes and checks the proof of work of the first {@code count} headers of the list, caching each hash in its
+     * {@link Block}. Blocks until the whole batch is done.
+     */
+    public Result verify(List<Block> headers, int count) {
+        checkArgument(count >= 0 && count <= headers.size(), "count out of range");
+        final long start = System.nanoTime();
+        final AtomicInteger firstInvalid = new AtomicInteger(Integer.MAX_VALUE);
+        long busyNanos = 0;
+        VerificationException error = null;
+        if (count < MIN_PARALLEL_BATCH || threads == 1) {
+            Chunk chunk = new Chunk(headers, 0, count, firstInvalid);
+            chunk.call();
+            busyNanos = chunk.busyNanos;
+            error = chunk.error;
+        } else {
+            // A few chunks per thread keeps the threads busy even when some headers take longer than others.
+            int chunkSize = (count + threads * 4 - 1) / (threads * 4);
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            for (int from = 0; from < count; from += chunkSize)
+                chunks.add(new Chunk(headers, from, Math.min(count, from + chunkSize), firstInvalid));
+            try {
+                for (Future<Chunk> future : executor.invokeAll(chunks)) {
+                    Chunk chunk = future.get();
+                    busyNanos += chunk.busyNanos;
+                    if (chunk.error != null && chunk.errorIndex == firstInvalid.get())
+                        error = chunk.error;
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        int invalid = firstInvalid.get() == Integer.MAX_VALUE ? -1 : firstInvalid.get();
+        Result result = new Result(count, invalid, error, System.nanoTime() - start, busyNanos);
+        log.info("Verified {}", result);
+        return result;
+    }
+
+    /** Stops the worker threads. The verifier cannot be used afterwards. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class Chunk implements Callable<Chunk> {
+        final List<Block> headers;
+        final int from, to;
+        final AtomicInteger firstInvalid;
+        long busyNanos;
+        int errorIndex = -1;
+        @Nullable VerificationException error;
+
+        Chunk(List<Block> headers, int from, int to, AtomicInteger firstInvalid) {
+            this.headers = headers;
+            this.from = from;
+            this.to = to;
+            this.firstInvalid = firstInvalid;
+        }
+
+        @Override
+        public Chunk call() {
+            long start = System.nanoTime();
+            for (int i = from; i < to && i < firstInvalid.get(); i++) {
+                try {
+                    // Calculates and caches the hash, then compares it against the target.
+                    headers.get(i).verifyHeader();
+                } catch (VerificationException e) {
+                    errorIndex = i;
+                    error = e;
+                    int current;
+                    do {
+                        current = firstInvalid.get();
+                    } while (i < current && !firstInvalid.compareAndSet(current, i));
+                    break;
+                }
+            }
+            busyNanos = System.nanoTime() - start;
+            return this;
+        }
+    }
+}
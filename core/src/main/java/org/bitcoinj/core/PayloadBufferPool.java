@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A pool of byte arrays for message payloads, in power of two size classes, so the common small messages don't
+ * each allocate a new array. An array from the pool may be longer than asked for, so it can only be handed to
+ * messages that take the payload length from the header and don't keep the array once they are parsed.</p>
+ *
+ * <p>Each size class is a fixed set of slots that arrays are swapped in and out of, so taking and returning an
+ * array doesn't lock or allocate. Payloads larger than the largest class aren't pooled. This class is thread safe.</p>
+ */
+class PayloadBufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 18;
+    // Large arrays are rare, so fewer of them are kept.
+    private static final int SMALL_SLOTS = 16;
+    private static final int LARGE_SLOTS = 4;
+    private static final int LARGE_SHIFT = 14;
+
+    private final AtomicReferenceArray<byte[]>[] classes;
+
+    @SuppressWarnings("unchecked")
+    PayloadBufferPool() {
+        classes = new AtomicReferenceArray[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new AtomicReferenceArray<byte[]>(MIN_SHIFT + i > LARGE_SHIFT ? LARGE_SLOTS : SMALL_SLOTS);
+    }
+
+    /** Returns an array of at least the given length, which should be given back with {@link #release(byte[])}. */
+    byte[] take(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0)
+            return new byte[length];
+        AtomicReferenceArray<byte[]> slots = classes[sizeClass];
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                byte[] buffer = slots.getAndSet(i, null);
+                if (buffer != null)
+                    return buffer;
+            }
+        }
+        return new byte[1 << (MIN_SHIFT + sizeClass)];
+    }
+
+    /** Returns an array to the pool, if it came from it and its size class has room. */
+    void release(byte[] buffer) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass < 0 || buffer.length != 1 << (MIN_SHIFT + sizeClass))
+            return;
+        AtomicReferenceArray<byte[]> slots = classes[sizeClass];
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, buffer))
+                return;
+        }
+    }
+
+    // Returns the index of the smallest class that holds the length, or -1 if it is too large to pool.
+    private static int sizeClass(int length) {
+        if (length > 1 << MAX_SHIFT)
+            return -1;
+        int shift = length <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_SHIFT;
+    }
+}
@@ -89,6 +89,8 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
     private volatile int vDownloadTxDependencyDepth;
+    // If set, headers received during fast catchup are hashed and checked on this verifier's threads before linking.
+    @Nullable private volatile ParallelHeaderVerifier vHeaderVerifier;
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -736,8 +738,20 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            ParallelHeaderVerifier.Result verified = null;
+            ParallelHeaderVerifier headerVerifier = vHeaderVerifier;
+            if (headerVerifier != null) {
+                // Only the headers before the fast catchup time are linked below, so there's no need to hash the rest.
+                int count = 0;
+                while (count < m.getBlockHeaders().size() &&
+                        m.getBlockHeaders().get(count).getTimeSeconds() < fastCatchupTimeSecs)
+                    count++;
+                verified = headerVerifier.verify(m.getBlockHeaders(), count);
+            }
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
+                if (verified != null && i == verified.firstInvalid)
+                    throw verified.error;
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
                 // of the chain - always process the last block as a full/filtered block to kick us out of the
                 // fast catchup mode (in which we ignore new blocks).
@@ -2098,6 +2112,14 @@ public class Peer extends PeerSocketHandler {
         vDownloadTxDependencyDepth = depth;
     }
 
+    /**
+     * Sets a verifier that hashes and checks the proof of work of each batch of downloaded headers on multiple threads
+     * before they are added to the chain, or null to do it serially on the network thread (the default).
+     */
+    public void setHeaderVerifier(@Nullable ParallelHeaderVerifier headerVerifier) {
+        vHeaderVerifier = headerVerifier;
+    }
+
     //Dash Specific Code
     public void notifyLock(Transaction tx)
     {
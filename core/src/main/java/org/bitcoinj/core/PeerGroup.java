@@ -289,6 +289,9 @@ public class PeerGroup implements TransactionBroadcaster {
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
+    /** Shared by all peers to verify downloaded headers in parallel, or null to verify them serially. */
+    @Nullable private volatile ParallelHeaderVerifier vHeaderVerifier;
+
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
         this(params, null);
@@ -1494,6 +1497,7 @@ public class PeerGroup implements TransactionBroadcaster {
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setHeaderVerifier(vHeaderVerifier);
         pendingPeers.add(peer);
 
         try {
@@ -1525,6 +1529,24 @@ public class PeerGroup implements TransactionBroadcaster {
         return new Peer(params, ver, address, chain, downloadTxDependencyDepth);
     }
 
+    /**
+     * Sets a verifier that hashes and checks the proof of work of downloaded headers on multiple threads before they
+     * are linked into the chain, or null to verify them one by one on the network thread. The verifier is shared by
+     * all peers, and the caller remains responsible for shutting it down.
+     */
+    public void setHeaderVerifier(@Nullable ParallelHeaderVerifier headerVerifier) {
+        lock.lock();
+        try {
+            vHeaderVerifier = headerVerifier;
+            for (Peer peer : peers)
+                peer.setHeaderVerifier(headerVerifier);
+            for (Peer peer : pendingPeers)
+                peer.setHeaderVerifier(headerVerifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Sets the timeout between when a connection attempt to a peer begins and when the version message exchange
      * completes. This does not apply to currently pending peers.
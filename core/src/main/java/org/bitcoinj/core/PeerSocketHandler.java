@@ -17,6 +17,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.GatheringMessageWriteTarget;
 import org.bitcoinj.net.MessageWriteTarget;
 import org.bitcoinj.net.NioClient;
 import org.bitcoinj.net.NioClientManager;
@@ -85,11 +86,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            if (writeTarget instanceof GatheringMessageWriteTarget) {
+                ((GatheringMessageWriteTarget) writeTarget).writeBuffers(serializer.serializeToBuffers(message));
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.serialize(message, out);
+                writeTarget.writeBytes(out.toByteArray());
+            }
         } catch (IOException e) {
             exceptionCaught(e);
         }
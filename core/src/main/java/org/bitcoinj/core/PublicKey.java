@@ -101,6 +101,12 @@ public class PublicKey extends ChildMessage {
         return false;
     }
 
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(bytes);
+    }
+
     @Deprecated
     PublicKey duplicate()
     {
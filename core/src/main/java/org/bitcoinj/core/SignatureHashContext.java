@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static org.bitcoinj.core.Utils.uint32ToByteArrayLE;
+
+/**
+ * <p>The parts of a transaction that its signature hashes are made from, serialized once so that signing or verifying
+ * each input doesn't copy and reserialize the whole transaction again.</p>
+ *
+ * <p>A signature hash still covers every input, so hashing it takes time in proportion to the size of the
+ * transaction. For {@link SigHash#ALL} the inputs before the one being signed are not hashed again though: the
+ * SHA-256 state after them is kept and carried on from.</p>
+ *
+ * <p>Instances are immutable. {@link Transaction} throws its instance away when it changes in a way the signature
+ * hashes cover.</p>
+ */
+class SignatureHashContext {
+    // Outpoint, empty script and sequence number.
+    private static final int BLANK_INPUT_LENGTH = 36 + 1 + 4;
+    // What precedes the sequence number of a blank input.
+    private static final int BLANK_INPUT_PREFIX_LENGTH = 36 + 1;
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+    // A value of -1 and an empty script, which SIGHASH_SINGLE puts in place of the outputs before the signed one.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    private static final byte[] NO_OUTPUTS = { 0 };
+    // Bitcoin Core returns this in place of a hash when SIGHASH_SINGLE is used on an input without a matching output.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final int inputCount;
+    private final byte[] version;
+    private final byte[] inputCountBytes;
+    // All the inputs with their scripts cleared, back to back.
+    private final byte[] blankInputs;
+    private final byte[][] outputs;
+    // The number of outputs followed by all of them.
+    private final byte[] allOutputs;
+    private final byte[] lockTime;
+    // The digest after the version, the input count and the inputs before each input. Null if digests can't be copied.
+    @Nullable private final MessageDigest[] midstates;
+
+    SignatureHashContext(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+        inputCount = inputs.size();
+        version = new byte[4];
+        uint32ToByteArrayLE(tx.getVersion(), version, 0);
+        inputCountBytes = new VarInt(inputCount).encode();
+
+        blankInputs = new byte[inputCount * BLANK_INPUT_LENGTH];
+        for (int i = 0; i < inputCount; i++) {
+            TransactionInput input = inputs.get(i);
+            int offset = i * BLANK_INPUT_LENGTH;
+            byte[] outpoint = input.getOutpoint().bitcoinSerialize();
+            System.arraycopy(outpoint, 0, blankInputs, offset, outpoint.length);
+            // The script length at offset + 36 is already zero.
+            uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, offset + BLANK_INPUT_PREFIX_LENGTH);
+        }
+
+        this.outputs = new byte[outputs.size()][];
+        byte[] outputCount = new VarInt(outputs.size()).encode();
+        int length = outputCount.length;
+        for (int i = 0; i < outputs.size(); i++) {
+            this.outputs[i] = outputs.get(i).bitcoinSerialize();
+            length += this.outputs[i].length;
+        }
+        allOutputs = new byte[length];
+        System.arraycopy(outputCount, 0, allOutputs, 0, outputCount.length);
+        int offset = outputCount.length;
+        for (byte[] output : this.outputs) {
+            System.arraycopy(output, 0, allOutputs, offset, output.length);
+            offset += output.length;
+        }
+
+        lockTime = new byte[4];
+        uint32ToByteArrayLE(tx.getLockTime(), lockTime, 0);
+
+        midstates = midstates();
+    }
+
+    @Nullable
+    private MessageDigest[] midstates() {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(version);
+        digest.update(inputCountBytes);
+        MessageDigest[] midstates = new MessageDigest[inputCount];
+        try {
+            for (int i = 0; i < inputCount; i++) {
+                midstates[i] = (MessageDigest) digest.clone();
+                digest.update(blankInputs, i * BLANK_INPUT_LENGTH, BLANK_INPUT_LENGTH);
+            }
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+        return midstates;
+    }
+
+    /**
+     * Calculates the same hash as {@link Transaction#hashForSignature(int, byte[], byte)} does for the transaction this
+     * was made from.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
+        // the purposes of the code in this method:
+        //
+        //   https://en.bitcoin.it/wiki/Contracts
+        checkElementIndex(inputIndex, inputCount);
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        // SIGHASH_SINGLE on an input beyond the number of outputs is a buggy signature made by a broken Bitcoin
+        // implementation, which Bitcoin Core "hashes" to the constant 1.
+        if (mode == SigHash.SINGLE.value && inputIndex >= outputs.length)
+            return SIGHASH_SINGLE_BUG;
+        // With SIGHASH_NONE and SIGHASH_SINGLE, the signature isn't broken by new versions of the transaction issued by
+        // other parties: their inputs are signed with a sequence number of zero.
+        boolean zeroSequences = mode == SigHash.NONE.value || mode == SigHash.SINGLE.value;
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR is a legacy
+        // holdover from a previous, broken design of executing scripts. Deleting it is a step that should never be
+        // required but if we don't do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        // The input being signed has the script of the output it spends in place of its own, and the other inputs have
+        // empty scripts. SIGHASH_ANYONECANPAY leaves the other inputs out altogether, so the signature isn't broken
+        // by changes to them.
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            digest = Sha256Hash.newDigest();
+            digest.update(version);
+            digest.update((byte) 1);
+            updateWithInput(digest, inputIndex, connectedScript);
+        } else {
+            digest = zeroSequences ? null : midstate(inputIndex);
+            if (digest == null) {
+                digest = Sha256Hash.newDigest();
+                digest.update(version);
+                digest.update(inputCountBytes);
+                for (int i = 0; i < inputIndex; i++)
+                    updateWithBlankInput(digest, i, zeroSequences);
+            }
+            updateWithInput(digest, inputIndex, connectedScript);
+            if (zeroSequences) {
+                for (int i = inputIndex + 1; i < inputCount; i++)
+                    updateWithBlankInput(digest, i, true);
+            } else {
+                int offset = (inputIndex + 1) * BLANK_INPUT_LENGTH;
+                digest.update(blankInputs, offset, blankInputs.length - offset);
+            }
+        }
+
+        // SIGHASH_NONE signs no outputs at all. SIGHASH_SINGLE signs only the output at the same index as the input,
+        // and "nulls out" the ones before it.
+        if (mode == SigHash.NONE.value) {
+            digest.update(NO_OUTPUTS);
+        } else if (mode == SigHash.SINGLE.value) {
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            digest.update(outputs[inputIndex]);
+        } else {
+            digest.update(allOutputs);
+        }
+        digest.update(lockTime);
+        // The hash type is written as a four byte integer, although only the lowest byte of it is used.
+        byte[] hashType = new byte[4];
+        uint32ToByteArrayLE(0x000000ff & sigHashType, hashType, 0);
+        digest.update(hashType);
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    @Nullable
+    private MessageDigest midstate(int inputIndex) {
+        if (midstates == null)
+            return null;
+        try {
+            return (MessageDigest) midstates[inputIndex].clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    private void updateWithInput(MessageDigest digest, int inputIndex, byte[] script) {
+        int offset = inputIndex * BLANK_INPUT_LENGTH;
+        digest.update(blankInputs, offset, 36);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        digest.update(blankInputs, offset + BLANK_INPUT_PREFIX_LENGTH, 4);
+    }
+
+    private void updateWithBlankInput(MessageDigest digest, int inputIndex, boolean zeroSequence) {
+        int offset = inputIndex * BLANK_INPUT_LENGTH;
+        if (zeroSequence) {
+            digest.update(blankInputs, offset, BLANK_INPUT_PREFIX_LENGTH);
+            digest.update(ZERO_SEQUENCE);
+        } else {
+            digest.update(blankInputs, offset, BLANK_INPUT_LENGTH);
+        }
+    }
+}
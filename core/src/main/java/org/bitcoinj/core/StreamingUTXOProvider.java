@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.List;
+
+/**
+ * A {@link UTXOProvider} that can also hand its outputs over one at a time as they are read. Callers should check
+ * for this interface and fall back to {@link UTXOProvider#getOpenTransactionOutputs(List)} otherwise.
+ */
+public interface StreamingUTXOProvider extends UTXOProvider {
+    /** Receives the outputs found by {@link #getOpenTransactionOutputs(List, UTXOHandler)} one at a time. */
+    interface UTXOHandler {
+        /**
+         * Called for each output as it is read.
+         * @return true to carry on, false to stop the query without reading any more outputs.
+         */
+        boolean handle(UTXO output) throws UTXOProviderException;
+    }
+
+    /**
+     * <p>Like {@link #getOpenTransactionOutputs(List)}, but hands each output to the handler as soon as it is read
+     * instead of collecting them all into a list first, so that large results can be processed with little memory.
+     * The outputs don't have their script parsed until {@link UTXO#getScript()} is called. An address that is given
+     * more than once only has its outputs handed over once.</p>
+     *
+     * <p>The handler is called on the calling thread, possibly while the provider holds resources like a database
+     * cursor open, so it shouldn't take long or use the provider itself.</p>
+     */
+    void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler) throws UTXOProviderException;
+}
@@ -244,7 +244,14 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        // Signature hashes don't cover input scripts, so what the parent has cached for them is still good. That keeps
+        // it cached while the inputs are signed one after the other.
+        Transaction parentTransaction = getParentTransaction();
+        SignatureHashContext signatureHashContext =
+                parentTransaction != null ? parentTransaction.getCachedSignatureHashContext() : null;
         unCache();
+        if (signatureHashContext != null)
+            parentTransaction.setCachedSignatureHashContext(signatureHashContext);
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
@@ -2,9 +2,9 @@ package org.bitcoinj.core;
 
 import org.darkcoinj.InstantSend;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.darkcoinj.InstantSend.INSTANTSEND_TIMEOUT_SECONDS;
 
@@ -13,11 +13,12 @@ import static org.darkcoinj.InstantSend.INSTANTSEND_TIMEOUT_SECONDS;
  */
 public class TransactionLockCandidate {
     NetworkParameters params;
-    int confirmedHeight;
+    volatile int confirmedHeight;
     long timeCreated;
 
-    public TransactionLockRequest txLockRequest;
-    public HashMap<TransactionOutPoint, TransactionOutPointLock> mapOutPointLocks;
+    public volatile TransactionLockRequest txLockRequest;
+    // Votes for other transactions look up the outpoints of this one while checking for conflicts.
+    public ConcurrentHashMap<TransactionOutPoint, TransactionOutPointLock> mapOutPointLocks;
 
     public TransactionLockCandidate(NetworkParameters params, TransactionLockRequest txLockRequest)
     {
@@ -25,7 +26,7 @@ public class TransactionLockCandidate {
         this.confirmedHeight = -1;
         timeCreated = Utils.currentTimeSeconds();
         this.txLockRequest = txLockRequest;
-        mapOutPointLocks = new HashMap<TransactionOutPoint, TransactionOutPointLock>();
+        mapOutPointLocks = new ConcurrentHashMap<TransactionOutPoint, TransactionOutPointLock>();
     }
 
     public Sha256Hash getHash() { return txLockRequest.getHash(); }
@@ -74,6 +75,7 @@ public class TransactionLockCandidate {
     {
         mapOutPointLocks.put(outpoint, new TransactionOutPointLock(params, outpoint));
     }
+    public int getConfirmedHeight() { return confirmedHeight; }
     public void setConfirmedHeight(int confirmedHeight) { this.confirmedHeight = confirmedHeight; }
     public boolean isExpired(int height)
     {
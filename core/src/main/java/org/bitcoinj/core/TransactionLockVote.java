@@ -37,7 +37,7 @@ public class TransactionLockVote extends Message implements Serializable {
     //public TransactionInput vinMasternode;
 
     //local memory only
-    public int confirmedHeight;
+    public volatile int confirmedHeight;
 
     public long getTimeCreated() {
         return timeCreated;
@@ -57,6 +57,19 @@ public class TransactionLockVote extends Message implements Serializable {
         masternodeManager = Context.get().masternodeManager;
     }
 
+    public TransactionLockVote(NetworkParameters params, Sha256Hash txHash, TransactionOutPoint outpoint,
+                               TransactionOutPoint outpointMasternode)
+    {
+        super(params);
+        this.txHash = txHash;
+        this.outpoint = outpoint;
+        this.outpointMasternode = outpointMasternode;
+        this.vchMasternodeSignature = new MasternodeSignature(new byte[0]);
+        confirmedHeight = -1;
+        timeCreated = Utils.currentTimeSeconds();
+        masternodeManager = Context.get().masternodeManager;
+    }
+
     protected static int calcLength(byte[] buf, int offset) {
         VarInt varint;
         // jump past version (uint32)
@@ -209,6 +222,7 @@ public class TransactionLockVote extends Message implements Serializable {
     public TransactionOutPoint getOutpointMasternode() { return outpointMasternode; }
     public TransactionOutPoint getOutpoint() { return outpoint; }
 
+    public int getConfirmedHeight() { return confirmedHeight; }
     public void setConfirmedHeight(int confirmedHeight) { this.confirmedHeight = confirmedHeight; }
 
 
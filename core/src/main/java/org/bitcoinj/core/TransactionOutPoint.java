@@ -202,6 +202,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
 
     void setHash(Sha256Hash hash) {
+        unCache();
         this.hash = hash;
     }
 
@@ -210,6 +211,7 @@ public class TransactionOutPoint extends ChildMessage {
     }
     
     public void setIndex(long index) {
+        unCache();
         this.index = index;
     }
 
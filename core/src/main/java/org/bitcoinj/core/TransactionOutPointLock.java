@@ -13,8 +13,9 @@ public class TransactionOutPointLock { //COutPointLock
     public static final int SIGNATURES_TOTAL           = 10;
 
     TransactionOutPoint outpoint;
+    // written by the thread processing a vote for this outpoint, see InstantSend for the locking
     HashMap<TransactionOutPoint, TransactionLockVote> mapMasternodeVotes;
-    boolean attacked = false;
+    volatile boolean attacked = false;
 
     TransactionOutPointLock(NetworkParameters params, TransactionOutPoint outpoint)
     {
@@ -33,7 +33,9 @@ import java.util.Locale;
 public class UTXO {
 
     private Coin value;
+    // Parsed from scriptBytes when first asked for, as many users never look at it.
     private Script script;
+    private byte[] scriptBytes;
     private Sha256Hash hash;
     private long index;
     private int height;
@@ -85,6 +87,39 @@ public class UTXO {
         this.address = address;
     }
 
+    /**
+     * Creates a stored transaction output whose script is only parsed when {@link #getScript()} is called.
+     *
+     * @param hash        The hash of the containing transaction.
+     * @param index       The outpoint.
+     * @param value       The value available.
+     * @param height      The height this output was created in.
+     * @param coinbase    The coinbase flag.
+     * @param scriptBytes The bytes of the output script.
+     * @param address     The address.
+     */
+    public UTXO(Sha256Hash hash,
+                long index,
+                Coin value,
+                int height,
+                boolean coinbase,
+                byte[] scriptBytes,
+                String address) {
+        this.hash = hash;
+        this.index = index;
+        this.value = value;
+        this.height = height;
+        this.scriptBytes = scriptBytes;
+        this.coinbase = coinbase;
+        this.address = address;
+    }
+
+    /** Reads an output written by {@link #serializeToStream(OutputStream)}, giving it the address it is stored under. */
+    public UTXO(InputStream in, String address) throws IOException {
+        this(in);
+        this.address = address;
+    }
+
     public UTXO(InputStream in) throws IOException {
         byte[] valueBytes = new byte[8];
         if (in.read(valueBytes, 0, 8) != 8)
@@ -95,10 +130,9 @@ public class UTXO {
                 ((in.read() & 0xFF) << 8) |
                 ((in.read() & 0xFF) << 16) |
                 ((in.read() & 0xFF) << 24);
-        byte[] scriptBytes = new byte[scriptBytesLength];
+        scriptBytes = new byte[scriptBytesLength];
         if (in.read(scriptBytes) != scriptBytesLength)
             throw new EOFException();
-        script = new Script(scriptBytes);
 
         byte[] hashBytes = new byte[32];
         if (in.read(hashBytes) != 32)
@@ -127,6 +161,8 @@ public class UTXO {
 
     /** The Script object which you can use to get address, script bytes or script type. */
     public Script getScript() {
+        if (script == null)
+            script = new Script(scriptBytes);
         return script;
     }
 
@@ -176,7 +212,7 @@ public class UTXO {
     public void serializeToStream(OutputStream bos) throws IOException {
         Utils.uint64ToByteStreamLE(BigInteger.valueOf(value.value), bos);
 
-        byte[] scriptBytes = script.getProgram();
+        byte[] scriptBytes = script != null ? script.getProgram() : this.scriptBytes;
         bos.write(0xFF & scriptBytes.length);
         bos.write(0xFF & scriptBytes.length >> 8);
         bos.write(0xFF & (scriptBytes.length >> 16));
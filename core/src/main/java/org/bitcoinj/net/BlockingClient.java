@@ -36,7 +36,7 @@ import static com.google.common.base.Preconditions.*;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements GatheringMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -144,9 +144,22 @@ public class BlockingClient implements MessageWriteTarget {
 
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
+        writeBuffers(ByteBuffer.wrap(message));
+    }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
         try {
             OutputStream stream = socket.getOutputStream();
-            stream.write(message);
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    stream.write(bytes);
+                }
+            }
             stream.flush();
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
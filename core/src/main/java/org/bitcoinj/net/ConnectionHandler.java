@@ -28,9 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,13 +40,16 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements GatheringMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Both must be powers of two. A message is usually two buffers, its header and its payload.
+    private static final int INITIAL_QUEUED_BUFFERS = 16;
+    private static final int MAX_QUEUED_BUFFERS = 32768;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -60,8 +60,12 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
+    // Outbound buffers waiting to be written, in a ring of at most MAX_QUEUED_BUFFERS that starts small and grows as
+    // needed, so that a run of buffers can be handed to the channel in one gathering write.
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private ByteBuffer[] bytesToWrite = new ByteBuffer[INITIAL_QUEUED_BUFFERS];
+    @GuardedBy("lock") private int bytesToWriteHead = 0;
+    @GuardedBy("lock") private int bytesToWriteCount = 0;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -112,21 +116,33 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound queue as possible into the OS' network buffer, as few writes as we can.
+            while (bytesToWriteCount > 0) {
+                // The part of the ring up to its end or to the last buffer, whichever comes first.
+                int length = Math.min(bytesToWriteCount, bytesToWrite.length - bytesToWriteHead);
+                bytesToWriteRemaining -= channel.write(bytesToWrite, bytesToWriteHead, length);
+                int finished = 0;
+                while (bytesToWriteCount > 0 && !bytesToWrite[bytesToWriteHead].hasRemaining()) {
+                    bytesToWrite[bytesToWriteHead] = null;
+                    bytesToWriteHead = (bytesToWriteHead + 1) & (bytesToWrite.length - 1);
+                    bytesToWriteCount--;
+                    finished++;
+                }
+                // Unless all of it was written and the rest wraps around to the start of the ring, the network
+                // buffer is full.
+                if (bytesToWriteCount > 0 && finished < length) {
                     setWriteOps();
                     break;
                 }
             }
             // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
+            if (bytesToWriteCount == 0) {
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                // Don't hold on to a queue that grew for a burst.
+                if (bytesToWrite.length > INITIAL_QUEUED_BUFFERS)
+                    bytesToWrite = new ByteBuffer[INITIAL_QUEUED_BUFFERS];
+                bytesToWriteHead = 0;
+            }
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
@@ -135,20 +151,31 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBuffers(ByteBuffer.wrap(message));
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer... buffers) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            // register our SelectionKey to wakeup when we have free outbound buffer space available. The buffers
+            // are queued as they are, without copying them.
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            if (bytesToWriteCount + buffers.length > bytesToWrite.length)
+                growWriteQueue(bytesToWriteCount + buffers.length);
+            for (ByteBuffer buffer : buffers) {
+                bytesToWrite[(bytesToWriteHead + bytesToWriteCount) & (bytesToWrite.length - 1)] = buffer;
+                bytesToWriteCount++;
+            }
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -168,6 +195,20 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @GuardedBy("lock")
+    private void growWriteQueue(int needed) throws IOException {
+        if (needed > MAX_QUEUED_BUFFERS)
+            throw new IOException("Outbound buffer overflowed");
+        int capacity = bytesToWrite.length;
+        while (capacity < needed)
+            capacity <<= 1;
+        ByteBuffer[] queue = new ByteBuffer[capacity];
+        for (int i = 0; i < bytesToWriteCount; i++)
+            queue[i] = bytesToWrite[(bytesToWriteHead + i) & (bytesToWrite.length - 1)];
+        bytesToWrite = queue;
+        bytesToWriteHead = 0;
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} that can write a message made of several buffers without them being copied into one
+ * array first. Writers check for it and fall back to {@link #writeBytes(byte[])} for other targets.
+ */
+public interface GatheringMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffers to the remote server, one after the other and without anything
+     * else written in between. The buffers may be written from after this returns, so they must not be changed
+     * afterwards.
+     */
+    void writeBuffers(ByteBuffer... buffers) throws IOException;
+}
@@ -23,7 +23,8 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be written from after this returns, so it must not
+     * be changed afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
     /**
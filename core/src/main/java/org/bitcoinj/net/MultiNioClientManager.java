@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link ClientConnectionManager} which spreads its connections over several {@link NioClientManager}s, each
+ * with its own selector and network thread, so that reading, parsing and handling messages for many peers isn't
+ * limited to what one thread can do.</p>
+ *
+ * <p>Which thread a new connection goes to is decided by an {@link Affinity}. A connection stays on that thread for
+ * as long as it is open, so the bytes and messages of each connection are still handled one at a time and in
+ * order, just as with a single {@link NioClientManager}. Connections on different threads are handled concurrently,
+ * so the {@link StreamConnection}s must not assume that they are all called from the same thread.</p>
+ */
+public class MultiNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    /** Decides which network thread a new connection is handled by. */
+    public interface Affinity {
+        /**
+         * Returns the index of the selector to handle a connection to the given address.
+         *
+         * @param loads the current load of each selector, in index order
+         */
+        int select(SocketAddress address, List<SelectorLoad> loads);
+    }
+
+    /** Puts each new connection on the selector with the fewest connections. */
+    public static final Affinity LEAST_CONNECTIONS = new Affinity() {
+        @Override
+        public int select(SocketAddress address, List<SelectorLoad> loads) {
+            int best = 0;
+            for (int i = 1; i < loads.size(); i++) {
+                if (loads.get(i).getConnectionCount() < loads.get(best).getConnectionCount())
+                    best = i;
+            }
+            return best;
+        }
+    };
+
+    /** Puts connections on each selector in turn. */
+    public static final Affinity ROUND_ROBIN = new Affinity() {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public int select(SocketAddress address, List<SelectorLoad> loads) {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % loads.size();
+        }
+    };
+
+    /** Always puts connections to the same host on the same selector. */
+    public static final Affinity ADDRESS_HASH = new Affinity() {
+        @Override
+        public int select(SocketAddress address, List<SelectorLoad> loads) {
+            Object key = address;
+            if (address instanceof InetSocketAddress) {
+                InetSocketAddress socketAddress = (InetSocketAddress) address;
+                key = socketAddress.getAddress() != null ? socketAddress.getAddress() : socketAddress.getHostName();
+            }
+            return (key.hashCode() & Integer.MAX_VALUE) % loads.size();
+        }
+    };
+
+    /** A snapshot of how busy one of the selectors is. */
+    public static class SelectorLoad {
+        private final int connectionCount;
+        private final long handledKeyCount;
+        private final long busyMillis;
+
+        public SelectorLoad(int connectionCount, long handledKeyCount, long busyMillis) {
+            this.connectionCount = connectionCount;
+            this.handledKeyCount = handledKeyCount;
+            this.busyMillis = busyMillis;
+        }
+
+        /** Returns the number of open connections on the selector, counting those that are still connecting. */
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        /** Returns the number of network events the selector has handled since it started. */
+        public long getHandledKeyCount() {
+            return handledKeyCount;
+        }
+
+        /** Returns how long the selector's thread has spent handling network events since it started. */
+        public long getBusyMillis() {
+            return busyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return connectionCount + " connections, " + handledKeyCount + " events, " + busyMillis + " ms busy";
+        }
+    }
+
+    private final NioClientManager[] selectors;
+    private final Affinity affinity;
+
+    /** Creates a manager with the given number of selectors, putting new connections on the least loaded one. */
+    public MultiNioClientManager(int selectorCount) {
+        this(selectorCount, LEAST_CONNECTIONS);
+    }
+
+    /** Creates a manager with the given number of selectors, which uses the given affinity to place connections. */
+    public MultiNioClientManager(int selectorCount, Affinity affinity) {
+        checkArgument(selectorCount > 0, "Need at least one selector");
+        this.affinity = checkNotNull(affinity);
+        this.selectors = new NioClientManager[selectorCount];
+        for (int i = 0; i < selectorCount; i++)
+            selectors[i] = new NioClientManager();
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager selector : selectors)
+            selector.startAsync();
+        for (NioClientManager selector : selectors)
+            selector.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager selector : selectors)
+            selector.stopAsync();
+        for (NioClientManager selector : selectors)
+            selector.awaitTerminated();
+    }
+
+    @Override
+    public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamConnection connection) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        int index = affinity.select(serverAddress, getLoads());
+        checkArgument(index >= 0 && index < selectors.length, "Affinity chose selector %s of %s", index, selectors.length);
+        return selectors[index].openConnection(serverAddress, connection);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager selector : selectors)
+            count += selector.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        // Take them from the busiest selectors first, which leaves the rest more evenly spread.
+        while (n-- > 0) {
+            NioClientManager busiest = selectors[0];
+            for (NioClientManager selector : selectors) {
+                if (selector.getConnectedClientCount() > busiest.getConnectedClientCount())
+                    busiest = selector;
+            }
+            if (busiest.getConnectedClientCount() == 0)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+
+    @Override
+    protected Executor executor() {
+        // The selectors' threads are started from ours, so it needs the context to pass on to them.
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                new ContextPropagatingThreadFactory("MultiNioClientManager").newThread(command).start();
+            }
+        };
+    }
+
+    /** Returns the number of selectors, each of which has its own network thread. */
+    public int getSelectorCount() {
+        return selectors.length;
+    }
+
+    /** Returns the current load of each selector, in index order. */
+    public List<SelectorLoad> getLoads() {
+        List<SelectorLoad> loads = new ArrayList<SelectorLoad>(selectors.length);
+        for (NioClientManager selector : selectors)
+            loads.add(new SelectorLoad(selector.getOpenConnectionCount(), selector.getHandledKeyCount(),
+                    selector.getBusyTime(TimeUnit.MILLISECONDS)));
+        return ImmutableList.copyOf(loads);
+    }
+}
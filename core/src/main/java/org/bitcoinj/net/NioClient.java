@@ -28,7 +28,7 @@ import java.nio.*;
 /**
  * Creates a simple connection to a server using a {@link StreamConnection} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements GatheringMessageWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
@@ -123,4 +123,20 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
+        MessageWriteTarget target = handler.writeTarget;
+        if (target instanceof GatheringMessageWriteTarget) {
+            ((GatheringMessageWriteTarget) target).writeBuffers(buffers);
+            return;
+        }
+        int length = 0;
+        for (ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers)
+            bytes.put(buffer.duplicate());
+        target.writeBytes(bytes.array());
+    }
 }
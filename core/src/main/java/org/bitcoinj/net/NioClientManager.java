@@ -50,6 +50,13 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+    // Connections that have been opened but not finished connecting yet, guarded by connectedHandlers so that a
+    // connection moving from here to connectedHandlers is never counted twice or not at all.
+    private int pendingConnects;
+
+    // Only written by the network thread, as a measure of how busy it is.
+    private volatile long handledKeyCount = 0;
+    private volatile long busyNanos = 0;
 
     // Handle a SelectionKey which was selected
     private void handleKey(SelectionKey key) throws IOException {
@@ -59,7 +66,11 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             PendingConnect data = (PendingConnect) key.attachment();
             StreamConnection connection = data.connection;
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+            ConnectionHandler handler;
+            synchronized (connectedHandlers) {
+                pendingConnects--;
+                handler = new ConnectionHandler(connection, key, connectedHandlers);
+            }
             try {
                 if (sc.finishConnect()) {
                     log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
@@ -110,17 +121,23 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                         key.attach(conn);
                     } catch (ClosedChannelException e) {
                         log.warn("SocketChannel was closed before it could be registered");
+                        connectFailed();
                     }
                 }
 
                 selector.select();
 
+                long start = System.nanoTime();
+                int handled = 0;
                 Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
                 while (keyIterator.hasNext()) {
                     SelectionKey key = keyIterator.next();
                     keyIterator.remove();
                     handleKey(key);
+                    handled++;
                 }
+                handledKeyCount += handled;
+                busyNanos += System.nanoTime() - start;
             }
         } catch (Exception e) {
             log.warn("Error trying to open/read from connection: ", e);
@@ -154,6 +171,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            synchronized (connectedHandlers) {
+                pendingConnects++;
+            }
             newConnectionChannels.offer(data);
             selector.wakeup();
             return data.future;
@@ -162,6 +182,12 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    private void connectFailed() {
+        synchronized (connectedHandlers) {
+            pendingConnects--;
+        }
+    }
+
     @Override
     public void triggerShutdown() {
         selector.wakeup();
@@ -172,6 +198,23 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         return connectedHandlers.size();
     }
 
+    /** Returns the number of connections that are open or still connecting. */
+    public int getOpenConnectionCount() {
+        synchronized (connectedHandlers) {
+            return connectedHandlers.size() + pendingConnects;
+        }
+    }
+
+    /** Returns how many selected network events the network thread has handled, a measure of its load. */
+    public long getHandledKeyCount() {
+        return handledKeyCount;
+    }
+
+    /** Returns how long the network thread has spent handling network events, excluding waiting for them. */
+    public long getBusyTime(TimeUnit unit) {
+        return unit.convert(busyNanos, TimeUnit.NANOSECONDS);
+    }
+
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
@@ -225,8 +225,16 @@ public class ProtobufConnection<MessageType extends MessageLite> extends Abstrac
         Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
         try {
             MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            // the prefix and the message go out together, so that concurrent writers can't interleave them
+            if (target instanceof GatheringMessageWriteTarget) {
+                ((GatheringMessageWriteTarget) target).writeBuffers(ByteBuffer.wrap(messageLength),
+                        ByteBuffer.wrap(messageBytes));
+            } else {
+                byte[] bytes = new byte[messageLength.length + messageBytes.length];
+                System.arraycopy(messageLength, 0, bytes, 0, messageLength.length);
+                System.arraycopy(messageBytes, 0, bytes, messageLength.length, messageBytes.length);
+                target.writeBytes(bytes);
+            }
         } catch (IOException e) {
             closeConnection();
         }
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>Maps the heights of the best chain to the hashes of its blocks, so a block store can answer which block is at a
+ * given height without walking back from the chain head. Subclasses only provide the storage, this class keeps it
+ * in step with the chain head.</p>
+ *
+ * <p>The index holds a contiguous range of heights, from {@link #getBase()} to {@link #getTop()}, which is always a
+ * part of the chain ending at the head it was last updated with. On a new head the index walks back from it until it
+ * meets a block it already has at the same height, which is a single step while the chain grows, and replaces the
+ * heights above that, so re-orgs are handled too. Before anything in the range is replaced the range is cut back to
+ * the fork point, so an update that is interrupted part way leaves a shorter but still correct index, which the next
+ * update completes. If the walk finds no common block the index starts over from the lowest block it reached.</p>
+ *
+ * <p>Lookups may run concurrently with each other, but the block store it belongs to must not let them overlap
+ * with an update.</p>
+ */
+public abstract class BlockHeightIndex {
+    private static final Logger log = LoggerFactory.getLogger(BlockHeightIndex.class);
+
+    // The range of heights that is valid, empty when top < base.
+    protected volatile int base = 0;
+    protected volatile int top = -1;
+
+    /** Returns the hash of the block at the given height of the best chain, or null if that height isn't indexed. */
+    @Nullable
+    public Sha256Hash get(int height) throws BlockStoreException {
+        if (height < base || height > top)
+            return null;
+        return read(height);
+    }
+
+    /** Returns the lowest height that is indexed. */
+    public int getBase() {
+        return base;
+    }
+
+    /** Returns the highest height that is indexed, which is the height of the chain head, or -1 if it is empty. */
+    public int getTop() {
+        return top < base ? -1 : top;
+    }
+
+    /**
+     * Brings the index in line with a new chain head, using the store to walk back through its ancestors. The
+     * heights above the new head are dropped.
+     */
+    public void update(StoredBlock head, BlockStore store) throws BlockStoreException {
+        // Find the highest ancestor of the new head that is indexed already, without changing anything yet.
+        StoredBlock cursor = head;
+        int lowest = head.getHeight() + 1;
+        boolean connected = false;
+        while (cursor != null) {
+            int height = cursor.getHeight();
+            if (height >= base && height <= top && cursor.getHeader().getHash().equals(read(height))) {
+                connected = true;
+                break;
+            }
+            lowest = height;
+            cursor = height > 0 ? cursor.getPrev(store) : null;
+        }
+
+        if (connected) {
+            if (lowest - 1 < top)
+                setRange(base, lowest - 1);
+        } else {
+            if (head.getHeight() - lowest > 1000)
+                log.info("Indexing block heights {} to {}", lowest, head.getHeight());
+            setRange(lowest, lowest - 1);
+        }
+        cursor = head;
+        while (cursor.getHeight() >= lowest) {
+            write(cursor.getHeight(), cursor.getHeader().getHash());
+            if (cursor.getHeight() == lowest)
+                break;
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                throw new BlockStoreException("Block at height " + lowest + " went missing while indexing");
+        }
+        setRange(base, head.getHeight());
+    }
+
+    /** Returns the stored hash for a height within the range, or null if it can't be read. */
+    @Nullable
+    protected abstract Sha256Hash read(int height) throws BlockStoreException;
+
+    /** Stores the hash for a height, which is at or above the base of the range. */
+    protected abstract void write(int height, Sha256Hash hash) throws BlockStoreException;
+
+    /**
+     * Sets and persists the range of valid heights. Anything stored outside of it may be discarded. The range is set
+     * to an empty one starting at the new base before any hash below the current base is written.
+     */
+    protected void setRange(int base, int top) throws BlockStoreException {
+        this.base = base;
+        this.top = top;
+    }
+}
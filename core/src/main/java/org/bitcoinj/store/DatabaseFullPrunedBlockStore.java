@@ -86,7 +86,7 @@ import java.util.*;
  * </p>
  *
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
@@ -1157,47 +1157,99 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> outputs = new ArrayList<UTXO>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public boolean handle(UTXO output) {
+                outputs.add(output);
+                return true;
+            }
+        });
+        return outputs;
+    }
+
+    @Override
+    public void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler) throws UTXOProviderException {
         PreparedStatement s = null;
-        List<UTXO> outputs = new ArrayList<UTXO>();
+        Connection connection = null;
+        boolean autoCommit = false;
         try {
             maybeConnect();
-            s = conn.get().prepareStatement(getTrasactionOutputSelectSQL());
-            for (Address address : addresses) {
+            connection = conn.get();
+            // Some drivers (e.g. Postgres) only fetch rows in batches from a cursor inside a transaction, and read
+            // the whole result into memory otherwise.
+            autoCommit = connection.getAutoCommit();
+            if (autoCommit)
+                connection.setAutoCommit(false);
+            s = connection.prepareStatement(getTrasactionOutputSelectSQL(),
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            s.setFetchSize(getTransactionOutputFetchSize());
+            // Like the other stores, an address given twice only has its outputs returned once.
+            for (Address address : new LinkedHashSet<Address>(addresses)) {
                 s.setString(1, address.toString());
                 ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+                try {
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        Coin amount = Coin.valueOf(rs.getLong(2));
+                        byte[] scriptBytes = rs.getBytes(3);
+                        int height = rs.getInt(4);
+                        int index = rs.getInt(5);
+                        boolean coinbase = rs.getBoolean(6);
+                        String toAddress = rs.getString(7);
+                        UTXO output = new UTXO(hash,
+                                index,
+                                amount,
+                                height,
+                                coinbase,
+                                scriptBytes,
+                                toAddress);
+                        if (!handler.handle(output))
+                            return;
+                    }
+                } finally {
+                    rs.close();
                 }
             }
-            return outputs;
         } catch (SQLException ex) {
             throw new UTXOProviderException(ex);
         } catch (BlockStoreException bse) {
             throw new UTXOProviderException(bse);
         } finally {
-            if (s != null)
-                try {
+            try {
+                if (s != null)
                     s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
-                }
+            } catch (SQLException e) {
+                throw new UTXOProviderException("Could not close statement", e);
+            } finally {
+                if (autoCommit)
+                    endCursorTransaction(connection);
+            }
         }
     }
 
+    // Ends the transaction started for a cursor and puts the connection back into auto-commit mode, even if the
+    // rollback fails. Nothing was written, so rolling back loses nothing.
+    private static void endCursorTransaction(Connection connection) throws UTXOProviderException {
+        try {
+            try {
+                connection.rollback();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new UTXOProviderException("Could not end the cursor transaction", e);
+        }
+    }
+
+    /**
+     * Get the number of rows to fetch at a time when reading transaction outputs, see
+     * {@link Statement#setFetchSize(int)}.
+     */
+    protected int getTransactionOutputFetchSize() {
+        return 1000;
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
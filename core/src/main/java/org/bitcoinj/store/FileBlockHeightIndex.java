@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link BlockHeightIndex} kept in a flat file of hashes, so looking up a height is a single read at a computed
+ * offset. The file starts at the lowest height that was indexed when it was (re)started, usually a checkpoint, so
+ * it only takes space for the part of the chain that is actually known.
+ */
+public class FileBlockHeightIndex extends BlockHeightIndex {
+    private static final byte[] HEADER_MAGIC = {'S', 'P', 'V', 'I'};
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes origin, the height stored at the start of the hashes
+    //   4 bytes base and 4 bytes top, the range of heights that is valid
+    //
+    // Followed by a 32 byte hash for each height from the origin.
+    private static final int HEADER_SIZE = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private int origin;
+
+    /** Opens the index in the given file, creating an empty one if it is missing or not an index. */
+    public FileBlockHeightIndex(File file) throws BlockStoreException {
+        try {
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+            header.clear();
+            int read = 0;
+            while (header.hasRemaining() && read >= 0)
+                read = channel.read(header, header.position());
+            byte[] magic = Arrays.copyOf(header.array(), HEADER_MAGIC.length);
+            if (!header.hasRemaining() && Arrays.equals(magic, HEADER_MAGIC)) {
+                origin = header.getInt(4);
+                base = header.getInt(8);
+                top = header.getInt(12);
+            } else {
+                setRange(0, -1);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    protected Sha256Hash read(int height) throws BlockStoreException {
+        try {
+            // Reads can run concurrently, so each gets its own buffer.
+            ByteBuffer hashBuffer = ByteBuffer.allocate(32);
+            long position = offset(height);
+            int read;
+            while (hashBuffer.hasRemaining() && (read = channel.read(hashBuffer, position)) > 0)
+                position += read;
+            return hashBuffer.hasRemaining() ? null : Sha256Hash.wrap(Arrays.copyOf(hashBuffer.array(), 32));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    protected void write(int height, Sha256Hash hash) throws BlockStoreException {
+        try {
+            writeFully(ByteBuffer.wrap(hash.getBytes()), offset(height));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    protected void setRange(int base, int top) throws BlockStoreException {
+        try {
+            if (top < base) {
+                // Starting over, so the hashes start at the new base and the old ones are dropped.
+                origin = base;
+                channel.truncate(HEADER_SIZE);
+            }
+            header.clear();
+            header.put(HEADER_MAGIC).putInt(origin).putInt(base).putInt(top);
+            header.flip();
+            writeFully(header, 0);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        super.setRange(base, top);
+    }
+
+    /** Closes the file. */
+    public void close() throws BlockStoreException {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private long offset(int height) {
+        return HEADER_SIZE + (long) (height - origin) * 32;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
@@ -11,14 +11,19 @@ package org.bitcoinj.store;
 
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FlatDB<Type extends AbstractManager> {
     private static final Logger log = LoggerFactory.getLogger(FlatDB.class);
@@ -39,6 +44,11 @@ public class FlatDB<Type extends AbstractManager> {
 
     ReadResult lastReadResult = ReadResult.NoResult;
 
+    // records the changes between snapshots when useJournal() was called, set up by load()
+    private long journalCompactionSize;
+    private FlatDBJournal journal;
+    private final ReentrantLock compactionLock = Threading.lock("flatdb");
+
     Context context;
 
     public FlatDB()
@@ -64,39 +74,44 @@ public class FlatDB<Type extends AbstractManager> {
 
     boolean write(Type object) {
 
+        File destFile = new File(pathDB);
+        File temp = null;
+        FileOutputStream fileStream = null;
         try {
             long nStart = Utils.currentTimeMillis();
 
-            // serialize, checksum data up to that point, then append checksum
-            UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(object.calculateMessageSizeInBytes()+4+magicMessage.getBytes().length);
+            // serialize into a temp file next to the target, checksumming the data as it goes out, then append
+            // the checksum and rename the temp file over the target once it is on disk. A crash part way
+            // leaves the previous file intact.
+            temp = File.createTempFile(fileName, ".tmp", destFile.getAbsoluteFile().getParentFile());
+            fileStream = new FileOutputStream(temp);
+            MessageDigest digest = Sha256Hash.newDigest();
+            DigestOutputStream stream = new DigestOutputStream(new BufferedOutputStream(fileStream), digest);
             stream.write(magicMessage.getBytes());
             Utils.uint32ToByteStreamLE(object.getParams().getPacketMagic(), stream);
             object.bitcoinSerialize(stream);
 
-            Sha256Hash hash = Sha256Hash.twiceOf(stream.toByteArray());
+            Sha256Hash hash = Sha256Hash.wrap(digest.digest(digest.digest()));
 
+            stream.on(false);
             stream.write(hash.getReversedBytes());
 
-
-            // open output file, and associate with CAutoFile
-
-            FileOutputStream fileStream = new FileOutputStream(pathDB);
-
-            //FILE * file = fopen(pathDB.string().c_str(), "wb");
-            //CAutoFile fileout (file, SER_DISK, CLIENT_VERSION);
-            //if (fileout.IsNull())
-            //    return error("%s : Failed to open file %s", __func__, pathDB.string());
-
-
             // Write and commit header, data
-            fileStream.write(stream.toByteArray());
-            //fileStream.write(hash.getBytes());
-
-
-
-//    FileCommit(fileout);
+            stream.flush();
+            fileStream.getFD().sync();
             fileStream.close();
-            //fileout.fclose();
+            fileStream = null;
+
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = destFile.getCanonicalFile();
+                if (canonical.exists() && !canonical.delete())
+                    throw new IOException("Failed to delete " + canonical + " for replacement");
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(destFile)) {
+                throw new IOException("Failed to rename " + temp + " to " + destFile);
+            }
 
             log.info("Written info to {}  {}ms\n", pathDB, Utils.currentTimeMillis() - nStart);
             log.info("  {}\n", object.toString());
@@ -106,88 +121,45 @@ public class FlatDB<Type extends AbstractManager> {
         }
         catch(IOException x)
         {
+            log.error("Failed to write {}", pathDB, x);
             return false;
         }
+        finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException x) {
+                    // already failed
+                }
+            }
+            if (temp != null && temp.exists() && !temp.delete())
+                log.warn("Failed to delete temp file {}", temp);
+        }
     }
 
     ReadResult read(Type object, boolean fDryRun) {
 
         long nStart = Utils.currentTimeMillis();
+        RandomAccessFile file = null;
         try {
-            // open input file, and associate with CAutoFile
+            // open input file, and map it rather than copying it onto the heap
 
-            FileInputStream fileStream = new FileInputStream(pathDB);
-
-            File file = new File(pathDB);
-
-            /*FILE * file = fopen(pathDB.string().c_str(), "rb");
-            CAutoFile filein (file, SER_DISK, CLIENT_VERSION);
-            if (filein.IsNull()) {
-                error("%s : Failed to open file %s", __func__, pathDB.string());
-                return FileError;
-            }*/
-
-            // use file size to size memory buffer
-
-            long fileSize = file.length();//fileStream.boost::filesystem::file_size(pathDB);
-            long dataSize = fileSize - 32;
-            // Don't try to resize to a negative number if file is small
-            if (dataSize < 0)
-                dataSize = 0;
-
-            //vector<unsigned char>vchData;
-            //vchData.resize(dataSize);
-            byte [] hashIn = new byte[32];
-            byte [] vchData = new byte[(int)dataSize];
-
-            try {
-                fileStream.read(vchData);
-                fileStream.read(hashIn);
-            } catch (IOException x)
-            {
+            file = new RandomAccessFile(pathDB, "r");
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = mapOrRead(channel);
+            if (buffer == null)
                 return ReadResult.HashReadError;
-            }
-            fileStream.close();
-
-
 
-            //CDataStream ssMasternodes (vchData, SER_DISK, CLIENT_VERSION);
+            ReadResult result = verify(buffer);
+            if (result != ReadResult.Ok)
+                return result;
 
-
-
-            // verify stored checksum matches input data
-            Sha256Hash hashTmp = Sha256Hash.twiceOf(vchData);
-            if (!Arrays.equals(hashIn, hashTmp.getReversedBytes())) {
-                log.error("Checksum mismatch, data corrupted");
-                return ReadResult.IncorrectHash;
-            }
-
-            long pchMsgTmp;
-            String strMagicMessageTmp;
             try {
-                // de-serialize file header (masternode cache file specific magic message) and ..
-
-
-                strMagicMessageTmp = new String(vchData, 0, magicMessage.length());
+                // de-serialize data into CMasternodeMan object, messages can only be parsed from an array
 
-                // ... verify the message matches predefined one
-                if (!magicMessage.equals(strMagicMessageTmp)) {
-                    log.error("Invalid masternode cache magic message");
-                    return ReadResult.IncorrectMagicMessage;
-                }
-
-                // de-serialize file header (network specific magic number) and ..
-                //ssMasternodes >> FLATDATA(pchMsgTmp);
-                pchMsgTmp = (int)Utils.readUint32(vchData, magicMessage.length());
-
-                // ... verify the network matches ours
-                if (pchMsgTmp != context.getParams().getPacketMagic()) {
-                    log.error("Invalid network magic number");
-                    return ReadResult.IncorrectMagicNumber;
-                }
-                // de-serialize data into CMasternodeMan object
-
-                object.load(vchData, magicMessage.length()+ 4);
+                byte [] vchData = new byte[buffer.limit() - 32 - buffer.position()];
+                buffer.get(vchData);
+                object.load(vchData, 0);
 
             } catch (Exception e){
                 object.clear();
@@ -209,16 +181,134 @@ public class FlatDB<Type extends AbstractManager> {
         catch(IOException x) {
             return ReadResult.FileError;
         }
+        finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Checks the checksum, the magic message and the network of the file without deserializing the data in it, which
+     * is all that {@link #dump} needs to know before replacing it.
+     */
+    ReadResult verify() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(pathDB, "r");
+            ByteBuffer buffer = mapOrRead(file.getChannel());
+            if (buffer == null)
+                return ReadResult.HashReadError;
+            return verify(buffer);
+        }
+        catch(IOException x) {
+            return ReadResult.FileError;
+        }
+        finally {
+            closeQuietly(file);
+        }
+    }
+
+    // Verifies the checksum at the end of the buffer and the header at the start, leaving the buffer positioned at
+    // the data that follows the header.
+    private ReadResult verify(ByteBuffer buffer) {
+        // use file size to find the checksum at the end
+
+        int dataSize = buffer.limit() - 32;
+        byte [] hashIn = new byte[32];
+        buffer.position(dataSize);
+        buffer.get(hashIn);
+
+        // verify stored checksum matches input data
+        ByteBuffer data = buffer.duplicate();
+        data.position(0);
+        data.limit(dataSize);
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(data);
+        byte [] hashTmp = digest.digest(digest.digest());
+        if (!Arrays.equals(hashIn, Utils.reverseBytes(hashTmp))) {
+            log.error("Checksum mismatch, data corrupted");
+            return ReadResult.IncorrectHash;
+        }
+
+        // de-serialize file header (masternode cache file specific magic message) and ..
+
+        byte [] magicMessageTmp = new byte[magicMessage.length()];
+        buffer.position(0);
+        if (dataSize < magicMessageTmp.length + 4) {
+            log.error("Invalid masternode cache magic message");
+            return ReadResult.IncorrectMagicMessage;
+        }
+        buffer.get(magicMessageTmp);
+        String strMagicMessageTmp = new String(magicMessageTmp);
+
+        // ... verify the message matches predefined one
+        if (!magicMessage.equals(strMagicMessageTmp)) {
+            log.error("Invalid masternode cache magic message");
+            return ReadResult.IncorrectMagicMessage;
+        }
+
+        // de-serialize file header (network specific magic number) and ..
+        //ssMasternodes >> FLATDATA(pchMsgTmp);
+        long pchMsgTmp = buffer.order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+
+        // ... verify the network matches ours
+        if (pchMsgTmp != context.getParams().getPacketMagic()) {
+            log.error("Invalid network magic number");
+            return ReadResult.IncorrectMagicNumber;
+        }
+        return ReadResult.Ok;
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException x) {
+                // only read from
+            }
+        }
+    }
+
+    // Returns null if the file is too short to hold a checksum or too long to be mapped.
+    @Nullable
+    private static ByteBuffer mapOrRead(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < 32 || fileSize > Integer.MAX_VALUE)
+            return null;
+        return mapOrRead(channel, (int) fileSize);
+    }
+
+    private static ByteBuffer mapOrRead(FileChannel channel, int size) throws IOException {
+        // On Windows a file can't be replaced while it is mapped, and the mapping only goes away once the buffer
+        // is garbage collected, so read it instead or the next write() would fail to rename over it.
+        if (!Utils.isWindows())
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
+        buffer.flip();
+        return buffer;
     }
     ReadResult read(Type object) {
             return read(object, false);
         }
 
+    /**
+     * Records the changes to the loaded object in a journal next to the file, instead of relying on {@link #dump}
+     * to save them. The file is only rewritten once the journal has grown past compactionSize bytes. Must be called
+     * before {@link #load}.
+     */
+    public void useJournal(long compactionSize)
+    {
+        journalCompactionSize = compactionSize;
+    }
+
     public boolean load(Type objToLoad)
     {
 
         log.info("Reading info from {}...", fileName);
-        ReadResult readResult = read(objToLoad);
+        // with a journal, only clean up once its changes have been replayed on top of the file
+        ReadResult readResult = read(objToLoad, journalCompactionSize > 0 && objToLoad instanceof FlatDBJournal.RecordHandler);
         if (readResult == ReadResult.FileError)
             log.warn("Missing file - {}, will try to recreate", fileName);
         else if (readResult != ReadResult.Ok)
@@ -234,13 +324,76 @@ public class FlatDB<Type extends AbstractManager> {
                 return false;
             }
         }
+        // only a manager that can replay the records gets a journal, the others are saved as snapshots by dump()
+        if (journalCompactionSize > 0 && objToLoad instanceof FlatDBJournal.RecordHandler && openJournal(objToLoad)) {
+            log.info("Masternode manager - cleaning....");
+            objToLoad.checkAndRemove();
+            log.info("Masternode manager - result:");
+            log.info("  {}", objToLoad.toString());
+        }
         return false;
     }
 
+    private boolean openJournal(final Type object)
+    {
+        File file = new File(pathDB + ".journal");
+        journal = new FlatDBJournal(file, magicMessage, context.getParams(), journalCompactionSize, new Runnable() {
+            @Override
+            public void run() {
+                compact(object);
+            }
+        });
+        try {
+            long nStart = Utils.currentTimeMillis();
+            int records = journal.open((FlatDBJournal.RecordHandler) object);
+            log.info("Replayed {} changes from {}  {}ms", records, file, Utils.currentTimeMillis() - nStart);
+        } catch (IOException x) {
+            log.error("Failed to open {}, saving snapshots only", file, x);
+            journal = null;
+            return false;
+        }
+        object.setJournal(journal);
+        return true;
+    }
+
+    // Writes a new snapshot and drops the journal records that it covers.
+    boolean compact(Type object)
+    {
+        // Compactions triggered from different threads mustn't rename their snapshots over each other out of order.
+        compactionLock.lock();
+        try {
+            long position = journal.position();
+            if (!write(object)) {
+                journal.compactionFailed();
+                return false;
+            }
+            journal.compact(position);
+            return true;
+        } catch (IOException x) {
+            log.error("Failed to compact the journal of {}", pathDB, x);
+            return false;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
     public boolean dump(Type objToSave)
     {
         long nStart = Utils.currentTimeSeconds();
 
+        // The journal already holds every change, the file is only rewritten once it grows past the compaction size.
+        // A journal that was disabled by a failed write no longer does, so the snapshot has to be written instead.
+        if (journal != null && journal.isOpen()) {
+            try {
+                journal.sync();
+            } catch (IOException x) {
+                log.error("Failed to sync the journal of {}", pathDB, x);
+                return false;
+            }
+            log.info("{} journal synced  {}ms", fileName, Utils.currentTimeSeconds() - nStart);
+            return true;
+        }
+
 
         // LOAD SERIALIZED FILE TO DETERMINE SAFETY OF SAVING INTO THAT FILE
 
@@ -262,8 +415,7 @@ public class FlatDB<Type extends AbstractManager> {
         */
 
         log.info("Verifying {} format...\n", fileName);
-        Type tmpObjToLoad = (Type)objToSave.createEmpty();
-        ReadResult readResult = read(tmpObjToLoad);
+        ReadResult readResult = verify();
 
         // there was an error and it was not an error on file opening => do not proceed
         if (readResult == ReadResult.FileError)
@@ -281,7 +433,18 @@ public class FlatDB<Type extends AbstractManager> {
         }
 
         log.info("Writing info to {}...", fileName);
-        write(objToSave);
+        if (journal != null) {
+            // order this snapshot with any compaction that is still running
+            compactionLock.lock();
+            try {
+                if (write(objToSave))
+                    journal.discard();
+            } finally {
+                compactionLock.unlock();
+            }
+        } else {
+            write(objToSave);
+        }
         log.info("{} dump finished  {}ms", fileName, Utils.currentTimeSeconds() - nStart);
 
         return true;
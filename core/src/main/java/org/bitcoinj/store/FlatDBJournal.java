@@ -0,0 +1,323 @@
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>An append-only log of the changes made to an {@link AbstractManager} since its last {@link FlatDB} snapshot,
+ * kept next to the snapshot file. Recording a change only costs a small append, and the changes are replayed on top
+ * of the snapshot when it is loaded. Once the journal has grown past a threshold the snapshot is rewritten in the
+ * background and the records it now covers are dropped.</p>
+ *
+ * <p>The file starts with the same magic message and network magic as the snapshot, followed by records of a type
+ * byte, the payload length and the first four bytes of the double SHA-256 of the payload, as in a network message
+ * header, and the payload itself. A record torn by a crash fails its checksum and ends the replay.</p>
+ *
+ * <p>A record may be replayed onto a snapshot that already contains its change, for example when it was appended
+ * while the snapshot was being written, so applying a record must be idempotent.</p>
+ */
+public class FlatDBJournal {
+    private static final Logger log = LoggerFactory.getLogger(FlatDBJournal.class);
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+
+    private final File file;
+    private final byte[] header;
+    private final long compactionSize;
+    private final Runnable compaction;
+
+    /** Receives the records of a journal as it is replayed. */
+    public interface RecordHandler {
+        /** Applies a record that was appended with the given type and payload. */
+        void applyJournalRecord(int type, byte[] payload) throws ProtocolException;
+    }
+
+    private final ReentrantLock lock = Threading.lock("flatdbjournal");
+    private FileOutputStream stream;
+    private long size;
+    private boolean compactionPending;
+
+    /**
+     * Creates a journal stored in the given file, which asks for a compaction to be run on
+     * {@link Threading#THREAD_POOL} once it is larger than compactionSize bytes.
+     */
+    public FlatDBJournal(File file, String magicMessage, NetworkParameters params, long compactionSize, Runnable compaction) {
+        this.file = file;
+        this.compactionSize = compactionSize;
+        this.compaction = compaction;
+        header = Arrays.copyOf(magicMessage.getBytes(), magicMessage.length() + 4);
+        Utils.uint32ToByteArrayLE(params.getPacketMagic(), header, magicMessage.length());
+    }
+
+    /**
+     * Applies every intact record of the journal to the handler, such as an {@link AbstractManager}, then opens the
+     * journal for appending. A journal for another network or file is discarded. Returns the number of records that
+     * were replayed.
+     */
+    public int open(RecordHandler handler) throws IOException {
+        lock.lock();
+        try {
+            int[] records = new int[1];
+            long end = read(handler, records);
+            if (end == 0) {
+                stream = new FileOutputStream(file);
+                stream.write(header);
+                stream.flush();
+                size = header.length;
+            } else {
+                // Cut off anything after the last intact record, so the next ones don't follow a torn one.
+                RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+                try {
+                    truncate.setLength(end);
+                } finally {
+                    truncate.close();
+                }
+                stream = new FileOutputStream(file, true);
+                size = end;
+            }
+            return records[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies every intact record of the journal to the handler without opening it for appending. Unlike
+     * {@link #open(RecordHandler)} the file is never written to, so a torn or foreign journal is left as it is.
+     * Returns the number of records that were replayed.
+     */
+    public int replay(RecordHandler handler) throws IOException {
+        lock.lock();
+        try {
+            int[] records = new int[1];
+            read(handler, records);
+            return records[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Replays the intact records and counts them in records[0]. Returns where the last of them ends, or zero if the
+    // file is missing or isn't a journal for this network and file.
+    private long read(RecordHandler handler, int[] records) throws IOException {
+        if (!file.exists())
+            return 0;
+        long end = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] headerIn = new byte[header.length];
+            if (input.read(headerIn) == header.length && Arrays.equals(header, headerIn)) {
+                end = header.length;
+                byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+                while (true) {
+                    byte[] payload = readRecord(input, recordHeader);
+                    if (payload == null)
+                        break;
+                    try {
+                        handler.applyJournalRecord(recordHeader[0] & 0xff, payload);
+                    } catch (ProtocolException x) {
+                        log.warn("Skipping unreadable record in {}: {}", file, x.getMessage());
+                    }
+                    records[0]++;
+                    end += RECORD_HEADER_SIZE + payload.length;
+                }
+            } else {
+                log.warn("{} does not belong to this network or file, ignoring it", file);
+            }
+        } finally {
+            input.close();
+        }
+        return end;
+    }
+
+    // Returns the payload of the next record, or null at the end of the journal or at a torn record.
+    private static byte[] readRecord(DataInputStream input, byte[] recordHeader) throws IOException {
+        try {
+            input.readFully(recordHeader);
+            long length = Utils.readUint32(recordHeader, 1);
+            if (length > Message.MAX_SIZE)
+                return null;
+            byte[] payload = new byte[(int) length];
+            input.readFully(payload);
+            byte[] checksum = Sha256Hash.hashTwice(payload);
+            for (int i = 0; i < 4; i++)
+                if (checksum[i] != recordHeader[5 + i])
+                    return null;
+            return payload;
+        } catch (EOFException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends a record. A failure to write disables the journal, as its later records could no longer be replayed,
+     * leaving the snapshot as the only copy. Returns false if the record wasn't written for that reason.
+     */
+    public boolean append(int type, byte[] payload) {
+        lock.lock();
+        try {
+            if (stream == null)
+                return false;
+            byte[] record = new byte[RECORD_HEADER_SIZE + payload.length];
+            record[0] = (byte) type;
+            Utils.uint32ToByteArrayLE(payload.length, record, 1);
+            System.arraycopy(Sha256Hash.hashTwice(payload), 0, record, 5, 4);
+            System.arraycopy(payload, 0, record, RECORD_HEADER_SIZE, payload.length);
+            try {
+                stream.write(record);
+                stream.flush();
+            } catch (IOException x) {
+                log.error("Failed to append to {}, no longer journaling", file, x);
+                closeStream();
+                return false;
+            }
+            size += record.length;
+            if (size >= compactionSize && !compactionPending) {
+                compactionPending = true;
+                Threading.THREAD_POOL.execute(compaction);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the records appended so far to the disk, rather than leaving that to the operating system. Does nothing
+     * if the journal has been disabled.
+     */
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            if (stream != null)
+                stream.getFD().sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true until a failed write disables the journal. From then on changes are no longer recorded, so they
+     * have to be saved by writing snapshots.
+     */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return stream != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the current end of the journal, which is passed to {@link #compact(long)} after a snapshot. */
+    public long position() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the records before the given position, as they are covered by a snapshot that was started when the
+     * journal was there. The records after it are copied into a new journal file which replaces this one.
+     */
+    public void compact(long position) throws IOException {
+        lock.lock();
+        try {
+            compactionPending = false;
+            if (stream == null)
+                return;
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(header);
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    in.seek(Math.max(position, header.length));
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) > 0)
+                        out.write(buffer, 0, read);
+                } finally {
+                    in.close();
+                }
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            closeStream();
+            if (Utils.isWindows()) {
+                // Work around an issue on Windows whereby you can't rename over existing files.
+                File canonical = file.getCanonicalFile();
+                if (canonical.exists() && !canonical.delete())
+                    throw new IOException("Failed to delete " + canonical + " for replacement");
+                if (!temp.renameTo(canonical))
+                    throw new IOException("Failed to rename " + temp + " to " + canonical);
+            } else if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp + " to " + file);
+            }
+            size = file.length();
+            stream = new FileOutputStream(file, true);
+            log.info("Compacted {} to {} bytes", file, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called instead of {@link #compact(long)} when the snapshot for a requested compaction couldn't be written, so
+     * that the next append past the threshold asks for another one.
+     */
+    public void compactionFailed() {
+        lock.lock();
+        try {
+            compactionPending = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the file of a disabled journal once a snapshot covers everything in it, so that its records, which may
+     * be older than the snapshot, aren't replayed on top of it. Does nothing while the journal is open.
+     */
+    public void discard() {
+        lock.lock();
+        try {
+            if (stream == null && file.exists() && !file.delete())
+                log.warn("Failed to delete {}", file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops journaling and closes the file. */
+    public void close() {
+        lock.lock();
+        try {
+            closeStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeStream() {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } catch (IOException x) {
+            log.warn("Failed to close {}", file, x);
+        }
+        stream = null;
+    }
+}
@@ -99,9 +99,21 @@ public class HashStore {
     }
 
 
+    /**
+     * Returns the hash of the block before the given height, which is the block whose hash goes into the masternode
+     * scores for that height, or the one before the chain head if the height is 0. A store that keeps a height index
+     * answers this directly, otherwise the chain is walked back from the head.
+     */
     public Sha256Hash getBlockHash(int blockHeight)
     {
         try {
+            if (blockStore instanceof HeightIndexedBlockStore) {
+                HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) blockStore;
+                if (blockHeight == 0)
+                    blockHeight = blockStore.getChainHead().getHeight();
+                return blockHeight > 1 ? indexedStore.getBlockHashAtHeight(blockHeight - 1) : null;
+            }
+
             StoredBlock head = blockStore.getChainHead();
             if (head == null)
                 return null;
@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlockStore} that keeps a {@link BlockHeightIndex} of the best chain, so the block at a given height can be
+ * found without walking back from the chain head.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the hash of the block at the given height of the chain ending at the current chain head, or null if
+     * the height is above the head or below the part of the chain the store knows about.
+     */
+    @Nullable
+    Sha256Hash getBlockHashAtHeight(int height) throws BlockStoreException;
+}
@@ -14,27 +14,52 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
 import org.fusesource.leveldbjni.*;
 import org.iq80.leveldb.*;
+import org.slf4j.*;
 
 import javax.annotation.*;
 import java.io.*;
 import java.nio.*;
+import java.util.concurrent.locks.*;
 
 /**
  * An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
  * This allows for fast lookup of block headers by block hash at the expense of more costly inserts and higher disk
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
  * specialised applications where you need to quickly verify a standalone SPV proof.
+ *
+ * <p>LevelDB is safe to read from many threads at once, so lookups only take the read side of a read/write lock
+ * and don't block each other. Writes and closing the store take the write side.</p>
+ *
+ * <p>The heights of the best chain are indexed, so {@link #getBlockHashAtHeight(int)} doesn't have to walk back from
+ * the chain head. A store that was written before the index existed, or whose index fell behind, has its index built
+ * in the background without holding up writers, and lookups walk the chain until it is ready.</p>
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements HeightIndexedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LevelDBBlockStore.class);
+
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
+    private static final byte[] HEIGHT_RANGE_KEY = "heightrange".getBytes();
+    // Followed by the big endian height, so the keys sort by height and can't collide with a 32 byte block hash.
+    private static final byte[] HEIGHT_KEY_PREFIX = "height".getBytes();
+    // How many blocks the background build indexes each time it takes the read lock.
+    private static final int HEIGHT_INDEX_BUILD_BATCH = 1000;
 
     private final Context context;
     private DB db;
     private final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
     private final File path;
+    private final LevelDBHeightIndex heightIndex = new LevelDBHeightIndex();
+    // Set once the height index is in line with the chain head, after which setChainHead keeps it that way.
+    private volatile boolean heightIndexReady = false;
+    // Guarded by the lock. The generation is bumped by reset() and close() to make a background build give up.
+    private int heightIndexGeneration = 0;
+    private boolean heightIndexBuilding = false;
+    private final ReentrantReadWriteLock lock = Threading.readWriteLock("LevelDBBlockStore");
 
     /** Creates a LevelDB SPV block store using the JNI/C++ version of LevelDB. */
     public LevelDBBlockStore(Context context, File directory) throws BlockStoreException {
@@ -60,12 +85,18 @@ public class LevelDBBlockStore implements BlockStore {
         }
     }
 
-    private synchronized void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockStoreException {
+    private void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockStoreException {
         db = dbFactory.open(directory, options);
+        heightIndex.load();
         initStoreIfNeeded();
+        StoredBlock head = getChainHead();
+        if (heightIndex.getTop() == head.getHeight() && head.getHeader().getHash().equals(heightIndex.get(head.getHeight())))
+            heightIndexReady = true;
+        else
+            startHeightIndexBuild();
     }
 
-    private synchronized void initStoreIfNeeded() throws BlockStoreException {
+    private void initStoreIfNeeded() throws BlockStoreException {
         if (db.get(CHAIN_HEAD_KEY) != null)
             return;   // Already initialised.
         Block genesis = context.getParams().getGenesisBlock().cloneAsHeader();
@@ -75,41 +106,179 @@ public class LevelDBBlockStore implements BlockStore {
     }
 
     @Override
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
-        buffer.clear();
-        block.serializeCompact(buffer);
-        db.put(block.getHeader().getHash().getBytes(), buffer.array());
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            db.put(block.getHeader().getHash().getBytes(), buffer.array());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override @Nullable
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        byte[] bits = db.get(hash.getBytes());
-        if (bits == null)
-            return null;
-        return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            byte[] bits = db.get(hash.getBytes());
+            if (bits == null)
+                return null;
+            return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
-        return get(Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY)));
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            return get(Sha256Hash.wrap(db.get(CHAIN_HEAD_KEY)));
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Override
-    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+            if (heightIndexReady)
+                heightIndex.update(chainHead, this);
+            else
+                startHeightIndexBuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override @Nullable
+    public Sha256Hash getBlockHashAtHeight(int height) throws BlockStoreException {
+        if (heightIndexReady) {
+            lock.readLock().lock();
+            try {
+                if (heightIndexReady)
+                    return heightIndex.get(height);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        // The index is still being built, so walk back from the chain head instead.
+        StoredBlock cursor = getChainHead();
+        if (height < 0 || height > cursor.getHeight())
+            return null;
+        while (cursor != null && cursor.getHeight() > height)
+            cursor = cursor.getPrev(this);
+        return cursor != null ? cursor.getHeader().getHash() : null;
+    }
+
+    @VisibleForTesting
+    boolean isHeightIndexReady() {
+        return heightIndexReady;
+    }
+
+    // Starts building the height index on another thread, unless a build is running already.
+    private void startHeightIndexBuild() {
+        lock.writeLock().lock();
+        try {
+            if (heightIndexBuilding)
+                return;
+            heightIndexBuilding = true;
+            final int generation = heightIndexGeneration;
+            Threading.THREAD_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    buildHeightIndex(generation);
+                }
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Indexes the chain from the head down to where it meets the existing index, a batch at a time under the read
+    // lock so writers only wait for one batch, then brings it in line with the head under the write lock. Lookups
+    // don't use the index until then, so the only thing to look after is that the range stays valid if we crash.
+    private void buildHeightIndex(int generation) {
+        try {
+            StoredBlock head;
+            lock.readLock().lock();
+            try {
+                if (generation != heightIndexGeneration)
+                    return;
+                head = getChainHead();
+            } finally {
+                lock.readLock().unlock();
+            }
+            log.info("Building the block height index from height {}", head.getHeight());
+            StoredBlock cursor = head;
+            int lowest = head.getHeight() + 1;
+            boolean connected = false;
+            while (cursor != null && !connected) {
+                lock.readLock().lock();
+                try {
+                    if (generation != heightIndexGeneration)
+                        return;
+                    for (int i = 0; i < HEIGHT_INDEX_BUILD_BATCH && cursor != null; i++) {
+                        int height = cursor.getHeight();
+                        Sha256Hash hash = cursor.getHeader().getHash();
+                        if (hash.equals(heightIndex.get(height))) {
+                            connected = true;
+                            break;
+                        }
+                        heightIndex.prepareWrite(height);
+                        heightIndex.write(height, hash);
+                        lowest = height;
+                        cursor = height > 0 ? cursor.getPrev(this) : null;
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            lock.writeLock().lock();
+            try {
+                if (generation != heightIndexGeneration)
+                    return;
+                heightIndex.setRange(connected ? heightIndex.getBase() : lowest, head.getHeight());
+                // Catch up with the blocks that arrived while we were building.
+                heightIndex.update(getChainHead(), this);
+                heightIndexReady = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("Block height index is ready");
+        } catch (BlockStoreException e) {
+            log.warn("Failed to build the block height index, will retry on the next chain head", e);
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (generation == heightIndexGeneration)
+                    heightIndexBuilding = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
     }
 
     @Override
-    public synchronized void close() throws BlockStoreException {
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
+            heightIndexGeneration++;
+            heightIndexReady = false;
             db.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     /** Erases the contents of the database (but NOT the underlying files themselves) and then reinitialises with the genesis block. */
-    public synchronized void reset() throws BlockStoreException {
+    public void reset() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             WriteBatch batch = db.createWriteBatch();
             try {
@@ -125,9 +294,15 @@ public class LevelDBBlockStore implements BlockStore {
             } finally {
                 batch.close();
             }
+            heightIndex.load();
+            heightIndexGeneration++;
+            heightIndexReady = false;
+            heightIndexBuilding = false;
             initStoreIfNeeded();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -139,4 +314,51 @@ public class LevelDBBlockStore implements BlockStore {
     public NetworkParameters getParams() {
         return context.getParams();
     }
+
+    // Keeps the height index in the same database, under keys that sort by height.
+    private class LevelDBHeightIndex extends BlockHeightIndex {
+        void load() {
+            byte[] range = db.get(HEIGHT_RANGE_KEY);
+            if (range != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(range);
+                base = buffer.getInt();
+                top = buffer.getInt();
+            } else {
+                base = 0;
+                top = -1;
+            }
+        }
+
+        // Called by the background build before it writes a height without knowing yet where the chain connects,
+        // so the range stays a correct part of the chain it was last updated with.
+        void prepareWrite(int height) throws BlockStoreException {
+            if (top < base)
+                return;
+            if (height <= base)
+                setRange(0, -1);
+            else if (height <= top)
+                setRange(base, height - 1);
+        }
+
+        @Override @Nullable
+        protected Sha256Hash read(int height) {
+            byte[] hash = db.get(heightKey(height));
+            return hash != null ? Sha256Hash.wrap(hash) : null;
+        }
+
+        @Override
+        protected void write(int height, Sha256Hash hash) {
+            db.put(heightKey(height), hash.getBytes());
+        }
+
+        @Override
+        protected void setRange(int base, int top) throws BlockStoreException {
+            db.put(HEIGHT_RANGE_KEY, ByteBuffer.allocate(8).putInt(base).putInt(top).array());
+            super.setRange(base, top);
+        }
+
+        private byte[] heightKey(int height) {
+            return ByteBuffer.allocate(HEIGHT_KEY_PREFIX.length + 4).put(HEIGHT_KEY_PREFIX).putInt(height).array();
+        }
+    }
 }
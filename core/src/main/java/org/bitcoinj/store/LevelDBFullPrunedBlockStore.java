@@ -16,6 +16,7 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -24,6 +25,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -35,6 +37,7 @@ import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.StreamingUTXOProvider;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
@@ -49,6 +52,7 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -60,7 +64,7 @@ import com.google.common.collect.Lists;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -420,61 +424,86 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> results = new ArrayList<UTXO>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public boolean handle(UTXO output) {
+                results.add(output);
+                return true;
+            }
+        });
+        return results;
+    }
+
+    @Override
+    public void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler) throws UTXOProviderException {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
 
-        List<UTXO> results = new LinkedList<UTXO>();
+        // Sorting the address prefixes lets one iterator sweep through all of
+        // them in key order, instead of starting over for each address.
+        TreeMap<byte[], String> prefixes = new TreeMap<byte[], String>(UnsignedBytes.lexicographicalComparator());
         for (Address a : addresses) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(a.getHash160());
-
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
-
-            // Scanning over iterator very fast
+            byte[] prefix = new byte[21];
+            prefix[0] = (byte) KeyType.ADDRESS_HASHINDEX.ordinal();
+            System.arraycopy(a.getHash160(), 0, prefix, 1, 20);
+            prefixes.put(prefix, a.toString());
+        }
 
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, a.getHash160())) {
-                    break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+        Snapshot sn = db.getSnapshot();
+        ReadOptions ro = new ReadOptions().snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (Map.Entry<byte[], String> address : prefixes.entrySet()) {
+                byte[] prefix = address.getKey();
+                for (iterator.seek(prefix); iterator.hasNext(); iterator.next()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    byte[] key = entry.getKey();
+                    if (!hasPrefix(key, prefix))
+                        break;
+                    UTXO output = getIndexedOutput(key, entry.getValue(), address.getValue(), ro);
+                    if (output != null && !handler.handle(output))
+                        return;
                 }
             }
+        } catch (IOException e) {
+            throw new UTXOProviderException("Could not read UTXO", e);
+        } catch (DBException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
                 sn.close();
-                sn = null;
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
         }
-        return results;
+    }
+
+    private static boolean hasPrefix(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Reads the output an address index entry points to. Entries written by
+    // older versions of this store have no value, so the output has to be
+    // looked up by its own key, on the same snapshot.
+    private UTXO getIndexedOutput(byte[] indexKey, byte[] value, String address, ReadOptions ro) throws IOException {
+        if (value.length == 0) {
+            byte[] key = new byte[37];
+            key[0] = (byte) KeyType.OPENOUT_ALL.ordinal();
+            System.arraycopy(indexKey, 21, key, 1, 36);
+            value = db.get(key, ro);
+            if (value == null)
+                return null;
+        }
+        return new UTXO(new ByteArrayInputStream(value), address);
     }
 
     @Override
@@ -808,8 +837,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bb.put(a.getHash160());
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        // The output is stored with the index entry too, so that looking up
+        // the outputs of an address doesn't need a second read per output.
+        batchPut(bb.array(), bos.toByteArray());
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
@@ -232,7 +232,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.bitcoinj.core.UTXO}s in memory.
  * Used primarily for unit testing.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, StreamingUTXOProvider {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -421,9 +421,18 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             for (Address address : addresses) {
                 if (output.getAddress().equals(address.toString())) {
                     foundOutputs.add(output);
+                    break;
                 }
             }
         }
         return foundOutputs;
     }
+
+    @Override
+    public void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler) throws UTXOProviderException {
+        for (UTXO output : getOpenTransactionOutputs(addresses)) {
+            if (!handler.handle(output))
+                return;
+        }
+    }
 }
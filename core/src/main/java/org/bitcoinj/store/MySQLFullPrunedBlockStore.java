@@ -123,6 +123,12 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected int getTransactionOutputFetchSize() {
+        // The MySQL driver reads the whole result into memory unless asked to stream it row by row like this.
+        return Integer.MIN_VALUE;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<String>();
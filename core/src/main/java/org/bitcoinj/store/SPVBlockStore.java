@@ -25,6 +25,7 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -32,11 +33,15 @@ import static com.google.common.base.Preconditions.*;
 // TODO: Lose the mmap in this class. There are too many platform bugs that require odd workarounds.
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Lookups don't block each other: a cache hit takes no lock at all, and reading the ring only takes the read side
+ * of a read/write lock, through a duplicate of the mapping so readers don't share a buffer position. Only storing a
+ * header or moving the chain head excludes other threads.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -47,7 +52,7 @@ public class SPVBlockStore implements BlockStore {
     protected int numHeaders;
     protected NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    protected ReentrantReadWriteLock readWriteLock = Threading.readWriteLock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,38 +61,96 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    protected ConcurrentCache<Sha256Hash, StoredBlock> headerCache =
+            new ConcurrentCache<Sha256Hash, StoredBlock>(2050);  // Slightly more than the difficulty transition period.
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker. Unlike headerCache it is only used
+    // under the lock, so a miss can't be recorded after the block has been put.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
+    protected ConcurrentCache<Sha256Hash, Object> missCache =
+            new ConcurrentCache<Sha256Hash, Object>(100);  // This was chosen arbitrarily.
+
+    /**
+     * @deprecated The store is guarded by {@link #readWriteLock}. This lock takes its write side, so a subclass that
+     * still locks it excludes every other operation on the store, as it used to.
+     */
+    @Deprecated
+    protected ReentrantLock lock = new ReentrantLock() {
+        @Override
+        public void lock() {
+            readWriteLock.writeLock().lock();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            readWriteLock.writeLock().lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return readWriteLock.writeLock().tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            return readWriteLock.writeLock().tryLock(timeout, unit);
+        }
+
+        @Override
+        public void unlock() {
+            readWriteLock.writeLock().unlock();
+        }
+
         @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
+        public boolean isHeldByCurrentThread() {
+            return readWriteLock.isWriteLockedByCurrentThread();
         }
     };
+
+    /**
+     * @deprecated Use {@link #headerCache}. This is a view of it that only supports get, containsKey, put and remove.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new CacheView<StoredBlock>(headerCache);
+
+    /**
+     * @deprecated Use {@link #missCache}. This is a view of it that only supports get, containsKey, put and remove.
+     */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new CacheView<Object>(missCache);
+
+    // Finds the ring slot holding a header by its hash, so a miss in the caches above doesn't scan the whole ring.
+    private SlotIndex slotIndex;
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    // Heights of the best chain, kept next to the ring buffer so it reaches further back than the headers do.
+    protected FileBlockHeightIndex heightIndex = null;
+    // Whether the height index has been brought in line with the chain head since the store was opened.
+    protected volatile boolean heightIndexChecked = false;
 
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, an existing file must have been created with the same capacity. This operation will block on
+     * disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0, "Capacity must be positive");
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -104,6 +167,7 @@ public class SPVBlockStore implements BlockStore {
             fileLock = channel.tryLock();
             if (fileLock == null)
                 throw new ChainFileLockedException("Store file is already locked by another process");
+            heightIndex = new FileBlockHeightIndex(new File(file.getPath() + ".heights"));
 
             // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
             // efficient times, which may mean that until the map is deallocated the data on disk is randomly
@@ -119,12 +183,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                rebuildSlotIndex();
             } else {
+                slotIndex = new SlotIndex(numHeaders);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
+                if (heightIndex != null) heightIndex.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
             }
@@ -137,11 +204,11 @@ public class SPVBlockStore implements BlockStore {
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            readWriteLock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -159,21 +226,28 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            byte[] scratch = new byte[32];
+            buffer.position(cursor);
+            buffer.get(scratch);
+            // The header that was in this slot is gone now.
+            slotIndex.remove(scratch, slot);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            missCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            slotIndex.put(hash.getBytes(), slot);
+            headerCache.put(hash, block);
+        } finally { readWriteLock.writeLock().unlock(); }
     }
 
     @Override
@@ -182,58 +256,49 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = headerCache.get(hash);
+        if (cacheHit != null)
+            return cacheHit;
+
+        readWriteLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            if (this.buffer == null) throw new BlockStoreException("Store closed");
+            if (missCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
+            ByteBuffer ring = buffer.duplicate();
+            int slot = slotIndex.get(ring, hash.getBytes());
+            if (slot >= 0) {
+                ring.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE + 32);
+                StoredBlock storedBlock = StoredBlock.deserializeCompact(params, ring);
+                headerCache.put(hash, storedBlock);
+                return storedBlock;
+            }
             // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+            missCache.put(hash, notFoundMarker);
             return null;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+        readWriteLock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer prologue = buffer.duplicate();
+                prologue.position(8);
+                prologue.get(headHash);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -241,7 +306,7 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
     @Override
@@ -249,17 +314,43 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+            heightIndex.update(chainHead, this);
+            heightIndexChecked = true;
+        } finally { readWriteLock.writeLock().unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public Sha256Hash getBlockHashAtHeight(int height) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        if (!heightIndexChecked) {
+            readWriteLock.writeLock().lock();
+            try {
+                if (!heightIndexChecked) {
+                    // The index is written after the chain head, so it may be behind if we were stopped in between.
+                    heightIndex.update(getChainHead(), this);
+                    heightIndexChecked = true;
+                }
+            } finally { readWriteLock.writeLock().unlock(); }
+        }
+        readWriteLock.readLock().lock();
+        try {
+            return heightIndex.get(height);
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
     @Override
     public void close() throws BlockStoreException {
+        // Wait for readers to leave the mapping before it goes away.
+        readWriteLock.writeLock().lock();
         try {
             buffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
@@ -268,8 +359,11 @@ public class SPVBlockStore implements BlockStore {
             }
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
+            heightIndex.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            readWriteLock.writeLock().unlock();
         }
     }
 
@@ -292,6 +386,191 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Fills the slot index from the ring, oldest header first so a header that was stored twice maps to the newer copy.
+    private void rebuildSlotIndex() {
+        slotIndex = new SlotIndex(numHeaders);
+        int start = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] hash = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int slot = (start + i) % numHeaders;
+            buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+            buffer.get(hash);
+            if (!Arrays.equals(hash, EMPTY_HASH))
+                slotIndex.put(hash, slot);
+        }
+    }
+
+    private static final byte[] EMPTY_HASH = new byte[32];
+
+    /**
+     * An open addressed hash table with linear probing from header hash to ring slot. Only the last eight bytes of
+     * each hash are kept, as the leading bytes are mostly zero from the proof of work, and a match is confirmed
+     * against the full hash in the ring. The table is at most half full, so a lookup takes a probe or two however
+     * large the ring is.
+     */
+    private static class SlotIndex {
+        private final long[] keys;
+        // Slot numbers plus one, so zero marks an empty entry.
+        private final int[] slots;
+        private final int mask;
+
+        SlotIndex(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+            keys = new long[size];
+            slots = new int[size];
+            mask = size - 1;
+        }
+
+        private static long key(byte[] hash) {
+            long key = 0;
+            for (int i = 24; i < 32; i++)
+                key = (key << 8) | (hash[i] & 0xff);
+            return key;
+        }
+
+        private int home(long key) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+
+        /** Returns the slot holding the given hash in the ring, or -1 if it isn't stored. */
+        int get(ByteBuffer ring, byte[] hash) {
+            long key = key(hash);
+            for (int i = home(key); slots[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key && matches(ring, slots[i] - 1, hash))
+                    return slots[i] - 1;
+            }
+            return -1;
+        }
+
+        private static boolean matches(ByteBuffer ring, int slot, byte[] hash) {
+            int position = FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+            for (int i = 0; i < 32; i++)
+                if (ring.get(position + i) != hash[i])
+                    return false;
+            return true;
+        }
+
+        /**
+         * Maps the hash to the slot. A header that is stored again gets a second entry, which is harmless as both
+         * slots hold the same hash, and each goes away when its slot is overwritten.
+         */
+        void put(byte[] hash, int slot) {
+            long key = key(hash);
+            int i = home(key);
+            while (slots[i] != 0) {
+                if (keys[i] == key && slots[i] == slot + 1)
+                    return;
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            slots[i] = slot + 1;
+        }
+
+        /** Removes the entry for the hash if it points at the given slot. */
+        void remove(byte[] hash, int slot) {
+            long key = key(hash);
+            int i = home(key);
+            while (slots[i] != 0 && !(keys[i] == key && slots[i] == slot + 1))
+                i = (i + 1) & mask;
+            if (slots[i] == 0)
+                return;
+            // Shift later entries of the probe sequence back into the hole, so lookups don't stop short at it.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (slots[j] == 0)
+                    break;
+                int home = home(keys[j]);
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    keys[i] = keys[j];
+                    slots[i] = slots[j];
+                    i = j;
+                }
+            }
+            slots[i] = 0;
+        }
+    }
+
+    // Lets the deprecated LinkedHashMap fields reach the caches that replaced them.
+    private static class CacheView<V> extends LinkedHashMap<Sha256Hash, V> {
+        private final ConcurrentCache<Sha256Hash, V> cache;
+
+        CacheView(ConcurrentCache<Sha256Hash, V> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public V get(Object key) {
+            return key instanceof Sha256Hash ? cache.get((Sha256Hash) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public V put(Sha256Hash key, V value) {
+            V previous = cache.get(key);
+            cache.put(key, value);
+            return previous;
+        }
+
+        @Override
+        public V remove(Object key) {
+            V previous = get(key);
+            if (previous != null)
+                cache.remove((Sha256Hash) key);
+            return previous;
+        }
+    }
+
+    /**
+     * A bounded cache that can be read and written from any number of threads without locking. Entries go into the
+     * current generation, and once that holds more than the given size it becomes the previous one and the oldest
+     * entries are dropped with the generation before it. An entry found in the previous generation is copied to the
+     * current one, so the cache keeps at least the given number of recently used entries.
+     */
+    protected static class ConcurrentCache<K, V> {
+        private final int generationSize;
+        private volatile ConcurrentHashMap<K, V> current = new ConcurrentHashMap<K, V>();
+        private volatile ConcurrentHashMap<K, V> previous = new ConcurrentHashMap<K, V>();
+
+        public ConcurrentCache(int generationSize) {
+            this.generationSize = generationSize;
+        }
+
+        @Nullable
+        public V get(K key) {
+            V value = current.get(key);
+            if (value == null) {
+                value = previous.get(key);
+                if (value != null)
+                    put(key, value);
+            }
+            return value;
+        }
+
+        public void put(K key, V value) {
+            ConcurrentHashMap<K, V> current = this.current;
+            current.put(key, value);
+            if (current.size() > generationSize) {
+                synchronized (this) {
+                    if (this.current == current) {
+                        previous = current;
+                        this.current = new ConcurrentHashMap<K, V>();
+                    }
+                }
+            }
+        }
+
+        public void remove(K key) {
+            current.remove(key);
+            previous.remove(key);
+        }
+    }
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A fixed set of locks that keys are hashed onto, so that state belonging to different keys can be worked on in
+ * parallel without allocating a lock per key. Two keys may share a stripe, which only costs some parallelism.</p>
+ *
+ * <p>Whenever more than one stripe has to be held at once, take them with {@link #lockAll(Iterable)}, which always
+ * acquires them in the same order so that two threads can never deadlock on each other's stripes.</p>
+ */
+public class StripedLock {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /** Creates the given number of stripes, rounded up to a power of two. Each is named after {@code name}. */
+    public StripedLock(String name, int stripes) {
+        checkArgument(stripes > 0 && stripes <= 1 << 16, "stripes out of range");
+        int size = Integer.highestOneBit(stripes - 1) << 1;
+        if (size == 0)
+            size = 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++)
+            locks[i] = Threading.lock(name + "-" + i);
+        mask = size - 1;
+    }
+
+    public int size() {
+        return locks.length;
+    }
+
+    /** Returns the stripe guarding the given key. */
+    public ReentrantLock get(Object key) {
+        return locks[indexFor(key)];
+    }
+
+    /**
+     * Locks the stripes of all the given keys, each at most once and in stripe order, and returns them so they can
+     * be passed to {@link #unlockAll(List)}.
+     */
+    public List<ReentrantLock> lockAll(Iterable<?> keys) {
+        BitSet indexes = new BitSet(locks.length);
+        for (Object key : keys)
+            indexes.set(indexFor(key));
+        List<ReentrantLock> held = new ArrayList<ReentrantLock>(indexes.cardinality());
+        try {
+            for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+                locks[i].lock();
+                held.add(locks[i]);
+            }
+        } catch (RuntimeException e) {
+            unlockAll(held);
+            throw e;
+        }
+        return held;
+    }
+
+    /** Releases stripes taken by {@link #lockAll(Iterable)}, in reverse order. */
+    public void unlockAll(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--)
+            held.get(i).unlock();
+    }
+
+    private int indexFor(Object key) {
+        int h = key.hashCode();
+        // Spread the high bits down, hash codes that only differ there would otherwise share a stripe.
+        h ^= (h >>> 16) ^ (h >>> 8);
+        return h & mask;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A hierarchical timing wheel, which tracks a deadline for each of a set of keys and hands the keys back once
+ * their deadline has passed. Time is counted in abstract ticks, so it works equally well for seconds and block
+ * heights, as long as it only moves forward.</p>
+ *
+ * <p>Scheduling and cancelling a key are O(1), and {@link #advance(long)} only touches the keys that expire and the
+ * few that cascade down from a coarser level, instead of looking at every key. That lets a cache with an expiry
+ * rule drop its old entries without scanning the whole map each time.</p>
+ *
+ * <p>Each level has {@code 64} slots, a slot of level {@code n} spanning {@code 64^n} ticks. A key lands on the
+ * finest level whose slots can tell its deadline apart from the current time, and moves down a level whenever the
+ * wheel reaches its slot. Deadlines further away than the coarsest level can hold are parked in its last slot and
+ * placed again when it comes around. This class is thread safe.</p>
+ */
+public class TimingWheel<K> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private static class Entry<K> {
+        final K key;
+        final long deadline;
+        Entry<K> prev, next;
+        int slot;
+
+        Entry(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("timingwheel");
+    // Slot i of level n is at index n * SLOTS + i, each holding a doubly linked list so entries can be unlinked.
+    private final Entry<K>[] slots;
+    private final HashMap<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+    private long now;
+
+    /** Creates an empty wheel whose clock starts at the given tick. */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long now) {
+        this.slots = new Entry[LEVELS * SLOTS];
+        this.now = now;
+    }
+
+    /**
+     * Schedules the key to expire on the first call to {@link #advance(long)} with a time at or past the deadline.
+     * Any deadline the key already had is replaced. A deadline that has already passed expires on the next advance.
+     */
+    public void schedule(K key, long deadline) {
+        lock.lock();
+        try {
+            Entry<K> entry = new Entry<K>(key, deadline);
+            Entry<K> previous = entries.put(key, entry);
+            if (previous != null)
+                unlink(previous);
+            link(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the key from the wheel, returning whether it was scheduled. */
+    public boolean cancel(K key) {
+        lock.lock();
+        try {
+            Entry<K> entry = entries.remove(key);
+            if (entry == null)
+                return false;
+            unlink(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the clock forward to the given time and returns the keys whose deadline is at or before it, in no
+     * particular order. They are no longer scheduled afterwards. The clock never moves backwards, but keys are
+     * still only returned once their deadline is at or before {@code time}.
+     */
+    public List<K> advance(long time) {
+        lock.lock();
+        try {
+            long target = Math.max(time, now);
+            // Take every slot the clock passes over, at every level, off the wheel before placing anything again.
+            Entry<K> passed = null;
+            for (int level = 0; level < LEVELS; level++) {
+                int shift = level * SLOT_BITS;
+                long from = now >> shift;
+                long count = Math.min((target >> shift) - from + 1, SLOTS);
+                for (long tick = from; tick < from + count; tick++) {
+                    int index = level * SLOTS + (int) (tick & SLOT_MASK);
+                    Entry<K> head = slots[index];
+                    if (head == null)
+                        continue;
+                    slots[index] = null;
+                    Entry<K> tail = head;
+                    while (tail.next != null)
+                        tail = tail.next;
+                    tail.next = passed;
+                    passed = head;
+                }
+            }
+            now = target;
+
+            List<K> expired = new ArrayList<K>();
+            while (passed != null) {
+                Entry<K> entry = passed;
+                passed = entry.next;
+                entry.prev = entry.next = null;
+                if (entry.deadline <= time) {
+                    entries.remove(entry.key);
+                    expired.add(entry.key);
+                } else {
+                    link(entry);
+                }
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of keys that are scheduled. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes every key, leaving the clock where it is. */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            for (int i = 0; i < slots.length; i++)
+                slots[i] = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void link(Entry<K> entry) {
+        // A deadline that has passed goes to the slot of the current tick, which the next advance always visits.
+        long deadline = Math.max(entry.deadline, now);
+        int level = 0;
+        while (level < LEVELS - 1 && (deadline >> (level * SLOT_BITS)) - (now >> (level * SLOT_BITS)) >= SLOTS)
+            level++;
+        int shift = level * SLOT_BITS;
+        long tick = Math.min(deadline >> shift, (now >> shift) + SLOT_MASK);
+        int index = level * SLOTS + (int) (tick & SLOT_MASK);
+        entry.slot = index;
+        entry.prev = null;
+        entry.next = slots[index];
+        if (entry.next != null)
+            entry.next.prev = entry;
+        slots[index] = entry;
+    }
+
+    private void unlink(Entry<K> entry) {
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else if (slots[entry.slot] == entry)
+            slots[entry.slot] = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        entry.prev = entry.next = null;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The set of outputs a {@link Wallet} could spend, which keeps running totals of their value as outputs are added
+ * and removed, so that the wallet doesn't have to add up every output it owns each time the balance is asked for.</p>
+ *
+ * <p>Outputs of transactions that are in the best chain and mature are counted as settled: they stay available
+ * until they are spent or a re-org happens, after which the wallet calls {@link #reclassify()}. All other outputs
+ * (pending transactions and immature coinbases) are kept aside and looked at again on every query, because whether
+ * the {@link DefaultCoinSelector} would pick them changes as the transaction propagates or gets buried. There are
+ * normally only a few of those.</p>
+ *
+ * <p>Whether the wallet can sign for an output is worked out when it is added, and again for the outputs it can't
+ * sign for when the number of keys in the wallet changes. Only {@link #add(TransactionOutput)},
+ * {@link #remove(Object)} and {@link #clear()} update the totals, so don't remove outputs through the iterator.
+ * Not thread safe, the wallet lock must be held.</p>
+ */
+class UnspentOutputSet extends HashSet<TransactionOutput> {
+    private final Wallet wallet;
+
+    // Outputs whose parent transaction wasn't settled when last looked at.
+    private final HashSet<TransactionOutput> unsettled = new HashSet<TransactionOutput>();
+    // Outputs the wallet has no key to sign for.
+    private final HashSet<TransactionOutput> unsignable = new HashSet<TransactionOutput>();
+
+    private long total, unsignableTotal;
+    private long settledTotal, settledUnsignableTotal;
+    private int keyCount = -1;
+    // Set without the wallet lock held, from Wallet.removeKey.
+    private volatile boolean keyRemoved;
+
+    UnspentOutputSet(Wallet wallet) {
+        this.wallet = wallet;
+    }
+
+    @Override
+    public boolean add(TransactionOutput output) {
+        if (!super.add(output))
+            return false;
+        long value = output.getValue().value;
+        boolean signable = wallet.canSignFor(output.getScriptPubKey());
+        total += value;
+        if (!signable) {
+            unsignable.add(output);
+            unsignableTotal += value;
+        }
+        if (isSettled(output)) {
+            settledTotal += value;
+            if (!signable)
+                settledUnsignableTotal += value;
+        } else {
+            unsettled.add(output);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        TransactionOutput output = (TransactionOutput) o;
+        long value = output.getValue().value;
+        boolean signable = !unsignable.remove(output);
+        total -= value;
+        if (!signable)
+            unsignableTotal -= value;
+        if (!unsettled.remove(output)) {
+            settledTotal -= value;
+            if (!signable)
+                settledUnsignableTotal -= value;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        unsettled.clear();
+        unsignable.clear();
+        total = unsignableTotal = settledTotal = settledUnsignableTotal = 0;
+    }
+
+    /**
+     * Works out again which outputs are settled and which can be signed for. Must be called after anything that
+     * can take a transaction out of the best chain, or make a coinbase immature again, without removing its outputs.
+     */
+    void reclassify() {
+        TransactionOutput[] outputs = toArray(new TransactionOutput[size()]);
+        clear();
+        for (TransactionOutput output : outputs)
+            add(output);
+        keyCount = wallet.getKeyChainGroupSize();
+    }
+
+    /** Must be called when a key is removed from the wallet, which can make outputs unsignable. */
+    void keyRemoved() {
+        keyRemoved = true;
+    }
+
+    /** Returns the balance of the given type, as {@link Wallet#getBalance(Wallet.BalanceType)} would calculate it. */
+    Coin getBalance(Wallet.BalanceType balanceType) {
+        boolean spendableOnly = balanceType == Wallet.BalanceType.ESTIMATED_SPENDABLE
+                || balanceType == Wallet.BalanceType.AVAILABLE_SPENDABLE;
+        if (spendableOnly)
+            updateSignable();
+        if (balanceType == Wallet.BalanceType.ESTIMATED || balanceType == Wallet.BalanceType.ESTIMATED_SPENDABLE)
+            return Coin.valueOf(spendableOnly ? total - unsignableTotal : total);
+
+        long available = spendableOnly ? settledTotal - settledUnsignableTotal : settledTotal;
+        for (Iterator<TransactionOutput> it = unsettled.iterator(); it.hasNext(); ) {
+            TransactionOutput output = it.next();
+            boolean signable = !unsignable.contains(output);
+            long value = output.getValue().value;
+            if (isSettled(output)) {
+                // Confirmed or matured since we last looked, it won't need looking at again.
+                it.remove();
+                settledTotal += value;
+                if (!signable)
+                    settledUnsignableTotal += value;
+            } else if (!checkNotNull(output.getParentTransaction()).isMature()
+                    || !DefaultCoinSelector.isSelectable(output.getParentTransaction())) {
+                continue;
+            }
+            if (signable || !spendableOnly)
+                available += value;
+        }
+        return Coin.valueOf(available);
+    }
+
+    private void updateSignable() {
+        int count = wallet.getKeyChainGroupSize();
+        if (keyRemoved || count < keyCount) {
+            keyRemoved = false;
+            reclassify();
+        } else if (count != keyCount) {
+            // New keys can only make outputs signable that weren't before.
+            keyCount = count;
+            for (Iterator<TransactionOutput> it = unsignable.iterator(); it.hasNext(); ) {
+                TransactionOutput output = it.next();
+                if (!wallet.canSignFor(output.getScriptPubKey()))
+                    continue;
+                it.remove();
+                long value = output.getValue().value;
+                unsignableTotal -= value;
+                if (!unsettled.contains(output))
+                    settledUnsignableTotal -= value;
+            }
+        }
+    }
+
+    private static boolean isSettled(TransactionOutput output) {
+        Transaction tx = checkNotNull(output.getParentTransaction());
+        return tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING && tx.isMature();
+    }
+}
@@ -125,15 +125,35 @@ public class Wallet extends BaseTaggableObject
 
     private final Map<Sha256Hash, Transaction> pending;
     private final Map<Sha256Hash, Transaction> unspent;
-    private final Map<Sha256Hash, Transaction> spent;
-    private final Map<Sha256Hash, Transaction> dead;
+    private final DeferringPool spent;
+    private final DeferringPool dead;
 
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // Spent and dead transactions that weren't read when the wallet was loaded, see
+    // WalletProtobufSerializer.setLoadTransactionsLazily. The spent, dead and transactions maps read them in when
+    // first used, except to look up or count transactions that aren't among them.
+    @Nullable private volatile WalletProtobufSerializer.DeferredTransactions deferredTransactions;
+
+    // The transactions in the pools above that spend each outpoint, so that double spends can be found without
+    // looking at every input of every transaction. Coinbases aren't in it, as they don't spend anything.
+    private final SetMultimap<TransactionOutPoint, Transaction> spendsByOutPoint = HashMultimap.create();
+
+    // Transactions that were added, moved between pools or had their outputs spent or unspent since the last
+    // consistency check. Only these (and the transactions connected to them) need checking again.
+    private final Set<Transaction> touchedTxns = new HashSet<Transaction>();
+    private volatile boolean fullConsistencyChecks;
+
+    // The hashes of the transactions added, changed or removed since the WalletJournal last took them, or null if
+    // there is no journal to track them for. allTxnsUnsaved is set when there's no telling, as after clearing them.
+    @Nullable private Set<Sha256Hash> unsavedTxns;
+    private boolean allTxnsUnsaved;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
-    // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
+    // Used to speed up various calculations, and keeps running totals for the balances.
+    private final UnspentOutputSet unspentOutputs = new UnspentOutputSet(this);
+    protected final HashSet<TransactionOutput> myUnspents = unspentOutputs;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -204,6 +224,7 @@ public class Wallet extends BaseTaggableObject
     private volatile long vKeyRotationTimestamp;
 
     protected CoinSelector coinSelector = new DefaultCoinSelector();
+    private volatile boolean crossCheckBalances;
 
 
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
@@ -307,10 +328,10 @@ public class Wallet extends BaseTaggableObject
             this.keyChainGroup.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
+        spent = new DeferringPool(Pool.SPENT);
         pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        dead = new DeferringPool(Pool.DEAD);
+        transactions = new DeferringPool(null);
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
@@ -324,6 +345,9 @@ public class Wallet extends BaseTaggableObject
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
+                // The depth isn't journaled, see WalletJournal.versionOf, and changes for every transaction each block.
+                if (reason != ChangeReason.DEPTH)
+                    markUnsaved(confidence.getTransactionHash());
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
                 // We only want to queue a wallet changed event and auto-save if the number of peers announcing
                 // the transaction has changed, as that confidence change is made by the networking code which
@@ -598,6 +622,7 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
+            unspentOutputs.keyRemoved();
             return keyChainGroup.removeImportedKey(key);
         } finally {
             keyChainGroupLock.unlock();
@@ -1291,17 +1316,7 @@ public class Wallet extends BaseTaggableObject
             stream.getFD().sync();
             stream.close();
             stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
+            replaceFile(temp, destFile);
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1316,6 +1331,21 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Renames the written temp file to the dest file, replacing it. */
+    static void replaceFile(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
+            if (temp.renameTo(canonical))
+                return;  // else fall through.
+            throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -1429,15 +1459,17 @@ public class Wallet extends BaseTaggableObject
      * </p>
      */
     public void shutdownAutosaveAndWait() {
+        WalletFiles files;
         lock.lock();
         try {
-            WalletFiles files = vFileManager;
+            files = vFileManager;
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
-            files.shutdownAndWait();
         } finally {
             lock.unlock();
         }
+        // Not under the lock, as a last write-behind save needs it to take its snapshot.
+        files.shutdownAndWait();
     }
 
     /** Requests an asynchronous save on a background thread */
@@ -1447,12 +1479,15 @@ public class Wallet extends BaseTaggableObject
             files.saveLater();
     }
 
-    /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
+    /**
+     * If auto saving is enabled, do an immediate sync write to disk ignoring any delays, or in write-behind mode
+     * queue the write up to be done within a bounded time, see {@link WalletFiles#setWriteBehind(long, TimeUnit)}.
+     */
     protected void saveNow() {
         WalletFiles files = vFileManager;
         if (files != null) {
             try {
-                files.saveNow();  // This calls back into saveToFile().
+                files.saveSoon();  // This calls back into saveToFile() unless the save is write-behind.
             } catch (IOException e) {
                 // Can't really do much at this point, just let the API user know.
                 log.error("Failed to save wallet to disk!", e);
@@ -1463,6 +1498,16 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /** Returns the wallet in protocol buffer form, taken with the wallet locked so that it is consistent. */
+    Protos.Wallet toProtoSnapshot() {
+        lock.lock();
+        try {
+            return new WalletProtobufSerializer().walletToProto(this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file stream. To learn more about this file format, see
      * {@link WalletProtobufSerializer}.
@@ -1494,17 +1539,14 @@ public class Wallet extends BaseTaggableObject
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
-        try {
-            FileInputStream stream = null;
-            try {
-                stream = new FileInputStream(file);
-                return loadFromFileStream(stream, walletExtensions);
-            } finally {
-                if (stream != null) stream.close();
-            }
-        } catch (IOException e) {
-            throw new UnreadableWalletException("Could not open file", e);
+        if (!file.exists())
+            throw new UnreadableWalletException("Could not open file", new FileNotFoundException(file.toString()));
+        // Reading the file itself also applies its journal, if it was saved with one.
+        Wallet wallet = new WalletProtobufSerializer().readWallet(file, false, walletExtensions);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
         }
+        return wallet;
     }
 
     /**
@@ -1561,11 +1603,140 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
             }
+            touchedTxns.clear();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * <p>After each change the wallet checks that the transactions it touched are still consistent, which is cheap.
+     * If this is enabled it runs the full {@link #isConsistentOrThrow()} instead, which looks at every transaction
+     * and so takes time proportional to the size of the wallet. This is meant for debugging: to check big wallets
+     * in production, call {@link #isConsistentOrThrow()} now and then from a background thread.</p>
+     */
+    public void setFullConsistencyChecks(boolean fullConsistencyChecks) {
+        this.fullConsistencyChecks = fullConsistencyChecks;
+    }
+
+    // Notes that a transaction has changed, so that the next consistency check looks at it and the next save too.
+    private void touch(@Nullable Transaction tx) {
+        if (tx != null) {
+            touchedTxns.add(tx);
+            if (unsavedTxns != null)
+                unsavedTxns.add(tx.getHash());
+        }
+    }
+
+    private void markUnsaved(Sha256Hash txHash) {
+        lock.lock();
+        try {
+            if (unsavedTxns != null)
+                unsavedTxns.add(txHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts or stops tracking which transactions change, for {@link #takeUnsavedTransactions(Set)}. This is intended
+     * for usage by {@link WalletJournal}.
+     */
+    void trackUnsavedTransactions(boolean track) {
+        lock.lock();
+        try {
+            unsavedTxns = track ? new HashSet<Sha256Hash>() : null;
+            allTxnsUnsaved = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the transactions that were added or changed by the wallet since the last call, or since tracking was
+     * started, and adds the hashes of those removed meanwhile to removed. Returns null if there's no telling which
+     * transactions changed, as after they were cleared. Changes made to a transaction other than through the wallet
+     * aren't tracked. This is intended for usage by {@link WalletJournal}, with the wallet locked.
+     */
+    @Nullable
+    Set<WalletTransaction> takeUnsavedTransactions(Set<Sha256Hash> removed) {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(unsavedTxns != null, "Not tracking unsaved transactions");
+        Set<Sha256Hash> unsaved = unsavedTxns;
+        unsavedTxns = new HashSet<Sha256Hash>();
+        if (allTxnsUnsaved) {
+            allTxnsUnsaved = false;
+            return null;
+        }
+        Set<WalletTransaction> changed = new HashSet<WalletTransaction>();
+        for (Sha256Hash hash : unsaved) {
+            Transaction tx;
+            if ((tx = unspent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.UNSPENT, tx));
+            else if ((tx = spent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.SPENT, tx));
+            else if ((tx = dead.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.DEAD, tx));
+            else if ((tx = pending.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.PENDING, tx));
+            else
+                removed.add(hash);
+        }
+        return changed;
+    }
+
+    /**
+     * Like {@link #isConsistentOrThrow()}, but only checks the transactions touched since the last check, the
+     * transactions they spend from and those spending from them.
+     */
+    private void checkTouchedConsistentOrThrow() throws IllegalStateException {
+        checkState(lock.isHeldByCurrentThread());
+        if (fullConsistencyChecks) {
+            isConsistentOrThrow();
+            return;
+        }
+        try {
+            int size1 = transactions.size();
+            int size2 = unspent.size() + spent.size() + pending.size() + dead.size();
+            if (size1 != size2) {
+                throw new IllegalStateException("Inconsistent wallet sizes: " + size1 + ", " + size2);
+            }
+            Set<Transaction> toCheck = new HashSet<Transaction>(touchedTxns);
+            for (Transaction tx : touchedTxns) {
+                for (TransactionInput input : tx.getInputs())
+                    touch(toCheck, input.getConnectedTransaction());
+                for (TransactionOutput output : tx.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    if (spentBy != null)
+                        touch(toCheck, spentBy.getParentTransaction());
+                }
+            }
+            for (Transaction tx : toCheck) {
+                Sha256Hash hash = tx.getHash();
+                int pools = (unspent.containsKey(hash) ? 1 : 0) + (spent.containsKey(hash) ? 1 : 0) +
+                        (pending.containsKey(hash) ? 1 : 0) + (dead.containsKey(hash) ? 1 : 0);
+                if (pools != (transactions.containsKey(hash) ? 1 : 0)) {
+                    throw new IllegalStateException("Tx in " + pools + " pools: " + tx.getHashAsString());
+                }
+                Transaction unspentTx = unspent.get(hash);
+                if (unspentTx != null && !isTxConsistent(unspentTx, false)) {
+                    throw new IllegalStateException("Inconsistent unspent tx: " + tx.getHashAsString());
+                }
+                Transaction spentTx = spent.get(hash);
+                if (spentTx != null && !isTxConsistent(spentTx, true)) {
+                    throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
+                }
+            }
+        } finally {
+            touchedTxns.clear();
+        }
+    }
+
+    private static void touch(Set<Transaction> txns, @Nullable Transaction tx) {
+        if (tx != null)
+            txns.add(tx);
+    }
+
     /*
      * If isSpent - check that all my outputs spent, otherwise check that there at least
      * one unspent.
@@ -1850,19 +2021,26 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<TransactionOutPoint>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
+        // The deferred transactions aren't in the index until they are read, so read them if one of them spends the
+        // same outpoint as tx.
+        WalletProtobufSerializer.DeferredTransactions deferred = deferredTransactions;
+        if (deferred != null && candidates instanceof DeferringPool) {
+            for (TransactionInput input : tx.getInputs()) {
+                if (deferred.spends(input.getOutpoint())) {
+                    loadDeferredTransactions();
+                    break;
+                }
+            }
         }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // For each outpoint spent by tx, see which of the candidates also spend it. The candidates are always one of
+        // our pools, so everything read into them is in the index.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
+        for (TransactionInput input : tx.getInputs()) {
+            // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
+            // level - outpoints from two different inputs that point to the same output compare the same.
+            for (Transaction spender : spendsByOutPoint.get(input.getOutpoint())) {
+                Transaction p = candidates.get(spender.getHash());
+                if (p != null) {
                     // It does, it's a double spend against the candidates, which makes it relevant.
                     doubleSpendTxns.add(p);
                 }
@@ -1963,6 +2141,7 @@ public class Wallet extends BaseTaggableObject
                 tx = tmp;
         }
 
+        touch(tx);
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
@@ -1978,6 +2157,7 @@ public class Wallet extends BaseTaggableObject
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
                         checkState(myUnspents.add(output));
+                        touch(spentBy.getParentTransaction());
                         spentBy.disconnect();
                     }
                 }
@@ -2069,7 +2249,7 @@ public class Wallet extends BaseTaggableObject
         }
 
         informConfidenceListenersIfNotReorganizing();
-        isConsistentOrThrow();
+        checkTouchedConsistentOrThrow();
         // Optimization for the case where a block has tons of relevant transactions.
         saveLater();
         hardSaveOnNextBlock = true;
@@ -2173,8 +2353,11 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon()
+                                && confidence.numBroadcastPeers() > 0) {
                             confidence.clearBroadcastBy();
+                            markUnsaved(tx.getHash());
+                        }
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
@@ -2418,6 +2601,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        touch(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2521,7 +2705,7 @@ public class Wallet extends BaseTaggableObject
                 throw new RuntimeException(e);
             }
 
-            isConsistentOrThrow();
+            checkTouchedConsistentOrThrow();
 
             //Dash Specific
             if(tx.getConfidence().isIX() && tx.getConfidence().getSource() == Source.SELF) {
@@ -2895,6 +3079,29 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Like {@link #getWalletTransactions()}, but instead of reading the spent and dead transactions that were left out
+     * when the wallet was loaded, see {@link WalletProtobufSerializer#setLoadTransactionsLazily(boolean)}, adds them to
+     * deferred as they were serialized. This is intended for usage by {@link WalletProtobufSerializer}, so that saving
+     * the wallet doesn't read them.
+     */
+    Set<WalletTransaction> getWalletTransactions(List<ByteString> deferred) {
+        lock.lock();
+        try {
+            WalletProtobufSerializer.DeferredTransactions deferredTxns = deferredTransactions;
+            if (deferredTxns != null)
+                deferred.addAll(deferredTxns.serialized());
+            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
+            addWalletTransactionsToSet(all, Pool.SPENT, spent.read().values());
+            addWalletTransactionsToSet(all, Pool.DEAD, dead.read().values());
+            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
+            return all;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txns,
                                                    Pool poolType, Collection<Transaction> pool) {
         for (Transaction tx : pool) {
@@ -2916,12 +3123,127 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * A pool that reads the deferred transactions into the wallet before it is first used. Looking up a transaction
+     * that isn't one of them, or counting the transactions, works without reading them.
+     */
+    private class DeferringPool extends ForwardingMap<Sha256Hash, Transaction> {
+        private final Map<Sha256Hash, Transaction> pool = new HashMap<Sha256Hash, Transaction>();
+        // The pool of the deferred transactions that belong in this one, or null if they all do.
+        @Nullable private final Pool deferredPool;
+
+        DeferringPool(@Nullable Pool deferredPool) {
+            this.deferredPool = deferredPool;
+        }
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            if (deferredTransactions != null)
+                loadDeferredTransactions();
+            return pool;
+        }
+
+        // Reads the deferred transactions only if the key is one of them.
+        private Map<Sha256Hash, Transaction> delegate(@Nullable Object key) {
+            WalletProtobufSerializer.DeferredTransactions deferred = deferredTransactions;
+            if (deferred != null && (!(key instanceof Sha256Hash) || deferred.contains((Sha256Hash) key)))
+                loadDeferredTransactions();
+            return pool;
+        }
+
+        /** Returns the transactions that have been read into this pool so far, without reading the others. */
+        Map<Sha256Hash, Transaction> read() {
+            return pool;
+        }
+
+        @Override
+        public Transaction get(@Nullable Object key) {
+            return delegate(key).get(key);
+        }
+
+        @Override
+        public boolean containsKey(@Nullable Object key) {
+            return delegate(key).containsKey(key);
+        }
+
+        @Override
+        public Transaction put(Sha256Hash key, Transaction value) {
+            return delegate(key).put(key, value);
+        }
+
+        @Override
+        public Transaction remove(@Nullable Object key) {
+            return delegate(key).remove(key);
+        }
+
+        @Override
+        public int size() {
+            WalletProtobufSerializer.DeferredTransactions deferred = deferredTransactions;
+            return pool.size() + (deferred != null ? deferred.size(deferredPool) : 0);
+        }
+    }
+
+    /**
+     * Sets the spent and dead transactions the wallet was loaded without. This is intended for usage by
+     * {@link WalletProtobufSerializer}, after the unspent and pending transactions were added.
+     */
+    void setDeferredTransactions(WalletProtobufSerializer.DeferredTransactions deferred) {
+        lock.lock();
+        try {
+            checkState(deferredTransactions == null);
+            deferredTransactions = deferred;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If this wallet was read with {@link WalletProtobufSerializer#setLoadTransactionsLazily(boolean)}, reads the
+     * spent and dead transactions that were left out. That happens anyway the first time they are needed, but an app
+     * might prefer to do it on a background thread once it has started up.
+     *
+     * @throws IllegalStateException if the transactions could not be read.
+     */
+    public void loadDeferredTransactions() {
+        lock.lock();
+        try {
+            WalletProtobufSerializer.DeferredTransactions deferred = deferredTransactions;
+            if (deferred == null)
+                return;
+            List<WalletTransaction> wtxs;
+            try {
+                wtxs = deferred.read();
+            } catch (UnreadableWalletException e) {
+                throw new IllegalStateException("Could not read deferred transactions", e);
+            }
+            // The pools are used from here on, so stop deferring first.
+            deferredTransactions = null;
+            for (WalletTransaction wtx : wtxs)
+                addWalletTransaction(wtx.getPool(), wtx.getTransaction());
+            log.info("Read {} deferred transactions", wtxs.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of spent and dead transactions that haven't been read yet, see {@link #loadDeferredTransactions()}. */
+    public int getDeferredTransactionCount() {
+        WalletProtobufSerializer.DeferredTransactions deferred = deferredTransactions;
+        return deferred != null ? deferred.size() : 0;
+    }
+
     /**
      * Adds the given transaction to the given pools and registers a confidence change listener on it.
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        touch(tx);
+        Transaction previous = transactions.put(tx.getHash(), tx);
+        if (previous != tx) {
+            if (previous != null)
+                unindexSpends(previous);
+            indexSpends(tx);
+        }
         switch (pool) {
         case UNSPENT:
             //case INSTANTX_LOCKED:
@@ -3065,14 +3387,34 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        // No point reading transactions just to throw them away.
+        deferredTransactions = null;
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
         transactions.clear();
+        spendsByOutPoint.clear();
+        touchedTxns.clear();
+        if (unsavedTxns != null) {
+            unsavedTxns.clear();
+            allTxnsUnsaved = true;
+        }
         myUnspents.clear();
     }
 
+    private void indexSpends(Transaction tx) {
+        if (tx.isCoinBase()) return;
+        for (TransactionInput input : tx.getInputs())
+            spendsByOutPoint.put(input.getOutpoint(), tx);
+    }
+
+    private void unindexSpends(Transaction tx) {
+        if (tx.isCoinBase()) return;
+        for (TransactionInput input : tx.getInputs())
+            spendsByOutPoint.remove(input.getOutpoint(), tx);
+    }
+
     /**
      * Returns all the outputs that match addresses or scripts added via {@link #addWatchedAddress(Address)} or
      * {@link #addWatchedScripts(java.util.List)}.
@@ -3122,6 +3464,7 @@ public class Wallet extends BaseTaggableObject
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
                                 checkState(myUnspents.add(output));
+                            touch(input.getConnectedTransaction());
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
@@ -3129,6 +3472,8 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        unindexSpends(tx);
+                        markUnsaved(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -3139,7 +3484,7 @@ public class Wallet extends BaseTaggableObject
                 }
             }
             if (dirty) {
-                isConsistentOrThrow();
+                checkTouchedConsistentOrThrow();
                 saveLater();
                 if (log.isInfoEnabled())
                     log.info("Estimated balance is now: {}", getBalance(BalanceType.ESTIMATED).toFriendlyString());
@@ -3554,6 +3899,23 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        lock.lock();
+        try {
+            // The running totals only know how the default coin selector picks outputs, and nothing of UTXO providers.
+            boolean estimated = balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE;
+            if (vUTXOProvider != null || !estimated && coinSelector.getClass() != DefaultCoinSelector.class)
+                return calculateBalance(balanceType);
+            Coin balance = unspentOutputs.getBalance(balanceType);
+            if (crossCheckBalances)
+                crossCheckBalance(balanceType, balance);
+            return balance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Works the balance out from all the spend candidates.
+    private Coin calculateBalance(BalanceType balanceType) {
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
@@ -3582,6 +3944,14 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             checkNotNull(selector);
+            if (vUTXOProvider == null && selector.getClass() == DefaultCoinSelector.class) {
+                Coin balance = unspentOutputs.getBalance(BalanceType.AVAILABLE);
+                // The wallet's own coin selector may not be the one passed in, so check against this one.
+                if (crossCheckBalances)
+                    crossCheckBalance(BalanceType.AVAILABLE, balance,
+                            selector.select(params.getMaxMoney(), calculateAllSpendCandidates(true, false)).valueGathered);
+                return balance;
+            }
             List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
             CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
             return selection.valueGathered;
@@ -3590,6 +3960,26 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void crossCheckBalance(BalanceType balanceType, Coin balance) {
+        crossCheckBalance(balanceType, balance, calculateBalance(balanceType));
+    }
+
+    private static void crossCheckBalance(BalanceType balanceType, Coin balance, Coin expected) {
+        if (!balance.equals(expected))
+            throw new IllegalStateException(balanceType + " balance is " + balance.toFriendlyString() +
+                    " but should be " + expected.toFriendlyString());
+    }
+
+    /**
+     * <p>The wallet keeps running totals of its balances as transactions come and go, instead of adding up all of
+     * its outputs each time a balance is asked for. If enabled, each balance is also calculated the slow way and an
+     * {@link IllegalStateException} is thrown if the two don't agree. This is for debugging and tests: it makes
+     * getting the balance as slow as it was before the totals were kept.</p>
+     */
+    public void setCrossCheckBalances(boolean crossCheckBalances) {
+        this.crossCheckBalances = crossCheckBalances;
+    }
+
     private static class BalanceFutureRequest {
         public SettableFuture<Coin> future;
         public Coin value;
@@ -4552,6 +4942,8 @@ public class Wallet extends BaseTaggableObject
             subtractDepth(depthToSubtract, spent.values());
             subtractDepth(depthToSubtract, unspent.values());
             subtractDepth(depthToSubtract, dead.values());
+            // Transactions left the chain and coinbases may be immature again, so the balances have to be redone.
+            unspentOutputs.reclassify();
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -22,10 +22,15 @@ import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.*;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
@@ -36,6 +41,12 @@ import static com.google.common.base.Preconditions.*;
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
  * and disk IO on a background thread performance can be improved.
+ *
+ * <p>In write-behind mode (see {@link #setWriteBehind(long, TimeUnit)}) even the changes the wallet would normally
+ * save immediately, like new transactions, are written on the background thread, within a bounded time. Bursts of
+ * changes are then coalesced into one write, and the wallet is only locked while a snapshot of it is taken, not while
+ * the snapshot is serialized and synced to disk. Callers that need a change to be on disk before they go on, for
+ * example before handing out a payment receipt, can wait for {@link #flush()}.</p>
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -49,6 +60,27 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    // Set when the wallet is saved as a snapshot and a journal of changes, see useJournal.
+    private volatile WalletJournal journal;
+
+    // How long an urgent save can be put off for in write-behind mode, or -1 when urgent saves are done immediately.
+    private volatile long writeBehindNanos = -1;
+    // Counts the saves asked for, and the count that had been reached when the last successful save began.
+    private final AtomicLong requested = new AtomicLong();
+    private long written;
+    // When the earliest save that hasn't started yet is due, as System.nanoTime(), or Long.MAX_VALUE if there's none.
+    private long nextSaveAt = Long.MAX_VALUE;
+    // Callers of flush() waiting for a save, guarded by this.
+    private final List<FlushRequest> flushes = new ArrayList<FlushRequest>();
+
+    private static class FlushRequest {
+        final long request;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        FlushRequest(long request) {
+            this.request = request;
+        }
+    }
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -87,16 +119,33 @@ public class WalletFiles {
         this.saver = new Callable<Void>() {
             @Override public Void call() throws Exception {
                 // Runs in an auto save thread.
+                synchronized (WalletFiles.this) {
+                    nextSaveAt = Long.MAX_VALUE;
+                }
                 if (!savePending.getAndSet(false)) {
                     // Some other scheduled request already beat us to it.
                     return null;
                 }
+                // Every save asked for up to here is covered, as the snapshot is taken after this point.
+                long request = requested.get();
                 Date lastBlockSeenTime = wallet.getLastBlockSeenTime();
                 log.info("Background saving wallet; last seen block is height {}, date {}, hash {}",
                         wallet.getLastBlockSeenHeight(),
                         lastBlockSeenTime != null ? Utils.dateTimeFormat(lastBlockSeenTime) : "unknown",
                         wallet.getLastBlockSeenHash());
-                saveNowInternal();
+                try {
+                    if (writeBehindNanos >= 0)
+                        saveSnapshot();
+                    else
+                        saveNowInternal();
+                } catch (IOException x) {
+                    failed(x);
+                    throw x;
+                } catch (RuntimeException x) {
+                    failed(x);
+                    throw x;
+                }
+                saved(request);
                 return null;
             }
         };
@@ -120,14 +169,20 @@ public class WalletFiles {
         // but they will serialize (using different temp files).
         if (executor.isShutdown())
             return;
+        long request = requested.incrementAndGet();
         Date lastBlockSeenTime = wallet.getLastBlockSeenTime();
         log.info("Saving wallet; last seen block is height {}, date {}, hash {}", wallet.getLastBlockSeenHeight(),
                 lastBlockSeenTime != null ? Utils.dateTimeFormat(lastBlockSeenTime) : "unknown",
                 wallet.getLastBlockSeenHash());
         saveNowInternal();
+        saved(request);
     }
 
     private void saveNowInternal() throws IOException {
+        if (journal != null) {
+            saveToJournal();
+            return;
+        }
         final Stopwatch watch = Stopwatch.createStarted();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
@@ -141,20 +196,183 @@ public class WalletFiles {
         log.info("Save completed in {}", watch);
     }
 
+    // Writes a snapshot of the wallet, taking the wallet lock only while the snapshot is taken.
+    private void saveSnapshot() throws IOException {
+        if (journal != null) {
+            saveToJournal();
+            return;
+        }
+        final Stopwatch watch = Stopwatch.createStarted();
+        Protos.Wallet snapshot = wallet.toProtoSnapshot();
+        long snapshotMillis = watch.elapsed(TimeUnit.MILLISECONDS);
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("wallet", null, directory);
+        final Listener listener = vListener;
+        if (listener != null)
+            listener.onBeforeAutoSave(temp);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            snapshot.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Wallet.replaceFile(temp, file);
+        if (listener != null)
+            listener.onAfterAutoSave(file);
+        watch.stop();
+        log.info("Save completed in {}, of which {} ms with the wallet locked", watch, snapshotMillis);
+    }
+
+    // Appends the changes since the last save to the journal, taking the wallet lock only while a snapshot is taken.
+    private void saveToJournal() throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        WalletJournal.Snapshot snapshot = journal.snapshot();
+        long snapshotMillis = watch.elapsed(TimeUnit.MILLISECONDS);
+        journal.save(snapshot);
+        watch.stop();
+        log.info("Journaled changes in {}, of which {} ms with the wallet locked", watch, snapshotMillis);
+    }
+
+    /**
+     * Saves the wallet as a snapshot and an append-only journal of the changes since, instead of rewriting the whole
+     * file on every save, see {@link WalletJournal}. A new snapshot is written straight away, and again in the
+     * background whenever the journal has grown past compactionSize bytes. The listener is not called for saves that
+     * only append to the journal. Load the wallet with {@link Wallet#loadFromFile(File, WalletExtension...)} or
+     * {@link WalletProtobufSerializer#readWallet(File, boolean, WalletExtension[])}, which apply the journal.
+     */
+    public void useJournal(long compactionSize) throws IOException {
+        checkState(journal == null, "Already using a journal");
+        journal = new WalletJournal(wallet, file, compactionSize);
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
+        requested.incrementAndGet();
         if (executor.isShutdown() || savePending.getAndSet(true))
             return;   // Already pending.
-        executor.schedule(saver, delay, delayTimeUnit);
+        schedule(delayTimeUnit.toNanos(delay));
     }
 
-    /** Shut down auto-saving. */
+    /**
+     * Makes urgent saves, which the {@link Wallet} would otherwise do immediately, write-behind: they are done in the
+     * background instead, no later than the given delay after they were asked for. Changes that are made within the
+     * delay are saved together. A delay of zero still saves in the background, but as soon as possible. Use
+     * {@link #flush()} to wait for a change to be saved.
+     */
+    public void setWriteBehind(long maxDelay, TimeUnit unit) {
+        checkArgument(maxDelay >= 0, "maxDelay must not be negative");
+        writeBehindNanos = unit.toNanos(maxDelay);
+    }
+
+    /** Returns true if urgent saves are done in the background, see {@link #setWriteBehind(long, TimeUnit)}. */
+    public boolean isWriteBehind() {
+        return writeBehindNanos >= 0;
+    }
+
+    /**
+     * Queues up an urgent save. In write-behind mode it's done in the background within the configured delay,
+     * otherwise it's done immediately on the current thread like {@link #saveNow()}.
+     */
+    public void saveSoon() throws IOException {
+        long maxDelay = writeBehindNanos;
+        if (maxDelay < 0) {
+            saveNow();
+            return;
+        }
+        requested.incrementAndGet();
+        if (executor.isShutdown())
+            return;
+        savePending.set(true);
+        schedule(maxDelay);
+    }
+
+    /**
+     * Returns a future that completes once every change that was asked to be saved before this call has been written
+     * to disk, starting a save straight away if needed. If that save fails the future fails with the cause.
+     */
+    public ListenableFuture<Void> flush() {
+        FlushRequest flush = new FlushRequest(requested.get());
+        synchronized (this) {
+            if (written >= flush.request) {
+                flush.future.set(null);
+                return flush.future;
+            }
+            flushes.add(flush);
+        }
+        if (executor.isShutdown()) {
+            failed(new IllegalStateException("Auto saving has been shut down"));
+        } else {
+            // Even if no save is pending, as the last one may have failed.
+            savePending.set(true);
+            schedule(0);
+        }
+        return flush.future;
+    }
+
+    // Runs the saver after the given delay, unless it is due to run before then anyway.
+    private void schedule(long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        synchronized (this) {
+            if (nextSaveAt - at <= 0)
+                return;
+            nextSaveAt = at;
+        }
+        try {
+            executor.schedule(saver, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException x) {
+            // Shut down meanwhile.
+        }
+    }
+
+    private void saved(long request) {
+        List<FlushRequest> done = new ArrayList<FlushRequest>();
+        synchronized (this) {
+            written = Math.max(written, request);
+            for (Iterator<FlushRequest> it = flushes.iterator(); it.hasNext(); ) {
+                FlushRequest flush = it.next();
+                if (flush.request <= written) {
+                    done.add(flush);
+                    it.remove();
+                }
+            }
+        }
+        for (FlushRequest flush : done)
+            flush.future.set(null);
+    }
+
+    private void failed(Throwable cause) {
+        List<FlushRequest> failed;
+        synchronized (this) {
+            failed = new ArrayList<FlushRequest>(flushes);
+            flushes.clear();
+        }
+        log.error("Failed to save wallet to disk!", cause);
+        for (FlushRequest flush : failed)
+            flush.future.setException(cause);
+    }
+
+    /** Shut down auto-saving. In write-behind mode, changes that are waiting to be saved are saved first. */
     public void shutdownAndWait() {
+        if (isWriteBehind() && savePending.get()) {
+            try {
+                executor.submit(saver).get();
+            } catch (InterruptedException x) {
+                throw new RuntimeException(x);
+            } catch (ExecutionException x) {
+                // Already logged.
+            } catch (RejectedExecutionException x) {
+                // Already shut down.
+            }
+        }
         executor.shutdown();
         try {
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS); // forever
         } catch (InterruptedException x) {
             throw new RuntimeException(x);
         }
+        if (journal != null)
+            journal.close();
     }
 }
@@ -0,0 +1,537 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.FlatDBJournal;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Stores a wallet as a snapshot in the usual protobuf format, plus an append-only journal next to it of what has
+ * changed since the snapshot was written, so that saving a change costs an append of the transactions that changed
+ * instead of a rewrite of the whole wallet. Which transactions changed is tracked by the wallet, so a save doesn't
+ * look at the others either; a change made to a transaction other than through the wallet, such as setting its memo,
+ * is saved with the next snapshot. Once the journal has grown past a threshold a new snapshot is written in
+ * the background and the journal starts over. Set up with {@link WalletFiles#useJournal(long)}, and loaded with
+ * {@link WalletProtobufSerializer#readWallet(File, boolean, WalletExtension[])}, which
+ * {@link Wallet#loadFromFile(File, WalletExtension...)} uses.</p>
+ *
+ * <p>The journal, kept in a {@link FlatDBJournal}, holds the transactions that were added or changed, the hashes of
+ * those that were removed, and the keys or the rest of the wallet whenever they changed, each as the protobuf message
+ * that would be in the snapshot. The records of a save are followed by a commit record, and only saves that got
+ * theirs are replayed, so a crash part way through a save loads the wallet as it was before that save. The snapshot carries a non mandatory extension with a generation number that the
+ * journal starts with, so that a journal left over from an older snapshot is ignored. A snapshot is readable by
+ * itself, it only lacks the changes in the journal; {@link #mergeJournal(File)} folds them in.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    /** The ID of the snapshot extension that holds the generation of the journal. */
+    public static final String EXTENSION_ID = "org.bitcoinj.wallet.WalletJournal";
+
+    private static final String MAGIC = "WalletJournal";
+
+    // the record types
+    static final int GENERATION = 0;
+    static final int TRANSACTION = 1;
+    static final int REMOVE_TRANSACTION = 2;
+    static final int KEYS = 3;
+    static final int WALLET = 4;
+    static final int COMMIT = 5;
+
+    private static final Random random = new Random();
+
+    /**
+     * A protobuf image of the wallet, numbered in the order the images were taken. Unless changed is null, the image
+     * holds no transactions, and changed and removed hold those changed and removed since the previous image.
+     */
+    static class Snapshot {
+        final Protos.Wallet proto;
+        @Nullable final List<Protos.Transaction> changed;
+        final Set<Sha256Hash> removed;
+        final long sequence;
+
+        Snapshot(Protos.Wallet proto, @Nullable List<Protos.Transaction> changed, Set<Sha256Hash> removed,
+                 long sequence) {
+            this.proto = proto;
+            this.changed = changed;
+            this.removed = removed;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Wallet wallet;
+    private final File file;
+    private final File journalFile;
+    private final NetworkParameters params;
+    private final long compactionSize;
+    private final AtomicLong snapshots = new AtomicLong();
+
+    // What the files hold, guarded by this: the journal that is appended to, the hash of each transaction's protobuf
+    // by transaction hash and of the other parts of the wallet, the sequence number of the snapshot each transaction
+    // was last appended or removed from since the last compaction, and that of the newest snapshot saved and of the
+    // newest one compacted. Snapshots can be saved out of order, so an older one mustn't undo the changes of a newer.
+    private FlatDBJournal journal;
+    private Map<Sha256Hash, Sha256Hash> transactions = new HashMap<Sha256Hash, Sha256Hash>();
+    private final Map<Sha256Hash, Long> written = new HashMap<Sha256Hash, Long>();
+    private Sha256Hash keys, rest;
+    private long saved, compacted;
+    private boolean closed;
+    // set while a compaction is pending because an append failed
+    private boolean recovering;
+
+    /**
+     * Creates a journal for the wallet saved to the given file, and writes a first snapshot to start it with.
+     * Whenever the journal grows past compactionSize bytes a new snapshot is written in the background.
+     */
+    public WalletJournal(Wallet wallet, File file, long compactionSize) throws IOException {
+        checkArgument(compactionSize > 0, "compactionSize must be positive");
+        this.wallet = checkNotNull(wallet);
+        this.file = checkNotNull(file);
+        this.journalFile = journalFileFor(file);
+        this.params = wallet.getParams();
+        this.compactionSize = compactionSize;
+        Snapshot first;
+        wallet.lock.lock();
+        try {
+            wallet.trackUnsavedTransactions(true);
+            first = fullSnapshot();
+        } finally {
+            wallet.lock.unlock();
+        }
+        compact(first);
+    }
+
+    /** Returns the file the journal of the given wallet file is kept in. */
+    public static File journalFileFor(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Takes an image of what changed in the wallet since the last one, with the wallet locked so that it is
+     * consistent. Only the transactions the wallet tracked as changed are converted.
+     */
+    Snapshot snapshot() {
+        wallet.lock.lock();
+        try {
+            Set<Sha256Hash> removed = new HashSet<Sha256Hash>();
+            Set<WalletTransaction> changed = wallet.takeUnsavedTransactions(removed);
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            if (changed == null)
+                return new Snapshot(serializer.walletToProto(wallet), null, removed, snapshots.incrementAndGet());
+            List<Protos.Transaction> protos = new ArrayList<Protos.Transaction>(changed.size());
+            for (WalletTransaction wtx : changed)
+                protos.add(WalletProtobufSerializer.makeTxProto(wtx));
+            return new Snapshot(serializer.walletToProtoWithoutTransactions(wallet), protos, removed,
+                    snapshots.incrementAndGet());
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /** Takes an image of the whole wallet, with the wallet locked so that it is consistent. */
+    Snapshot fullSnapshot() {
+        wallet.lock.lock();
+        try {
+            return new Snapshot(new WalletProtobufSerializer().walletToProto(wallet), null,
+                    Collections.<Sha256Hash>emptySet(), snapshots.incrementAndGet());
+        } finally {
+            wallet.lock.unlock();
+        }
+    }
+
+    /**
+     * Appends what has changed in the given snapshot since the last one was saved. A change is skipped if a newer
+     * snapshot that has the same transaction, or that was compacted, has already been saved.
+     */
+    synchronized void save(Snapshot snapshot) throws IOException {
+        if (closed || snapshot.sequence <= compacted)
+            return;
+        List<Protos.Transaction> changed = snapshot.changed;
+        Set<Sha256Hash> removed = snapshot.removed;
+        if (changed == null) {
+            changed = snapshot.proto.getTransactionList();
+            removed = new HashSet<Sha256Hash>(transactions.keySet());
+            for (Protos.Transaction tx : changed)
+                removed.remove(WalletProtobufSerializer.byteStringToHash(tx.getHash()));
+        }
+        long start = journal.position();
+        try {
+            for (Protos.Transaction tx : changed) {
+                Sha256Hash hash = WalletProtobufSerializer.byteStringToHash(tx.getHash());
+                if (!isNewest(hash, snapshot))
+                    continue;
+                Sha256Hash version = versionOf(tx);
+                if (!version.equals(transactions.get(hash))) {
+                    append(TRANSACTION, tx.toByteArray());
+                    transactions.put(hash, version);
+                }
+                written.put(hash, snapshot.sequence);
+            }
+            for (Sha256Hash hash : removed) {
+                if (!isNewest(hash, snapshot) || !transactions.containsKey(hash))
+                    continue;
+                append(REMOVE_TRANSACTION, hash.getBytes());
+                transactions.remove(hash);
+                written.put(hash, snapshot.sequence);
+            }
+            if (snapshot.sequence > saved) {
+                byte[] keyBytes = keysOf(snapshot.proto).toByteArray();
+                Sha256Hash keysVersion = Sha256Hash.of(keyBytes);
+                if (!keysVersion.equals(keys)) {
+                    append(KEYS, keyBytes);
+                    keys = keysVersion;
+                }
+                byte[] restBytes = restOf(snapshot.proto).toByteArray();
+                Sha256Hash restVersion = Sha256Hash.of(restBytes);
+                if (!restVersion.equals(rest)) {
+                    append(WALLET, restBytes);
+                    rest = restVersion;
+                }
+                saved = snapshot.sequence;
+            }
+            if (journal.position() > start)
+                append(COMMIT, new byte[0]);
+            journal.sync();
+        } catch (IOException x) {
+            writeFailed(x);
+        }
+    }
+
+    private boolean isNewest(Sha256Hash txHash, Snapshot snapshot) {
+        Long sequence = written.get(txHash);
+        return sequence == null || sequence < snapshot.sequence;
+    }
+
+    private void append(int type, byte[] payload) throws IOException {
+        if (!journal.append(type, payload))
+            throw new IOException("Journal is no longer written to");
+    }
+
+    // The changes can only be saved in a new snapshot now. That is written in the background, as the caller may hold
+    // the wallet lock, which taking the snapshot needs.
+    private void writeFailed(IOException x) {
+        log.warn("Failed to append to {}, writing a new snapshot instead", journalFile, x);
+        if (recovering)
+            return;
+        recovering = true;
+        Threading.THREAD_POOL.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactInBackground();
+            }
+        });
+    }
+
+    /**
+     * Writes the given snapshot to the wallet file and starts a new journal, unless a newer snapshot has already
+     * been saved. Returns false in that case.
+     */
+    synchronized boolean compact(Snapshot snapshot) throws IOException {
+        checkArgument(snapshot.changed == null, "Not a snapshot of the whole wallet");
+        if (closed || snapshot.sequence <= saved)
+            return false;
+        Stopwatch watch = Stopwatch.createStarted();
+        long newGeneration = random.nextLong();
+        Protos.Extension marker = Protos.Extension.newBuilder().setId(EXTENSION_ID).setMandatory(false)
+                .setData(ByteString.copyFrom(generationBytes(newGeneration))).build();
+        File temp = File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            snapshot.proto.toBuilder().addExtension(marker).build().writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Wallet.replaceFile(temp, file);
+
+        // A crash from here on leaves the old journal, which is ignored as it's for the old generation.
+        if (journal != null)
+            journal.close();
+        if (journalFile.exists() && !journalFile.delete())
+            throw new IOException("Failed to delete " + journalFile);
+        journal = new FlatDBJournal(journalFile, MAGIC, params, compactionSize, new Runnable() {
+            @Override
+            public void run() {
+                compactInBackground();
+            }
+        });
+        journal.open(new FlatDBJournal.RecordHandler() {
+            @Override
+            public void applyJournalRecord(int type, byte[] payload) {
+                // it was just deleted
+            }
+        });
+        journal.append(GENERATION, generationBytes(newGeneration));
+        journal.sync();
+
+        Map<Sha256Hash, Sha256Hash> versions = new HashMap<Sha256Hash, Sha256Hash>();
+        for (Protos.Transaction tx : snapshot.proto.getTransactionList())
+            versions.put(WalletProtobufSerializer.byteStringToHash(tx.getHash()), versionOf(tx));
+        transactions = versions;
+        written.clear();
+        keys = Sha256Hash.of(keysOf(snapshot.proto).toByteArray());
+        rest = Sha256Hash.of(restOf(snapshot.proto).toByteArray());
+        saved = compacted = snapshot.sequence;
+        recovering = false;
+        log.info("Wrote wallet snapshot of {} transactions in {}", versions.size(), watch);
+        return true;
+    }
+
+    private void compactInBackground() {
+        try {
+            // Snapshots are taken without holding our lock, so one saved meanwhile can make ours stale.
+            while (!compact(fullSnapshot())) {
+                synchronized (this) {
+                    if (closed)
+                        return;
+                }
+            }
+        } catch (IOException x) {
+            log.error("Failed to compact the journal of {}", file, x);
+            synchronized (this) {
+                recovering = false;
+            }
+        }
+    }
+
+    /** Stops journaling. The wallet is loaded from the snapshot and the journal written so far. */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (journal != null)
+                journal.close();
+        }
+        // Not while holding our lock, which a thread saving with the wallet locked may be waiting for.
+        wallet.trackUnsavedTransactions(false);
+    }
+
+    /**
+     * Returns the hash that tells whether a transaction has changed since it was last saved. The depth of a confirmed
+     * transaction is left out, as it changes with every block and would have the whole history appended each time.
+     * It is worked out again from the height the transaction appeared at when the journal is replayed.
+     */
+    static Sha256Hash versionOf(Protos.Transaction tx) {
+        if (tx.hasConfidence() && tx.getConfidence().hasDepth())
+            tx = tx.toBuilder().setConfidence(tx.getConfidence().toBuilder().clearDepth()).build();
+        return Sha256Hash.of(tx.toByteArray());
+    }
+
+    // Only the keys of the wallet, as a partial wallet message.
+    private static Protos.Wallet keysOf(Protos.Wallet proto) {
+        return Protos.Wallet.newBuilder().addAllKey(proto.getKeyList()).buildPartial();
+    }
+
+    // Everything but the transactions and keys of the wallet.
+    private static Protos.Wallet restOf(Protos.Wallet proto) {
+        return proto.toBuilder().clearTransaction().clearKey().build();
+    }
+
+    private static byte[] generationBytes(long generation) {
+        byte[] bytes = new byte[8];
+        Utils.uint64ToByteArrayLE(generation, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Returns the given snapshot with the changes in the journal applied, or the snapshot itself if it wasn't
+     * written by a {@link WalletJournal} or the journal doesn't belong to it.
+     */
+    public static Protos.Wallet replay(Protos.Wallet snapshot, File journalFile) throws IOException {
+        Long generation = null;
+        for (Protos.Extension extension : snapshot.getExtensionList()) {
+            if (EXTENSION_ID.equals(extension.getId()) && extension.getData().size() == 8)
+                generation = Utils.readInt64(extension.getData().toByteArray(), 0);
+        }
+        if (generation == null || !journalFile.exists())
+            return snapshot;
+        NetworkParameters params = NetworkParameters.fromID(snapshot.getNetworkIdentifier());
+        if (params == null)
+            return snapshot;
+        Replay replay = new Replay(snapshot, generation);
+        // Only read, a torn record at the end is cut off when the wallet is next saved, which starts a new journal.
+        FlatDBJournal journal = new FlatDBJournal(journalFile, MAGIC, params, Long.MAX_VALUE, null);
+        int records = journal.replay(replay);
+        log.info("Replayed {} changes from {}", replay.matched ? records : 0, journalFile);
+        if (replay.uncommitted > 0)
+            log.warn("Dropped {} changes of a save that didn't finish", replay.uncommitted);
+        return replay.result();
+    }
+
+    /**
+     * Folds the journal of the given wallet file into it, leaving a wallet file in the usual format without a
+     * journal. Nothing must be saving the wallet meanwhile.
+     */
+    public static void mergeJournal(File walletFile) throws IOException {
+        FileInputStream input = new FileInputStream(walletFile);
+        Protos.Wallet proto;
+        try {
+            proto = WalletProtobufSerializer.parseToProto(input);
+        } finally {
+            input.close();
+        }
+        File journalFile = journalFileFor(walletFile);
+        proto = replay(proto, journalFile);
+        File temp = File.createTempFile("wallet", null, walletFile.getAbsoluteFile().getParentFile());
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            proto.writeTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Wallet.replaceFile(temp, walletFile);
+        if (journalFile.exists() && !journalFile.delete())
+            throw new IOException("Failed to delete " + journalFile);
+    }
+
+    // Applies the records of a journal to the parts of a snapshot, a save at a time once its commit record is read.
+    private static class Replay implements FlatDBJournal.RecordHandler {
+        private final long generation;
+        private final LinkedHashMap<Sha256Hash, Protos.Transaction> transactions =
+                new LinkedHashMap<Sha256Hash, Protos.Transaction>();
+        private List<Protos.Key> keys;
+        private Protos.Wallet rest;
+        // the records of the save being read, a removed transaction maps to null
+        private final LinkedHashMap<Sha256Hash, Protos.Transaction> batchTransactions =
+                new LinkedHashMap<Sha256Hash, Protos.Transaction>();
+        private List<Protos.Key> batchKeys;
+        private Protos.Wallet batchRest;
+        int uncommitted;
+        // whether the journal started with the generation of the snapshot, until then records are ignored
+        boolean matched;
+        private boolean started;
+
+        Replay(Protos.Wallet snapshot, long generation) {
+            this.generation = generation;
+            for (Protos.Transaction tx : snapshot.getTransactionList())
+                transactions.put(WalletProtobufSerializer.byteStringToHash(tx.getHash()), tx);
+            keys = snapshot.getKeyList();
+            rest = restOf(snapshot);
+        }
+
+        @Override
+        public void applyJournalRecord(int type, byte[] payload) throws ProtocolException {
+            if (!started) {
+                started = true;
+                matched = type == GENERATION && payload.length == 8 && Utils.readInt64(payload, 0) == generation;
+                if (!matched)
+                    log.warn("Ignoring journal of another snapshot");
+                return;
+            }
+            if (!matched)
+                return;
+            try {
+                switch (type) {
+                    case TRANSACTION:
+                        Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                        batchTransactions.put(WalletProtobufSerializer.byteStringToHash(tx.getHash()), tx);
+                        break;
+                    case REMOVE_TRANSACTION:
+                        batchTransactions.put(Sha256Hash.wrap(payload), null);
+                        break;
+                    case KEYS:
+                        batchKeys = Protos.Wallet.newBuilder().mergeFrom(payload).buildPartial().getKeyList();
+                        break;
+                    case WALLET:
+                        batchRest = Protos.Wallet.parseFrom(payload);
+                        break;
+                    case COMMIT:
+                        commit();
+                        return;
+                    default:
+                        log.warn("Ignoring unknown journal record type {}", type);
+                        return;
+                }
+                uncommitted++;
+            } catch (InvalidProtocolBufferException x) {
+                throw new ProtocolException(x);
+            }
+        }
+
+        private void commit() {
+            for (Map.Entry<Sha256Hash, Protos.Transaction> entry : batchTransactions.entrySet()) {
+                if (entry.getValue() != null)
+                    transactions.put(entry.getKey(), entry.getValue());
+                else
+                    transactions.remove(entry.getKey());
+            }
+            if (batchKeys != null)
+                keys = batchKeys;
+            if (batchRest != null)
+                rest = batchRest;
+            batchTransactions.clear();
+            batchKeys = null;
+            batchRest = null;
+            uncommitted = 0;
+        }
+
+        Protos.Wallet result() {
+            Protos.Wallet.Builder builder = rest.toBuilder();
+            // the generation is of no use without the journal
+            builder.clearExtension();
+            for (Protos.Extension extension : rest.getExtensionList())
+                if (!EXTENSION_ID.equals(extension.getId()))
+                    builder.addExtension(extension);
+            builder.addAllKey(keys);
+            boolean depths = matched && rest.hasLastSeenBlockHeight();
+            for (Protos.Transaction tx : transactions.values())
+                builder.addTransaction(depths ? withDepth(tx, rest.getLastSeenBlockHeight()) : tx);
+            return builder.build();
+        }
+
+        // Records don't keep the depth up to date, see versionOf, so it is worked out from the best height.
+        private static Protos.Transaction withDepth(Protos.Transaction tx, int bestHeight) {
+            if (!tx.hasConfidence())
+                return tx;
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+                return tx;
+            int depth = bestHeight - confidence.getAppearedAtHeight() + 1;
+            if (depth < 1 || confidence.hasDepth() && confidence.getDepth() == depth)
+                return tx;
+            return tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+        }
+    }
+}
@@ -31,6 +31,8 @@ import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.WireFormat;
 
@@ -38,6 +40,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -78,6 +82,7 @@ public class WalletProtobufSerializer {
     protected Map<ByteString, Transaction> txMap;
 
     private boolean requireMandatoryExtensions = true;
+    private boolean loadTransactionsLazily = false;
 
     public interface WalletFactory {
         Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup);
@@ -114,6 +119,20 @@ public class WalletProtobufSerializer {
         requireMandatoryExtensions = value;
     }
 
+    /**
+     * If this property is set to true, spent and dead transactions are not turned into {@link Transaction} objects when
+     * a wallet is read. Only their hash and pool are looked at, and they are read into the wallet the first time it
+     * needs them, or when {@link Wallet#loadDeferredTransactions()} is called. A wallet with a long history can be
+     * shown and spent from much sooner this way, as balances and coin selection only need the unspent and pending
+     * transactions. Saving the wallet writes them out again as they were read, and a transaction that is received
+     * only reads them if it depends on or double spends one of them. Anything that looks at the whole history, like a
+     * new best block updating the depths, reads the rest first. Any corruption in the deferred transactions is only
+     * found then, and is thrown as an {@link IllegalStateException}.
+     */
+    public void setLoadTransactionsLazily(boolean value) {
+        loadTransactionsLazily = value;
+    }
+
     /**
      * Formats the given wallet (transactions and keys) to the given output stream in protocol buffer format.<p>
      *
@@ -141,15 +160,38 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, true);
+    }
+
+    /**
+     * Like {@link #walletToProto(Wallet)}, but leaves out the transactions, which {@link WalletJournal} converts
+     * only when they have changed.
+     */
+    Protos.Wallet walletToProtoWithoutTransactions(Wallet wallet) {
+        return walletToProto(wallet, false);
+    }
+
+    private Protos.Wallet walletToProto(Wallet wallet, boolean withTransactions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
-            Protos.Transaction txProto = makeTxProto(wtx);
-            walletBuilder.addTransaction(txProto);
+        if (withTransactions) {
+            List<ByteString> deferred = new ArrayList<ByteString>();
+            for (WalletTransaction wtx : wallet.getWalletTransactions(deferred)) {
+                Protos.Transaction txProto = makeTxProto(wtx);
+                walletBuilder.addTransaction(txProto);
+            }
+            // Nothing changes a deferred transaction without reading it first, so it is saved as it was read.
+            for (ByteString txBytes : deferred) {
+                try {
+                    walletBuilder.addTransaction(parseDeferredTransaction(txBytes));
+                } catch (UnreadableWalletException e) {
+                    throw new IllegalStateException("Could not read deferred transaction", e);
+                }
+            }
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
@@ -228,7 +270,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -423,12 +465,9 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+            DeferredTransactions deferred = new DeferredTransactions();
+            Protos.Wallet walletProto = loadTransactionsLazily ? parseToProto(input, deferred) : parseToProto(input);
+            return readWallet(walletProto, forceReset, extensions, deferred);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
@@ -438,6 +477,46 @@ public class WalletProtobufSerializer {
         }
     }
 
+    /**
+     * <p>Loads a wallet from the given file like {@link #readWallet(InputStream, boolean, WalletExtension[])}. If the
+     * file is a snapshot written by a {@link WalletJournal}, the changes in its journal are applied first.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(File file, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto;
+            DeferredTransactions deferred = new DeferredTransactions();
+            File journalFile = WalletJournal.journalFileFor(file);
+            // The journal can change or remove any transaction, so with one the whole snapshot has to be parsed.
+            boolean streaming = loadTransactionsLazily && !journalFile.exists();
+            FileInputStream input = new FileInputStream(file);
+            try {
+                walletProto = streaming ? parseToProto(input, deferred) : parseToProto(input);
+            } finally {
+                input.close();
+            }
+            if (!streaming)
+                walletProto = WalletJournal.replay(walletProto, journalFile);
+            return readWallet(walletProto, forceReset, extensions, deferred);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not parse " + file + " to protobuf", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse " + file + " to protobuf", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse " + file + " to protobuf", e);
+        }
+    }
+
+    private Wallet readWallet(Protos.Wallet walletProto, boolean forceReset, @Nullable WalletExtension[] extensions,
+                              DeferredTransactions deferred) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        return readWallet(params, extensions, walletProto, forceReset, deferred);
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -472,6 +551,16 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, forceReset, new DeferredTransactions());
+    }
+
+    /**
+     * Reads the wallet, where {@code deferred} holds the serialized spent and dead transactions that were already
+     * split off from the proto while streaming it.
+     */
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, boolean forceReset,
+                              DeferredTransactions deferred) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -512,17 +601,52 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
         } else {
+            List<Protos.Transaction> txProtos = walletProto.getTransactionList();
+            if (loadTransactionsLazily) {
+                txProtos = new ArrayList<Protos.Transaction>();
+                try {
+                    for (Protos.Transaction txProto : walletProto.getTransactionList()) {
+                        if (!isDeferrable(txProto.getPool().getNumber()))
+                            txProtos.add(txProto);
+                        else if (!deferred.add(txProto.getHash(), txProto.getPool().getNumber(), txProto.toByteString()))
+                            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+                    }
+                } catch (IOException e) {
+                    throw new UnreadableWalletException("Could not parse transaction", e);
+                }
+            }
+
             // Read all transactions and insert into the txMap.
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+            for (Protos.Transaction txProto : txProtos) {
+                if (deferred.contains(txProto.getHash()))
+                    throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
+                readTransaction(txProto, wallet.getParams(), txMap);
+            }
+
+            // Deferred transactions that spend outputs of these ones are needed now to know which outputs are still
+            // available. They join their pools later, along with the rest.
+            for (Protos.Transaction txProto : txProtos) {
+                for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+                    ByteString spentBy = outputProto.getSpentByTransactionHash();
+                    if (outputProto.hasSpentByTransactionHash() && !txMap.containsKey(spentBy) && deferred.contains(spentBy))
+                        readTransaction(parseDeferredTransaction(deferred.get(spentBy)), params, txMap);
+                }
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (Protos.Transaction txProto : txProtos) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, txMap);
                 wallet.addWalletTransaction(wtx);
             }
 
+            if (!deferred.isEmpty()) {
+                log.info("Deferring {} spent and dead transactions until they are needed", deferred.size());
+                deferred.connect(params, txMap);
+                wallet.setDeferredTransactions(deferred);
+                // The map now belongs to the deferred transactions.
+                txMap = new HashMap<ByteString, Transaction>();
+            }
+
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
                 wallet.setLastBlockSeenHash(null);
@@ -612,7 +736,192 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /**
+     * Streams the wallet from the given input like {@link #parseToProto(InputStream)}, except that spent and dead
+     * transactions are not parsed. They are put into {@code deferred} as they were serialized.
+     */
+    private static Protos.Wallet parseToProto(InputStream input, DeferredTransactions deferred) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything else is copied as it is and parsed at the end.
+        ByteString.Output rest = ByteString.newOutput();
+        CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+        int tag;
+        while ((tag = codedInput.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != Protos.Wallet.TRANSACTION_FIELD_NUMBER) {
+                codedInput.skipField(tag, restOutput);
+                continue;
+            }
+            ByteString txBytes = codedInput.readBytes();
+            if (!deferred.addIfDeferrable(txBytes))
+                restOutput.writeBytes(Protos.Wallet.TRANSACTION_FIELD_NUMBER, txBytes);
+        }
+        restOutput.flush();
+        CodedInputStream restInput = rest.toByteString().newCodedInput();
+        restInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        return Protos.Wallet.parseFrom(restInput);
+    }
+
+    private static boolean isDeferrable(int pool) {
+        return pool == Protos.Transaction.Pool.SPENT_VALUE || pool == Protos.Transaction.Pool.DEAD_VALUE;
+    }
+
+    private static Protos.Transaction parseDeferredTransaction(ByteString txBytes) throws UnreadableWalletException {
+        try {
+            return Protos.Transaction.parseFrom(txBytes);
+        } catch (InvalidProtocolBufferException e) {
+            throw new UnreadableWalletException("Could not parse transaction", e);
+        }
+    }
+
+    /**
+     * The spent and dead transactions of a wallet read with {@link #setLoadTransactionsLazily(boolean)}, as they were
+     * serialized. They are read by the wallet the first time it uses those pools. Until then, the outpoints they spend
+     * are kept so that double spends against them can still be found.
+     */
+    class DeferredTransactions {
+        private NetworkParameters params;
+        // All transactions read so far, so the deferred ones can be connected to them.
+        private Map<ByteString, Transaction> txMap;
+        // The serialized transactions by hash, the hashes of the dead ones and the outpoints spent by any of them.
+        private final Map<ByteString, ByteString> deferred = new LinkedHashMap<ByteString, ByteString>();
+        private final Set<ByteString> dead = new HashSet<ByteString>();
+        private final Set<ByteString> spentOutPoints = new HashSet<ByteString>();
+
+        /**
+         * Looks at just the hash, pool and inputs of a serialized transaction, and adds it if it can be read lazily.
+         * Returns false if it has to be read with the wallet.
+         */
+        private boolean addIfDeferrable(ByteString txBytes) throws IOException {
+            CodedInputStream input = txBytes.newCodedInput();
+            ByteString hash = null;
+            int pool = -1;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.Transaction.HASH_FIELD_NUMBER)
+                    hash = input.readBytes();
+                else if (field == Protos.Transaction.POOL_FIELD_NUMBER)
+                    pool = input.readEnum();
+                else
+                    input.skipField(tag);
+            }
+            if (!isDeferrable(pool))
+                return false;
+            if (!add(hash, pool, txBytes))
+                throw new IOException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+            return true;
+        }
+
+        /** Adds a spent or dead transaction. Returns false if one with the same hash was already added. */
+        private boolean add(ByteString hash, int pool, ByteString txBytes) throws IOException {
+            if (deferred.put(hash, txBytes) != null)
+                return false;
+            if (pool == Protos.Transaction.Pool.DEAD_VALUE)
+                dead.add(hash);
+            CodedInputStream input = txBytes.newCodedInput();
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == Protos.Transaction.TRANSACTION_INPUT_FIELD_NUMBER)
+                    addSpentOutPoint(input.readBytes());
+                else
+                    input.skipField(tag);
+            }
+            return true;
+        }
+
+        private void addSpentOutPoint(ByteString inputBytes) throws IOException {
+            CodedInputStream input = inputBytes.newCodedInput();
+            ByteString hash = null;
+            long index = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.TransactionInput.TRANSACTION_OUT_POINT_HASH_FIELD_NUMBER)
+                    hash = input.readBytes();
+                else if (field == Protos.TransactionInput.TRANSACTION_OUT_POINT_INDEX_FIELD_NUMBER)
+                    index = input.readUInt32() & 0xFFFFFFFFL;
+                else
+                    input.skipField(tag);
+            }
+            if (hash != null)
+                spentOutPoints.add(outPointKey(hash, index));
+        }
+
+        private ByteString outPointKey(ByteString hash, long index) {
+            byte[] indexBytes = new byte[4];
+            Utils.uint32ToByteArrayLE(index, indexBytes, 0);
+            return hash.concat(ByteString.copyFrom(indexBytes));
+        }
+
+        /** Sets what the transactions are connected to once they are read. */
+        private void connect(NetworkParameters params, Map<ByteString, Transaction> txMap) {
+            this.params = params;
+            this.txMap = txMap;
+        }
+
+        private boolean contains(ByteString hash) {
+            return deferred.containsKey(hash);
+        }
+
+        private ByteString get(ByteString hash) {
+            return deferred.get(hash);
+        }
+
+        private boolean isEmpty() {
+            return deferred.isEmpty();
+        }
+
+        int size() {
+            return deferred.size();
+        }
+
+        /** Returns the number of transactions that belong in the given pool, or in any pool if it is null. */
+        int size(@Nullable WalletTransaction.Pool pool) {
+            if (pool == null)
+                return deferred.size();
+            else if (pool == WalletTransaction.Pool.DEAD)
+                return dead.size();
+            else if (pool == WalletTransaction.Pool.SPENT)
+                return deferred.size() - dead.size();
+            else
+                return 0;
+        }
+
+        /** Returns true if the transaction with the given hash is one of these. */
+        boolean contains(Sha256Hash hash) {
+            return deferred.containsKey(hashToByteString(hash));
+        }
+
+        /** Returns true if one of these transactions spends the given outpoint. */
+        boolean spends(TransactionOutPoint outpoint) {
+            return spentOutPoints.contains(outPointKey(hashToByteString(outpoint.getHash()), outpoint.getIndex()));
+        }
+
+        /** Returns the transactions as they were serialized. */
+        Collection<ByteString> serialized() {
+            return Collections.unmodifiableCollection(deferred.values());
+        }
+
+        /** Reads the transactions and connects them to the rest of the wallet, ready to be added to their pools. */
+        List<WalletTransaction> read() throws UnreadableWalletException {
+            List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>(deferred.size());
+            for (ByteString txBytes : deferred.values())
+                txProtos.add(parseDeferredTransaction(txBytes));
+            for (Protos.Transaction txProto : txProtos) {
+                // Some were already read because they spend outputs of unspent or pending transactions.
+                if (!txMap.containsKey(txProto.getHash()))
+                    readTransaction(txProto, params, txMap);
+            }
+            List<WalletTransaction> wtxs = new ArrayList<WalletTransaction>(txProtos.size());
+            for (Protos.Transaction txProto : txProtos)
+                wtxs.add(connectTransactionOutputs(params, txProto, txMap));
+            return wtxs;
+        }
+    }
+
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         boolean isIX = txProto.getConfidence().hasIxType() && txProto.getConfidence().getIxType() != Protos.TransactionConfidence.IXType.IX_NONE;
         Transaction tx = !isIX ? new Transaction(params) : new TransactionLockRequest(params);
 
@@ -689,7 +998,8 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -727,7 +1037,7 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            readConfidence(params, tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
@@ -735,7 +1045,8 @@ public class WalletProtobufSerializer {
 
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
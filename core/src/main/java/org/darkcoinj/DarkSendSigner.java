@@ -16,6 +16,12 @@ import java.security.SignatureException;
  */
 public class DarkSendSigner {
     private static final Logger log = LoggerFactory.getLogger(DarkSendPool.class);
+
+    // How many verified signatures to remember, enough for every broadcast and ping of a full masternode list.
+    public static final int VERIFIED_SIGNATURE_CACHE_SIZE = 20000;
+
+    static final VerifiedSignatureCache verifiedSignatures = new VerifiedSignatureCache(VERIFIED_SIGNATURE_CACHE_SIZE);
+
     public static boolean isVinAssociatedWithPubkey(NetworkParameters params, TransactionInput vin, PublicKey pubkey) {
         //TODO:  This function requires the blockchain!  we don't have it
        Script payee2 = ScriptBuilder.createOutputScript(new Address(params, ECKey.fromPublicOnly(pubkey.getBytes()).getPubKeyHash()));
@@ -79,9 +85,15 @@ public class DarkSendSigner {
         try {
             //pubkey2 = PublicKey.recoverCompact(Sha256Hash.twiceOf(dataToHash), vchSig);
 
+            byte [] message = strMessage.getBytes();
+            Sha256Hash key = VerifiedSignatureCache.key(pubkey.getBytes(), message, vchSig.getBytes());
+            if (verifiedSignatures.contains(key))
+                return true;
+
             pubkey2 = ECKey.fromPublicOnly(pubkey.getBytes());
 
-            pubkey2.verifyMessage(strMessage.getBytes(), vchSig.getBytes());
+            pubkey2.verifyMessage(message, vchSig.getBytes());
+            verifiedSignatures.add(key);
 
             //ECKey.verify()
 
@@ -127,9 +139,14 @@ public class DarkSendSigner {
             //return pubkey.getId().equals(pubkey2.getId());
             //return true;
 
+            Sha256Hash key = VerifiedSignatureCache.key(pubkey.getBytes(), message, vchSig.getBytes());
+            if (verifiedSignatures.contains(key))
+                return true;
+
             pubkey2 = ECKey.fromPublicOnly(pubkey.getBytes());
 
             pubkey2.verifyMessage(message, vchSig.getBytes());
+            verifiedSignatures.add(key);
 
             return true;
 
@@ -145,4 +162,9 @@ public class DarkSendSigner {
         }
     }
 
+    /** Forgets every signature that {@link #verifyMessage} and {@link #verifyMessage1} have verified. */
+    public static void clearVerifiedSignatures()
+    {
+        verifiedSignatures.clear();
+    }
 }
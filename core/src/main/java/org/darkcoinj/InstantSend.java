@@ -2,12 +2,13 @@ package org.darkcoinj;
 
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
-import org.bitcoinj.utils.Threading;
+import org.bitcoinj.utils.StripedLock;
+import org.bitcoinj.utils.TimingWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.security.provider.SHA;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.bitcoinj.core.DarkCoinSystem.fMasterNode;
@@ -16,36 +17,57 @@ import static org.bitcoinj.core.SporkManager.SPORK_3_INSTANTSEND_BLOCK_FILTERING
 
 /**
  * Created by Eric on 2/8/2015.
+ *
+ * <p>Votes and lock requests for different transactions are processed in parallel. The maps are concurrent, so a
+ * single lookup needs no locking, and compound updates are guarded by two sets of striped locks:</p>
+ * <ul>
+ *     <li>{@link #txLocks}, by tx hash, guards a lock candidate: creating it, adding its votes and completing it.</li>
+ *     <li>{@link #outpointLocks}, by outpoint, guards everything about one outpoint across all the candidates: its
+ *     entries in {@link #mapVotedOutpoints} and {@link #mapLockedOutpoints}, the votes and attacked flag of every
+ *     {@link TransactionOutPointLock} for it, and the orphan vote rate of a masternode (keyed by its outpoint).</li>
+ * </ul>
+ * <p>A tx stripe is always taken before any outpoint stripe, never while one is held, and never two of them at
+ * once. Several outpoint stripes are only ever taken together through {@link StripedLock#lockAll(Iterable)}.</p>
+ *
+ * <p>Entries that expire are put on a {@link TimingWheel} when their expiry becomes known, by block height for lock
+ * candidates and votes and by time for orphan votes, so {@link #checkAndRemove()} only visits the expired ones.</p>
  */
 public class InstantSend {
     private static final Logger log = LoggerFactory.getLogger(InstantSend.class);
     public static final int MIN_INSTANTSEND_PROTO_VERSION = 70208;
     public static final int INSTANTSEND_TIMEOUT_SECONDS        = 65;
     //private static final int ORPHAN_VOTE_SECONDS            = 60;
+    public static final int LOCK_STRIPES = 64;
 
-
-    ReentrantLock lock = Threading.lock("InstantSend");
+    final StripedLock txLocks = new StripedLock("InstantSend-tx", LOCK_STRIPES);
+    final StripedLock outpointLocks = new StripedLock("InstantSend-outpoint", LOCK_STRIPES);
 
     //StoredBlock currentBlock;
-    int cachedBlockHeight;
+    volatile int cachedBlockHeight;
+
+    public ConcurrentHashMap<Sha256Hash, TransactionLockRequest> mapLockRequestAccepted;
+    public ConcurrentHashMap<Sha256Hash, TransactionLockRequest> mapLockRequestRejected;
+    public ConcurrentHashMap<Sha256Hash, TransactionLockVote> mapTxLockVotes;
+    public ConcurrentHashMap<Sha256Hash, TransactionLockVote> mapTxLockVotesOrphan;
+    public ConcurrentHashMap<Sha256Hash, TransactionLockCandidate> mapTxLockCandidates;
 
-    public HashMap<Sha256Hash, TransactionLockRequest> mapLockRequestAccepted;
-    public HashMap<Sha256Hash, TransactionLockRequest> mapLockRequestRejected;
-    public HashMap<Sha256Hash, TransactionLockVote> mapTxLockVotes;
-    public HashMap<Sha256Hash, TransactionLockVote> mapTxLockVotesOrphan;
-    public HashMap<Sha256Hash, TransactionLockCandidate> mapTxLockCandidates;
 
+    public ConcurrentHashMap<Sha256Hash, TransactionLock> mapTxLocks;
+    public ConcurrentHashMap<TransactionOutPoint, Set<Sha256Hash>> mapVotedOutpoints; // utxo - tx hash set
+    public ConcurrentHashMap<TransactionOutPoint, Sha256Hash> mapLockedOutpoints;
+    public ConcurrentHashMap<TransactionOutPoint, Long> mapMasternodeOrphanVotes; //track votes with no tx for DOS
 
-    public HashMap<Sha256Hash, TransactionLock> mapTxLocks;
-    public HashMap<TransactionOutPoint, Set<Sha256Hash>> mapVotedOutpoints; // utxo - tx hash set
-    public HashMap<TransactionOutPoint, Sha256Hash> mapLockedOutpoints;
-    public HashMap<TransactionOutPoint, Long> mapMasternodeOrphanVotes; //track votes with no tx for DOS
+    // when the entries of the maps above expire, heights for candidates and votes and times for the orphan votes
+    final TimingWheel<Sha256Hash> candidateExpiry = new TimingWheel<Sha256Hash>(0);
+    final TimingWheel<Sha256Hash> voteExpiry = new TimingWheel<Sha256Hash>(0);
+    final TimingWheel<Sha256Hash> orphanVoteExpiry = new TimingWheel<Sha256Hash>(Utils.currentTimeSeconds());
+    final TimingWheel<TransactionOutPoint> masternodeOrphanVoteExpiry = new TimingWheel<TransactionOutPoint>(Utils.currentTimeSeconds());
 
     public static int nInstantSendKeepLock = 24;
     int nCompleteTXLocks;
 
     //our internal stuff
-    HashMap<Sha256Hash, Peer> mapAcceptedLockReq;
+    ConcurrentHashMap<Sha256Hash, Peer> mapAcceptedLockReq;
 
     /*
     At 15 signatures, 1/2 of the masternode network can be owned by
@@ -87,17 +109,17 @@ public class InstantSend {
     public InstantSend(Context context)
     {
         this.context = context;
-        this.mapLockRequestAccepted = new HashMap<Sha256Hash, TransactionLockRequest>();
-        this.mapLockRequestRejected = new HashMap<Sha256Hash, TransactionLockRequest>();
-        this.mapTxLockVotes = new HashMap<Sha256Hash, TransactionLockVote>();
-        this.mapTxLocks = new HashMap<Sha256Hash, TransactionLock>();
-        this.mapMasternodeOrphanVotes = new HashMap<TransactionOutPoint, Long>();
-        this.mapLockedOutpoints = new HashMap<TransactionOutPoint, Sha256Hash>();
-        this.mapAcceptedLockReq = new HashMap<Sha256Hash, Peer>();
-
-        mapTxLockCandidates = new HashMap<Sha256Hash, TransactionLockCandidate>();
-        mapTxLockVotesOrphan = new HashMap<Sha256Hash, TransactionLockVote>();
-        mapVotedOutpoints = new HashMap<TransactionOutPoint, Set<Sha256Hash>>();
+        this.mapLockRequestAccepted = new ConcurrentHashMap<Sha256Hash, TransactionLockRequest>();
+        this.mapLockRequestRejected = new ConcurrentHashMap<Sha256Hash, TransactionLockRequest>();
+        this.mapTxLockVotes = new ConcurrentHashMap<Sha256Hash, TransactionLockVote>();
+        this.mapTxLocks = new ConcurrentHashMap<Sha256Hash, TransactionLock>();
+        this.mapMasternodeOrphanVotes = new ConcurrentHashMap<TransactionOutPoint, Long>();
+        this.mapLockedOutpoints = new ConcurrentHashMap<TransactionOutPoint, Sha256Hash>();
+        this.mapAcceptedLockReq = new ConcurrentHashMap<Sha256Hash, Peer>();
+
+        mapTxLockCandidates = new ConcurrentHashMap<Sha256Hash, TransactionLockCandidate>();
+        mapTxLockVotesOrphan = new ConcurrentHashMap<Sha256Hash, TransactionLockVote>();
+        mapVotedOutpoints = new ConcurrentHashMap<TransactionOutPoint, Set<Sha256Hash>>();
 
         masterNodes = MasterNodeSystem.get();
 
@@ -233,21 +255,11 @@ public class InstantSend {
 
         //Adding to known inventory in Dash Core, we will skip that.
 
-        try {
-            lock.lock();
-            Sha256Hash voteHash = vote.getHash();
-
-            if(mapTxLockVotes.containsKey(voteHash))
-                return;
-
-            mapTxLockVotes.put(voteHash, vote);
-
-            processTxLockVote(pfrom, vote);
+        // only the first thread to see a vote processes it
+        if(mapTxLockVotes.putIfAbsent(vote.getHash(), vote) != null)
+            return;
 
-        }
-        finally {
-            lock.unlock();
-        }
+        processTxLockVote(pfrom, vote);
 
 
         /*if(mapTxLockVotes.containsKey(vote.getHash())){
@@ -455,93 +467,121 @@ public class InstantSend {
         // if n = -1, then masternodes are loaded, but this masternode cannot be found
         // if n = -2, then the block hash cannot be found in the Block Store
         // if n = -3, then Lite Mode is ON - we will not verify any thing.
-        try {
-            lock.lock();
-
-            Sha256Hash txHash = vote.getTxHash();
+        Sha256Hash txHash = vote.getTxHash();
 
-            if(!vote.isValid(pnode))
-            {
-                // could be because of missing MN
-                log.info("instantsend - CInstantSend::ProcessTxLockVote -- Vote is invalid, txid="+ txHash.toString());
-                return false;
-            }
+        // checked before taking any lock, votes for the same transaction can verify their signatures in parallel
+        if(!vote.isValid(pnode))
+        {
+            // could be because of missing MN
+            log.info("instantsend - CInstantSend::ProcessTxLockVote -- Vote is invalid, txid="+ txHash.toString());
+            return false;
+        }
 
-            // relay valid, vote asap
-            vote.relay();
+        // relay valid, vote asap
+        vote.relay();
 
+        TransactionLockRequest lockRequestToReprocess = null;
+        boolean result;
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
+        try {
             // Masternodes will sometimes propagate votes before the transaction is known to the client,
             // will actually process only after the lock request itself has arrived
 
             TransactionLockCandidate it = mapTxLockCandidates.get(txHash);
-            if(mapTxLockCandidates.containsKey(txHash) && it.txLockRequest == null) {
+            if(it != null && it.txLockRequest == null) {
                 if(!mapTxLockVotesOrphan.containsKey(vote.getHash())) {
                     // start timeout countdown after the very first vote
                     createEmptyTxLockCandidate(txHash);
 
                     mapTxLockVotesOrphan.put(vote.getHash(), vote);
+                    orphanVoteExpiry.schedule(vote.getHash(), vote.getTimeCreated() + INSTANTSEND_TIMEOUT_SECONDS + 1);
                     log.info("instantsend--CInstantSend::ProcessTxLockVote -- Orphan vote: txid="+txHash.toString()+"  masternode="+vote.getOutpointMasternode().toString()+" new\n");
-                    boolean fReprocess = true;
 
                     TransactionLockRequest lockRequest = mapLockRequestAccepted.get(txHash);
-                    if(lockRequest == null) {
+                    if(lockRequest == null)
                         lockRequest = mapLockRequestRejected.get(txHash);
-                        if(lockRequest == null) {
-                            // still too early, wait for tx lock request
-                            fReprocess = false;
-                        }
-                    }
-                    if(fReprocess && isEnoughOrphanVotesForTx(lockRequest)) {
+                    // if it is still null it's too early, wait for tx lock request
+                    if(lockRequest != null && isEnoughOrphanVotesForTx(lockRequest)) {
                         // We have enough votes for corresponding lock to complete,
                         // tx lock request should already be received at this stage.
                         log.info("instantsend--CInstantSend::ProcessTxLockVote -- Found enough orphan votes, reprocessing Transaction Lock Request: txid="+ txHash.toString());
-                        processTxLockRequest(lockRequest);
-                        return true;
+                        lockRequestToReprocess = lockRequest;
                     }
                 } else {
                     log.info("instantsend--CInstantSend::ProcessTxLockVote -- Orphan vote: txid="+txHash.toString()+"  masternode="+vote.getOutpointMasternode().toString()+" seen");
                 }
+                result = lockRequestToReprocess != null || checkMasternodeOrphanVoteRate(vote);
+            } else {
+                result = processTxLockVoteForCandidate(it, vote);
+            }
+        }
+        finally {
+            txLock.unlock();
+        }
 
-                // This tracks those messages and allows only the same rate as of the rest of the network
-                // TODO: make sure this works good enough for multi-quorum
+        // The lock request goes on to process the orphan votes of every transaction, so it mustn't run while we
+        // hold the stripe of this one.
+        if(lockRequestToReprocess != null)
+            processTxLockRequest(lockRequestToReprocess);
+        return result;
+    }
 
-                long nMasternodeOrphanExpireTime = Utils.currentTimeSeconds() + 60*10; // keep time data for 10 minutes
-                if(!mapMasternodeOrphanVotes.containsKey(vote.getOutpointMasternode())) {
-                    mapMasternodeOrphanVotes.put(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime);
-                } else {
-                    long nPrevOrphanVote = mapMasternodeOrphanVotes.get(vote.getOutpointMasternode());
-                    if(nPrevOrphanVote > Utils.currentTimeSeconds() && nPrevOrphanVote > getAverageMasternodeOrphanVoteTime()) {
-                        log.info("instantsend--CInstantSend::ProcessTxLockVote -- masternode is spamming orphan Transaction Lock Votes: txid="+txHash+"  masternode=", vote.getOutpointMasternode().toStringShort());
-                        // Misbehaving(pfrom->id, 1);
-                        return false;
-                    }
-                    // not spamming, refresh
-                    mapMasternodeOrphanVotes.put(vote.getOutpointMasternode(),nMasternodeOrphanExpireTime);
-                }
+    // Returns false if the masternode that cast this orphan vote is sending them faster than the rest of the network.
+    private boolean checkMasternodeOrphanVoteRate(TransactionLockVote vote)
+    {
+        // This tracks those messages and allows only the same rate as of the rest of the network
+        // TODO: make sure this works good enough for multi-quorum
 
-                return true;
+        ReentrantLock masternodeLock = outpointLocks.get(vote.getOutpointMasternode());
+        masternodeLock.lock();
+        try {
+            long nMasternodeOrphanExpireTime = Utils.currentTimeSeconds() + 60*10; // keep time data for 10 minutes
+            Long nPrevOrphanVote = mapMasternodeOrphanVotes.get(vote.getOutpointMasternode());
+            if(nPrevOrphanVote != null) {
+                if(nPrevOrphanVote > Utils.currentTimeSeconds() && nPrevOrphanVote > getAverageMasternodeOrphanVoteTime()) {
+                    log.info("instantsend--CInstantSend::ProcessTxLockVote -- masternode is spamming orphan Transaction Lock Votes: txid="+vote.getTxHash()+"  masternode="+ vote.getOutpointMasternode().toStringShort());
+                    // Misbehaving(pfrom->id, 1);
+                    return false;
+                }
+                // not spamming, refresh
             }
+            mapMasternodeOrphanVotes.put(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime);
+            masternodeOrphanVoteExpiry.schedule(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime + 1);
+            return true;
+        } finally {
+            masternodeLock.unlock();
+        }
+    }
 
-            TransactionLockCandidate txLockCandidate = it;
-            if(txLockCandidate == null)
-            {
-                log.info("instantsend--CInstantSend::ProcessTxLockVote -- txLockCandidate does not exist for txid="+ txHash.toString());
-                return false;
-            }
-            if(txLockCandidate.isTimedOut())
-            {
-                log.info("instantsend--CInstantSend::ProcessTxLockVote -- too late, Transaction Lock timed out, txid="+ txHash.toString());
-                return false;
-            }
+    // Called with the stripe of the vote's transaction held.
+    private boolean processTxLockVoteForCandidate(TransactionLockCandidate txLockCandidate, TransactionLockVote vote)
+    {
+        Sha256Hash txHash = vote.getTxHash();
+        if(txLockCandidate == null)
+        {
+            log.info("instantsend--CInstantSend::ProcessTxLockVote -- txLockCandidate does not exist for txid="+ txHash.toString());
+            return false;
+        }
+        if(txLockCandidate.isTimedOut())
+        {
+            log.info("instantsend--CInstantSend::ProcessTxLockVote -- too late, Transaction Lock timed out, txid="+ txHash.toString());
+            return false;
+        }
 
-            log.info("instantsend--CInstantSend::ProcessTxLockVote -- Transaction Lock Vote, txid="+txHash.toString());
+        log.info("instantsend--CInstantSend::ProcessTxLockVote -- Transaction Lock Vote, txid="+txHash.toString());
 
+        // Votes on the same outpoint for different transactions are serialized here, which is what lets us see a
+        // masternode voting for two conflicting transactions.
+        ReentrantLock outpointLock = outpointLocks.get(vote.getOutpoint());
+        outpointLock.lock();
+        try {
             Set<Sha256Hash> it1 = mapVotedOutpoints.get(vote.getOutpoint());
 
             if(it1 != null) {
                 for(Sha256Hash hash : it1)
                 {
-                    if(hash != txHash) {
+                    if(!hash.equals(txHash)) {
                         // same outpoint was already voted to be locked by another tx lock request,
                         // let's see if it was the same masternode who voted on this outpoint
                         // for another tx lock request
@@ -580,19 +620,17 @@ public class InstantSend {
                 // this should never happen
                 return false;
             }
+        } finally {
+            outpointLock.unlock();
+        }
 
-            int nSignatures = txLockCandidate.countVotes();
-            int nSignaturesMax = txLockCandidate.txLockRequest.getMaxSignatures();
-            log.info("instantsend--CInstantSend::ProcessTxLockVote -- Transaction Lock signatures count: "+nSignatures+"/"+nSignaturesMax+", vote hash="+ vote.getHash());
-
-            tryToFinalizeLockCandidate(txLockCandidate);
+        int nSignatures = txLockCandidate.countVotes();
+        int nSignaturesMax = txLockCandidate.txLockRequest.getMaxSignatures();
+        log.info("instantsend--CInstantSend::ProcessTxLockVote -- Transaction Lock signatures count: "+nSignatures+"/"+nSignaturesMax+", vote hash="+ vote.getHash());
 
-            return true;
+        tryToFinalizeLockCandidate(txLockCandidate);
 
-        }
-        finally {
-            lock.unlock();
-        }
+        return true;
 
         /*int n = context.masternodeManager.getMasternodeRank(vote.vinMasternode, vote.blockHeight, MIN_INSTANTX_PROTO_VERSION, true);
 
@@ -676,29 +714,22 @@ public class InstantSend {
     }
     public void acceptLockRequest(TransactionLockRequest txLockRequest)
     {
-        try {
-            lock.lock();
-
-            mapLockRequestAccepted.put(txLockRequest.getHash(), txLockRequest);
-        }
-        finally {
-            lock.unlock();
-        }
+        mapLockRequestAccepted.put(txLockRequest.getHash(), txLockRequest);
     }
 
     public boolean processTxLockRequest(TransactionLockRequest txLockRequest)
     {
-        try {
-            lock.lock();
-
-
-            Sha256Hash txHash = txLockRequest.getHash();
+        Sha256Hash txHash = txLockRequest.getHash();
+        TransactionLockCandidate txLockCandidate;
 
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
+        try {
             // Check to see if we conflict with existing completed lock
             for(TransactionInput txin : txLockRequest.getInputs())
             {
                 Sha256Hash it = mapLockedOutpoints.get(txin.getOutpoint());
-                if (it != null && it.equals(txLockRequest.getHash())) {
+                if (it != null && !it.equals(txLockRequest.getHash())) {
                     // Conflicting with complete lock, proceed to see if we should cancel them both
                     // (this could be the one we have but we don't want to try to lock it twice anyway)
                     log.info("CInstantSend::ProcessTxLockRequest -- WARNING: Found conflicting completed Transaction Lock, txid="+txLockRequest.getHash()+", completed lock txid="+
@@ -710,15 +741,21 @@ public class InstantSend {
             // if so - do not fail, just warn user
 
             for(TransactionInput txin : txLockRequest.getInputs()){
-                Set<Sha256Hash> it = mapVotedOutpoints.get(txin.getOutpoint());
-                if (it != null) {
-                    for(Sha256Hash hash : it)
-                    {
-                        if (!hash.equals(txLockRequest.getHash())) {
-                            log.info("instantsend--CInstantSend::ProcessTxLockRequest -- Double spend attempt! %s"+ txin.getOutpoint().toStringShort());
-                            // do not fail here, let it go and see which one will get the votes to be locked
+                ReentrantLock outpointLock = outpointLocks.get(txin.getOutpoint());
+                outpointLock.lock();
+                try {
+                    Set<Sha256Hash> it = mapVotedOutpoints.get(txin.getOutpoint());
+                    if (it != null) {
+                        for(Sha256Hash hash : it)
+                        {
+                            if (!hash.equals(txLockRequest.getHash())) {
+                                log.info("instantsend--CInstantSend::ProcessTxLockRequest -- Double spend attempt! %s"+ txin.getOutpoint().toStringShort());
+                                // do not fail here, let it go and see which one will get the votes to be locked
+                            }
                         }
                     }
+                } finally {
+                    outpointLock.unlock();
                 }
             }
 
@@ -729,50 +766,47 @@ public class InstantSend {
             }
             log.info("CInstantSend::ProcessTxLockRequest -- accepted, txid="+ txHash.toString());
 
-            TransactionLockCandidate txLockCandidate = mapTxLockCandidates.get(txHash);
+            txLockCandidate = mapTxLockCandidates.get(txHash);
             vote(txLockCandidate);
-            processOrphanTxLockVotes();
-
-            // Masternodes will sometimes propagate votes before the transaction is known to the client.
-            // If this just happened - lock inputs, resolve conflicting locks, update transaction status
-            // forcing external script notification.
-            tryToFinalizeLockCandidate(txLockCandidate);
-
-            return true;
         }
         finally {
-            lock.unlock();
+            txLock.unlock();
         }
+
+        // Orphan votes can be for any transaction, each is processed under the stripe of its own.
+        processOrphanTxLockVotes();
+
+        // Masternodes will sometimes propagate votes before the transaction is known to the client.
+        // If this just happened - lock inputs, resolve conflicting locks, update transaction status
+        // forcing external script notification.
+        tryToFinalizeLockCandidate(txLockCandidate);
+
+        return true;
     }
 
+    // Must be called without holding any stripe.
     void processOrphanTxLockVotes()
     {
-        try {
-            lock.lock();
-
-            //std::map < uint256, CTxLockVote >::iterator it = mapTxLockVotesOrphan.begin();
-            Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> it = mapTxLockVotesOrphan.entrySet().iterator();
-            while(it.hasNext()) {
-                Map.Entry<Sha256Hash, TransactionLockVote> st = it.next();
-                if (processTxLockVote(null, st.getValue())) {
-                    mapTxLockVotesOrphan.remove(st);
-                } else {
+        //std::map < uint256, CTxLockVote >::iterator it = mapTxLockVotesOrphan.begin();
+        Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> it = mapTxLockVotesOrphan.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Sha256Hash, TransactionLockVote> st = it.next();
+            if (processTxLockVote(null, st.getValue())) {
+                it.remove();
+            } else {
 
-                }
             }
         }
-        finally {
-            lock.unlock();
-        }
     }
 
     boolean createTxLockCandidate(TransactionLockRequest txLockRequest)
     {
         if(!txLockRequest.isValid()) return false;
 
+        Sha256Hash txHash = txLockRequest.getHash();
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
         try {
-            lock.lock();
-            Sha256Hash txHash = txLockRequest.getHash();
 
             TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
             if (lockCandidate == null) {
@@ -812,10 +846,11 @@ public class InstantSend {
             return true;
         }
         finally {
-            lock.unlock();
+            txLock.unlock();
         }
     }
 
+    // Called with the stripe of the transaction held.
     void createEmptyTxLockCandidate(Sha256Hash txHash)
     {
         if(mapTxLockCandidates.containsKey(txHash))
@@ -836,20 +871,32 @@ public class InstantSend {
         if(!context.sporkManager.isSporkActive(SPORK_2_INSTANTSEND_ENABLED))
             return;
 
-         try {
-            lock.lock();
-
-            Sha256Hash txHash = txLockCandidate.txLockRequest.getHash();
-            if (txLockCandidate.isAllOutPointsReady() && !isLockedInstantSendTransaction(txHash)) {
+        Sha256Hash txHash = txLockCandidate.txLockRequest.getHash();
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
+        try {
+            // Checking for a conflicting complete lock and locking our inputs has to be atomic for every outpoint,
+            // otherwise two conflicting transactions completing at the same time could both lock.
+            Sha256Hash hashConflicting;
+            List<ReentrantLock> held = outpointLocks.lockAll(txLockCandidate.mapOutPointLocks.keySet());
+            try {
+                if (!txLockCandidate.isAllOutPointsReady() || isLockedInstantSendTransaction(txHash))
+                    return;
                 // we have enough votes now
                 log.info("instantsend--CInstantSend::TryToFinalizeLockCandidate -- Transaction Lock is ready to complete, txid="+ txHash);
-                if (resolveConflicts(txLockCandidate)) {
+                hashConflicting = findConflictingCompletedLock(txLockCandidate);
+                if (hashConflicting == null) {
                     lockTransactionInputs(txLockCandidate);
                     updateLockedTransaction(txLockCandidate);
+                    return;
                 }
+            } finally {
+                outpointLocks.unlockAll(held);
             }
+            // The clean up takes outpoint stripes one at a time, so it runs after we let go of ours.
+            resolveConflicts(txLockCandidate, hashConflicting);
         } finally {
-            lock.unlock();
+            txLock.unlock();
         }
     }
 
@@ -858,48 +905,29 @@ public class InstantSend {
         if(!context.allowInstantXinLiteMode() /*|| fLargeWorkForkFound || fLargeWorkInvalidChainFound */||
                 !context.sporkManager.isSporkActive(SPORK_3_INSTANTSEND_BLOCK_FILTERING)) return false;
 
-       try {
-           lock.lock();
-
-
-           // there must be a lock candidate
-           TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
-           if (lockCandidate == null) return false;
-
-           // which should have outpoints
-           if (lockCandidate.mapOutPointLocks.size() == 0) return false;
-
-           // and all of these outputs must be included in mapLockedOutpoints with correct hash
-           Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> it = lockCandidate.mapOutPointLocks.entrySet().iterator();
+        // there must be a lock candidate
+        TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
+        if (lockCandidate == null) return false;
 
+        // which should have outpoints
+        if (lockCandidate.mapOutPointLocks.size() == 0) return false;
 
+        // and all of these outputs must be included in mapLockedOutpoints with correct hash
+        Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> it = lockCandidate.mapOutPointLocks.entrySet().iterator();
 
-           while(it.hasNext()) {
-               Map.Entry<TransactionOutPoint, TransactionOutPointLock> tt = it.next();
-               Sha256Hash hashLocked = getLockedOutPointTxHash(tt.getKey());
+        while(it.hasNext()) {
+            Map.Entry<TransactionOutPoint, TransactionOutPointLock> tt = it.next();
+            Sha256Hash hashLocked = getLockedOutPointTxHash(tt.getKey());
 
-               if (hashLocked == null || hashLocked != txHash) return false;
-           }
+            if (hashLocked == null || !hashLocked.equals(txHash)) return false;
+        }
 
-           return true;
-       }
-       finally {
-           lock.unlock();
-       }
+        return true;
     }
 
     Sha256Hash getLockedOutPointTxHash(TransactionOutPoint outpoint)
     {
-       try {
-           lock.lock();
-
-           Sha256Hash it = mapLockedOutpoints.get(outpoint);
-           if(it == null) return null;
-
-           return it;
-       } finally {
-           lock.unlock();
-       }
+        return mapLockedOutpoints.get(outpoint);
     }
 
 
@@ -919,53 +947,34 @@ public class InstantSend {
     boolean isEnoughOrphanVotesForTxAndOutPoint(Sha256Hash txHash, TransactionOutPoint outpoint)
     {
         // Scan orphan votes to check if this outpoint has enough orphan votes to be locked in some tx.
-        try {
-            lock.lock();
+        int nCountVotes = 0;
+        Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> it = mapTxLockVotesOrphan.entrySet().iterator();
 
-            int nCountVotes = 0;
-            Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> it = mapTxLockVotesOrphan.entrySet().iterator();
-
-
-
-            while(it.hasNext()) {
-                Map.Entry<Sha256Hash, TransactionLockVote> tl = it.next();
+        while(it.hasNext()) {
+            Map.Entry<Sha256Hash, TransactionLockVote> tl = it.next();
 
-                if (tl.getValue().getTxHash().equals(txHash) && tl.getValue().getOutpoint() == outpoint) {
-                    nCountVotes++;
-                    if (nCountVotes >= TransactionOutPointLock.SIGNATURES_REQUIRED) {
-                        return true;
-                    }
+            if (tl.getValue().getTxHash().equals(txHash) && outpoint.equals(tl.getValue().getOutpoint())) {
+                nCountVotes++;
+                if (nCountVotes >= TransactionOutPointLock.SIGNATURES_REQUIRED) {
+                    return true;
                 }
             }
-            return false;
-        }
-        finally {
-            lock.unlock();
         }
+        return false;
     }
 
     long getAverageMasternodeOrphanVoteTime()
     {
-        try {
-            lock.lock();
-
-            // NOTE: should never actually call this function when mapMasternodeOrphanVotes is empty
-            if (mapMasternodeOrphanVotes.size() == 0) return 0;
-
-            Iterator<Map.Entry<TransactionOutPoint, Long>> it = mapMasternodeOrphanVotes.entrySet().iterator();
-
-
-            long total = 0;
-            while(it.hasNext()) {
-                Map.Entry<TransactionOutPoint, Long> tl = it.next();
-                total += tl.getValue();
-            }
-
-            return total / mapMasternodeOrphanVotes.size();
-        }
-        finally {
-            lock.unlock();
+        // NOTE: should never actually call this function when mapMasternodeOrphanVotes is empty
+        // The map may change while we walk it, so count what we actually add up.
+        long total = 0;
+        int count = 0;
+        for (Long time : mapMasternodeOrphanVotes.values()) {
+            total += time;
+            count++;
         }
+
+        return count == 0 ? 0 : total / count;
     }
 
     public boolean isTransactionLocked(Transaction tx)
@@ -1026,85 +1035,95 @@ public class InstantSend {
     {
         if(!context.masternodeSync.isMasternodeListSynced()) return;
 
-        try {
-            lock.lock();
-
-            Iterator<Map.Entry<Sha256Hash, TransactionLockCandidate>> itLockCandidate = mapTxLockCandidates.entrySet().iterator();
-
-
-            // remove expired candidates
-            while(itLockCandidate.hasNext()) {
-                Map.Entry<Sha256Hash, TransactionLockCandidate> txLockCandidateEntry = itLockCandidate.next();
+        // Every map is concurrent, only the state of an outpoint needs its stripe while we drop it. The wheels only
+        // hand back entries whose expiry has come up, which are checked again as they may have been confirmed at
+        // another height since.
+        int height = cachedBlockHeight;
 
-                TransactionLockCandidate txLockCandidate = txLockCandidateEntry.getValue();
-
-                Sha256Hash txHash = txLockCandidate.getHash();
-                if (txLockCandidate.isExpired(cachedBlockHeight)) {
-                    log.info("CInstantSend::CheckAndRemove -- Removing expired Transaction Lock Candidate: txid="+ txHash);
+        // remove expired candidates
+        for (Sha256Hash txHash : candidateExpiry.advance(height)) {
+            TransactionLockCandidate txLockCandidate = mapTxLockCandidates.get(txHash);
+            if (txLockCandidate == null)
+                continue;
+            if (txLockCandidate.isExpired(height)) {
+                log.info("CInstantSend::CheckAndRemove -- Removing expired Transaction Lock Candidate: txid="+ txHash);
 
-                    Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> itOutpointLock = txLockCandidate.mapOutPointLocks.entrySet().iterator();
+                Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> itOutpointLock = txLockCandidate.mapOutPointLocks.entrySet().iterator();
 
-                    while(itOutpointLock.hasNext())
-                    {
-                        TransactionOutPoint outpoint = itOutpointLock.next().getKey();
+                while(itOutpointLock.hasNext())
+                {
+                    TransactionOutPoint outpoint = itOutpointLock.next().getKey();
+                    ReentrantLock outpointLock = outpointLocks.get(outpoint);
+                    outpointLock.lock();
+                    try {
                         mapLockedOutpoints.remove(outpoint);
                         mapVotedOutpoints.remove(outpoint);
-                        //++itOutpointLock;
+                    } finally {
+                        outpointLock.unlock();
                     }
-                    mapLockRequestAccepted.remove(txHash);
-                    mapLockRequestRejected.remove(txHash);
-                    mapTxLockCandidates.remove(itLockCandidate);
-                } else {
-                    //++itLockCandidate;
+                    //++itOutpointLock;
                 }
+                mapLockRequestAccepted.remove(txHash);
+                mapLockRequestRejected.remove(txHash);
+                mapTxLockCandidates.remove(txHash);
+            } else {
+                scheduleHeightExpiry(candidateExpiry, txHash, txLockCandidate.getConfirmedHeight());
             }
+        }
 
-            // remove expired votes
-            Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> itVote = mapTxLockVotes.entrySet().iterator();
-            while (itVote.hasNext())
-            {
-                Map.Entry<Sha256Hash, TransactionLockVote> vote = itVote.next();
-                if (vote.getValue().isExpired(cachedBlockHeight)) {
-                    log.info("instantsend--CInstantSend::CheckAndRemove -- Removing expired vote: txid="+vote.getValue().getTxHash()+"  masternode=" + vote.getValue().getOutpointMasternode().toStringShort());
-                    mapTxLockVotes.remove(itVote);
-                } else {
-                    //++itVote;
-                }
+        // remove expired votes
+        for (Sha256Hash voteHash : voteExpiry.advance(height)) {
+            TransactionLockVote vote = mapTxLockVotes.get(voteHash);
+            if (vote == null)
+                continue;
+            if (vote.isExpired(height)) {
+                log.info("instantsend--CInstantSend::CheckAndRemove -- Removing expired vote: txid="+vote.getTxHash()+"  masternode=" + vote.getOutpointMasternode().toStringShort());
+                mapTxLockVotes.remove(voteHash);
+            } else {
+                scheduleHeightExpiry(voteExpiry, voteHash, vote.getConfirmedHeight());
             }
+        }
 
-            // remove expired orphan votes
-            Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> itOrphanVote = mapTxLockVotesOrphan.entrySet().iterator();
-            while (itOrphanVote.hasNext())
-            {
-                Map.Entry<Sha256Hash, TransactionLockVote> vote = itOrphanVote.next();
-                if (vote.getValue().isTimedOut()) {
-                    log.info("instantsend--CInstantSend::CheckAndRemove -- Removing timed out orphan vote: txid="+vote.getValue().getTxHash()+"  masternode="+ vote.getValue().getOutpointMasternode().toStringShort());
-                    mapTxLockVotes.remove(vote.getKey());
-                    itOrphanVote.remove();
-                } else {
-                    //++itOrphanVote;
-                }
+        long now = Utils.currentTimeSeconds();
+
+        // remove expired orphan votes
+        for (Sha256Hash voteHash : orphanVoteExpiry.advance(now)) {
+            TransactionLockVote vote = mapTxLockVotesOrphan.get(voteHash);
+            if (vote == null)
+                continue;
+            if (vote.isTimedOut()) {
+                log.info("instantsend--CInstantSend::CheckAndRemove -- Removing timed out orphan vote: txid="+vote.getTxHash()+"  masternode="+ vote.getOutpointMasternode().toStringShort());
+                mapTxLockVotes.remove(voteHash);
+                mapTxLockVotesOrphan.remove(voteHash);
+            } else {
+                orphanVoteExpiry.schedule(voteHash, vote.getTimeCreated() + INSTANTSEND_TIMEOUT_SECONDS + 1);
             }
+        }
 
-            // remove expired masternode orphan votes (DOS protection)
-            Iterator<Map.Entry<TransactionOutPoint, Long>> itMasternodeOrphan = mapMasternodeOrphanVotes.entrySet().iterator();
-            while (itMasternodeOrphan.hasNext()) {
-                Map.Entry<TransactionOutPoint, Long> masterNodeOrphan = itMasternodeOrphan.next();
-                if (masterNodeOrphan.getValue() < Utils.currentTimeSeconds()) {
+        // remove expired masternode orphan votes (DOS protection)
+        for (TransactionOutPoint outpoint : masternodeOrphanVoteExpiry.advance(now)) {
+            Long expireTime = mapMasternodeOrphanVotes.get(outpoint);
+            if (expireTime == null)
+                continue;
+            if (expireTime < now) {
+                // only if it wasn't refreshed in the meantime, which would have scheduled it again
+                if (mapMasternodeOrphanVotes.remove(outpoint, expireTime))
                     log.info("instantsend--CInstantSend::CheckAndRemove -- Removing expired orphan masternode vote: masternode="+
-                            masterNodeOrphan.getKey().toString());
-                    itMasternodeOrphan.remove();
-                } else {
-                    //++itMasternodeOrphan;
-                }
+                            outpoint.toString());
+            } else {
+                masternodeOrphanVoteExpiry.schedule(outpoint, expireTime + 1);
             }
-
-            log.info("CInstantSend::CheckAndRemove -- "+ toString());
-        }
-        finally {
-            lock.unlock();
         }
+
+        log.info("CInstantSend::CheckAndRemove -- "+ toString());
+    }
+    // Schedules a candidate or vote to expire nInstantSendKeepLock blocks after the height its tx was confirmed at.
+    // There is nothing to schedule while it is unconfirmed, whoever confirms it again schedules it then.
+    private static void scheduleHeightExpiry(TimingWheel<Sha256Hash> expiry, Sha256Hash hash, int confirmedHeight) {
+        if (confirmedHeight != -1)
+            expiry.schedule(hash, confirmedHeight + nInstantSendKeepLock + 1);
     }
+
     public void updatedChainHead(StoredBlock chainHead)
     {
         cachedBlockHeight = chainHead.getHeight();
@@ -1117,11 +1136,10 @@ public class InstantSend {
 
         if (tx.isCoinBase()) return;
 
+        Sha256Hash txHash = tx.getHash();
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
         try {
-            lock.lock();
-
-            Sha256Hash txHash = tx.getHash();
-
             // When tx is 0-confirmed or conflicted, pblock is NULL and nHeightNew should be set to -1
             //CBlockIndex * pblockindex = pblock ? mapBlockIndex[pblock -> GetHash()] : NULL;
             int nHeightNew = block != null ? block.getHeight() : -1;//pblockindex ? pblockindex -> nHeight : -1;
@@ -1134,6 +1152,7 @@ public class InstantSend {
             if (txLockCandidate != null) {
                 log.info("instantsend--CInstantSend::SyncTransaction -- txid="+txHash+" nHeightNew="+nHeightNew+" lock candidate updated");
                 txLockCandidate.setConfirmedHeight(nHeightNew);
+                scheduleHeightExpiry(candidateExpiry, txHash, nHeightNew);
                 // Loop through outpoint locks
 
                 Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> itOutpointLock = txLockCandidate.mapOutPointLocks.entrySet().iterator();
@@ -1149,6 +1168,7 @@ public class InstantSend {
                         TransactionLockVote it = mapTxLockVotes.get(nVoteHash);
                         if (it != null) {
                             it.setConfirmedHeight(nHeightNew);
+                            scheduleHeightExpiry(voteExpiry, nVoteHash, nHeightNew);
                         }
                     }
                 }
@@ -1160,24 +1180,22 @@ public class InstantSend {
                 Map.Entry<Sha256Hash, TransactionLockVote> orphanVote = itOrphanVote.next();
                 if (orphanVote.getValue().getTxHash().equals(txHash)) {
                     log.info("instantsend--CInstantSend::SyncTransaction -- txid="+txHash+" nHeightNew="+nHeightNew+" vote "+orphanVote.getKey()+" updated");
-                    mapTxLockVotes.get(orphanVote.getKey()).setConfirmedHeight(nHeightNew);
+                    TransactionLockVote vote = mapTxLockVotes.get(orphanVote.getKey());
+                    if (vote != null) {
+                        vote.setConfirmedHeight(nHeightNew);
+                        scheduleHeightExpiry(voteExpiry, orphanVote.getKey(), nHeightNew);
+                    }
                 }
                 //++itOrphanVote;
             }
         }
         finally {
-            lock.unlock();
+            txLock.unlock();
         }
     }
 
     public String toString() {
-        try {
-            lock.lock();
-            return "Lock Candidates: "+mapTxLockCandidates.size()+", Votes "+ mapTxLockVotes.size();
-        }
-        finally {
-            lock.unlock();
-        }
+        return "Lock Candidates: "+mapTxLockCandidates.size()+", Votes "+ mapTxLockVotes.size();
     }
 
     public boolean isLockedIXTransaction(Sha256Hash txHash) {
@@ -1205,9 +1223,9 @@ public class InstantSend {
     public boolean isTransactionLockTimedOut(Sha256Hash txHash)
     {
         if(!context.allowInstantXinLiteMode()) return false;
+        ReentrantLock txLock = txLocks.get(txHash);
+        txLock.lock();
         try {
-            lock.lock();
-
             TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
             if (lockCandidate != null) {
                 return !lockCandidate.isAllOutPointsReady() &&
@@ -1217,38 +1235,30 @@ public class InstantSend {
             return false;
         }
         finally {
-            lock.unlock();
+            txLock.unlock();
         }
     }
 
 
 
+    // Called with the stripes of the transaction and of all its outpoints held.
     void lockTransactionInputs(TransactionLockCandidate txLockCandidate) {
 
         if(!context.sporkManager.isSporkActive(SPORK_2_INSTANTSEND_ENABLED))
             return;
 
-        try {
-            lock.lock();
-
+        Sha256Hash txHash = txLockCandidate.getHash();
 
-            Sha256Hash txHash = txLockCandidate.getHash();
+        if (!txLockCandidate.isAllOutPointsReady()) return;
 
-            if (!txLockCandidate.isAllOutPointsReady()) return;
+        Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> it = txLockCandidate.mapOutPointLocks.entrySet().iterator();
 
-            Iterator<Map.Entry<TransactionOutPoint, TransactionOutPointLock>> it = txLockCandidate.mapOutPointLocks.entrySet().iterator();
-
-
-
-            while(it.hasNext()) {
-                Map.Entry<TransactionOutPoint, TransactionOutPointLock> tt = it.next();
+        while(it.hasNext()) {
+            Map.Entry<TransactionOutPoint, TransactionOutPointLock> tt = it.next();
 
-                mapLockedOutpoints.put(tt.getKey(), txHash);
-            }
-            log.info("instantsend--CInstantSend::LockTransactionInputs -- done, txid="+ txHash);
-        }finally {
-            lock.unlock();
+            mapLockedOutpoints.put(tt.getKey(), txHash);
         }
+        log.info("instantsend--CInstantSend::LockTransactionInputs -- done, txid="+ txHash);
     }
 
     boolean findConflictingLocks(Transaction tx)
@@ -1276,128 +1286,121 @@ public class InstantSend {
         return false;
     }
 
-    boolean resolveConflicts(TransactionLockCandidate txLockCandidate) {
+    // Returns the hash of a completed lock on one of the inputs of this candidate by another transaction, or null if
+    // there is none. Called with the stripes of the transaction and of all its outpoints held.
+    Sha256Hash findConflictingCompletedLock(TransactionLockCandidate txLockCandidate) {
 
-        try {
-            lock.lock();
+        Sha256Hash txHash = txLockCandidate.getHash();
 
-            Sha256Hash txHash = txLockCandidate.getHash();
+        //LOCK(mempool.cs); // protect mempool.mapNextTx, mempool.mapTx
 
-            // make sure the lock is ready
-            if (!txLockCandidate.isAllOutPointsReady()) return false;
+        for(TransactionInput txin : txLockCandidate.txLockRequest.getInputs())
+        {
+            Sha256Hash hashConflicting = getLockedOutPointTxHash(txin.getOutpoint());
+            if (hashConflicting != null && !txHash.equals(hashConflicting)) {
+                return hashConflicting;
+            } /*else if (mempool.mapNextTx.count(txin.prevout)) {
+                // check if it's in mempool
+                hashConflicting = mempool.mapNextTx[txin.prevout].ptx->GetHash();
+                if(txHash == hashConflicting) continue; // matches current, not a conflict, skip to next txin
+                // conflicts with tx in mempool
+                log.info("CInstantSend::ResolveConflicts -- ERROR: Failed to complete Transaction Lock, conflicts with mempool, txid="+ txHash.toString());
+                return false;
+            }*/
+        } // FOREACH
+        //TODO:  Update this as much as possible
+        // No conflicts were found so far, check to see if it was already included in block
+        /*CTransaction txTmp;
+        uint256 hashBlock;
+        if(GetTransaction(txHash, txTmp, Params().GetConsensus(), hashBlock, true) && hashBlock != uint256()) {
+            LogPrint("instantsend", "CInstantSend::ResolveConflicts -- Done, %s is included in block %s\n", txHash.ToString(), hashBlock.ToString());
+            return true;
+        }
+        // Not in block yet, make sure all its inputs are still unspent
+        BOOST_FOREACH(const CTxIn& txin, txLockCandidate.txLockRequest.vin) {
+            CCoins coins;
+            if(!GetUTXOCoins(txin.prevout, coins)) {
+                // Not in UTXO anymore? A conflicting tx was mined while we were waiting for votes.
+                LogPrintf("CInstantSend::ResolveConflicts -- ERROR: Failed to find UTXO %s, can't complete Transaction Lock\n", txin.prevout.ToStringShort());
+                return false;
+            }
+        }*/
 
+        log.info("instantsend--CInstantSend::ResolveConflicts -- Done, txid="+ txHash.toString());
 
-            //LOCK(mempool.cs); // protect mempool.mapNextTx, mempool.mapTx
+        return null;
+    }
 
-            for(TransactionInput txin : txLockCandidate.txLockRequest.getInputs())
-            {
-                Sha256Hash hashConflicting = getLockedOutPointTxHash(txin.getOutpoint());
-                if (hashConflicting != null && txHash != hashConflicting) {
-                    // completed lock which conflicts with another completed one?
-                    // this means that majority of MNs in the quorum for this specific tx input are malicious!
-                    TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
-                    TransactionLockCandidate lockCandidateConflicting = mapTxLockCandidates.get(hashConflicting);
-                    if(lockCandidate == null || lockCandidateConflicting == null) {
-                        // safety check, should never really happen
-                        log.info("CInstantSend::ResolveConflicts -- ERROR: Found conflicting completed Transaction Lock, but one of txLockCandidate-s is missing, txid=" +
-                                txHash.toString() + " conflicting txid="+ hashConflicting.toString());
-                        return false;
-                    }
-                    log.info("CInstantSend::ResolveConflicts -- WARNING: Found conflicting completed Transaction Lock, dropping both, txid="+
-                            txHash.toString() + " conflicting txid="+  hashConflicting.toString());
-                    TransactionLockRequest txLockRequest = lockCandidate.txLockRequest;
-                    TransactionLockRequest txLockRequestConflicting = lockCandidateConflicting.txLockRequest;
-                    lockCandidate.setConfirmedHeight(0); // expired
-                    lockCandidateConflicting.setConfirmedHeight(0); // expired
-                    checkAndRemove(); // clean up
-                    // AlreadyHave should still return "true" for both of them
-                    mapLockRequestRejected.put(txHash, txLockRequest);
-                    mapLockRequestRejected.put(hashConflicting, txLockRequestConflicting);
-
-                    // TODO: clean up mapLockRequestRejected later somehow
-                    //       (not a big issue since we already PoSe ban malicious masternodes
-                    //        and they won't be able to spam)
-                    // TODO: ban all malicious masternodes permanently, do not accept anything from them, ever
-
-                    // TODO: notify zmq+script about this double-spend attempt
-                    //       and let merchant cancel/hold the order if it's not too late...
-
-                    // can't do anything else, fallback to regular txes
-                    return false;
-                } /*else if (mempool.mapNextTx.count(txin.prevout)) {
-                    // check if it's in mempool
-                    hashConflicting = mempool.mapNextTx[txin.prevout].ptx->GetHash();
-                    if(txHash == hashConflicting) continue; // matches current, not a conflict, skip to next txin
-                    // conflicts with tx in mempool
-                    log.info("CInstantSend::ResolveConflicts -- ERROR: Failed to complete Transaction Lock, conflicts with mempool, txid="+ txHash.toString());
-                    return false;
-                }*/
-            } // FOREACH
-            //TODO:  Update this as much as possible
-            // No conflicts were found so far, check to see if it was already included in block
-            /*CTransaction txTmp;
-            uint256 hashBlock;
-            if(GetTransaction(txHash, txTmp, Params().GetConsensus(), hashBlock, true) && hashBlock != uint256()) {
-                LogPrint("instantsend", "CInstantSend::ResolveConflicts -- Done, %s is included in block %s\n", txHash.ToString(), hashBlock.ToString());
-                return true;
-            }
-            // Not in block yet, make sure all its inputs are still unspent
-            BOOST_FOREACH(const CTxIn& txin, txLockCandidate.txLockRequest.vin) {
-                CCoins coins;
-                if(!GetUTXOCoins(txin.prevout, coins)) {
-                    // Not in UTXO anymore? A conflicting tx was mined while we were waiting for votes.
-                    LogPrintf("CInstantSend::ResolveConflicts -- ERROR: Failed to find UTXO %s, can't complete Transaction Lock\n", txin.prevout.ToStringShort());
-                    return false;
-                }
-            }*/
+    // Called with the stripe of the transaction held, but none of the outpoint stripes.
+    void resolveConflicts(TransactionLockCandidate txLockCandidate, Sha256Hash hashConflicting) {
 
-            log.info("instantsend--CInstantSend::ResolveConflicts -- Done, txid="+ txHash.toString());
+        Sha256Hash txHash = txLockCandidate.getHash();
 
-            return true;
-        }
-        finally {
-            lock.unlock();
+        // completed lock which conflicts with another completed one?
+        // this means that majority of MNs in the quorum for this specific tx input are malicious!
+        TransactionLockCandidate lockCandidate = mapTxLockCandidates.get(txHash);
+        TransactionLockCandidate lockCandidateConflicting = mapTxLockCandidates.get(hashConflicting);
+        if(lockCandidate == null || lockCandidateConflicting == null) {
+            // safety check, should never really happen
+            log.info("CInstantSend::ResolveConflicts -- ERROR: Found conflicting completed Transaction Lock, but one of txLockCandidate-s is missing, txid=" +
+                    txHash.toString() + " conflicting txid="+ hashConflicting.toString());
+            return;
         }
+        log.info("CInstantSend::ResolveConflicts -- WARNING: Found conflicting completed Transaction Lock, dropping both, txid="+
+                txHash.toString() + " conflicting txid="+  hashConflicting.toString());
+        TransactionLockRequest txLockRequest = lockCandidate.txLockRequest;
+        TransactionLockRequest txLockRequestConflicting = lockCandidateConflicting.txLockRequest;
+        lockCandidate.setConfirmedHeight(0); // expired
+        lockCandidateConflicting.setConfirmedHeight(0); // expired
+        scheduleHeightExpiry(candidateExpiry, txHash, 0);
+        scheduleHeightExpiry(candidateExpiry, hashConflicting, 0);
+        checkAndRemove(); // clean up
+        // AlreadyHave should still return "true" for both of them
+        mapLockRequestRejected.put(txHash, txLockRequest);
+        mapLockRequestRejected.put(hashConflicting, txLockRequestConflicting);
+
+        // TODO: clean up mapLockRequestRejected later somehow
+        //       (not a big issue since we already PoSe ban malicious masternodes
+        //        and they won't be able to spam)
+        // TODO: ban all malicious masternodes permanently, do not accept anything from them, ever
+
+        // TODO: notify zmq+script about this double-spend attempt
+        //       and let merchant cancel/hold the order if it's not too late...
+
+        // can't do anything else, fallback to regular txes
     }
 
+    // Called with the stripe of the transaction held.
     void updateLockedTransaction(TransactionLockCandidate txLockCandidate) {
         // there should be no conflicting locks
-        try {
-            lock.lock();
+        Sha256Hash txHash = txLockCandidate.getHash();
 
-            Sha256Hash txHash = txLockCandidate.getHash();
-
-            if(!isLockedInstantSendTransaction(txHash)) {
-                txLockCandidate.txLockRequest.getConfidence().setIXType(TransactionConfidence.IXType.IX_REQUEST);
-                return; // not a locked tx, do not update/notify
-            }
+        if(!isLockedInstantSendTransaction(txHash)) {
+            txLockCandidate.txLockRequest.getConfidence().setIXType(TransactionConfidence.IXType.IX_REQUEST);
+            return; // not a locked tx, do not update/notify
+        }
 /*
 #ifdef ENABLE_WALLET
-            if(pwalletMain && pwalletMain->UpdatedTransaction(txHash)) {
-                // bumping this to update UI
-                nCompleteTXLocks++;
-                // notify an external script once threshold is reached
-                std::string strCmd = GetArg("-instantsendnotify", "");
-                if(!strCmd.empty()) {
-                    boost::replace_all(strCmd, "%s", txHash.GetHex());
-                    boost::thread t(runCommand, strCmd); // thread runs free
-                }
+        if(pwalletMain && pwalletMain->UpdatedTransaction(txHash)) {
+            // bumping this to update UI
+            nCompleteTXLocks++;
+            // notify an external script once threshold is reached
+            std::string strCmd = GetArg("-instantsendnotify", "");
+            if(!strCmd.empty()) {
+                boost::replace_all(strCmd, "%s", txHash.GetHex());
+                boost::thread t(runCommand, strCmd); // thread runs free
             }
+        }
 #endif
 
-            GetMainSignals().NotifyTransactionLock(txLockCandidate.txLockRequest);
+        GetMainSignals().NotifyTransactionLock(txLockCandidate.txLockRequest);
 */
 
-            TransactionLockRequest tx = txLockCandidate.txLockRequest;
-            tx.getConfidence().setIXType(TransactionConfidence.IXType.IX_LOCKED);
-            tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.IX_TYPE);
-
-            log.info("instantsend--CInstantSend::UpdateLockedTransaction -- done, txid="+ txHash);
+        TransactionLockRequest tx = txLockCandidate.txLockRequest;
+        tx.getConfidence().setIXType(TransactionConfidence.IXType.IX_LOCKED);
+        tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.IX_TYPE);
 
-        }
-        finally {
-            lock.unlock();
-        }
+        log.info("instantsend--CInstantSend::UpdateLockedTransaction -- done, txid="+ txHash);
     }
 }
 
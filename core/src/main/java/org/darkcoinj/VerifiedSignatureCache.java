@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.darkcoinj;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (public key, message, signature) triples have already been verified, so that the same signed
+ * message arriving again, for example a masternode broadcast relayed by several peers or the ping inside a broadcast
+ * that is later relayed on its own, doesn't need another public key recovery.</p>
+ *
+ * <p>Only signatures that verified are remembered, and only the least recently used ones are kept once the cache is
+ * full. Entries are keyed on a hash of the triple rather than the triple itself to keep them small. Thread safe.</p>
+ */
+class VerifiedSignatureCache {
+    private final int capacity;
+    private final LinkedHashMap<Sha256Hash, Boolean> verified;
+    private long hits, misses;
+
+    VerifiedSignatureCache(final int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.verified = new LinkedHashMap<Sha256Hash, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Returns the key the given triple is remembered under. */
+    static Sha256Hash key(byte[] pubkey, byte[] message, byte[] signature) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        // Lengths first, so that moving bytes from one part to the next gives a different key.
+        update(digest, pubkey);
+        update(digest, message);
+        update(digest, signature);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, byte[] bytes) {
+        byte[] length = new byte[4];
+        Utils.uint32ToByteArrayLE(bytes.length, length, 0);
+        digest.update(length);
+        digest.update(bytes);
+    }
+
+    /** Returns true if the signature with the given key has been verified before. */
+    synchronized boolean contains(Sha256Hash key) {
+        if (verified.get(key) != null) {
+            hits++;
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    /** Records that the signature with the given key verified. */
+    synchronized void add(Sha256Hash key) {
+        verified.put(key, Boolean.TRUE);
+    }
+
+    synchronized void clear() {
+        verified.clear();
+        hits = misses = 0;
+    }
+
+    synchronized int size() {
+        return verified.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the number of lookups that found a verified signature. */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /** Returns the number of lookups that had to verify the signature. */
+    synchronized long getMisses() {
+        return misses;
+    }
+}
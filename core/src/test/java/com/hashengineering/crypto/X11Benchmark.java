@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hashengineering.crypto;
+
+import java.util.Random;
+
+/**
+ * Compares the allocating X11 path with {@link X11Engine} on block header sized slices. Run it from the test
+ * classpath with an optional iteration count, e.g. {@code java com.hashengineering.crypto.X11Benchmark 200000}.
+ */
+public class X11Benchmark {
+    private static final int HEADER_SIZE = 80;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        byte[] payload = new byte[HEADER_SIZE * 64 + 13];
+        new Random(1).nextBytes(payload);
+
+        // Warm up both paths so the JIT has compiled them before we measure.
+        for (int round = 0; round < 3; round++) {
+            runReference(payload, iterations / 10);
+            runEngine(payload, iterations / 10);
+        }
+
+        long start = System.nanoTime();
+        int sink = runReference(payload, iterations);
+        long reference = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += runEngine(payload, iterations);
+        long engine = System.nanoTime() - start;
+
+        System.out.printf("x11 reference: %,d ns/op%n", reference / iterations);
+        System.out.printf("x11 engine:    %,d ns/op%n", engine / iterations);
+        System.out.printf("speedup:       %.2fx (%d)%n", (double) reference / engine, sink & 1);
+    }
+
+    private static int runReference(byte[] payload, int iterations) {
+        int sink = 0;
+        int slots = payload.length / HEADER_SIZE;
+        for (int i = 0; i < iterations; i++) {
+            int offset = (i % slots) * HEADER_SIZE;
+            byte[] buf = new byte[HEADER_SIZE];
+            System.arraycopy(payload, offset, buf, 0, HEADER_SIZE);
+            sink += X11.x11(buf)[0];
+        }
+        return sink;
+    }
+
+    private static int runEngine(byte[] payload, int iterations) {
+        int sink = 0;
+        int slots = payload.length / HEADER_SIZE;
+        byte[] out = new byte[X11Engine.DIGEST_LENGTH];
+        X11Engine engine = X11Engine.get();
+        for (int i = 0; i < iterations; i++) {
+            engine.digest(payload, (i % slots) * HEADER_SIZE, HEADER_SIZE, out, 0);
+            sink += out[0];
+        }
+        return sink;
+    }
+}
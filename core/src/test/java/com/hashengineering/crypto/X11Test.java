@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hashengineering.crypto;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class X11Test {
+    private static final String GENESIS_HASH = "00000ffd590b1485b3caadc19b22e6379c733355108f107a430458cdf3407ab6";
+
+    @Test
+    public void genesisHeader() {
+        byte[] header = genesisHeader(MainNetParams.get().getGenesisBlock());
+        X11Engine engine = new X11Engine();
+        byte[] out = new byte[X11Engine.DIGEST_LENGTH];
+        engine.digest(header, 0, header.length, out, 0);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(out).toString());
+        // Again, to check the chain was reset properly.
+        Arrays.fill(out, (byte) 0);
+        engine.digest(header, 0, header.length, out, 0);
+        assertEquals(GENESIS_HASH, Sha256Hash.wrapReversed(out).toString());
+    }
+
+    @Test
+    public void matchesReferenceImplementation() {
+        Random random = new Random(42);
+        X11Engine engine = X11Engine.get();
+        for (int length = 0; length < 300; length += 7) {
+            byte[] input = new byte[length + 10];
+            random.nextBytes(input);
+            byte[] expected = X11.x11(Arrays.copyOfRange(input, 5, 5 + length));
+
+            byte[] out = new byte[X11Engine.DIGEST_LENGTH + 3];
+            engine.digest(input, 5, length, out, 3);
+            assertArrayEquals(expected, Arrays.copyOfRange(out, 3, out.length));
+
+            ByteBuffer heap = ByteBuffer.wrap(input, 5, length).slice();
+            engine.digest(heap, out, 0);
+            assertArrayEquals(expected, Arrays.copyOf(out, X11Engine.DIGEST_LENGTH));
+            assertFalse(heap.hasRemaining());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(input, 5, length).flip();
+            engine.digest(direct, out, 0);
+            assertArrayEquals(expected, Arrays.copyOf(out, X11Engine.DIGEST_LENGTH));
+
+            assertArrayEquals(expected, X11.x11Digest(input, 5, length));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        new X11Engine().digest(new byte[80], 0, 80, new byte[31], 0);
+    }
+
+    static byte[] genesisHeader(Block genesis) {
+        return Arrays.copyOf(genesis.cloneAsHeader().bitcoinSerialize(), Block.HEADER_SIZE);
+    }
+}
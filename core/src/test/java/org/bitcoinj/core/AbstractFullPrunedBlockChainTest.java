@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -35,6 +36,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -285,6 +287,36 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testStreamOpenTransactionOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        Address address = new ECKey().toAddress(PARAMS);
+        Script script = ScriptBuilder.createOutputScript(address);
+        for (int i = 0; i < 5; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] {(byte) i});
+            store.addUnspentTransactionOutput(new UTXO(hash, i, Coin.COIN, 1, false, script, address.toString()));
+        }
+
+        assertTrue(store instanceof StreamingUTXOProvider);
+        final List<UTXO> outputs = new ArrayList<UTXO>();
+        ((StreamingUTXOProvider) store).getOpenTransactionOutputs(Lists.newArrayList(address), new StreamingUTXOProvider.UTXOHandler() {
+            @Override
+            public boolean handle(UTXO output) {
+                outputs.add(output);
+                return outputs.size() < 3;
+            }
+        });
+        assertEquals("Handler should be able to stop the query", 3, outputs.size());
+        for (UTXO output : outputs) {
+            assertEquals(address.toString(), output.getAddress());
+            assertArrayEquals(script.getProgram(), output.getScript().getProgram());
+        }
+        assertEquals(5, store.getOpenTransactionOutputs(Lists.newArrayList(address)).size());
+        // Every store returns the outputs of a repeated address only once.
+        assertEquals(5, store.getOpenTransactionOutputs(Lists.newArrayList(address, address)).size());
+        store.close();
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
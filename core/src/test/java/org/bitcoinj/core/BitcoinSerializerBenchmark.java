@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.net.InetAddresses;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures how many messages per second {@link BitcoinSerializer} reads from a stream like the one a peer sends
+ * while we are synced: mostly transactions and inventory announcements, with some pings and address messages. The
+ * stream is recorded once and then read over and over. Run it from the test classpath with an optional number of
+ * seconds per measurement, e.g. {@code java org.bitcoinj.core.BitcoinSerializerBenchmark 5}.
+ */
+public class BitcoinSerializerBenchmark {
+    private static final int MESSAGES = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        NetworkParameters params = MainNetParams.get();
+        new Context(params);
+        MessageSerializer serializer = params.getDefaultSerializer();
+        ByteBuffer stream = record(params, serializer);
+        System.out.printf("Recorded %,d messages in %,d bytes%n", MESSAGES, stream.limit());
+
+        // Warm up so the JIT has compiled the parsing code before we measure.
+        measure(serializer, stream, 1);
+        for (int i = 0; i < 3; i++) {
+            long count = measure(serializer, stream, seconds);
+            System.out.printf("%,12d messages/s%n", count / seconds);
+        }
+    }
+
+    private static ByteBuffer record(NetworkParameters params, MessageSerializer serializer) throws Exception {
+        Random random = new Random(1);
+        Address to = new ECKey().toAddress(params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            int kind = random.nextInt(20);
+            Message message;
+            if (kind < 8) {
+                message = FakeTxBuilder.createFakeTx(params, Coin.valueOf(random.nextInt(1000000) + 1), to);
+            } else if (kind < 16) {
+                InventoryMessage inv = new InventoryMessage(params);
+                for (int j = random.nextInt(8); j >= 0; j--)
+                    inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, randomHash(random)));
+                message = inv;
+            } else if (kind < 17) {
+                GetDataMessage getData = new GetDataMessage(params);
+                getData.addTransaction(randomHash(random));
+                message = getData;
+            } else if (kind < 19) {
+                message = random.nextBoolean() ? new Ping(random.nextLong()) : new Pong(random.nextLong());
+            } else {
+                AddressMessage addr = new AddressMessage(params, new byte[] {0});
+                addr.addAddress(new PeerAddress(params, InetAddresses.forString("10.0.0." + (i & 255)), 9999));
+                message = addr;
+            }
+            serializer.serialize(message, out);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    // Returns the number of messages read in the given time.
+    private static long measure(MessageSerializer serializer, ByteBuffer stream, int seconds) throws Exception {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long count = 0;
+        while (System.nanoTime() < deadline) {
+            stream.rewind();
+            while (stream.hasRemaining()) {
+                serializer.deserialize(stream);
+                count++;
+            }
+        }
+        return count;
+    }
+}
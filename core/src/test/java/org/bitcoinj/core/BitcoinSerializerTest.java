@@ -232,6 +232,77 @@ public class BitcoinSerializerTest {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(wrongMessageLength));
     }
 
+    @Test
+    public void testBitcoinPacketHeaderFields() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(42), bos);
+        byte[] bytes = bos.toByteArray();
+        ByteBuffer in = ByteBuffer.wrap(bytes, 4, bytes.length - 4);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(in);
+        assertEquals("ping", header.command);
+        assertEquals(8, header.size);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 4, 24), header.header);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 20, 24), header.checksum);
+        assertEquals(24, in.position());
+    }
+
+    @Test
+    public void testCommandNotZeroPadded() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(42), bos);
+        byte[] bytes = bos.toByteArray();
+        // Anything after the terminating zero of the command is ignored.
+        bytes[4 + 6] = 'x';
+        Ping ping = (Ping) serializer.deserialize(ByteBuffer.wrap(bytes));
+        assertEquals(42, ping.getNonce());
+    }
+
+    @Test
+    public void testRegisterMessage() throws Exception {
+        final NetworkParameters params = MainNetParams.get();
+        BitcoinSerializer.registerMessage("testping", null, new BitcoinSerializer.MessageFactory() {
+            @Override
+            public Message make(BitcoinSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new Ping(serializer.getParameters(), payload);
+            }
+        });
+        MessageSerializer serializer = params.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("testping", new Ping(7).bitcoinSerialize(), bos);
+        Ping ping = (Ping) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        assertEquals(7, ping.getNonce());
+    }
+
+    @Test
+    public void testPooledPayloads() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Transaction first = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        // A smaller message in the same buffer as the transaction before it.
+        InventoryMessage inv = new InventoryMessage(MainNetParams.get());
+        inv.addTransaction(first);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(inv, bos);
+        inv = (InventoryMessage) serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+        assertEquals(first.getHash(), inv.getItems().get(0).hash);
+
+        Transaction second = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        assertEquals(first, second);
+        assertArrayEquals(Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24, TRANSACTION_MESSAGE_BYTES.length),
+                second.bitcoinSerialize());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testTruncatedPooledPayload() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        // The rest of the transaction is still in the pooled buffer, but must not be read.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("tx", Arrays.copyOfRange(TRANSACTION_MESSAGE_BYTES, 24, TRANSACTION_MESSAGE_BYTES.length - 1), bos);
+        serializer.deserialize(ByteBuffer.wrap(bos.toByteArray()));
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testSeekPastMagicBytes() {
         // Fail in another way, there is data in the stream but no magic bytes.
@@ -87,6 +87,7 @@ public class BlockChainTest {
                 }
             }
         };
+        wallet.setCrossCheckBalances(true);
         wallet.freshReceiveKey();
 
         resetBlockStore();
@@ -62,6 +62,7 @@ public class ChainSplitTest {
         Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
         MemoryBlockStore blockStore = new MemoryBlockStore(PARAMS);
         wallet = new Wallet(PARAMS);
+        wallet.setCrossCheckBalances(true);
         ECKey key1 = wallet.freshReceiveKey();
         ECKey key2 = wallet.freshReceiveKey();
         chain = new BlockChain(PARAMS, wallet, blockStore);
@@ -19,9 +19,17 @@ package org.bitcoinj.core;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.bitcoinj.script.ScriptBuilder;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -41,6 +49,37 @@ public class LevelDBFullPrunedBlockChainTest extends
                 blockCount);
     }
 
+    @Test
+    public void openOutputsForSeveralAddresses() throws Exception {
+        store = createStore(PARAMS, 10);
+        Address a = new ECKey().toAddress(PARAMS);
+        Address b = new ECKey().toAddress(PARAMS);
+        Address c = new ECKey().toAddress(PARAMS);
+        addOutput(a, 0, Coin.COIN);
+        addOutput(a, 1, Coin.CENT);
+        addOutput(b, 2, Coin.SATOSHI);
+        addOutput(c, 3, Coin.FIFTY_COINS);
+
+        // Addresses in any order, repeated or without outputs are all fine.
+        List<UTXO> outputs = store.getOpenTransactionOutputs(Arrays.asList(b, a, new ECKey().toAddress(PARAMS), a));
+        assertEquals(3, outputs.size());
+        Set<String> found = new HashSet<String>();
+        Coin total = Coin.ZERO;
+        for (UTXO output : outputs) {
+            found.add(output.getAddress());
+            total = total.add(output.getValue());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(a.toString(), b.toString())), found);
+        assertEquals(Coin.COIN.add(Coin.CENT).add(Coin.SATOSHI), total);
+        store.close();
+    }
+
+    private void addOutput(Address address, int index, Coin value) throws BlockStoreException {
+        Sha256Hash hash = Sha256Hash.of(new byte[] {(byte) index});
+        store.addUnspentTransactionOutput(new UTXO(hash, index, value, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString()));
+    }
+
     private void deleteFiles() {
         File f = new File("test-leveldb");
         if (f != null && f.exists()) {
@@ -0,0 +1,90 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class MasternodeJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Context context;
+    private MasternodeManager manager;
+    private TransactionInput vin;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new Context(PARAMS);
+        context.initDash(true, true);
+        manager = context.masternodeManager;
+        vin = new TransactionInput(PARAMS, null, new byte[0], new TransactionOutPoint(PARAMS, 1, Sha256Hash.of(new byte[] {1})));
+    }
+
+    private MasternodePing ping(long sigTime) {
+        MasternodePing mnp = new MasternodePing(context);
+        mnp.vin = vin;
+        mnp.blockHash = Sha256Hash.of(new byte[] {2});
+        mnp.sigTime = sigTime;
+        mnp.vchSig = new MasternodeSignature(new byte[65]);
+        return mnp;
+    }
+
+    private byte[] broadcast(long sigTime, int port) throws Exception {
+        Masternode mn = new Masternode(context);
+        mn.vin = vin;
+        mn.address = new MasternodeAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), port);
+        mn.pubKeyCollateralAddress = new PublicKey(new ECKey().getPubKey());
+        mn.pubKeyMasternode = new PublicKey(new ECKey().getPubKey());
+        mn.sig = new MasternodeSignature(new byte[65]);
+        mn.sigTime = sigTime;
+        MasternodeBroadcast mnb = new MasternodeBroadcast(mn);
+        mnb.lastPing = ping(sigTime);
+        return mnb.bitcoinSerialize();
+    }
+
+    private byte[] removal(long sigTime) throws Exception {
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        vin.getOutpoint().bitcoinSerialize(bos);
+        Utils.int64ToByteStreamLE(sigTime, bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void replayIsIdempotent() throws Exception {
+        byte[] broadcast = broadcast(1000, 19999);
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast);
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast);
+        assertEquals(1, manager.size());
+        assertEquals(1, manager.mapSeenMasternodeBroadcast.size());
+        assertEquals(1000, manager.find(vin).sigTime);
+
+        // Only a newer ping replaces the last one.
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_PING, ping(2000).bitcoinSerialize());
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_PING, ping(1500).bitcoinSerialize());
+        assertEquals(2000, manager.find(vin).lastPing.sigTime);
+        assertEquals(2, manager.mapSeenMasternodePing.size());
+
+        // An older broadcast changes nothing, a newer one updates the entry.
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast(500, 19998));
+        assertEquals(19999, manager.find(vin).address.getPort());
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast(3000, 19998));
+        assertEquals(19998, manager.find(vin).address.getPort());
+        assertEquals(3000, manager.find(vin).sigTime);
+    }
+
+    @Test
+    public void removalOnlyAppliesToOlderEntries() throws Exception {
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast(1000, 19999));
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_REMOVE, removal(1000));
+        assertNull(manager.find(vin));
+
+        // The masternode came back with a newer broadcast, the old removal doesn't apply to it.
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_BROADCAST, broadcast(2000, 19999));
+        manager.applyJournalRecord(MasternodeManager.JOURNAL_REMOVE, removal(1000));
+        assertNotNull(manager.find(vin));
+        assertEquals(2000, manager.find(vin).sigTime);
+    }
+}
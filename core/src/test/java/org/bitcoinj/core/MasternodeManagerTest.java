@@ -0,0 +1,87 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MasternodeManagerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private MasternodeManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+        context.initDash(true, true);
+        manager = context.masternodeManager;
+        manager.setSignatureVerificationThreads(2);
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Test
+    public void fullQueueKeepsMessagesInOrder() throws Exception {
+        final int messages = MasternodeManager.MAX_QUEUED_MESSAGES * 2 + 10;
+        final CountDownLatch firstApplied = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch allApplied = new CountDownLatch(messages);
+        final List<Integer> applied = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> appliers = Collections.synchronizedList(new ArrayList<Thread>());
+        final Runnable verify = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        Thread network = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < messages; i++) {
+                    final int message = i;
+                    manager.verifyThenApply(verify, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (message == 0) {
+                                firstApplied.countDown();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException x) {
+                                    throw new RuntimeException(x);
+                                }
+                            }
+                            applied.add(message);
+                            appliers.add(Thread.currentThread());
+                            allApplied.countDown();
+                        }
+                    });
+                }
+            }
+        };
+        network.start();
+        assertTrue(firstApplied.await(10, TimeUnit.SECONDS));
+        // The applier is stuck on the first message, so the network thread has to wait once the queue is full.
+        Thread.sleep(200);
+        assertTrue(network.isAlive());
+        assertEquals(0, applied.size());
+
+        release.countDown();
+        assertTrue(allApplied.await(10, TimeUnit.SECONDS));
+        network.join();
+        for (int i = 0; i < messages; i++)
+            assertEquals(i, (int) applied.get(i));
+        for (Thread applier : appliers)
+            assertSame(appliers.get(0), applier);
+        assertNotSame(network, appliers.get(0));
+    }
+}
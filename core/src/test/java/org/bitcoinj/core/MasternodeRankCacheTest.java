@@ -0,0 +1,69 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MasternodeRankCacheTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private MasternodeRankCache cache;
+    private Map<TransactionOutPoint, Integer> ranks;
+
+    @Before
+    public void setUp() {
+        cache = new MasternodeRankCache();
+        ranks = new HashMap<TransactionOutPoint, Integer>();
+        ranks.put(new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] {1})), 1);
+    }
+
+    private static Sha256Hash blockHash(int height) {
+        return Sha256Hash.of(Utils.reverseBytes(Utils.HEX.decode(String.format("%08x", height))));
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        assertNull(cache.get(blockHash(100), 70206, true));
+        cache.put(100, blockHash(100), 70206, true, ranks);
+        assertSame(ranks, cache.get(blockHash(100), 70206, true));
+        // Different protocol version or activity filter is a different table.
+        assertNull(cache.get(blockHash(100), 70208, true));
+        assertNull(cache.get(blockHash(100), 70206, false));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsStaleHeights() {
+        cache.put(100, blockHash(100), 70206, true, ranks);
+        cache.put(100 + MasternodeRankCache.MAX_DEPTH, blockHash(100 + MasternodeRankCache.MAX_DEPTH), 70206, true, ranks);
+        assertNotNull(cache.get(blockHash(100), 70206, true));
+        cache.put(101 + MasternodeRankCache.MAX_DEPTH, blockHash(101 + MasternodeRankCache.MAX_DEPTH), 70206, true, ranks);
+        assertNull(cache.get(blockHash(100), 70206, true));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void boundedSize() {
+        for (int i = 0; i < MasternodeRankCache.MAX_TABLES + 5; i++)
+            cache.put(1000, blockHash(1000), 70206 + i, true, ranks);
+        assertEquals(MasternodeRankCache.MAX_TABLES, cache.size());
+        assertNull(cache.get(blockHash(1000), 70206, true));
+    }
+
+    @Test
+    public void invalidate() {
+        cache.put(100, blockHash(100), 70206, true, ranks);
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(blockHash(100), 70206, true));
+        // After invalidation a lower height is accepted again.
+        cache.put(50, blockHash(50), 70206, true, ranks);
+        assertNotNull(cache.get(blockHash(50), 70206, true));
+    }
+}
@@ -0,0 +1,152 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MasternodeRegistryTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int PROTOCOL = 70206;
+
+    private Context context;
+    private MasternodeRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new Context(PARAMS);
+        registry = new MasternodeRegistry();
+    }
+
+    private Masternode createMasternode(int index, Masternode.State state) throws Exception {
+        Masternode mn = new Masternode(context);
+        mn.vin = new TransactionInput(PARAMS, null, new byte[0],
+                new TransactionOutPoint(PARAMS, index, Sha256Hash.of(new byte[] {(byte) index})));
+        mn.address = new MasternodeAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) index}), 9999);
+        mn.pubKeyMasternode = new PublicKey(new ECKey().getPubKey());
+        mn.activeState = state;
+        mn.protocolVersion = PROTOCOL;
+        return mn;
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        List<Masternode> added = new ArrayList<Masternode>();
+        for (int i = 0; i < 10; i++) {
+            Masternode mn = createMasternode(i, Masternode.State.MASTERNODE_ENABLED);
+            assertTrue(registry.add(mn));
+            added.add(mn);
+        }
+        assertEquals(10, registry.size());
+        for (Masternode mn : added) {
+            assertSame(mn, registry.get(mn.vin.getOutpoint()));
+            assertSame(mn, registry.get(new PublicKey(mn.pubKeyMasternode.getBytes())));
+            assertSame(mn, registry.get(new NetAddress(mn.address.getAddr())));
+            assertSame(mn, registry.get((NetAddress) mn.address));
+            assertTrue(registry.contains(mn));
+        }
+        // Insertion order is preserved.
+        assertEquals(added, new ArrayList<Masternode>(registry.values()));
+        // A second masternode with the same collateral is rejected.
+        Masternode duplicate = createMasternode(3, Masternode.State.MASTERNODE_ENABLED);
+        assertFalse(registry.add(duplicate));
+        assertFalse(registry.contains(duplicate));
+    }
+
+    @Test
+    public void removal() throws Exception {
+        Masternode a = createMasternode(1, Masternode.State.MASTERNODE_ENABLED);
+        Masternode b = createMasternode(2, Masternode.State.MASTERNODE_ENABLED);
+        registry.add(a);
+        registry.add(b);
+        assertSame(a, registry.remove(a.vin.getOutpoint()));
+        assertNull(registry.get(a.vin.getOutpoint()));
+        assertNull(registry.get(a.pubKeyMasternode));
+        assertNull(registry.get(a.address));
+        assertEquals(1, registry.countEnabled(0));
+
+        Iterator<Masternode> it = registry.values().iterator();
+        assertSame(b, it.next());
+        it.remove();
+        assertEquals(0, registry.size());
+        assertNull(registry.get(b.pubKeyMasternode));
+        assertEquals(0, registry.countEnabled(0));
+    }
+
+    @Test
+    public void reindex() throws Exception {
+        Masternode mn = createMasternode(1, Masternode.State.MASTERNODE_ENABLED);
+        registry.add(mn);
+        PublicKey oldKey = mn.pubKeyMasternode;
+        MasternodeAddress oldAddress = mn.address;
+        mn.pubKeyMasternode = new PublicKey(new ECKey().getPubKey());
+        mn.address = new MasternodeAddress(InetAddress.getByAddress(new byte[] {10, 0, 1, 1}), 9999);
+        mn.protocolVersion = PROTOCOL + 1;
+        registry.reindex(mn, oldKey, oldAddress, PROTOCOL);
+        assertNull(registry.get(oldKey));
+        assertNull(registry.get(oldAddress));
+        assertSame(mn, registry.get(mn.pubKeyMasternode));
+        assertSame(mn, registry.get(mn.address));
+        assertEquals(1, registry.countEnabled(PROTOCOL + 1));
+    }
+
+    @Test
+    public void sharedAddress() throws Exception {
+        // Two masternodes on one IP, on different ports, as on testnet.
+        Masternode a = createMasternode(1, Masternode.State.MASTERNODE_ENABLED);
+        Masternode b = createMasternode(2, Masternode.State.MASTERNODE_ENABLED);
+        b.address = new MasternodeAddress(a.address.getAddr(), 19999);
+        registry.add(a);
+        registry.add(b);
+        Masternode found = registry.get(new NetAddress(a.address.getAddr()));
+        assertTrue(found == a || found == b);
+
+        // Whichever one goes first, the other is still found at the address.
+        registry.remove(a.vin.getOutpoint());
+        assertSame(b, registry.get(a.address));
+        registry.add(a);
+        registry.remove(b.vin.getOutpoint());
+        assertSame(a, registry.get(b.address));
+
+        // Moving the last one away leaves nothing behind at the old address.
+        MasternodeAddress oldAddress = a.address;
+        a.address = new MasternodeAddress(InetAddress.getByAddress(new byte[] {10, 0, 1, 1}), 9999);
+        registry.reindex(a, a.pubKeyMasternode, oldAddress, PROTOCOL);
+        assertNull(registry.get(oldAddress));
+        assertSame(a, registry.get(a.address));
+        assertSame(a, registry.get(a.pubKeyMasternode));
+    }
+
+    @Test
+    public void enabledCount() throws Exception {
+        Masternode enabled = createMasternode(1, Masternode.State.MASTERNODE_ENABLED);
+        Masternode expired = createMasternode(2, Masternode.State.MASTERNODE_EXPIRED);
+        Masternode newer = createMasternode(3, Masternode.State.MASTERNODE_ENABLED);
+        newer.protocolVersion = PROTOCOL + 1;
+        registry.add(enabled);
+        registry.add(expired);
+        registry.add(newer);
+        assertEquals(2, registry.countEnabled(PROTOCOL));
+        assertEquals(1, registry.countEnabled(PROTOCOL + 1));
+        assertEquals(0, registry.countEnabled(PROTOCOL + 2));
+
+        expired.activeState = Masternode.State.MASTERNODE_ENABLED;
+        registry.stateChanged(expired, Masternode.State.MASTERNODE_EXPIRED);
+        assertEquals(3, registry.countEnabled(PROTOCOL));
+
+        enabled.activeState = Masternode.State.MASTERNODE_REMOVE;
+        registry.stateChanged(enabled, Masternode.State.MASTERNODE_ENABLED);
+        assertEquals(2, registry.countEnabled(PROTOCOL));
+
+        // A change made behind the registry's back is picked up by a recount.
+        newer.activeState = Masternode.State.MASTERNODE_EXPIRED;
+        registry.recountEnabled();
+        assertEquals(1, registry.countEnabled(PROTOCOL));
+    }
+}
@@ -0,0 +1,69 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+
+import java.util.Random;
+
+/**
+ * Compares the BigInteger masternode score with {@link MasternodeScore} by scoring a list of masternodes against a
+ * series of block hashes, as a rank query does. Run it from the test classpath with an optional number of masternodes
+ * and rounds, e.g. {@code java org.bitcoinj.core.MasternodeScoreBenchmark 5000 200}.
+ */
+public class MasternodeScoreBenchmark {
+    public static void main(String[] args) {
+        int masternodes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        NetworkParameters params = UnitTestParams.get();
+        Random random = new Random(1);
+        TransactionInput[] inputs = new TransactionInput[masternodes];
+        for (int i = 0; i < masternodes; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            inputs[i] = new TransactionInput(params, null, new byte[0],
+                    new TransactionOutPoint(params, random.nextInt(4), Sha256Hash.wrap(hash)));
+        }
+
+        // Warm up both paths so the JIT has compiled them before we measure.
+        for (int round = 0; round < 3; round++) {
+            runReference(inputs, Math.max(1, rounds / 10));
+            runFixedWidth(inputs, Math.max(1, rounds / 10));
+        }
+
+        long start = System.nanoTime();
+        long sink = runReference(inputs, rounds);
+        long reference = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += runFixedWidth(inputs, rounds);
+        long fixedWidth = System.nanoTime() - start;
+
+        long ops = (long) masternodes * rounds;
+        System.out.printf("score reference:   %,d ns/op%n", reference / ops);
+        System.out.printf("score fixed width: %,d ns/op%n", fixedWidth / ops);
+        System.out.printf("speedup:           %.2fx (%d)%n", (double) reference / fixedWidth, sink & 1);
+    }
+
+    private static Sha256Hash blockHash(int round) {
+        return Sha256Hash.of(Utils.reverseBytes(Utils.HEX.decode(String.format("%08x", round))));
+    }
+
+    private static long runReference(TransactionInput[] inputs, int rounds) {
+        long sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            Sha256Hash hash = blockHash(round);
+            for (TransactionInput vin : inputs)
+                sink += Utils.encodeCompactBits(MasternodeScoreTest.calculateScoreReference(vin, hash).toBigInteger(), false);
+        }
+        return sink;
+    }
+
+    private static long runFixedWidth(TransactionInput[] inputs, int rounds) {
+        long sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            MasternodeScore score = new MasternodeScore(blockHash(round));
+            for (TransactionInput vin : inputs)
+                sink += score.calculateCompact(vin.getOutpoint());
+        }
+        return sink;
+    }
+}
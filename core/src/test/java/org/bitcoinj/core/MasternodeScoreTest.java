@@ -0,0 +1,117 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MasternodeScoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    /** The BigInteger implementation of the masternode score that {@link MasternodeScore} replaced. */
+    static Sha256Hash calculateScoreReference(TransactionInput vin, Sha256Hash hash) {
+        BigInteger bi_aux = vin.getOutpoint().getHash().toBigInteger().add(BigInteger.valueOf(vin.getOutpoint().getIndex()));
+        byte [] temp = new byte[32];
+        byte [] bi_bytes = bi_aux.toByteArray();
+        int length = bi_bytes[0] == 0 ?
+                java.lang.Math.min(bi_bytes.length -1, 32) :
+                java.lang.Math.min(bi_bytes.length, 32);
+        System.arraycopy(bi_bytes, bi_bytes[0] == 0 ? 1 : 0, temp, 0, length);
+        Sha256Hash aux = Sha256Hash.wrap(temp);
+
+        Sha256Hash hash2 = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(hash.getReversedBytes()));
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+            bos.write(hash.getReversedBytes());
+            bos.write(aux.getReversedBytes());
+            Sha256Hash hash3 = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
+
+            BigInteger bhash2 = hash2.toBigInteger();
+            BigInteger bhash3 = hash3.toBigInteger();
+
+            byte [] subtraction = bhash3.compareTo(bhash2) > 0 ?
+                    bhash3.subtract(bhash2).toByteArray() : bhash2.subtract(bhash3).toByteArray();
+            length = subtraction[0] == 0 ?
+                    java.lang.Math.min(subtraction.length -1, 32) :
+                    java.lang.Math.min(subtraction.length, 32);
+            System.arraycopy(subtraction, subtraction[0] == 0 ? 1 : 0, temp, 0, length);
+            return Sha256Hash.wrap(temp);
+        } catch (IOException x) {
+            return Sha256Hash.ZERO_HASH;
+        }
+    }
+
+    private static TransactionInput input(byte[] hash, long index) {
+        return new TransactionInput(PARAMS, null, new byte[0], new TransactionOutPoint(PARAMS, index, Sha256Hash.wrap(hash)));
+    }
+
+    private static void assertSameScore(TransactionInput vin, Sha256Hash blockHash) {
+        Sha256Hash expected = calculateScoreReference(vin, blockHash);
+        MasternodeScore score = new MasternodeScore(blockHash);
+        assertEquals(vin.getOutpoint().toString(), expected, score.calculate(vin.getOutpoint()));
+        assertEquals(Utils.encodeCompactBits(expected.toBigInteger(), false), score.calculateCompact(vin.getOutpoint()));
+    }
+
+    @Test
+    public void knownVector() {
+        TransactionInput vin = input(Utils.HEX.decode("b4bc8e63e2d703ba86b74f9df2d13089e07eef45afbd31614eb6ad29d4f9acdb"), 0);
+        Sha256Hash hash = Sha256Hash.wrap("00000000000642c0b18cafc97a23ffd6e5eeb0a63b600a0d3f9630a93b674ae0");
+        assertEquals(Sha256Hash.wrap("83f1287faaf5e5deb3058112b27a38b523f5324a37e6b00f0a5594b55109ac46"),
+                new MasternodeScore(hash).calculate(vin.getOutpoint()));
+    }
+
+    @Test
+    public void randomizedAgainstReference() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            byte[] outpointHash = new byte[32];
+            random.nextBytes(outpointHash);
+            // Leading zero bytes exercise the short values that the original copied to the wrong end of the array.
+            Arrays.fill(outpointHash, 0, random.nextInt(4) == 0 ? random.nextInt(33) : 0, (byte) 0);
+            long index = random.nextBoolean() ? random.nextInt(10) : random.nextLong() & 0xffffffffL;
+            byte[] blockHash = new byte[32];
+            random.nextBytes(blockHash);
+            assertSameScore(input(outpointHash, index), Sha256Hash.wrap(blockHash));
+        }
+    }
+
+    @Test
+    public void edgeCases() {
+        Sha256Hash blockHash = Sha256Hash.wrap("00000000000642c0b18cafc97a23ffd6e5eeb0a63b600a0d3f9630a93b674ae0");
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xff);
+        byte[] highBit = new byte[32];
+        highBit[0] = (byte) 0x80;
+        byte[] almostOnes = ones.clone();
+        almostOnes[31] = (byte) 0xf0;
+        // The sum carries out of 256 bits.
+        assertSameScore(input(ones, 1), blockHash);
+        assertSameScore(input(ones, 0xffffffffL), blockHash);
+        assertSameScore(input(almostOnes, 0x10), blockHash);
+        // No carry at all, and the largest value that still fits.
+        assertSameScore(input(ones, 0), blockHash);
+        assertSameScore(input(almostOnes, 0xf), blockHash);
+        // The sum is zero, small or has its top bit set.
+        assertSameScore(input(new byte[32], 0), blockHash);
+        assertSameScore(input(new byte[32], 1), blockHash);
+        assertSameScore(input(new byte[32], 0xffffffffL), blockHash);
+        assertSameScore(input(highBit, 0), blockHash);
+        assertSameScore(input(ones, 0), Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void encodeCompact() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            byte[] value = new byte[32];
+            random.nextBytes(value);
+            Arrays.fill(value, 0, random.nextInt(33), (byte) 0);
+            assertEquals(Utils.encodeCompactBits(new BigInteger(1, value), false), MasternodeScore.encodeCompact(value));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelHeaderVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int BATCH = 200;
+    private static List<byte[]> serializedHeaders;
+
+    private ParallelHeaderVerifier verifier;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        new Context(PARAMS);
+        Address to = new ECKey().toAddress(PARAMS);
+        serializedHeaders = new ArrayList<byte[]>();
+        Block block = PARAMS.getGenesisBlock();
+        for (int i = 0; i < BATCH; i++) {
+            block = block.createNextBlock(to);
+            serializedHeaders.add(block.cloneAsHeader().bitcoinSerialize());
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        verifier = new ParallelHeaderVerifier(4);
+    }
+
+    @After
+    public void tearDown() {
+        verifier.shutdown();
+    }
+
+    private List<Block> parseHeaders() {
+        BitcoinSerializer serializer = PARAMS.getSerializer(true);
+        List<Block> headers = new ArrayList<Block>();
+        for (byte[] bytes : serializedHeaders)
+            headers.add(serializer.makeBlock(bytes));
+        return headers;
+    }
+
+    @Test
+    public void allValid() throws Exception {
+        List<Block> headers = parseHeaders();
+        ParallelHeaderVerifier.Result result = verifier.verify(headers, headers.size());
+        assertTrue(result.isValid());
+        assertEquals(-1, result.firstInvalid);
+        assertNull(result.error);
+        assertEquals(BATCH, result.count);
+        assertTrue(result.busyNanos > 0);
+        // Hashes were cached by the worker threads and match a freshly parsed copy.
+        List<Block> reference = parseHeaders();
+        for (int i = 0; i < BATCH; i++)
+            assertEquals(reference.get(i).getHash(), headers.get(i).getHash());
+    }
+
+    @Test
+    public void reportsFirstInvalidHeader() throws Exception {
+        List<Block> headers = parseHeaders();
+        // Far harder than the unit test target, so the existing nonces no longer satisfy it.
+        headers.get(150).setDifficultyTarget(0x1d00ffffL);
+        headers.get(37).setDifficultyTarget(0x1d00ffffL);
+        ParallelHeaderVerifier.Result result = verifier.verify(headers, headers.size());
+        assertFalse(result.isValid());
+        assertEquals(37, result.firstInvalid);
+        assertNotNull(result.error);
+        assertTrue(result.error.getMessage().contains(headers.get(37).getHashAsString()));
+    }
+
+    @Test
+    public void smallBatchVerifiedInline() throws Exception {
+        List<Block> headers = parseHeaders();
+        headers.get(10).setDifficultyTarget(0x1d00ffffL);
+        ParallelHeaderVerifier.Result result = verifier.verify(headers, 5);
+        assertTrue(result.isValid());
+        assertEquals(5, result.count);
+        result = verifier.verify(headers, 20);
+        assertEquals(10, result.firstInvalid);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.util.Random;
+
+/**
+ * Measures how long the signature hashes of every input of a large mixing transaction take to work out, as they are
+ * when signing or verifying it: once by simplifying a copy of the transaction for each input, the way
+ * {@link Transaction#hashForSignature(int, byte[], byte)} used to, and once with the pieces it caches. Run it from the
+ * test classpath with an optional number of inputs, e.g. {@code java org.bitcoinj.core.SignatureHashBenchmark 500}.
+ */
+public class SignatureHashBenchmark {
+    // 0.100001 DASH, one of the mixing denominations.
+    private static final Coin DENOMINATION = Coin.valueOf(10000100);
+
+    public static void main(String[] args) throws Exception {
+        int inputs = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        NetworkParameters params = MainNetParams.get();
+        new Context(params);
+        Transaction tx = mixingTransaction(params, inputs);
+        byte[][] connectedScripts = new byte[inputs][];
+        for (int i = 0; i < inputs; i++)
+            connectedScripts[i] = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        System.out.printf("%,d inputs, %,d bytes%n", inputs, tx.getMessageSize());
+
+        // Warm up so the JIT has compiled the hashing code before we measure.
+        copies(tx, connectedScripts);
+        cached(tx, connectedScripts);
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            copies(tx, connectedScripts);
+            long copies = System.nanoTime() - start;
+            start = System.nanoTime();
+            cached(tx, connectedScripts);
+            long cached = System.nanoTime() - start;
+            System.out.printf("copies %,8.1f ms   cached %,8.1f ms%n", copies / 1e6, cached / 1e6);
+        }
+    }
+
+    private static Transaction mixingTransaction(NetworkParameters params, int inputs) {
+        Random random = new Random(1);
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < inputs; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            // About the size of a signature and public key.
+            Script scriptSig = new ScriptBuilder().data(new byte[72]).data(new byte[33]).build();
+            tx.addInput(Sha256Hash.wrap(hash), random.nextInt(10), scriptSig);
+            tx.addOutput(DENOMINATION, new ECKey().toAddress(params));
+        }
+        return tx;
+    }
+
+    private static void copies(Transaction tx, byte[][] connectedScripts) {
+        for (int i = 0; i < connectedScripts.length; i++)
+            TransactionTest.hashForSignatureOfCopy(tx, i, connectedScripts[i], Transaction.SigHash.ALL.byteValue());
+    }
+
+    private static void cached(Transaction tx, byte[][] connectedScripts) {
+        // Start from nothing cached, so working out the pieces is counted too.
+        tx.getInput(0).setSequenceNumber(tx.getInput(0).getSequenceNumber());
+        for (int i = 0; i < connectedScripts.length; i++)
+            tx.hashForSignature(i, connectedScripts[i], Transaction.SigHash.ALL.byteValue());
+    }
+}
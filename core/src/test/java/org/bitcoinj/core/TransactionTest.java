@@ -394,4 +394,91 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void signatureHashesMatchSimplifiedCopies() {
+        Transaction tx = new Transaction(PARAMS);
+        Random random = new Random(1);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = tx.addInput(Sha256Hash.wrap(hash), random.nextInt(10), new Script(new byte[i]));
+            input.setSequenceNumber(i * 1000);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000000)), new ECKey().toAddress(PARAMS));
+        tx.setLockTime(1234567);
+        byte[] connectedScript = new ScriptBuilder().op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_CODESEPARATOR)
+                .data(new byte[20]).op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+
+        int[] sigHashTypes = { 0, 1, 2, 3, 4, 0x41, 0x81, 0x82, 0x83, 0xff };
+        for (int sigHashType : sigHashTypes) {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                assertEquals("input " + i + " type " + sigHashType,
+                        hashForSignatureOfCopy(tx, i, connectedScript, (byte) sigHashType),
+                        tx.hashForSignature(i, connectedScript, (byte) sigHashType));
+            }
+        }
+    }
+
+    @Test
+    public void signatureHashContextIsKeptWhileSigning() {
+        Transaction tx = FakeTxBuilder.createFakeTx(PARAMS);
+        tx.addInput(tx.getInput(0).duplicateDetached()).getOutpoint().setIndex(1);
+        Sha256Hash sigHash = tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue());
+        SignatureHashContext context = tx.getCachedSignatureHashContext();
+        assertNotNull(context);
+
+        // Signing an input changes its script, which isn't part of the signature hashes.
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[72]).build());
+        assertSame(context, tx.getCachedSignatureHashContext());
+        assertEquals(sigHash, tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue()));
+
+        // Anything else means working them out again.
+        tx.getInput(0).setSequenceNumber(0);
+        assertNull(tx.getCachedSignatureHashContext());
+        assertNotEquals(sigHash, tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue()));
+        sigHash = tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue());
+        tx.getInput(0).getOutpoint().setIndex(2);
+        assertNotEquals(sigHash, tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue()));
+        sigHash = tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue());
+        tx.getOutput(0).setValue(Coin.SATOSHI);
+        assertNotEquals(sigHash, tx.hashForSignature(1, new byte[0], Transaction.SigHash.ALL.byteValue()));
+    }
+
+    /**
+     * Works out a signature hash the way Bitcoin Core describes it, by simplifying a copy of the transaction. Also the
+     * baseline of {@link SignatureHashBenchmark}.
+     */
+    static Sha256Hash hashForSignatureOfCopy(Transaction tx, int inputIndex, byte[] connectedScript,
+                                                     byte sigHashType) {
+        Transaction copy = PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+        for (TransactionInput input : copy.getInputs())
+            input.clearScriptBytes();
+        TransactionInput input = copy.getInput(inputIndex);
+        input.setScriptBytes(Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR));
+        int mode = sigHashType & 0x1f;
+        if (mode == Transaction.SigHash.NONE.value || mode == Transaction.SigHash.SINGLE.value) {
+            List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(copy.getOutputs());
+            copy.clearOutputs();
+            if (mode == Transaction.SigHash.SINGLE.value) {
+                if (inputIndex >= outputs.size())
+                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+                for (int i = 0; i < inputIndex; i++)
+                    copy.addOutput(new TransactionOutput(PARAMS, copy, Coin.NEGATIVE_SATOSHI, new byte[0]));
+                copy.addOutput(outputs.get(inputIndex));
+            }
+            for (int i = 0; i < copy.getInputs().size(); i++)
+                if (i != inputIndex)
+                    copy.getInput(i).setSequenceNumber(0);
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0) {
+            copy.clearInputs();
+            copy.addInput(input);
+        }
+        byte[] serialized = copy.bitcoinSerialize();
+        byte[] bytes = Arrays.copyOf(serialized, serialized.length + 4);
+        Utils.uint32ToByteArrayLE(0xff & sigHashType, bytes, serialized.length);
+        return Sha256Hash.twiceOf(bytes);
+    }
 }
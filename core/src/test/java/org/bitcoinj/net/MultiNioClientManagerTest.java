@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoin.paymentchannel.Protos.TwoWayChannelMessage;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiNioClientManagerTest {
+    private static final InetSocketAddress SERVER = new InetSocketAddress("localhost", 4244);
+
+    private NioServer server;
+    private MultiNioClientManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(UnitTestParams.get());
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return newConnection();
+            }
+        }, SERVER);
+        server.startAsync();
+        server.awaitRunning();
+    }
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void leastConnections() throws Exception {
+        manager = start(MultiNioClientManager.LEAST_CONNECTIONS);
+        connect(6);
+        for (MultiNioClientManager.SelectorLoad load : manager.getLoads())
+            assertEquals(2, load.getConnectionCount());
+        assertEquals(6, manager.getConnectedClientCount());
+
+        manager.closeConnections(3);
+        assertEquals(3, manager.getConnectedClientCount());
+        for (MultiNioClientManager.SelectorLoad load : manager.getLoads())
+            assertEquals(1, load.getConnectionCount());
+    }
+
+    @Test
+    public void addressHash() throws Exception {
+        manager = start(MultiNioClientManager.ADDRESS_HASH);
+        connect(4);
+        int busy = 0;
+        for (MultiNioClientManager.SelectorLoad load : manager.getLoads()) {
+            if (load.getConnectionCount() > 0) {
+                assertEquals(4, load.getConnectionCount());
+                busy++;
+            }
+        }
+        assertEquals(1, busy);
+    }
+
+    private MultiNioClientManager start(MultiNioClientManager.Affinity affinity) {
+        MultiNioClientManager manager = new MultiNioClientManager(3, affinity);
+        manager.startAsync();
+        manager.awaitRunning();
+        assertEquals(3, manager.getSelectorCount());
+        return manager;
+    }
+
+    private void connect(int count) throws Exception {
+        List<ListenableFuture<SocketAddress>> futures = new ArrayList<ListenableFuture<SocketAddress>>();
+        for (int i = 0; i < count; i++)
+            futures.add(manager.openConnection(SERVER, newConnection()));
+        Futures.allAsList(futures).get();
+    }
+
+    private static ProtobufConnection<TwoWayChannelMessage> newConnection() {
+        return new ProtobufConnection<TwoWayChannelMessage>(new ProtobufConnection.Listener<TwoWayChannelMessage>() {
+            @Override
+            public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, TwoWayChannelMessage msg) {
+            }
+
+            @Override
+            public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+            }
+
+            @Override
+            public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+            }
+        }, TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+    }
+}
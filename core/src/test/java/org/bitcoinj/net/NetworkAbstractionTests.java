@@ -32,11 +32,14 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
@@ -49,7 +52,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +64,16 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new MultiNioClientManager(2);
+            channels.startAsync();
+            channels.awaitRunning();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufConnection<TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -260,6 +268,78 @@ public class NetworkAbstractionTests {
         assertFalse(server.isRunning());
     }
 
+    @Test
+    public void burstClientServerTest() throws Exception {
+        // Tests that a burst of messages, more than fit in the outbound queues to begin with, arrives intact and in order
+        final int count = 2000;
+        final SettableFuture<Void> serverConnectionClosed = SettableFuture.create();
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> clientConnectionClosed = SettableFuture.create();
+        final SettableFuture<Void> allReceived = SettableFuture.create();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<TwoWayChannelMessage>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        serverConnectionClosed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<TwoWayChannelMessage>(
+                new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    int received = 0;
+
+                    @Override
+                    public synchronized void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        if (msg.getClientVersion().getMajor() != received)
+                            fail.set(true);
+                        if (++received == count)
+                            allReceived.set(null);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        clientConnectionClosed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+
+        for (int i = 0; i < count; i++) {
+            clientHandler.write(Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+                    .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i)).build());
+        }
+        allReceived.get();
+
+        client.closeConnection();
+        serverConnectionClosed.get();
+        clientConnectionClosed.get();
+
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
     @Test
     public void basicTimeoutTest() throws Exception {
         // Tests various timeout scenarios
@@ -361,6 +441,31 @@ public class NetworkAbstractionTests {
         server.awaitTerminated();
     }
 
+    @Test
+    public void writeToPlainTarget() throws Exception {
+        // A target that can't take buffers gets the length prefix and the message in one array.
+        final List<byte[]> written = new ArrayList<byte[]>();
+        ProtobufConnection<TwoWayChannelMessage> handler = new ProtobufConnection<TwoWayChannelMessage>(null,
+                TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+        handler.setWriteTarget(new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+                written.add(message);
+            }
+
+            @Override
+            public void closeConnection() {
+                fail.set(true);
+            }
+        });
+        TwoWayChannelMessage msg = TwoWayChannelMessage.newBuilder().setType(TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        handler.write(msg);
+        assertEquals(1, written.size());
+        byte[] bytes = msg.toByteArray();
+        assertEquals(bytes.length, (int) Utils.readUint32BE(written.get(0), 0));
+        assertArrayEquals(bytes, Arrays.copyOfRange(written.get(0), 4, written.get(0).length));
+    }
+
     @Test
     public void largeDataTest() throws Exception {
         // Test various large-data handling, essentially testing {@link ProtobufConnection#receiveBytes(java.nio.ByteBuffer)}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures how many {@link BlockStore#get(Sha256Hash)} calls per second an {@link SPVBlockStore} and a
+ * {@link LevelDBBlockStore} answer with a growing number of threads looking up random headers, most of which miss
+ * the caches. Each store is also measured with every lookup behind one shared lock, which is how the stores behaved
+ * when all access was serialized. Run it from the test classpath with an optional number of headers and seconds per
+ * measurement, e.g. {@code java org.bitcoinj.store.BlockStoreReadBenchmark 20000 2}.
+ */
+public class BlockStoreReadBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        int headers = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        NetworkParameters params = UnitTestParams.get();
+        Context context = new Context(params);
+        // The unit test genesis block is recent, so move the clock past the end of the chain we build on it.
+        Utils.setMockClock(Utils.currentTimeSeconds() + headers);
+
+        File file = File.createTempFile("spvbenchmark", null);
+        file.delete();
+        File directory = File.createTempFile("leveldbbenchmark", null);
+        directory.delete();
+        SPVBlockStore spvStore = new SPVBlockStore(params, file, headers + 1);
+        LevelDBBlockStore levelDBStore = new LevelDBBlockStore(context, directory);
+        try {
+            Sha256Hash[] hashes = new Sha256Hash[headers];
+            Address to = new ECKey().toAddress(params);
+            StoredBlock block = spvStore.getChainHead();
+            for (int i = 0; i < headers; i++) {
+                block = block.build(block.getHeader().createNextBlock(to, Block.BLOCK_VERSION_GENESIS,
+                        block.getHeader().getTimeSeconds() + 1, block.getHeight() + 1).cloneAsHeader());
+                spvStore.put(block);
+                levelDBStore.put(block);
+                hashes[i] = block.getHeader().getHash();
+            }
+
+            run("SPVBlockStore", spvStore, hashes, seconds);
+            run("LevelDBBlockStore", levelDBStore, hashes, seconds);
+        } finally {
+            spvStore.close();
+            levelDBStore.close();
+            levelDBStore.destroy();
+            file.delete();
+            new File(file.getPath() + ".heights").delete();
+        }
+    }
+
+    private static void run(String name, BlockStore store, Sha256Hash[] hashes, int seconds) throws Exception {
+        // Warm up so the JIT has compiled the lookup path before we measure.
+        measure(store, hashes, 1, 1, null);
+        for (int threads : THREADS) {
+            long serialized = measure(store, hashes, threads, seconds, new ReentrantLock());
+            long concurrent = measure(store, hashes, threads, seconds, null);
+            System.out.printf("%-18s %d threads: %,12d gets/s serialized %,12d gets/s concurrent%n",
+                    name, threads, serialized / seconds, concurrent / seconds);
+        }
+    }
+
+    // Returns the number of lookups made by all threads together in the given time.
+    private static long measure(final BlockStore store, final Sha256Hash[] hashes, int threads, int seconds,
+                                final ReentrantLock lock) throws Exception {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long n = 0;
+                        while ((n & 255) != 0 || System.nanoTime() < deadline) {
+                            Sha256Hash hash = hashes[random.nextInt(hashes.length)];
+                            if (lock != null)
+                                lock.lock();
+                            try {
+                                if (store.get(hash) == null)
+                                    misses.incrementAndGet();
+                            } finally {
+                                if (lock != null)
+                                    lock.unlock();
+                            }
+                            n++;
+                        }
+                        count.addAndGet(n);
+                    } catch (BlockStoreException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        if (misses.get() != 0)
+            throw new IllegalStateException(misses.get() + " headers were not found");
+        return count.get();
+    }
+}
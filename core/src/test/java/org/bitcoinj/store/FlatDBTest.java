@@ -0,0 +1,322 @@
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlatDBTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private FlatDB<TestManager> db;
+
+    // Stands in for the masternode manager, with a payload large enough to need several buffers.
+    static class TestManager extends AbstractManager {
+        byte[] data;
+
+        TestManager(Context context, byte[] data) {
+            super(context);
+            this.data = data;
+        }
+
+        @Override
+        protected void parse() throws ProtocolException {
+            data = readByteArray();
+            length = cursor - offset;
+        }
+
+        @Override
+        protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+            stream.write(new VarInt(data.length).encode());
+            stream.write(data);
+        }
+
+        @Override
+        public int calculateMessageSizeInBytes() {
+            return VarInt.sizeOf(data.length) + data.length;
+        }
+
+        @Override
+        public void checkAndRemove() {
+        }
+
+        @Override
+        public void clear() {
+            data = new byte[0];
+        }
+
+        @Override
+        public AbstractManager createEmpty() {
+            return new TestManager(Context.get(), new byte[0]);
+        }
+
+        void set(int index, byte value) {
+            data[index] = value;
+            byte[] payload = new byte[5];
+            Utils.uint32ToByteArrayLE(index, payload, 0);
+            payload[4] = value;
+            record(1, payload);
+        }
+
+    }
+
+    static class JournaledManager extends TestManager implements FlatDBJournal.RecordHandler {
+        JournaledManager(Context context, byte[] data) {
+            super(context, data);
+        }
+
+        @Override
+        public void applyJournalRecord(int type, byte[] payload) throws ProtocolException {
+            assertEquals(1, type);
+            data[(int) Utils.readUint32(payload, 0)] = payload[4];
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(PARAMS);
+        directory = File.createTempFile("flatdb", null);
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        db = new FlatDB<TestManager>(directory.getAbsolutePath(), "test.dat", "magicTestCache");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private File file() {
+        return new File(directory, "test.dat");
+    }
+
+    private File journal() {
+        return new File(directory, "test.dat.journal");
+    }
+
+    // Loads the file and its journal into a new manager, as on startup.
+    private TestManager reload(int size) {
+        FlatDB<TestManager> db = new FlatDB<TestManager>(directory.getAbsolutePath(), "test.dat", "magicTestCache");
+        db.useJournal(1000);
+        TestManager manager = new JournaledManager(Context.get(), new byte[size]);
+        db.load(manager);
+        return manager;
+    }
+
+    @Test
+    public void roundTrip() {
+        byte[] data = randomBytes(1 << 20);
+        assertTrue(db.write(new TestManager(Context.get(), data)));
+        // Only the target is left behind, the temp file has been renamed over it.
+        assertArrayEquals(new String[] {"test.dat"}, directory.list());
+
+        TestManager loaded = new TestManager(Context.get(), new byte[0]);
+        assertEquals(FlatDB.ReadResult.Ok, db.read(loaded, true));
+        assertArrayEquals(data, loaded.data);
+
+        // Writing again replaces the file.
+        assertTrue(db.write(new TestManager(Context.get(), randomBytes(100))));
+        assertEquals(FlatDB.ReadResult.Ok, db.read(loaded, true));
+        assertArrayEquals(randomBytes(100), loaded.data);
+    }
+
+    @Test
+    public void replayJournal() throws Exception {
+        // No snapshot yet, everything is in the journal.
+        TestManager manager = reload(100);
+        assertTrue(journal().exists());
+        for (int i = 0; i < 10; i++)
+            manager.set(i * 3, (byte) (i + 1));
+        assertArrayEquals(manager.data, reload(100).data);
+
+        // A torn record at the end is cut off and later records are appended after the last good one.
+        long length = journal().length();
+        RandomAccessFile file = new RandomAccessFile(journal(), "rw");
+        try {
+            file.seek(length);
+            file.write(new byte[] {1, 5, 0, 0, 0, 1, 2});
+        } finally {
+            file.close();
+        }
+        manager = reload(100);
+        assertEquals(length, journal().length());
+        manager.set(99, (byte) 7);
+        assertArrayEquals(manager.data, reload(100).data);
+        assertFalse(file().exists());
+    }
+
+    @Test
+    public void journalCompaction() throws Exception {
+        TestManager manager = reload(1000);
+        Random random = new Random(5);
+        // Each record takes 14 bytes, so the journal passes 1000 bytes and is compacted into a snapshot.
+        for (int i = 0; i < 100; i++)
+            manager.set(random.nextInt(1000), (byte) random.nextInt());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!file().exists() || journal().length() >= 1000) {
+            assertTrue("no compaction", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++)
+            manager.set(random.nextInt(1000), (byte) random.nextInt());
+        assertArrayEquals(manager.data, reload(1000).data);
+    }
+
+    @Test
+    public void dumpOnlySyncsJournal() throws Exception {
+        FlatDB<TestManager> db = new FlatDB<TestManager>(directory.getAbsolutePath(), "test.dat", "magicTestCache");
+        db.useJournal(1000);
+        TestManager manager = new JournaledManager(Context.get(), new byte[100]);
+        db.load(manager);
+        manager.set(1, (byte) 1);
+        long length = journal().length();
+        // The changes are already in the journal, so no snapshot is written until it needs compacting.
+        assertTrue(db.dump(manager));
+        assertFalse(file().exists());
+        assertEquals(length, journal().length());
+        manager.set(2, (byte) 2);
+        assertArrayEquals(manager.data, reload(100).data);
+    }
+
+    @Test
+    public void dumpWritesSnapshotAfterFailedAppend() throws Exception {
+        FlatDB<TestManager> db = new FlatDB<TestManager>(directory.getAbsolutePath(), "test.dat", "magicTestCache");
+        db.useJournal(1000);
+        TestManager manager = new JournaledManager(Context.get(), new byte[100]);
+        db.load(manager);
+        manager.set(1, (byte) 1);
+
+        // Close the journal's file under it, so the next append fails and disables the journal.
+        Field journalField = FlatDB.class.getDeclaredField("journal");
+        journalField.setAccessible(true);
+        FlatDBJournal journal = (FlatDBJournal) journalField.get(db);
+        Field streamField = FlatDBJournal.class.getDeclaredField("stream");
+        streamField.setAccessible(true);
+        ((OutputStream) streamField.get(journal)).close();
+        manager.set(2, (byte) 2);
+        assertFalse(journal.isOpen());
+
+        // The changes are saved as a snapshot instead, and the journal they outdate is dropped.
+        assertTrue(db.dump(manager));
+        assertTrue(file().exists());
+        assertFalse(journal().exists());
+        assertArrayEquals(manager.data, reload(100).data);
+
+        manager.set(3, (byte) 3);
+        assertTrue(db.dump(manager));
+        TestManager loaded = new TestManager(Context.get(), new byte[0]);
+        assertEquals(FlatDB.ReadResult.Ok, db.read(loaded, true));
+        assertArrayEquals(manager.data, loaded.data);
+    }
+
+    @Test
+    public void failedCompactionIsRetried() throws Exception {
+        final Semaphore compactions = new Semaphore(0);
+        FlatDBJournal journal = new FlatDBJournal(journal(), "magicTestCache", PARAMS, 10, new Runnable() {
+            @Override
+            public void run() {
+                compactions.release();
+            }
+        });
+        journal.open(new JournaledManager(Context.get(), new byte[10]));
+        assertTrue(journal.append(1, new byte[5]));
+        assertTrue(compactions.tryAcquire(10, TimeUnit.SECONDS));
+        // Only one compaction is asked for until it completes or fails.
+        assertTrue(journal.append(1, new byte[5]));
+        assertFalse(compactions.tryAcquire(100, TimeUnit.MILLISECONDS));
+        journal.compactionFailed();
+        assertTrue(journal.append(1, new byte[5]));
+        assertTrue(compactions.tryAcquire(10, TimeUnit.SECONDS));
+        journal.close();
+    }
+
+    @Test
+    public void missingFile() {
+        assertEquals(FlatDB.ReadResult.FileError, db.read(new TestManager(Context.get(), new byte[0]), true));
+    }
+
+    @Test
+    public void corruption() throws Exception {
+        assertTrue(db.write(new TestManager(Context.get(), randomBytes(1000))));
+        RandomAccessFile file = new RandomAccessFile(file(), "rw");
+        try {
+            file.seek(500);
+            int b = file.read();
+            file.seek(500);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        assertEquals(FlatDB.ReadResult.IncorrectHash, db.read(new TestManager(Context.get(), new byte[0]), true));
+        assertEquals(FlatDB.ReadResult.IncorrectHash, db.verify());
+
+        file = new RandomAccessFile(file(), "rw");
+        try {
+            file.setLength(20);
+        } finally {
+            file.close();
+        }
+        assertEquals(FlatDB.ReadResult.HashReadError, db.read(new TestManager(Context.get(), new byte[0]), true));
+        assertEquals(FlatDB.ReadResult.HashReadError, db.verify());
+    }
+
+    @Test
+    public void wrongMagicMessage() {
+        assertTrue(db.write(new TestManager(Context.get(), randomBytes(10))));
+        FlatDB<TestManager> other = new FlatDB<TestManager>(directory.getAbsolutePath(), "test.dat", "magicOtherCache");
+        assertEquals(FlatDB.ReadResult.IncorrectMagicMessage, other.read(new TestManager(Context.get(), new byte[0]), true));
+        assertEquals(FlatDB.ReadResult.IncorrectMagicMessage, other.verify());
+        // A file of another kind is left alone.
+        assertFalse(other.dump(new TestManager(Context.get(), randomBytes(20))));
+        assertEquals(FlatDB.ReadResult.Ok, db.verify());
+    }
+
+    @Test
+    public void dumpChecksWithoutLoading() {
+        assertTrue(db.write(new TestManager(Context.get(), randomBytes(10))));
+        assertTrue(db.dump(new TestManager(Context.get(), randomBytes(20)) {
+            @Override
+            public void load(byte[] payload, int offset) {
+                fail("dump() loaded the file");
+            }
+
+            @Override
+            public AbstractManager createEmpty() {
+                return this;
+            }
+        }));
+        TestManager loaded = new TestManager(Context.get(), new byte[0]);
+        assertEquals(FlatDB.ReadResult.Ok, db.read(loaded, true));
+        assertArrayEquals(randomBytes(20), loaded.data);
+    }
+
+    @Test
+    public void noJournalWithoutHandler() {
+        db.useJournal(1000);
+        TestManager manager = new TestManager(Context.get(), new byte[10]);
+        db.load(manager);
+        manager.set(1, (byte) 1);
+        assertFalse(journal().exists());
+    }
+}
@@ -21,6 +21,8 @@ import org.junit.*;
 import java.io.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class LevelDBBlockStoreTest {
     @Test
@@ -53,9 +55,56 @@ public class LevelDBBlockStoreTest {
             // Check the chain head was stored correctly also.
             StoredBlock chainHead = store.getChainHead();
             assertEquals(b1, chainHead);
+            // And the height index with it.
+            assertEquals(genesis.getHeader().getHash(), store.getBlockHashAtHeight(0));
+            assertEquals(b1.getHeader().getHash(), store.getBlockHashAtHeight(1));
+            assertNull(store.getBlockHashAtHeight(2));
         } finally {
             store.close();
             store.destroy();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void heightIndexBuiltInBackground() throws Exception {
+        File f = File.createTempFile("leveldbblockstore", null);
+        f.delete();
+
+        NetworkParameters params = UnitTestParams.get();
+        Context context = new Context(params);
+        LevelDBBlockStore store = new LevelDBBlockStore(context, f);
+        store.reset();
+        // The index of a new store is built in the background, like that of a store written before it had one.
+        Address to = Address.fromBase58(params, "yXXWsFYKL2TouBVHcLeXnhg2GRzntvs5oy");
+        StoredBlock[] blocks = new StoredBlock[11];
+        blocks[0] = store.getChainHead();
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = blocks[i - 1].build(blocks[i - 1].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(blocks[i]);
+        }
+        store.setChainHead(blocks[10]);
+
+        try {
+            // Lookups are answered whether or not the index is ready yet.
+            for (int i = 0; i < blocks.length; i++)
+                assertEquals(blocks[i].getHeader().getHash(), store.getBlockHashAtHeight(i));
+            assertNull(store.getBlockHashAtHeight(11));
+
+            for (int i = 0; i < 100 && !store.isHeightIndexReady(); i++)
+                Thread.sleep(50);
+            assertTrue(store.isHeightIndexReady());
+            for (int i = 0; i < blocks.length; i++)
+                assertEquals(blocks[i].getHeader().getHash(), store.getBlockHashAtHeight(i));
+            assertNull(store.getBlockHashAtHeight(11));
+
+            // Once it is ready it follows the chain head.
+            StoredBlock b11 = blocks[10].build(blocks[10].getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b11);
+            store.setChainHead(b11);
+            assertEquals(b11.getHeader().getHash(), store.getBlockHashAtHeight(11));
+        } finally {
+            store.close();
+            store.destroy();
+        }
+    }
+}
@@ -18,8 +18,15 @@
 package org.bitcoinj.store;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
@@ -38,6 +45,19 @@ public class SPVBlockStoreTest {
         blockStoreFile = File.createTempFile("spvblockstore", null);
         blockStoreFile.delete();
         blockStoreFile.deleteOnExit();
+        new File(blockStoreFile.getPath() + ".heights").deleteOnExit();
+    }
+
+    private static List<StoredBlock> extend(SPVBlockStore store, StoredBlock from, int count, Address to) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = from;
+        for (int i = 0; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+        }
+        return blocks;
     }
 
     @Test
@@ -77,4 +97,130 @@ public class SPVBlockStoreTest {
         store.close();
         store = new SPVBlockStore(UNITTEST, blockStoreFile);
     }
+
+    @Test
+    public void heightIndex() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(genesis.getHeader().getHash(), store.getBlockHashAtHeight(0));
+
+        List<StoredBlock> chain = extend(store, genesis, 20, new ECKey().toAddress(UNITTEST));
+        for (StoredBlock block : chain)
+            assertEquals(block.getHeader().getHash(), store.getBlockHashAtHeight(block.getHeight()));
+        assertNull(store.getBlockHashAtHeight(21));
+
+        // Re-org onto a fork from height 15 that is shorter than the old chain.
+        List<StoredBlock> fork = extend(store, chain.get(14), 3, new ECKey().toAddress(UNITTEST));
+        assertEquals(chain.get(14).getHeader().getHash(), store.getBlockHashAtHeight(15));
+        assertEquals(fork.get(0).getHeader().getHash(), store.getBlockHashAtHeight(16));
+        assertEquals(fork.get(2).getHeader().getHash(), store.getBlockHashAtHeight(18));
+        assertNull(store.getBlockHashAtHeight(19));
+        store.close();
+
+        // The index is kept on disk.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(chain.get(4).getHeader().getHash(), store.getBlockHashAtHeight(5));
+        assertEquals(fork.get(2).getHeader().getHash(), store.getBlockHashAtHeight(18));
+        // Switching back to the longer chain only rewrites the heights above the fork.
+        store.setChainHead(chain.get(19));
+        assertEquals(chain.get(16).getHeader().getHash(), store.getBlockHashAtHeight(17));
+        assertEquals(chain.get(19).getHeader().getHash(), store.getBlockHashAtHeight(20));
+        store.close();
+    }
+
+    @Test
+    public void heightIndexStartsAtCheckpoint() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(store, genesis, 10, new ECKey().toAddress(UNITTEST));
+        store.close();
+
+        // A new store that starts from a checkpoint has nothing to index below it.
+        assertTrue(blockStoreFile.delete());
+        store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        store.put(chain.get(4));
+        store.setChainHead(chain.get(4));
+        extend(store, chain.get(4), 2, new ECKey().toAddress(UNITTEST));
+        assertNull(store.getBlockHashAtHeight(0));
+        assertNull(store.getBlockHashAtHeight(4));
+        assertEquals(chain.get(4).getHeader().getHash(), store.getBlockHashAtHeight(5));
+        assertEquals(store.getChainHead().getHeader().getHash(), store.getBlockHashAtHeight(7));
+        store.close();
+    }
+
+    @Test
+    public void ringWrapsAround() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 10);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = extend(store, genesis, 24, new ECKey().toAddress(UNITTEST));
+        // Storing a header again leaves two copies in the ring.
+        store.put(chain.get(20));
+        store.close();
+
+        // Only the last ten records are left, and they are found through the rebuilt index rather than the caches.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10);
+        assertNull(store.get(genesis.getHeader().getHash()));
+        for (int i = 0; i < chain.size(); i++)
+            assertEquals(i >= 15 ? chain.get(i) : null, store.get(chain.get(i).getHeader().getHash()));
+
+        // Overwriting the older copy keeps the newer one.
+        extend(store, chain.get(23), 6, new ECKey().toAddress(UNITTEST));
+        store.close();
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, 10);
+        assertNull(store.get(chain.get(19).getHeader().getHash()));
+        assertEquals(chain.get(21), store.get(chain.get(21).getHeader().getHash()));
+        assertEquals(chain.get(20), store.get(chain.get(20).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void capacityMustMatch() throws Exception {
+        new SPVBlockStore(UNITTEST, blockStoreFile, 10).close();
+        new SPVBlockStore(UNITTEST, blockStoreFile, 20);
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, 300);
+        final List<StoredBlock> stored = new CopyOnWriteArrayList<StoredBlock>();
+        stored.add(store.getChainHead());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final int blocks = 500;
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (stored.size() <= blocks) {
+                            // Only look at headers the ring can't have overwritten yet.
+                            int size = stored.size();
+                            StoredBlock block = stored.get(Math.max(0, size - 250) + random.nextInt(Math.min(size, 250)));
+                            assertEquals(block, store.get(block.getHeader().getHash()));
+                            StoredBlock head = store.getChainHead();
+                            assertEquals(head.getHeader().getHash(), store.getBlockHashAtHeight(head.getHeight()));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        Address to = new ECKey().toAddress(UNITTEST);
+        for (int i = 0; i < blocks; i++) {
+            StoredBlock block = stored.get(stored.size() - 1);
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            stored.add(block);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        store.close();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
 }
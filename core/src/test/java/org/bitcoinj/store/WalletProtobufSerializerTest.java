@@ -51,6 +51,7 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -301,6 +302,134 @@ public class WalletProtobufSerializerTest {
         assertEquals(1, rebornConfidence1.getDepthInBlocks());
     }
 
+    @Test
+    public void lazyTransactions() throws Exception {
+        // t1 pays us twice. t2 spends one of those outputs elsewhere, and t3 spends t2's change elsewhere, so only
+        // t1 is left unspent.
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        TransactionOutput spentOutput = t1.addOutput(CENT, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(spentOutput);
+        t2.addOutput(MILLICOIN, new ECKey().toAddress(PARAMS));
+        t2.addOutput(MILLICOIN, myAddress);
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 1);
+        Transaction t3 = new Transaction(PARAMS);
+        t3.addInput(t2.getOutput(1));
+        t3.addOutput(MILLICOIN, new ECKey().toAddress(PARAMS));
+        myWallet.receiveFromBlock(t3, null, BlockChain.NewBlockType.BEST_CHAIN, 2);
+        assertEquals(3, myWallet.getTransactionPool(Pool.SPENT).size() + myWallet.getTransactionPool(Pool.UNSPENT).size());
+        assertEquals(COIN, myWallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+
+        // The spent transactions aren't needed to know what can be spent.
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet1.calculateAllSpendCandidates().size());
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+
+        // They are read as soon as the wallet looks at its history.
+        assertEquals(3, wallet1.getTransactions(true).size());
+        assertEquals(0, wallet1.getDeferredTransactionCount());
+        wallet1.isConsistentOrThrow();
+        Transaction t1copy = wallet1.getTransaction(t1.getHash());
+        Transaction t2copy = wallet1.getTransaction(t2.getHash());
+        Transaction t3copy = wallet1.getTransaction(t3.getHash());
+        TransactionOutput spentOutputCopy = t1copy.getOutput(spentOutput.getIndex());
+        assertSame(t2copy.getInput(0), spentOutputCopy.getSpentBy());
+        assertSame(t3copy.getInput(0), t2copy.getOutput(1).getSpentBy());
+        assertEquals(myWallet.getTransactionPool(Pool.SPENT).keySet(), wallet1.getTransactionPool(Pool.SPENT).keySet());
+        assertEquals(new HashSet<Protos.Transaction>(new WalletProtobufSerializer().walletToProto(myWallet).getTransactionList()),
+                new HashSet<Protos.Transaction>(new WalletProtobufSerializer().walletToProto(wallet1).getTransactionList()));
+    }
+
+    @Test
+    public void lazyTransactionsFromProto() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 1);
+        assertEquals(2, myWallet.getTransactionPool(Pool.SPENT).size());
+
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(PARAMS, null, proto);
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+        assertEquals(ZERO, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet1.loadDeferredTransactions();
+        assertEquals(0, wallet1.getDeferredTransactionCount());
+        assertEquals(t1, wallet1.getTransactionPool(Pool.SPENT).get(t1.getHash()));
+
+        // A reset doesn't bother reading them.
+        wallet1 = serializer.readWallet(PARAMS, null, proto);
+        wallet1.reset();
+        assertEquals(0, wallet1.getDeferredTransactionCount());
+        assertEquals(0, wallet1.getTransactions(true).size());
+    }
+
+    @Test
+    public void lazyTransactionsSavedWithoutReading() throws Exception {
+        Transaction t1 = createFakeTx(PARAMS, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 1);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(PARAMS, null, proto);
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+        assertEquals(2, wallet1.getTransactionPool(Pool.SPENT).size());
+        assertEquals(new HashSet<Protos.Transaction>(proto.getTransactionList()),
+                new HashSet<Protos.Transaction>(new WalletProtobufSerializer().walletToProto(wallet1).getTransactionList()));
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+    }
+
+    @Test
+    public void lazyTransactionsDoubleSpent() throws Exception {
+        // t1 pays us from someone else's output and t2 spends that elsewhere, so both are spent.
+        Transaction foreign = createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS));
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addInput(foreign.getOutput(0));
+        t1.addOutput(COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN, 1);
+        assertEquals(2, myWallet.getTransactionPool(Pool.SPENT).size());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(myWallet, output);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLoadTransactionsLazily(true);
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+
+        // A transaction that has nothing to do with them doesn't read them.
+        assertFalse(wallet1.isTransactionRelevant(createFakeTx(PARAMS, COIN, new ECKey().toAddress(PARAMS))));
+        assertEquals(2, wallet1.getDeferredTransactionCount());
+
+        // One that double spends the foreign input of t1 is found although t1 hasn't been read yet.
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(foreign.getOutput(0));
+        doubleSpend.addOutput(COIN, new ECKey().toAddress(PARAMS));
+        assertTrue(wallet1.isTransactionRelevant(doubleSpend));
+        wallet1.receivePending(doubleSpend, null);
+        assertTrue(wallet1.getTransactionPool(Pool.DEAD).containsKey(doubleSpend.getHash()));
+        assertEquals(0, wallet1.getDeferredTransactionCount());
+    }
+
     private static Wallet roundTrip(Wallet wallet) throws Exception {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         new WalletProtobufSerializer().writeWallet(wallet, output);
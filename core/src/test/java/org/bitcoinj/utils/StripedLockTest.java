@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class StripedLockTest {
+    @Test
+    public void roundsUpToPowerOfTwo() {
+        assertEquals(1, new StripedLock("test", 1).size());
+        assertEquals(64, new StripedLock("test", 64).size());
+        assertEquals(128, new StripedLock("test", 65).size());
+    }
+
+    @Test
+    public void sameKeySameStripe() {
+        StripedLock stripes = new StripedLock("test", 16);
+        assertSame(stripes.get("key"), stripes.get(new String("key")));
+    }
+
+    @Test
+    public void lockAllTakesEachStripeOnce() {
+        StripedLock stripes = new StripedLock("test", 4);
+        List<Integer> keys = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 1, 2);
+        List<ReentrantLock> held = stripes.lockAll(keys);
+        assertEquals(4, held.size());
+        for (ReentrantLock lock : held)
+            assertEquals(1, lock.getHoldCount());
+        for (Integer key : keys)
+            assertTrue(stripes.get(key).isHeldByCurrentThread());
+        stripes.unlockAll(held);
+        for (Integer key : keys)
+            assertFalse(stripes.get(key).isLocked());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    @Test
+    public void expiresAtDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000);
+        wheel.schedule("a", 1010);
+        wheel.schedule("b", 1020);
+        assertEquals(2, wheel.size());
+        assertTrue(wheel.advance(1009).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(1010));
+        assertTrue(wheel.advance(1019).isEmpty());
+        assertEquals(Collections.singletonList("b"), wheel.advance(5000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void passedDeadlineExpiresOnNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000);
+        wheel.schedule("late", 10);
+        assertEquals(Collections.singletonList("late"), wheel.advance(1000));
+    }
+
+    @Test
+    public void rescheduleAndCancel() {
+        TimingWheel<String> wheel = new TimingWheel<String>(0);
+        wheel.schedule("a", 10);
+        wheel.schedule("a", 100000);
+        wheel.schedule("b", 10);
+        assertTrue(wheel.cancel("b"));
+        assertFalse(wheel.cancel("b"));
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.advance(99999).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(100000));
+    }
+
+    @Test
+    public void clockNeverMovesBackwards() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000);
+        wheel.schedule("a", 500);
+        wheel.schedule("b", 1500);
+        // Asking for an earlier time only expires what is due by then.
+        assertTrue(wheel.advance(400).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(600));
+        assertEquals(Collections.singletonList("b"), wheel.advance(1500));
+    }
+
+    @Test
+    public void beyondHorizon() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+        long far = 1L << 40;
+        wheel.schedule(1, far);
+        assertTrue(wheel.advance(far - 1).isEmpty());
+        assertEquals(Collections.singletonList(1), wheel.advance(far));
+    }
+
+    @Test
+    public void randomizedAgainstScan() {
+        Random random = new Random(3);
+        long now = 1500000000L;
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(now);
+        Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+        for (int round = 0; round < 2000; round++) {
+            for (int i = 0; i < 20; i++) {
+                int key = random.nextInt(5000);
+                if (random.nextInt(10) == 0) {
+                    assertEquals(deadlines.remove(key) != null, wheel.cancel(key));
+                } else {
+                    // Mostly near deadlines, some reaching into the coarser levels.
+                    long span = random.nextInt(4) == 0 ? 1L << random.nextInt(30) : 200;
+                    long deadline = now - 10 + (long) (random.nextDouble() * span);
+                    deadlines.put(key, deadline);
+                    wheel.schedule(key, deadline);
+                }
+            }
+            now += random.nextInt(4) == 0 ? random.nextInt(100000) : random.nextInt(20);
+
+            Set<Integer> expected = new HashSet<Integer>();
+            for (Iterator<Map.Entry<Integer, Long>> it = deadlines.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Long> entry = it.next();
+                if (entry.getValue() <= now) {
+                    expected.add(entry.getKey());
+                    it.remove();
+                }
+            }
+            List<Integer> expired = wheel.advance(now);
+            assertEquals(expected.size(), expired.size());
+            assertEquals(expected, new HashSet<Integer>(expired));
+            assertEquals(deadlines.size(), wheel.size());
+        }
+    }
+}
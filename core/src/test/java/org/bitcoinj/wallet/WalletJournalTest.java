@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private static final Address OTHER_ADDRESS = new ECKey().toAddress(PARAMS);
+
+    private File file;
+    private File journalFile;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journalFile = WalletJournal.journalFileFor(file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+        journalFile.delete();
+    }
+
+    private void assertLoadsTheSame() throws Exception {
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.getTransactions(true), loaded.getTransactions(true));
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        assertEquals(wallet.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+    }
+
+    @Test
+    public void changesAreAppended() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(file, 0, TimeUnit.SECONDS, null);
+        files.useJournal(1024 * 1024);
+        Sha256Hash snapshot = Sha256Hash.of(file);
+        long journalSize = journalFile.length();
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        ECKey key = wallet.freshReceiveKey();
+        Transaction send = wallet.createSend(OTHER_ADDRESS, COIN);
+        wallet.commitTx(send);
+
+        // Only the journal was written to.
+        assertEquals(snapshot, Sha256Hash.of(file));
+        assertTrue(journalFile.length() > journalSize);
+        assertLoadsTheSame();
+        assertNotNull(Wallet.loadFromFile(file).findKeyFromPubHash(key.getPubKeyHash()));
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        assertLoadsTheSame();
+        files.shutdownAndWait();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        journal.save(journal.snapshot());
+        File oldJournal = File.createTempFile("bitcoinj-unit-test", null);
+        Files.copy(journalFile, oldJournal);
+
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        long journalSize = journalFile.length();
+        assertTrue(journal.compact(journal.fullSnapshot()));
+        assertTrue(journalFile.length() < journalSize);
+        assertLoadsTheSame();
+
+        // A snapshot older than the one saved is not written.
+        WalletJournal.Snapshot stale = journal.fullSnapshot();
+        journal.save(journal.snapshot());
+        assertFalse(journal.compact(stale));
+
+        // A journal left over from before the snapshot is ignored rather than taking the wallet back.
+        Files.copy(oldJournal, journalFile);
+        assertLoadsTheSame();
+        journal.close();
+        oldJournal.delete();
+    }
+
+    @Test
+    public void blocksOnlyAppendWhatChanged() throws Exception {
+        for (int i = 1; i <= 3; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(i, 0));
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        int smallestTransaction = Integer.MAX_VALUE;
+        for (Protos.Transaction tx : journal.fullSnapshot().proto.getTransactionList())
+            smallestTransaction = Math.min(smallestTransaction, tx.getSerializedSize());
+
+        // A block without any of our transactions deepens all of them, but only the rest of the wallet is appended.
+        for (int i = 0; i < 5; i++) {
+            long journalSize = journalFile.length();
+            wallet.notifyNewBestBlock(FakeTxBuilder.createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).storedBlock);
+            WalletJournal.Snapshot snapshot = journal.snapshot();
+            assertEquals(0, snapshot.changed.size());
+            journal.save(snapshot);
+            assertTrue(journalFile.length() > journalSize);
+            assertTrue(journalFile.length() - journalSize < smallestTransaction);
+        }
+        assertLoadsTheSame();
+        Wallet loaded = Wallet.loadFromFile(file);
+        for (Transaction tx : wallet.getTransactions(false))
+            assertEquals(tx.getConfidence().getDepthInBlocks(),
+                    loaded.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+
+        // A block with a new transaction appends that one.
+        long journalSize = journalFile.length();
+        Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(4, 0));
+        WalletJournal.Snapshot snapshot = journal.snapshot();
+        assertEquals(1, snapshot.changed.size());
+        journal.save(snapshot);
+        long grown = journalFile.length() - journalSize;
+        assertTrue(grown > received.unsafeBitcoinSerialize().length);
+        assertTrue(grown < received.unsafeBitcoinSerialize().length + 2 * smallestTransaction);
+        journal.close();
+    }
+
+    @Test
+    public void snapshotsSavedOutOfOrder() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        WalletJournal.Snapshot older = journal.snapshot();
+        Transaction send = wallet.createSend(OTHER_ADDRESS, COIN);
+        wallet.commitTx(send);
+        WalletJournal.Snapshot newer = journal.snapshot();
+
+        // The older snapshot still saves the transaction only it has, but doesn't take back the newer one's changes.
+        journal.save(newer);
+        journal.save(older);
+        assertLoadsTheSame();
+        journal.close();
+    }
+
+    @Test
+    public void unfinishedSaveIsDropped() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        journal.save(journal.snapshot());
+        Wallet before = Wallet.loadFromFile(file);
+        long committed = journalFile.length();
+
+        // A save of several records, the last of which is its commit record.
+        Transaction send = wallet.createSend(OTHER_ADDRESS, COIN);
+        wallet.commitTx(send);
+        journal.save(journal.snapshot());
+        journal.close();
+        long end = journalFile.length();
+
+        // Cut off just the commit record, which is only a 9 byte header, and then part way into the records before it.
+        for (long length : new long[] {end - 9, committed + (end - committed) / 2}) {
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+            Wallet loaded = Wallet.loadFromFile(file);
+            assertNull(loaded.getTransaction(send.getHash()));
+            assertEquals(before.getTransactions(true), loaded.getTransactions(true));
+            assertEquals(before.getBalance(), loaded.getBalance());
+            assertEquals(before.getIssuedReceiveKeys(), loaded.getIssuedReceiveKeys());
+        }
+    }
+
+    @Test
+    public void loadingDoesNotWriteTheJournal() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        journal.save(journal.snapshot());
+        journal.close();
+
+        // A torn record at the end is left for the next save to cut off.
+        Files.append(new String(new byte[] {1, 5, 0, 0, 0, 1, 2}, "ISO-8859-1"), journalFile, Charsets.ISO_8859_1);
+        byte[] torn = Files.toByteArray(journalFile);
+        assertLoadsTheSame();
+        assertArrayEquals(torn, Files.toByteArray(journalFile));
+
+        // Nor is a journal of something else replaced, the snapshot is loaded without it.
+        byte[] foreign = "not a journal".getBytes();
+        Files.write(foreign, journalFile);
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(false).size());
+        assertArrayEquals(foreign, Files.toByteArray(journalFile));
+    }
+
+    @Test
+    public void removedTransactions() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        wallet.reset();
+        journal.save(journal.snapshot());
+        assertEquals(0, Wallet.loadFromFile(file).getTransactions(true).size());
+        journal.close();
+    }
+
+    @Test
+    public void mergeJournal() throws Exception {
+        WalletJournal journal = new WalletJournal(wallet, file, Long.MAX_VALUE);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0));
+        journal.save(journal.snapshot());
+        journal.close();
+
+        WalletJournal.mergeJournal(file);
+        assertFalse(journalFile.exists());
+        FileInputStream input = new FileInputStream(file);
+        try {
+            Protos.Wallet proto = WalletProtobufSerializer.parseToProto(input);
+            assertEquals(1, proto.getTransactionCount());
+            for (Protos.Extension extension : proto.getExtensionList())
+                assertNotEquals(WalletJournal.EXTENSION_ID, extension.getId());
+        } finally {
+            input.close();
+        }
+        assertLoadsTheSame();
+    }
+}
@@ -644,6 +644,98 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void balancesFollowPropagation() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction send = wallet.createSend(OTHER_ADDRESS, valueOf(0, 10));
+        wallet.commitTx(send);
+        Coin change = send.getValueSentToMe(wallet);
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance());
+        // Nothing tells the wallet that the transaction propagated, the balance must still notice.
+        send.getConfidence().markBroadcastBy(new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        send.getConfidence().markBroadcastBy(new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(change, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, send);
+        assertEquals(change, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+    }
+
+    @Test
+    public void spendableBalancesFollowKeys() throws Exception {
+        ECKey key = new ECKey();
+        ECKey watchingKey = ECKey.fromPublicOnly(key.getPubKeyPoint());
+        wallet.importKey(watchingKey);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, key.toAddress(PARAMS));
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        // Swap in the private key, leaving the number of keys the same.
+        assertTrue(wallet.removeKey(watchingKey));
+        wallet.importKey(key);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED_SPENDABLE));
+        assertTrue(wallet.removeKey(key));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void crossCheckBalances() throws Exception {
+        Transaction tx = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // The wallet isn't told about this, so its running total is now wrong.
+        tx.getConfidence().setConfidenceType(ConfidenceType.DEAD);
+        wallet.getBalance();
+    }
+
+    @Test
+    public void crossCheckBalanceOfOtherSelector() throws Exception {
+        wallet.allowSpendingUnconfirmedTransactions();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        sendMoneyToWallet(null, CENT);
+        // The pending coins only count for the wallet's own selector.
+        assertEquals(COIN.add(CENT), wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(new DefaultCoinSelector()));
+    }
+
+    @Test
+    public void touchedTransactionsAreChecked() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // Break tx1 behind the wallet's back: its only output is now spent but it stays in the unspent pool.
+        Transaction other = new Transaction(PARAMS);
+        tx1.getOutput(0).markAsSpent(other.addInput(tx1.getOutput(0)));
+        assertFalse(wallet.isConsistent());
+        // Receiving something unrelated only checks what it touched.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // But spending from tx2 in the same transaction as tx1 is noticed.
+        Transaction spend = new Transaction(PARAMS);
+        spend.addInput(tx2.getOutput(0));
+        spend.addInput(tx1.getOutput(0));
+        spend.addOutput(valueOf(2, 0), OTHER_ADDRESS);
+        try {
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, spend);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(tx1.getHashAsString()));
+        }
+    }
+
+    @Test
+    public void fullConsistencyChecks() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        Transaction other = new Transaction(PARAMS);
+        tx1.getOutput(0).markAsSpent(other.addInput(tx1.getOutput(0)));
+        wallet.setFullConsistencyChecks(true);
+        try {
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains(tx1.getHashAsString()));
+        }
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -833,6 +925,18 @@ public class WalletTest extends TestWithWallet {
         assertEquals(send3.getHash(), dead.poll().getTransactionHash());
     }
 
+    @Test
+    public void doubleSpendRelevance() throws Exception {
+        Transaction received = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // Pays somebody else from an output that isn't ours, but which the received transaction spends as well.
+        Transaction doubleSpend = new Transaction(PARAMS);
+        doubleSpend.addInput(received.getInput(0).duplicateDetached());
+        doubleSpend.addOutput(COIN, OTHER_ADDRESS);
+        assertTrue(wallet.isTransactionRelevant(doubleSpend));
+        wallet.reset();
+        assertFalse(wallet.isTransactionRelevant(doubleSpend));
+    }
+
     @Test
     public void doubleSpendFinneyAttack() throws Exception {
         // A Finney attack is where a miner includes a transaction spending coins to themselves but does not
@@ -1859,6 +1963,30 @@ public class WalletTest extends TestWithWallet {
         assertNull(results[1]);
     }
 
+    @Test
+    public void autosaveWriteBehind() throws Exception {
+        // Urgent saves are put off for up to the write-behind delay, but can be flushed out at any time.
+        File f = File.createTempFile("bitcoinj-unit-test", null);
+        Sha256Hash hash1 = Sha256Hash.of(f);
+        WalletFiles files = wallet.autosaveToFile(f, 1, TimeUnit.HOURS, null);
+        files.setWriteBehind(1, TimeUnit.HOURS);
+        ECKey key = wallet.freshReceiveKey();
+        assertEquals(hash1, Sha256Hash.of(f));  // File has NOT changed, though keys are important.
+
+        files.flush().get();
+        Sha256Hash hash2 = Sha256Hash.of(f);
+        assertFalse(hash1.equals(hash2));
+        assertEquals(key, Wallet.loadFromFile(f).findKeyFromPubHash(key.getPubKeyHash()));
+        files.flush().get();  // Nothing new to save.
+        assertEquals(hash2, Sha256Hash.of(f));
+
+        // Changes still waiting to be saved are saved when auto-saving is shut down.
+        sendMoneyToWallet(BlockChain.NewBlockType.BEST_CHAIN, valueOf(5, 0), key);
+        assertEquals(hash2, Sha256Hash.of(f));
+        wallet.shutdownAutosaveAndWait();
+        assertEquals(valueOf(5, 0), Wallet.loadFromFile(f).getBalance());
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.darkcoinj;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.MasternodeSignature;
+import org.bitcoinj.core.PublicKey;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Base64;
+
+import static org.junit.Assert.*;
+
+public class DarkSendSignerTest {
+    private ECKey key;
+    private PublicKey pubkey;
+
+    @Before
+    public void setUp() {
+        DarkSendSigner.clearVerifiedSignatures();
+        key = new ECKey();
+        pubkey = new PublicKey(key.getPubKey());
+    }
+
+    private MasternodeSignature sign(String message) {
+        return new MasternodeSignature(Base64.decode(key.signMessage(message)));
+    }
+
+    @Test
+    public void verifiedSignaturesAreRemembered() {
+        MasternodeSignature sig = sign("10.0.0.1:9999 1500000000");
+        VerifiedSignatureCache cache = DarkSendSigner.verifiedSignatures;
+
+        assertTrue(DarkSendSigner.verifyMessage(pubkey, sig, "10.0.0.1:9999 1500000000", new StringBuilder()));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHits());
+
+        // A relayed copy of the same message doesn't need verifying again, whichever way it's passed in.
+        assertTrue(DarkSendSigner.verifyMessage(pubkey, sig, "10.0.0.1:9999 1500000000", new StringBuilder()));
+        assertTrue(DarkSendSigner.verifyMessage1(pubkey, sig, "10.0.0.1:9999 1500000000".getBytes(), new StringBuilder()));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void badSignaturesAreNotRemembered() {
+        MasternodeSignature sig = sign("10.0.0.1:9999 1500000000");
+        StringBuilder errorMessage = new StringBuilder();
+
+        assertFalse(DarkSendSigner.verifyMessage(pubkey, sig, "10.0.0.1:9999 1500000001", errorMessage));
+        assertTrue(errorMessage.length() > 0);
+        assertFalse(DarkSendSigner.verifyMessage(pubkey, sig, "10.0.0.1:9999 1500000001", new StringBuilder()));
+        assertEquals(0, DarkSendSigner.verifiedSignatures.size());
+
+        // Nor does a good signature verify for another key because it has been seen before.
+        assertTrue(DarkSendSigner.verifyMessage(pubkey, sig, "10.0.0.1:9999 1500000000", new StringBuilder()));
+        PublicKey other = new PublicKey(new ECKey().getPubKey());
+        assertFalse(DarkSendSigner.verifyMessage(other, sig, "10.0.0.1:9999 1500000000", new StringBuilder()));
+    }
+
+    @Test
+    public void leastRecentlyUsedAreForgotten() {
+        VerifiedSignatureCache cache = new VerifiedSignatureCache(2);
+        cache.add(VerifiedSignatureCache.key(new byte[] {1}, new byte[] {2}, new byte[] {3}));
+        cache.add(VerifiedSignatureCache.key(new byte[] {4}, new byte[] {5}, new byte[] {6}));
+        assertTrue(cache.contains(VerifiedSignatureCache.key(new byte[] {1}, new byte[] {2}, new byte[] {3})));
+        cache.add(VerifiedSignatureCache.key(new byte[] {7}, new byte[] {8}, new byte[] {9}));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(VerifiedSignatureCache.key(new byte[] {1}, new byte[] {2}, new byte[] {3})));
+        assertFalse(cache.contains(VerifiedSignatureCache.key(new byte[] {4}, new byte[] {5}, new byte[] {6})));
+        // The boundaries between the parts count, not just their bytes.
+        assertNotEquals(VerifiedSignatureCache.key(new byte[] {1, 2}, new byte[] {3}, new byte[0]),
+                VerifiedSignatureCache.key(new byte[] {1}, new byte[] {2}, new byte[] {3}));
+    }
+}
@@ -0,0 +1,182 @@
+package org.darkcoinj;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class InstantSendTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int MASTERNODES = TransactionOutPointLock.SIGNATURES_TOTAL;
+    private static final int THREADS = 8;
+
+    private Context context;
+    private InstantSend instantSend;
+    private int nextOutpoint;
+
+    @Before
+    public void setUp() {
+        context = new Context(PARAMS);
+        context.initDash(true, true);
+        instantSend = context.instantSend;
+    }
+
+    private TransactionOutPoint newOutpoint() {
+        return new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(("utxo " + nextOutpoint++).getBytes()));
+    }
+
+    private static TransactionOutPoint masternode(int n) {
+        return new TransactionOutPoint(PARAMS, 1, Sha256Hash.of(("masternode " + n).getBytes()));
+    }
+
+    private TransactionLockRequest lockRequest(TransactionOutPoint... inputs) {
+        TransactionLockRequest tx = new TransactionLockRequest(PARAMS);
+        for (TransactionOutPoint input : inputs)
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], input));
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        return tx;
+    }
+
+    private static List<TransactionLockVote> votes(TransactionLockRequest tx, int fromMasternode, int toMasternode) {
+        List<TransactionLockVote> votes = new ArrayList<TransactionLockVote>();
+        for (TransactionInput input : tx.getInputs())
+            for (int mn = fromMasternode; mn < toMasternode; mn++)
+                votes.add(new TransactionLockVote(PARAMS, tx.getHash(), input.getOutpoint(), masternode(mn)));
+        return votes;
+    }
+
+    private boolean isLocked(TransactionLockRequest tx) {
+        return tx.getConfidence().getIXType() == TransactionConfidence.IXType.IX_LOCKED;
+    }
+
+    @Test
+    public void lockCompletesAndConflictingVoteIsCaught() {
+        TransactionOutPoint shared = newOutpoint();
+        TransactionLockRequest tx = lockRequest(newOutpoint(), shared);
+        TransactionLockRequest doubleSpend = lockRequest(shared);
+        assertTrue(instantSend.processTxLockRequest(tx));
+        assertTrue(instantSend.processTxLockRequest(doubleSpend));
+
+        for (TransactionLockVote vote : votes(tx, 0, TransactionOutPointLock.SIGNATURES_REQUIRED))
+            assertTrue(instantSend.processTxLockVote(null, vote));
+        assertTrue(isLocked(tx));
+        assertEquals(tx.getHash(), instantSend.mapLockedOutpoints.get(shared));
+
+        // A masternode that already voted for tx votes for the double spend of the same outpoint.
+        instantSend.processTxLockVote(null, new TransactionLockVote(PARAMS, doubleSpend.getHash(), shared, masternode(0)));
+        assertEquals(0, instantSend.mapTxLockCandidates.get(doubleSpend.getHash()).countVotes());
+        // Even with every other masternode voting for it, the double spend never completes.
+        for (TransactionLockVote vote : votes(doubleSpend, 1, MASTERNODES))
+            instantSend.processTxLockVote(null, vote);
+        assertFalse(isLocked(doubleSpend));
+        assertEquals(tx.getHash(), instantSend.mapLockedOutpoints.get(shared));
+    }
+
+    @Test
+    public void orphanVotesCompleteTheLock() {
+        TransactionLockRequest tx = lockRequest(newOutpoint());
+        instantSend.acceptLockRequest(tx);
+        // The votes arrive before the lock request itself.
+        instantSend.createEmptyTxLockCandidate(tx.getHash());
+        for (TransactionLockVote vote : votes(tx, 0, TransactionOutPointLock.SIGNATURES_REQUIRED)) {
+            // Each vote comes off the wire with an outpoint of its own.
+            TransactionOutPoint outpoint = new TransactionOutPoint(PARAMS, vote.getOutpoint().bitcoinSerialize(), 0);
+            assertNotSame(tx.getInput(0).getOutpoint(), outpoint);
+            instantSend.processTxLockVote(null, new TransactionLockVote(PARAMS, tx.getHash(), outpoint, vote.getOutpointMasternode()));
+        }
+        assertTrue(isLocked(tx));
+        assertEquals(tx.getHash(), instantSend.mapLockedOutpoints.get(tx.getInput(0).getOutpoint()));
+    }
+
+    @Test
+    public void concurrentVotes() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            if (round > 0)
+                setUp();
+            concurrentVotesRound(new Random(round));
+        }
+    }
+
+    private void concurrentVotesRound(Random random) throws Exception {
+        List<TransactionLockRequest> honest = new ArrayList<TransactionLockRequest>();
+        for (int i = 0; i < 40; i++)
+            honest.add(lockRequest(newOutpoint(), newOutpoint()));
+        // Every masternode votes for both transactions of each pair, so each of them is caught double voting.
+        List<TransactionLockRequest[]> pairs = new ArrayList<TransactionLockRequest[]>();
+        for (int i = 0; i < 10; i++) {
+            TransactionOutPoint shared = newOutpoint();
+            pairs.add(new TransactionLockRequest[] {lockRequest(shared), lockRequest(shared)});
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ContextPropagatingThreadFactory("InstantSendTest"));
+        try {
+            List<Callable<Boolean>> requests = new ArrayList<Callable<Boolean>>();
+            for (TransactionLockRequest tx : honest)
+                requests.add(lockRequestTask(tx));
+            for (TransactionLockRequest[] pair : pairs) {
+                requests.add(lockRequestTask(pair[0]));
+                requests.add(lockRequestTask(pair[1]));
+            }
+            for (Future<Boolean> future : executor.invokeAll(requests))
+                assertTrue(future.get());
+
+            List<TransactionLockVote> votes = new ArrayList<TransactionLockVote>();
+            for (TransactionLockRequest tx : honest)
+                votes.addAll(votes(tx, 0, MASTERNODES));
+            for (TransactionLockRequest[] pair : pairs) {
+                votes.addAll(votes(pair[0], 0, MASTERNODES));
+                votes.addAll(votes(pair[1], 0, MASTERNODES));
+            }
+            Collections.shuffle(votes, random);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            for (final TransactionLockVote vote : votes) {
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return instantSend.processTxLockVote(null, vote);
+                    }
+                });
+            }
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (Callable<Boolean> task : tasks)
+                results.add(executor.submit(task));
+            start.countDown();
+            for (Future<Boolean> result : results)
+                assertTrue(result.get(60, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        }
+
+        for (TransactionLockRequest tx : honest) {
+            assertTrue(isLocked(tx));
+            assertEquals(MASTERNODES * 2, instantSend.mapTxLockCandidates.get(tx.getHash()).countVotes());
+            for (TransactionInput input : tx.getInputs())
+                assertEquals(tx.getHash(), instantSend.mapLockedOutpoints.get(input.getOutpoint()));
+        }
+        for (TransactionLockRequest[] pair : pairs) {
+            assertFalse(isLocked(pair[0]) && isLocked(pair[1]));
+            assertEquals(0, instantSend.mapTxLockCandidates.get(pair[0].getHash()).countVotes());
+            assertEquals(0, instantSend.mapTxLockCandidates.get(pair[1].getHash()).countVotes());
+            Sha256Hash locked = instantSend.mapLockedOutpoints.get(pair[0].getInput(0).getOutpoint());
+            assertTrue(locked == null || locked.equals(pair[0].getHash()) || locked.equals(pair[1].getHash()));
+        }
+    }
+
+    private Callable<Boolean> lockRequestTask(final TransactionLockRequest tx) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return instantSend.processTxLockRequest(tx);
+            }
+        };
+    }
+}